@@ -39,6 +39,26 @@ tasks.withType<Test> {
     useJUnitPlatform() // JUnit 5
 }
 
+/*
+ * Load test (proxyauth.TestLoad), which is skipped by the other test tasks. Settings (see TestLoad) can be given as
+ * project properties, e.g. "gradlew loadTest -Ploadtest.clients=200 -Ploadtest.engine=NIO"
+ */
+tasks.register<Test>("loadTest") {
+    description = "Run the load test against an in-process listener and mock upstream proxy, and report the results"
+    group = "verification"
+    testClassesDirs = sourceSets.test.get().output.classesDirs
+    classpath = sourceSets.test.get().runtimeClasspath
+    useJUnitPlatform {
+        includeTags("load")
+    }
+    systemProperty("loadtest", "true")
+    project.properties.filterKeys { it.startsWith("loadtest.") }.forEach { (key, value) ->
+        systemProperty(key, value.toString())
+    }
+    testLogging.showStandardStreams = true
+    outputs.upToDateWhen { false }
+}
+
 version = "0.1.1"
 group = "com.github.zeckie"
 
@@ -79,9 +99,57 @@ if (majorVersion < MIN_JAVA_VER) {
     }
 }
 
+/*
+ * Multi-release jar: classes compiled from src/main/java21 replace the matching classes from src/main/java
+ * when running on Java 21 or later (e.g. to support virtual threads), while still running on MIN_JAVA_VER.
+ */
+@Suppress("PropertyName")
+val MR_JAVA_VER = 21
+val java21: SourceSet by sourceSets.creating {
+    java.setSrcDirs(listOf("src/main/java21"))
+}
+tasks.named<JavaCompile>(java21.compileJavaTaskName) {
+    javaCompiler.set(javaToolchains.compilerFor {
+        languageVersion.set(JavaLanguageVersion.of(MR_JAVA_VER))
+    })
+    options.release.set(MR_JAVA_VER)
+}
+
 // set main class
 tasks.jar {
     manifest.attributes["Main-Class"] = "proxyauth.Main"
+    manifest.attributes["Multi-Release"] = "true"
+    into("META-INF/versions/$MR_JAVA_VER") {
+        from(java21.output)
+    }
+}
+
+/*
+ * Microbenchmarks of the hot paths (JMH), in src/jmh/java. Run with "gradlew jmh" (optionally
+ * "-PjmhInclude=<regex>" to choose benchmarks). Results are written as JSON to build/reports/jmh/results.json,
+ * so they can be compared across releases.
+ */
+val jmhVersion = "1.36"
+val jmh: SourceSet by sourceSets.creating {
+    java.setSrcDirs(listOf("src/jmh/java"))
+    compileClasspath += sourceSets.main.get().output
+    runtimeClasspath += sourceSets.main.get().output
+}
+dependencies {
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:$jmhVersion")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:$jmhVersion")
+}
+tasks.register<JavaExec>("jmh") {
+    description = "Run JMH microbenchmarks, writing results to build/reports/jmh/results.json"
+    group = "verification"
+    classpath = jmh.runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+    val results = layout.buildDirectory.file("reports/jmh/results.json").get().asFile
+    args("-rf", "json", "-rff", results.absolutePath)
+    if (project.hasProperty("jmhInclude")) args(project.property("jmhInclude").toString())
+    outputs.file(results)
+    outputs.upToDateWhen { false }
+    doFirst { results.parentFile.mkdirs() }
 }
 
 changelog {
@@ -0,0 +1,145 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import proxyauth.conf.Configuration;
+import proxyauth.conf.Engine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of each new client connection through {@link ProxyListener}: accepting it, reading and rewriting the
+ * request, connecting to the (mock) upstream proxy, and relaying an empty response. All over loopback.
+ *
+ * @author Zeckie
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConnectionBenchmark {
+    private static final byte[] REQUEST = "GET http://example.com/ HTTP/1.1\r\nHost: example.com\r\nConnection: close\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RESPONSE = "HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    @Param({"THREADS", "NIO"})
+    public Engine engine;
+
+    private ServerSocket upstream;
+    private ProxyListener listener;
+    private InetAddress address;
+    private final byte[] buf = new byte[4096];
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        address = InetAddress.getLoopbackAddress();
+        upstream = new ServerSocket(0, 50, address);
+        final Thread mock = new Thread(this::serveUpstream, "ConnectionBenchmark-upstream");
+        mock.setDaemon(true);
+        mock.start();
+
+        final Configuration config = new Configuration();
+        config.DEBUG.setValue(false);
+        config.ENGINE.setValue(engine);
+        config.LISTEN_ADDRESS.setValue(address.getHostAddress());
+        config.LISTEN_PORT.setValue(0); // Ephemeral port
+        config.UPSTREAM_PROXY_HOST.setValue(address.getHostAddress());
+        config.UPSTREAM_PROXY_PORT.setValue(upstream.getLocalPort());
+        config.USERNAME.setValue("user");
+        config.PASSWORD.setValue("password");
+        listener = new ProxyListener(config);
+        // Measure the proxy, not the console
+        Log.setLevel(Log.Level.WARN);
+        final Thread thread = new Thread(listener, "ConnectionBenchmark-listener");
+        thread.setDaemon(true);
+        thread.start();
+        while (listener.getLocalPort() == null) Thread.sleep(10);
+    }
+
+    /**
+     * Mock upstream proxy: read each request's headers, then respond and close
+     */
+    private void serveUpstream() {
+        final byte[] headers = new byte[8192];
+        try {
+            //noinspection InfiniteLoopStatement (until the socket is closed)
+            while (true) {
+                try (Socket socket = upstream.accept()) {
+                    readHeaders(socket.getInputStream(), headers);
+                    socket.getOutputStream().write(RESPONSE);
+                }
+            }
+        } catch (IOException e) {
+            // closed by tearDown
+        }
+    }
+
+    private static void readHeaders(InputStream in, byte[] buf) throws IOException {
+        int length = 0;
+        while (length < 4 || buf[length - 4] != '\r' || buf[length - 3] != '\n' || buf[length - 2] != '\r' || buf[length - 1] != '\n') {
+            final int b = in.read();
+            if (b == -1) throw new IOException("End of stream in headers");
+            buf[length++] = (byte) b;
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        listener.close();
+        upstream.close();
+    }
+
+    @Benchmark
+    public int request() throws IOException {
+        try (Socket socket = new Socket(address, listener.getLocalPort())) {
+            final OutputStream os = socket.getOutputStream();
+            os.write(REQUEST);
+            os.flush();
+            final InputStream is = socket.getInputStream();
+            int total = 0;
+            int read;
+            while ((read = is.read(buf)) != -1) total += read;
+            return total;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import proxyauth.conf.Configuration;
+import proxyauth.http.HttpInput;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Relaying a body (with Content-Length framing) from one loopback socket to another with {@link PassThrough}, as
+ * done for each request and response. A background thread keeps the source socket full, and another discards
+ * everything sent to the destination.
+ *
+ * @author Zeckie
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RelayBenchmark {
+    @Param({"1024", "1048576"})
+    public int bodySize;
+
+    private final Configuration config = new Configuration();
+    private final StatusListener<PassThrough> listener = (obj, succeeded) -> {
+    };
+    private BufferPool[] buffers;
+    private ServerSocket server;
+    private Socket source;
+    private Socket destination;
+    private HttpInput in;
+    private OutputStream out;
+
+    @Setup
+    public void setup() throws IOException {
+        buffers = BufferPool.tiers(config.BUF_SIZE.getValue(), config.MAX_BUF_SIZE.getValue(), 2, false);
+        server = new ServerSocket(0, 2, InetAddress.getLoopbackAddress());
+
+        // Source: written continuously by a feeder
+        final Socket feeder = new Socket(server.getInetAddress(), server.getLocalPort());
+        source = server.accept();
+        start("feeder", () -> {
+            final byte[] data = new byte[65536];
+            try (OutputStream os = feeder.getOutputStream()) {
+                //noinspection InfiniteLoopStatement (until the socket is closed)
+                while (true) os.write(data);
+            }
+        });
+
+        // Destination: read and discarded by a drain
+        destination = new Socket(server.getInetAddress(), server.getLocalPort());
+        final Socket drain = server.accept();
+        start("drain", () -> {
+            final byte[] data = new byte[65536];
+            try (InputStream is = drain.getInputStream()) {
+                //noinspection StatementWithEmptyBody
+                while (is.read(data) != -1) ;
+            }
+        });
+
+        in = new HttpInput(source.getInputStream(), config.BUF_SIZE.getValue());
+        out = new BufferedOutputStream(destination.getOutputStream(), config.BUF_SIZE.getValue());
+    }
+
+    private interface IoTask {
+        void run() throws IOException;
+    }
+
+    private static void start(String name, IoTask task) {
+        final Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } catch (IOException e) {
+                // socket closed by tearDown
+            }
+        }, "RelayBenchmark-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        source.close();
+        destination.close();
+        server.close();
+    }
+
+    @Benchmark
+    public long relay() {
+        final PassThrough passThrough = new PassThrough(listener, in, out, null, true, null, config.snapshot(), buffers);
+        passThrough.setBodyLength(bodySize);
+        passThrough.run();
+        return passThrough.bytesTransferred.get();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.actions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import proxyauth.BufferPool;
+import proxyauth.conf.Configuration;
+import proxyauth.conf.Snapshot;
+import proxyauth.http.HeaderParser;
+import proxyauth.http.HeaderParserBenchmark;
+import proxyauth.http.HttpInput;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rewriting request headers before they are sent upstream, starting from headers as parsed from a client
+ *
+ * @author Zeckie
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderRewriteBenchmark {
+    @Param({"small", "large"})
+    public String size;
+
+    private List<String> headers;
+    private ForwardAction action;
+    private Snapshot settings;
+
+    @Setup
+    public void setup() throws IOException {
+        final HttpInput input = new HttpInput(new ByteArrayInputStream(HeaderParserBenchmark.headers(size)), 8192);
+        headers = new HeaderParser(new BufferPool(8192, 4, false), 65536).parse(input, false);
+        final Configuration config = new Configuration();
+        config.USERNAME.setValue("user");
+        config.PASSWORD.setValue("password");
+        settings = config.snapshot();
+        action = new ForwardAction(Collections.emptyList(), null);
+    }
+
+    @Benchmark
+    public List<String> processAuthHeaders() {
+        return action.processAuthHeaders(headers, settings);
+    }
+
+    @Benchmark
+    public List<String> processKeepAlive() {
+        return ForwardAction.processKeepAlive(headers);
+    }
+
+    @Benchmark
+    public List<String> processUpstreamKeepAlive() {
+        return ForwardAction.processUpstreamKeepAlive(headers);
+    }
+
+    /**
+     * Both rewrites, as done for each request when CONNECTION_CLOSE is enabled
+     */
+    @Benchmark
+    public List<String> authAndKeepAlive() {
+        return ForwardAction.processKeepAlive(action.processAuthHeaders(headers, settings));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.http;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import proxyauth.BufferPool;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing request headers, at the sizes sent by browsers: a plain GET (about 400 bytes), and one with large
+ * cookies (about 4KB, so spanning several reads with the default buffer size).
+ *
+ * @author Zeckie
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderParserBenchmark {
+    static final String SMALL = "GET http://example.com/index.html?q=benchmark HTTP/1.1\r\n"
+            + "Host: example.com\r\n"
+            + "User-Agent: Mozilla/5.0 (Windows NT 10.0; Win64; x64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n"
+            + "Accept-Language: en-GB,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate\r\n"
+            + "Proxy-Connection: keep-alive\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n";
+
+    @Param({"small", "large"})
+    public String size;
+
+    @Param({"1024", "8192"})
+    public int bufferSize;
+
+    private ByteArrayInputStream bytes;
+    private HttpInput input;
+    private HeaderParser parser;
+
+    /**
+     * @return request headers of the given size (small or large), ending with a blank line
+     */
+    public static byte[] headers(String size) {
+        final StringBuilder sb = new StringBuilder(SMALL);
+        if ("large".equals(size)) {
+            sb.append("Cookie: ");
+            for (int i = 0; sb.length() < 4000; i++) {
+                sb.append("session").append(i).append("=0123456789abcdef0123456789abcdef; ");
+            }
+            sb.append("last=1\r\n");
+        }
+        return sb.append("\r\n").toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Setup
+    public void setup() {
+        bytes = new ByteArrayInputStream(headers(size));
+        input = new HttpInput(bytes, bufferSize);
+        parser = new HeaderParser(new BufferPool(bufferSize, 4, false), 65536);
+    }
+
+    @Benchmark
+    public HttpHeaders parse() throws IOException {
+        bytes.reset();
+        return parser.parse(input, false);
+    }
+
+    @Benchmark
+    public String parseAndGetHeader() throws IOException {
+        bytes.reset();
+        return parser.parse(input, false).value("Proxy-Connection");
+    }
+}
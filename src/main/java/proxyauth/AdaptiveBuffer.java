@@ -0,0 +1,139 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A buffer for one direction of a connection, which grows (using buffers from larger pools) while reads keep
+ * filling it, as for bulk transfers, and shrinks again when reads are small or stop, as for interactive traffic
+ * or idle connections. It is only replaced while empty, so nothing needs to be copied.
+ * <p>
+ * Not thread safe - used by the thread relaying that direction.
+ *
+ * @author Zeckie
+ */
+public final class AdaptiveBuffer {
+    /**
+     * Consecutive reads that fill the buffer before growing
+     */
+    static final int GROW_AFTER = 2;
+
+    /**
+     * Consecutive reads that would easily fit in a smaller buffer before shrinking
+     */
+    static final int SHRINK_AFTER = 16;
+
+    /**
+     * Nanoseconds without reads before returning to the smallest size
+     */
+    static final long IDLE_NANOS = 1_000_000_000L;
+
+    private final BufferPool[] pools;
+    private int tier = 0;
+
+    /**
+     * Tier to change to, once the buffer is empty
+     */
+    private int target = 0;
+    private ByteBuffer buf;
+    private int fullReads = 0;
+    private int smallReads = 0;
+    private long lastRead = System.nanoTime();
+
+    /**
+     * @param pools pools of increasingly large buffers (see {@link BufferPool#tiers(int, int, int, boolean)}),
+     *              starting with the first
+     */
+    public AdaptiveBuffer(BufferPool[] pools) {
+        this.pools = pools;
+        this.buf = pools[0].lease();
+    }
+
+    /**
+     * @return the current buffer, which may be replaced by {@link #resize()}
+     */
+    public ByteBuffer get() {
+        return buf;
+    }
+
+    /**
+     * @param read   number of bytes read into the buffer
+     * @param filled the read filled the buffer (so a larger one might have been filled too)
+     */
+    public void recordRead(int read, boolean filled) {
+        lastRead = System.nanoTime();
+        if (filled) {
+            smallReads = 0;
+            if (++fullReads >= GROW_AFTER && tier < pools.length - 1) {
+                target = tier + 1;
+                fullReads = 0;
+            }
+        } else if (tier > 0 && read <= pools[tier - 1].getBufferSize() / 2) {
+            fullReads = 0;
+            if (++smallReads >= SHRINK_AFTER) {
+                target = tier - 1;
+                smallReads = 0;
+            }
+        } else {
+            fullReads = 0;
+            smallReads = 0;
+        }
+    }
+
+    /**
+     * Return to the smallest size (once empty) if there have been no reads for a while
+     *
+     * @param now current time (System.nanoTime)
+     */
+    public void idle(long now) {
+        if (tier > 0 && now - lastRead >= IDLE_NANOS) target = 0;
+    }
+
+    /**
+     * Change to a different size buffer, if needed and the buffer is empty (position 0)
+     *
+     * @return true if the buffer was replaced
+     */
+    public boolean resize() {
+        if (target == tier || buf.position() != 0) return false;
+        final ByteBuffer next = pools[target].lease();
+        pools[tier].release(buf);
+        buf = next;
+        tier = target;
+        return true;
+    }
+
+    /**
+     * @return true if larger than the smallest size
+     */
+    public boolean isGrown() {
+        return tier > 0;
+    }
+
+    /**
+     * Give the buffer back to its pool. It must not be used afterwards.
+     */
+    public void release() {
+        pools[tier].release(buf);
+        buf = null;
+    }
+}
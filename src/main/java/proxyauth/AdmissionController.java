@@ -0,0 +1,319 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth;
+
+import proxyauth.metrics.Metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static proxyauth.Utils.ascii;
+
+/**
+ * Limits the number of requests being handled at the same time, without blocking the thread accepting
+ * connections. Connections that can't be handled straight away wait in a bounded queue, until a request finishes
+ * (first come, first served). If the queue is full, or a connection has waited too long, it is rejected with
+ * 503 (Service Unavailable), so clients fail fast instead of waiting in the listen backlog.
+ * <p>
+ * Uses atomic counters and a lock-free queue, so accepting and finishing requests don't contend for a lock.
+ *
+ * @author Zeckie
+ */
+public class AdmissionController implements Closeable {
+    /**
+     * Maximum number of 503 responses waiting to be sent. Beyond this, connections are closed without a response.
+     */
+    static final int MAX_PENDING_REJECTS = 256;
+
+    /**
+     * Maximum bytes of a rejected request to discard before closing, so a client that keeps sending can't hold
+     * the thread sending 503 responses
+     */
+    static final int MAX_DISCARD = 64 * 1024;
+
+    private volatile int maxActive;
+    private volatile int maxQueued;
+    private volatile long queueTimeout;
+    private final Metrics metrics;
+
+    /**
+     * Requests admitted and not yet finished
+     */
+    private final AtomicInteger active = new AtomicInteger();
+
+    /**
+     * Waiters in the queue that haven't been admitted or rejected. Can be briefly less than the queue's size.
+     */
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Waiter> queue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Rejects waiters that reach their deadline
+     */
+    private final ScheduledExecutorService expiry = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "AdmissionController-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Sends 503 responses, so that a slow client doesn't stop the accepting (or expiry) thread
+     */
+    private final ExecutorService rejecter = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(MAX_PENDING_REJECTS), r -> {
+        Thread thread = new Thread(r, "AdmissionController-reject");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * A connection waiting to be admitted
+     */
+    private static final class Waiter {
+        final Runnable admit;
+        final Runnable reject;
+        final long deadline;
+        /**
+         * Set when the waiter is admitted or rejected, so that only one happens
+         */
+        final AtomicBoolean done = new AtomicBoolean();
+
+        Waiter(Runnable admit, Runnable reject, long deadline) {
+            this.admit = admit;
+            this.reject = reject;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * @param maxActive    maximum number of requests handled at the same time
+     * @param maxQueued    maximum number of connections waiting
+     * @param queueTimeout milliseconds a connection can wait before being rejected
+     * @param metrics      updated with the number active, waiting and rejected
+     */
+    public AdmissionController(int maxActive, int maxQueued, long queueTimeout, Metrics metrics) {
+        this.maxActive = maxActive;
+        this.maxQueued = maxQueued;
+        this.queueTimeout = queueTimeout;
+        this.metrics = metrics;
+        long interval = Math.max(10, Math.min(100, queueTimeout / 4));
+        expiry.scheduleWithFixedDelay(this::expire, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Admit a connection now, or once a request finishes. Never blocks.
+     *
+     * @param admit  run (by this thread, or by one calling {@link #finished()}) when the connection is admitted.
+     *               {@link #finished()} must be called when its request finishes.
+     * @param reject run (by this thread, or the expiry thread) if the connection can't be admitted in time
+     */
+    public void submit(Runnable admit, Runnable reject) {
+        if (tryAcquire()) {
+            admit(admit);
+            return;
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            reject(reject);
+            return;
+        }
+        metrics.gateWaits.increment();
+        metrics.gateWaiting.increment();
+        queue.add(new Waiter(admit, reject, System.currentTimeMillis() + queueTimeout));
+        // A request may have finished since tryAcquire, without seeing this waiter
+        drain();
+    }
+
+    /**
+     * Change the limits (eg. when the configuration is reloaded). Connections already waiting keep their deadlines.
+     */
+    public void setLimits(int maxActive, int maxQueued, long queueTimeout) {
+        this.maxActive = maxActive;
+        this.maxQueued = maxQueued;
+        this.queueTimeout = queueTimeout;
+        drain();
+    }
+
+    /**
+     * Called when an admitted request has finished, to admit the next waiter
+     */
+    public void finished() {
+        active.decrementAndGet();
+        metrics.active.decrement();
+        drain();
+    }
+
+    /**
+     * @return number of requests admitted and not yet finished
+     */
+    public int getActive() {
+        return active.get();
+    }
+
+    /**
+     * @return number of connections waiting to be admitted
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    private boolean tryAcquire() {
+        int current;
+        do {
+            current = active.get();
+            if (current >= maxActive) return false;
+        } while (!active.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Admit waiters while there is capacity
+     */
+    private void drain() {
+        while (!queue.isEmpty() && tryAcquire()) {
+            final Waiter waiter = queue.poll();
+            if (waiter == null || !waiter.done.compareAndSet(false, true)) {
+                // Taken by another thread, or already rejected by expire()
+                active.decrementAndGet();
+                continue;
+            }
+            dequeued();
+            if (System.currentTimeMillis() > waiter.deadline) {
+                active.decrementAndGet();
+                reject(waiter.reject);
+            } else {
+                admit(waiter.admit);
+            }
+        }
+    }
+
+    /**
+     * Reject waiters that have reached their deadline
+     */
+    void expire() {
+        final long now = System.currentTimeMillis();
+        for (Iterator<Waiter> it = queue.iterator(); it.hasNext(); ) {
+            final Waiter waiter = it.next();
+            if (now > waiter.deadline && waiter.done.compareAndSet(false, true)) {
+                it.remove();
+                dequeued();
+                reject(waiter.reject);
+            }
+        }
+    }
+
+    private void dequeued() {
+        queued.decrementAndGet();
+        metrics.gateWaiting.decrement();
+    }
+
+    private void admit(Runnable admit) {
+        metrics.active.increment();
+        try {
+            admit.run();
+        } catch (RuntimeException e) {
+            Log.error("Unable to start request", e);
+            finished();
+        }
+    }
+
+    private void reject(Runnable reject) {
+        metrics.rejected.increment();
+        try {
+            reject.run();
+        } catch (RuntimeException e) {
+            Log.warn("Unable to reject request", e);
+        }
+    }
+
+    /**
+     * Respond with 503 (Service Unavailable), asking the client to retry once the queue timeout has passed,
+     * and close the connection. The response is sent by another thread, so this doesn't block.
+     */
+    public void sendOverloaded(Socket socket) {
+        try {
+            rejecter.execute(() -> respondOverloaded(socket));
+        } catch (RejectedExecutionException e) {
+            // Too many waiting for a response (or closed) - don't let them pile up
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                Log.debug("Unable to close {}: {}", socket, ex);
+            }
+            Log.warn("Rejected connection from {} - too busy to respond", socket.getRemoteSocketAddress());
+        }
+    }
+
+    private void respondOverloaded(Socket socket) {
+        final String body = "ProxyAuth is busy - try again later\r\n";
+        final long retryAfter = Math.max(1, TimeUnit.MILLISECONDS.toSeconds(queueTimeout + 999));
+        try (Socket s = socket) {
+            final OutputStream os = s.getOutputStream();
+            os.write(ascii("HTTP/1.1 503 Service Unavailable\r\n"
+                    + "Retry-After: " + retryAfter + "\r\n"
+                    + "Content-Type: text/plain\r\n"
+                    + "Content-Length: " + body.length() + "\r\n"
+                    + "Connection: close\r\n\r\n" + body));
+            os.flush();
+            s.shutdownOutput();
+            // Discard what the client has sent so far, so that closing doesn't reset the connection (losing the response)
+            final InputStream is = s.getInputStream();
+            int available;
+            long discarded = 0;
+            while (discarded < MAX_DISCARD && (available = is.available()) > 0) {
+                final long skipped = is.skip(Math.min(available, MAX_DISCARD - discarded));
+                if (skipped <= 0) break;
+                discarded += skipped;
+            }
+        } catch (IOException e) {
+            Log.debug("Unable to send 503 to {}: {}", socket, e);
+        }
+        Log.warn("Rejected connection from {} - too busy", socket.getRemoteSocketAddress());
+    }
+
+    @Override
+    public void close() {
+        expiry.shutdownNow();
+        Waiter waiter;
+        while ((waiter = queue.poll()) != null) {
+            if (waiter.done.compareAndSet(false, true)) {
+                dequeued();
+                reject(waiter.reject);
+            }
+        }
+        // Let responses already handed over finish
+        rejecter.shutdown();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared pool of equally sized buffers, so that connections can reuse buffers instead of
+ * allocating new ones. Buffers that are released while the pool is full are left for the
+ * garbage collector.
+ *
+ * @author Zeckie
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final boolean direct;
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Number of buffers in free (ConcurrentLinkedQueue.size() is not constant time)
+     */
+    private final AtomicInteger freeCount = new AtomicInteger();
+
+    /**
+     * @param bufferSize size of each buffer, in bytes
+     * @param maxPooled  maximum number of unused buffers to keep
+     * @param direct     allocate direct buffers (instead of heap buffers, backed by an array)
+     */
+    public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.direct = direct;
+    }
+
+    /**
+     * Pools for {@link AdaptiveBuffer}, each with buffers 4 times the size of the previous one (up to max). Fewer
+     * of the larger buffers are kept, so that each pool holds about the same amount of memory.
+     *
+     * @param min       size of the smallest buffers, in bytes
+     * @param max       size of the largest buffers, in bytes (if not more than min, there is just one pool)
+     * @param maxPooled maximum number of unused buffers to keep of the smallest size
+     * @param direct    allocate direct buffers
+     */
+    public static BufferPool[] tiers(int min, int max, int maxPooled, boolean direct) {
+        int count = 1;
+        for (long size = min; size < max; size *= 4) count++;
+        if (max <= min) count = 1;
+        final BufferPool[] pools = new BufferPool[count];
+        long size = min;
+        for (int i = 0; i < count; i++) {
+            pools[i] = new BufferPool((int) Math.min(size, i == 0 ? min : max), Math.max(1, maxPooled >> (2 * i)), direct);
+            size *= 4;
+        }
+        return pools;
+    }
+
+    /**
+     * @return a cleared buffer, which should be given back using {@link #release(ByteBuffer)} when no longer needed
+     */
+    public ByteBuffer lease() {
+        ByteBuffer buf = free.poll();
+        if (buf == null) {
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        freeCount.decrementAndGet();
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Return a buffer to the pool. The buffer must not be used after it has been released.
+     */
+    public void release(ByteBuffer buf) {
+        if (buf == null || buf.capacity() != bufferSize || buf.isDirect() != direct) return;
+        if (freeCount.incrementAndGet() > maxPooled) {
+            freeCount.decrementAndGet();
+            return;
+        }
+        free.offer(buf);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return number of buffers currently available for reuse
+     */
+    public int getFreeCount() {
+        return freeCount.get();
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Buffers writes to a socket until there are {@code size} bytes, or it is flushed (see {@link FlushPolicy}). When a
+ * write doesn't fit, the buffered bytes and the new ones are sent together with a single gathering write on the
+ * socket's channel (eg. rewritten headers followed by the first bytes of the body), instead of one write for each.
+ * <p>
+ * Not thread safe.
+ *
+ * @author Zeckie
+ */
+public class CoalescingOutputStream extends OutputStream {
+    private final OutputStream out;
+
+    /**
+     * Channel for gathering writes, or null if the socket doesn't have one
+     */
+    private final SocketChannel channel;
+    private final byte[] buf;
+    private int count = 0;
+
+    /**
+     * When the oldest buffered byte was written (System.nanoTime)
+     */
+    private long bufferedSince;
+
+    /**
+     * Writes made to the socket
+     */
+    private long writes = 0;
+    private final LongAdder totalWrites;
+
+    /**
+     * @param socket      socket to write to
+     * @param size        number of bytes to buffer before writing
+     * @param totalWrites (optional) counter to add each write to the socket to
+     */
+    public CoalescingOutputStream(Socket socket, int size, LongAdder totalWrites) throws IOException {
+        this(socket.getOutputStream(), socket.getChannel(), size, totalWrites);
+    }
+
+    CoalescingOutputStream(OutputStream out, SocketChannel channel, int size, LongAdder totalWrites) {
+        this.out = out;
+        this.channel = channel;
+        this.buf = new byte[size];
+        this.totalWrites = totalWrites;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buf.length) flushBuffer();
+        if (count == 0) bufferedSince = System.nanoTime();
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len <= buf.length - count) {
+            if (len == 0) return;
+            if (count == 0) bufferedSince = System.nanoTime();
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        } else if (count > 0 && channel != null && channel.isBlocking()) {
+            final ByteBuffer[] both = {ByteBuffer.wrap(buf, 0, count), ByteBuffer.wrap(b, off, len)};
+            while (both[1].hasRemaining()) channel.write(both);
+            count = 0;
+            wrote();
+        } else if (len >= buf.length) {
+            flushBuffer();
+            out.write(b, off, len);
+            wrote();
+        } else {
+            flushBuffer();
+            write(b, off, len);
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buf, 0, count);
+            count = 0;
+            wrote();
+        }
+    }
+
+    private void wrote() {
+        writes++;
+        if (totalWrites != null) totalWrites.increment();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return number of bytes waiting to be written
+     */
+    public int buffered() {
+        return count;
+    }
+
+    /**
+     * @return when the oldest of the {@link #buffered()} bytes was written (System.nanoTime)
+     */
+    public long bufferedSince() {
+        return bufferedSince;
+    }
+
+    /**
+     * @return number of writes made to the socket (each sends one or more TCP segments)
+     */
+    public long getWrites() {
+        return writes;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decides when a relay flushes its output. Before each read that might block, buffered bytes are flushed, unless
+ * more input is already waiting (so it can be sent in the same write), or arrives within the latency budget. With
+ * no budget, bytes are only held while more input is waiting. Input is only checked when there are bytes buffered,
+ * so large transfers (written straight to the socket) don't check at all.
+ * <p>
+ * Not thread safe - used by the thread relaying one direction.
+ *
+ * @author Zeckie
+ */
+public final class FlushPolicy {
+    /**
+     * How often to check for more input while waiting (nanoseconds)
+     */
+    static final long POLL_NANOS = 20_000;
+
+    private final CoalescingOutputStream buffer;
+    private final long delayNanos;
+
+    /**
+     * Times the bytes buffered were sent along with later input, instead of being flushed straight away
+     */
+    private long coalesced = 0;
+    private final LongAdder totalCoalesced;
+
+    /**
+     * @param buffer         the stream buffering the output (which may be wrapped by the stream that is written to)
+     * @param delayMicros    longest time bytes can be held waiting for more input, in microseconds
+     * @param totalCoalesced (optional) counter to add each time bytes are held to
+     */
+    public FlushPolicy(CoalescingOutputStream buffer, int delayMicros, LongAdder totalCoalesced) {
+        this.buffer = buffer;
+        this.delayNanos = delayMicros * 1000L;
+        this.totalCoalesced = totalCoalesced;
+    }
+
+    /**
+     * Flush, if needed, before reading more input
+     *
+     * @param in  the input about to be read
+     * @param out the output written to (flushing it flushes the buffer)
+     */
+    public void beforeRead(InputStream in, OutputStream out) throws IOException {
+        if (buffer.buffered() == 0) return;
+        final long deadline = buffer.bufferedSince() + delayNanos;
+        if (in.available() > 0) {
+            // Unless the oldest bytes have already waited long enough
+            if (delayNanos == 0 || deadline - System.nanoTime() > 0) {
+                coalesced();
+                return;
+            }
+        } else {
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(Math.min(remaining, POLL_NANOS));
+                if (in.available() > 0) {
+                    coalesced();
+                    return;
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private void coalesced() {
+        coalesced++;
+        if (totalCoalesced != null) totalCoalesced.increment();
+    }
+
+    /**
+     * @return times buffered bytes were held for more input, instead of being flushed
+     */
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * @return writes made to the socket so far
+     */
+    public long getWrites() {
+        return buffer.getWrites();
+    }
+}
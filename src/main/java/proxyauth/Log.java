@@ -0,0 +1,302 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous logging. Records are added to a bounded lock-free ring buffer, and written by a single
+ * background thread, so that threads handling requests never wait for the console. Messages are only
+ * formatted (by the writer thread) if their level is enabled. If the buffer is full, records are dropped
+ * and counted, rather than blocking.
+ * <p>
+ * Messages use "{}" as a placeholder for each argument. Arguments that are a {@link Supplier} are only evaluated
+ * when the message is written. If the last argument is a {@link Throwable} without a placeholder, its stack
+ * trace is written.
+ *
+ * @author Zeckie
+ */
+public final class Log {
+    public enum Level {DEBUG, INFO, WARN, ERROR}
+
+    /**
+     * Number of records the ring buffer can hold (a power of 2)
+     */
+    static final int CAPACITY = 1 << 13;
+    private static final int MASK = CAPACITY - 1;
+
+    /**
+     * A slot in the ring buffer. Reused, so that logging doesn't allocate a record each time.
+     */
+    private static final class Entry {
+        /**
+         * Position this slot is ready for: position when free, position + 1 when written. Publishes the
+         * other fields.
+         */
+        volatile long sequence;
+        Level level;
+        long time;
+        String thread;
+        String message;
+        /**
+         * Number of arguments in arg1 and arg2, or -1 to use args
+         */
+        int argCount;
+        Object arg1;
+        Object arg2;
+        Object[] args;
+    }
+
+    private static final Entry[] RING = new Entry[CAPACITY];
+    /**
+     * Next position to be claimed by a producer
+     */
+    private static final AtomicLong TAIL = new AtomicLong();
+    /**
+     * Next position to be written by the writer thread (only updated by that thread)
+     */
+    private static volatile long head = 0;
+    /**
+     * All records before this position have been written and flushed
+     */
+    private static volatile long flushed = 0;
+    private static final AtomicLong DROPPED = new AtomicLong();
+    private static volatile Level level = Level.INFO;
+    private static volatile boolean writerWaiting = false;
+    private static final Thread WRITER;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            RING[i] = new Entry();
+            RING[i].sequence = i;
+        }
+        WRITER = new Thread(Log::writeLoop, "Log-writer");
+        WRITER.setDaemon(true);
+        WRITER.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(1000), "Log-flush"));
+    }
+
+    private Log() {
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static boolean isEnabled(Level l) {
+        return l.compareTo(level) >= 0;
+    }
+
+    /**
+     * @return number of records dropped because the buffer was full
+     */
+    public static long getDropped() {
+        return DROPPED.get();
+    }
+
+    public static void debug(String message) {
+        if (isEnabled(Level.DEBUG)) add(Level.DEBUG, message, 0, null, null, null);
+    }
+
+    public static void debug(String message, Object arg) {
+        if (isEnabled(Level.DEBUG)) add(Level.DEBUG, message, 1, arg, null, null);
+    }
+
+    public static void debug(String message, Object arg1, Object arg2) {
+        if (isEnabled(Level.DEBUG)) add(Level.DEBUG, message, 2, arg1, arg2, null);
+    }
+
+    public static void debug(String message, Object... args) {
+        if (isEnabled(Level.DEBUG)) add(Level.DEBUG, message, -1, null, null, args);
+    }
+
+    public static void info(String message) {
+        if (isEnabled(Level.INFO)) add(Level.INFO, message, 0, null, null, null);
+    }
+
+    public static void info(String message, Object arg) {
+        if (isEnabled(Level.INFO)) add(Level.INFO, message, 1, arg, null, null);
+    }
+
+    public static void info(String message, Object arg1, Object arg2) {
+        if (isEnabled(Level.INFO)) add(Level.INFO, message, 2, arg1, arg2, null);
+    }
+
+    public static void info(String message, Object... args) {
+        if (isEnabled(Level.INFO)) add(Level.INFO, message, -1, null, null, args);
+    }
+
+    public static void warn(String message) {
+        if (isEnabled(Level.WARN)) add(Level.WARN, message, 0, null, null, null);
+    }
+
+    public static void warn(String message, Object arg) {
+        if (isEnabled(Level.WARN)) add(Level.WARN, message, 1, arg, null, null);
+    }
+
+    public static void warn(String message, Object arg1, Object arg2) {
+        if (isEnabled(Level.WARN)) add(Level.WARN, message, 2, arg1, arg2, null);
+    }
+
+    public static void warn(String message, Object... args) {
+        if (isEnabled(Level.WARN)) add(Level.WARN, message, -1, null, null, args);
+    }
+
+    public static void error(String message) {
+        add(Level.ERROR, message, 0, null, null, null);
+    }
+
+    public static void error(String message, Object arg) {
+        add(Level.ERROR, message, 1, arg, null, null);
+    }
+
+    public static void error(String message, Object arg1, Object arg2) {
+        add(Level.ERROR, message, 2, arg1, arg2, null);
+    }
+
+    public static void error(String message, Object... args) {
+        add(Level.ERROR, message, -1, null, null, args);
+    }
+
+    /**
+     * Claim a slot and fill it in (see Dmitry Vyukov's bounded MPMC queue)
+     */
+    private static void add(Level l, String message, int argCount, Object arg1, Object arg2, Object[] args) {
+        Entry entry;
+        long position;
+        while (true) {
+            position = TAIL.get();
+            entry = RING[(int) position & MASK];
+            long difference = entry.sequence - position;
+            if (difference == 0) {
+                if (TAIL.compareAndSet(position, position + 1)) break;
+            } else if (difference < 0) {
+                // Writer hasn't caught up
+                DROPPED.incrementAndGet();
+                return;
+            }
+            // Another thread claimed this position first - try again
+        }
+        entry.level = l;
+        entry.time = System.currentTimeMillis();
+        entry.thread = Thread.currentThread().getName();
+        entry.message = message;
+        entry.argCount = argCount;
+        entry.arg1 = arg1;
+        entry.arg2 = arg2;
+        entry.args = args;
+        entry.sequence = position + 1;
+        if (writerWaiting) LockSupport.unpark(WRITER);
+    }
+
+    /**
+     * Wait (up to the timeout) for records logged so far to be written, eg. before exiting
+     */
+    public static void flush(long timeoutMillis) {
+        final long target = TAIL.get();
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (flushed < target && System.currentTimeMillis() < deadline) {
+            LockSupport.unpark(WRITER);
+            LockSupport.parkNanos(1_000_000);
+        }
+    }
+
+    private static void writeLoop() {
+        final StringBuilder sb = new StringBuilder();
+        long reportedDropped = 0;
+        while (true) {
+            final long position = head;
+            final Entry entry = RING[(int) position & MASK];
+            if (entry.sequence == position + 1) {
+                sb.setLength(0);
+                final Level l = entry.level;
+                try {
+                    format(sb, entry);
+                } catch (RuntimeException e) {
+                    sb.append(" [Error formatting log message: ").append(e).append(']');
+                }
+                // Free the slot before writing, as the record has been copied
+                entry.message = null;
+                entry.arg1 = null;
+                entry.arg2 = null;
+                entry.args = null;
+                entry.thread = null;
+                entry.sequence = position + CAPACITY;
+                head = position + 1;
+                (l.compareTo(Level.WARN) >= 0 ? System.err : System.out).println(sb);
+                continue;
+            }
+
+            // Nothing to write - flush, report dropped records, then wait
+            final long dropped = DROPPED.get();
+            if (dropped != reportedDropped) {
+                System.err.println("WARN [Log-writer] " + (dropped - reportedDropped) + " log records dropped (buffer full)");
+                reportedDropped = dropped;
+            }
+            System.out.flush();
+            System.err.flush();
+            flushed = position;
+            writerWaiting = true;
+            if (RING[(int) position & MASK].sequence != position + 1) {
+                LockSupport.parkNanos(100_000_000);
+            }
+            writerWaiting = false;
+        }
+    }
+
+    private static void format(StringBuilder sb, Entry entry) {
+        final LocalTime time = LocalTime.ofInstant(Instant.ofEpochMilli(entry.time), ZoneId.systemDefault());
+        sb.append(time).append(' ').append(entry.level).append(" [").append(entry.thread).append("] ");
+
+        final Object[] args = entry.argCount == -1 ? (entry.args == null ? new Object[0] : entry.args)
+                : entry.argCount == 2 ? new Object[]{entry.arg1, entry.arg2}
+                : entry.argCount == 1 ? new Object[]{entry.arg1}
+                : new Object[0];
+        final String message = entry.message;
+        int used = 0;
+        int from = 0;
+        int placeholder;
+        while ((placeholder = message.indexOf("{}", from)) != -1 && used < args.length) {
+            sb.append(message, from, placeholder);
+            append(sb, args[used++]);
+            from = placeholder + 2;
+        }
+        sb.append(message, from, message.length());
+
+        if (used < args.length && args[args.length - 1] instanceof Throwable) {
+            final StringWriter trace = new StringWriter();
+            ((Throwable) args[args.length - 1]).printStackTrace(new PrintWriter(trace));
+            sb.append(System.lineSeparator()).append(trace.toString().trim());
+        }
+    }
+
+    private static void append(StringBuilder sb, Object arg) {
+        if (arg instanceof Supplier) arg = ((Supplier<?>) arg).get();
+        sb.append(arg);
+    }
+}
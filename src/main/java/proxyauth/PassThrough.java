@@ -20,7 +20,10 @@
 
 package proxyauth;
 
-import proxyauth.conf.Configuration;
+import proxyauth.conf.Snapshot;
+import proxyauth.http.Framing;
+import proxyauth.http.HttpHeaders;
+import proxyauth.shaping.Shaper;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -33,20 +36,45 @@ import java.util.concurrent.atomic.AtomicLong;
 import static proxyauth.Utils.ascii;
 
 /**
- * Transfers all bytes from input to output, flushing as required to keep things moving
+ * Transfers all bytes from input to output, flushing as required to keep things moving.
+ * Bytes are copied in chunks, using an {@link AdaptiveBuffer} leased from shared pools, which grows for large
+ * transfers.
  *
  * @author Zeckie
  */
-public class PassThrough extends Thread {
+public class PassThrough implements Runnable {
     public static final AtomicLong THREAD_COUNTER = new AtomicLong(0);
+    private final String name;
     private final Socket toShutdownOutput;
+    private Thread thread;
 
     InputStream is;
     OutputStream os;
     StatusListener<PassThrough> listener;
     public AtomicLong bytesTransferred = new AtomicLong(0);
     public final List<String> headers;
-    final Configuration config;
+    final Snapshot settings;
+
+    /**
+     * Number of bytes to copy after the headers, {@link Framing#UNTIL_CLOSE} or {@link Framing#CHUNKED}
+     */
+    long bodyLength = Framing.UNTIL_CLOSE;
+
+    /**
+     * What went wrong, if unsuccessful
+     */
+    private volatile IOException error;
+    final BufferPool[] buffers;
+
+    /**
+     * (Optional) limits on the rate bytes are copied
+     */
+    private Shaper.Throttle throttle;
+
+    /**
+     * (Optional) decides when to flush output. Without one, output is flushed whenever no more input is waiting.
+     */
+    private FlushPolicy flushPolicy;
 
     /**
      * Write the supplied http headers, then copy all bytes from input to output
@@ -57,60 +85,228 @@ public class PassThrough extends Thread {
      * @param toShutdownOutput (Optional) socket to shut down output of when done
      * @param isUp             direction (is this uploading?)
      * @param headers          list of http headers
-     * @param config           configuration
+     * @param settings         settings for the request
+     * @param buffers          pools to lease the copy buffer from, smallest first
      */
     public PassThrough(StatusListener<PassThrough> listener, InputStream is, OutputStream os, Socket toShutdownOutput,
-                       boolean isUp, List<String> headers, Configuration config) {
-        super("PassThrough-" + THREAD_COUNTER.incrementAndGet() + (isUp ? "-up" : "-down"));
+                       boolean isUp, List<String> headers, Snapshot settings, BufferPool[] buffers) {
+        this.name = "PassThrough-" + THREAD_COUNTER.incrementAndGet() + (isUp ? "-up" : "-down");
         this.is = is;
         this.os = os;
         this.toShutdownOutput = toShutdownOutput;
         this.listener = listener;
         this.headers = headers;
-        this.config = config;
+        this.settings = settings;
+        this.buffers = buffers;
+    }
+
+    /**
+     * Send http headers, followed by blank line
+     */
+    public static void writeHeaders(OutputStream os, List<String> headers) throws IOException {
+        if (headers instanceof HttpHeaders) {
+            // Unmodified, so write the bytes as received
+            ((HttpHeaders) headers).writeTo(os);
+            return;
+        }
+        for (String header : headers) {
+            os.write(ascii(header + "\r\n"));
+        }
+        os.write(ascii("\r\n"));
+    }
+
+    /**
+     * Only copy a single message body (after the headers), instead of until end of stream, so that
+     * the input can be used for something else afterwards.
+     *
+     * @param bodyLength number of bytes, {@link Framing#CHUNKED} to copy chunks up to and including the
+     *                   last chunk and trailers, or {@link Framing#UNTIL_CLOSE}
+     */
+    public void setBodyLength(long bodyLength) {
+        this.bodyLength = bodyLength;
+    }
+
+    /**
+     * Limit the rate bytes are copied (after the headers)
+     *
+     * @param throttle the limits, or null for none
+     */
+    public void setThrottle(Shaper.Throttle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * Decide when to flush output with a policy, instead of whenever no more input is waiting
+     *
+     * @param flushPolicy the policy, or null
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
+
+    /**
+     * Flush, if needed, before a read that might block
+     */
+    private void beforeRead() throws IOException {
+        if (flushPolicy != null) {
+            flushPolicy.beforeRead(is, os);
+        } else if (is.available() == 0) {
+            os.flush();
+        }
+    }
+
+    /**
+     * Start a thread to do the transfer
+     *
+     * @param threads used to start the thread
+     */
+    public void start(Threads threads) {
+        thread = threads.start(name, this);
+    }
+
+    /**
+     * @return the exception that stopped the transfer, or null if it finished normally
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    /**
+     * Wait for the transfer to finish
+     */
+    public void join() throws InterruptedException {
+        thread.join();
+    }
+
+    @Override
+    public String toString() {
+        return name;
     }
 
     @Override
     public void run() {
-        System.out.println(Thread.currentThread() + " Started");
+        Log.debug("{} Started", this);
         boolean succeeded = true;
+        final AdaptiveBuffer buffer = new AdaptiveBuffer(buffers);
         try {
             try {
 
                 if (headers != null) {
-                    // Send the headers, followed by blank line
-                    for (String header : headers) {
-                        os.write(ascii(header + "\r\n"));
-                    }
-                    os.write(ascii("\r\n"));
+                    writeHeaders(os, headers);
                 }
 
                 // transfer remaining bytes (eg. body)
-                while (true) {
-                    if (is.available() == 0) os.flush();
-                    int nxt = is.read();
-                    if (nxt == -1) {
-                        if (toShutdownOutput!=null) toShutdownOutput.shutdownOutput();
-                        System.out.println(Thread.currentThread() + " Finished. Bytes=" + bytesTransferred.get());
-                        return;
+                if (bodyLength == Framing.CHUNKED) {
+                    copyChunks(buffer);
+                } else if (bodyLength >= 0) {
+                    copy(buffer, bodyLength);
+                } else {
+                    while (true) {
+                        beforeRead();
+                        final byte[] buf = buffer.get().array();
+                        int read = is.read(buf);
+                        if (read == -1) break;
+                        if (throttle != null) throttle.acquire(read);
+                        os.write(buf, 0, read);
+                        bytesTransferred.addAndGet(read);
+                        buffer.recordRead(read, read == buf.length);
+                        buffer.resize();
                     }
-                    bytesTransferred.incrementAndGet();
-                    os.write(nxt);
+                }
+                os.flush();
+                if (toShutdownOutput != null) toShutdownOutput.shutdownOutput();
+                if (flushPolicy != null) {
+                    Log.debug("{} Finished. Bytes={} Writes={} Coalesced={}", this, bytesTransferred,
+                            flushPolicy.getWrites(), flushPolicy.getCoalesced());
+                } else {
+                    Log.debug("{} Finished. Bytes={}", this, bytesTransferred);
                 }
             } catch (SocketException se) {
                 /* Fairly common - e.g. when either side closes the connection with TCP reset.
                     However, we need to make sure we clean up any resources, such as other sockets.
                  */
                 succeeded = false;
+                error = se;
                 os.close();
                 is.close();
-                System.out.println(Thread.currentThread() + " SocketException -> closed. Bytes=" + bytesTransferred.get());
-                if (config.DEBUG.getValue()) se.printStackTrace();
+                Log.debug("{} SocketException -> closed. Bytes={}", this, bytesTransferred, se);
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            // Eg. timed out part way through a body, so the other side can't be left thinking it is complete
+            succeeded = false;
+            error = e;
+            Log.warn("{} failed. Bytes={}", this, bytesTransferred, e);
         } finally {
+            buffer.release();
             listener.finished(this, succeeded);
         }
     }
+
+    /**
+     * Copy exactly the specified number of bytes
+     */
+    private void copy(AdaptiveBuffer buffer, long count) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            beforeRead();
+            final byte[] buf = buffer.get().array();
+            int read = is.read(buf, 0, (int) Math.min(buf.length, remaining));
+            if (read == -1)
+                throw new SocketException("End of stream with " + remaining + " of " + count + " bytes remaining");
+            if (throttle != null) throttle.acquire(read);
+            os.write(buf, 0, read);
+            bytesTransferred.addAndGet(read);
+            remaining -= read;
+            buffer.recordRead(read, read == buf.length);
+            buffer.resize();
+        }
+    }
+
+    /**
+     * Copy a chunked body as is. Only the chunk sizes are parsed, to find the end of the body.
+     */
+    private void copyChunks(AdaptiveBuffer buffer) throws IOException {
+        while (true) {
+            final String sizeLine = copyLine(buffer.get().array());
+            final int extension = sizeLine.indexOf(';');
+            final long size = chunkSize((extension == -1 ? sizeLine : sizeLine.substring(0, extension)).trim());
+            if (size < 0) throw new SocketException("Invalid chunk size: " + sizeLine);
+            if (size == 0) break;
+            copy(buffer, size);
+            if (!copyLine(buffer.get().array()).isEmpty()) throw new SocketException("Missing CRLF after chunk");
+        }
+        // Trailers, ending with a blank line
+        while (!copyLine(buffer.get().array()).isEmpty()) ;
+    }
+
+    /**
+     * @return the chunk size, or -1 if it is not just hex digits (Long.parseLong would also accept a sign)
+     */
+    static long chunkSize(String hex) {
+        if (hex.isEmpty() || hex.length() > 15) return -1;
+        for (int i = 0; i < hex.length(); i++) {
+            final char c = hex.charAt(i);
+            if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F')) return -1;
+        }
+        return Long.parseLong(hex, 16);
+    }
+
+    /**
+     * Copy a line, including the CRLF
+     *
+     * @param buf working space, which also limits the length of the line
+     * @return the line, without CRLF
+     */
+    private String copyLine(byte[] buf) throws IOException {
+        int length = 0;
+        while (length < 2 || buf[length - 2] != '\r' || buf[length - 1] != '\n') {
+            int b = is.read();
+            if (b == -1) throw new SocketException("End of stream within chunked body");
+            if (length == buf.length) throw new SocketException("Line too long within chunked body");
+            buf[length++] = (byte) b;
+        }
+        os.write(buf, 0, length);
+        bytesTransferred.addAndGet(length);
+        return new String(buf, 0, length - 2, Utils.ASCII);
+    }
 }
\ No newline at end of file
@@ -20,15 +20,47 @@
 
 package proxyauth;
 
+import proxyauth.actions.Action;
+import proxyauth.actions.CacheAction;
+import proxyauth.actions.CloseAction;
+import proxyauth.actions.DirectAction;
+import proxyauth.actions.EchoAction;
+import proxyauth.actions.ForwardAction;
+import proxyauth.actions.MetricsAction;
+import proxyauth.actions.ResponseCache;
+import proxyauth.actions.Upstream;
+import proxyauth.actions.UpstreamPool;
+import proxyauth.actions.UpstreamResolver;
+import proxyauth.actions.UpstreamSelector;
+import proxyauth.conf.ConfigWatcher;
 import proxyauth.conf.Configuration;
+import proxyauth.conf.Engine;
+import proxyauth.conf.ProxyAuthScheme;
+import proxyauth.conf.Snapshot;
+import proxyauth.http.HeaderParser;
+import proxyauth.metrics.Metrics;
+import proxyauth.nio.NioEngine;
+import proxyauth.routing.Router;
+import proxyauth.shaping.Shaper;
+import proxyauth.timeouts.TimingWheel;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.LinkedHashSet;
-import java.util.Set;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 /**
  * Listen for requests and create threads to handle them
@@ -37,74 +69,389 @@ import java.util.Set;
  */
 public class ProxyListener implements Runnable, StatusListener<ProxyRequest>, Closeable {
 
+    public final Configuration config;
+
+    /**
+     * Settings for new requests, replaced when the configuration file is reloaded
+     */
+    private volatile Snapshot settings;
+
     /**
-     * ThreadGroup containing threads that we start
+     * The configuration most recently loaded (config, unless it has been reloaded). Guarded by reloadLock.
      */
-    private static final ThreadGroup THREADS = new ThreadGroup("proxyauth");
+    private Configuration loaded;
+    private final ReentrantLock reloadLock = new ReentrantLock();
 
     /**
-     * requests that have been accepted but not finished
+     * Watches the configuration file, if RELOAD is enabled
      */
-    private final Set<ProxyRequest> activeRequests = new LinkedHashSet<>();
+    private volatile ConfigWatcher watcher;
 
+    /**
+     * Buffers shared by all connections for copying bytes (2 per active request - one for each direction)
+     */
+    public final BufferPool buffers;
 
-    public final Configuration config;
+    /**
+     * Pools of increasingly large buffers (up to MAX_BUF_SIZE) for copying large transfers, starting with buffers
+     */
+    public final BufferPool[] bufferTiers;
+
+    /**
+     * Pools of direct buffers shared by all connections for relaying tunnels, from BUF_SIZE up to TUNNEL_BUF_SIZE
+     */
+    public final BufferPool[] tunnelBuffers;
+
+    /**
+     * Parses http headers, using segments from buffers
+     */
+    public final HeaderParser headerParser;
+
+    /**
+     * Threads that we start (platform or virtual)
+     */
+    public final Threads threads;
+
+    /**
+     * Keep-alive connections to the upstream proxy, or null if UPSTREAM_KEEP_ALIVE is disabled (and UPSTREAM_AUTH
+     * is BASIC - authenticated NTLM connections are always kept for reuse)
+     */
+    public final UpstreamPool upstreamPool;
+
+    /**
+     * Upstream proxies that requests are shared between, with their cached addresses and statistics
+     */
+    public final List<Upstream> upstreams = new ArrayList<>();
+
+    /**
+     * Forwards requests to the upstream proxy. Shared by all requests.
+     */
+    public final ForwardAction forwardAction;
+
+    /**
+     * Answers requests from the response cache, if CACHE_SIZE is not 0 (otherwise null)
+     */
+    public final CacheAction cacheAction;
+
+    /**
+     * Chooses the action for requests matching ROUTES
+     */
+    public final Router router;
+
+    /**
+     * Upstream proxies that only some requests are forwarded to (by ROUTES), by host:port
+     */
+    private final Map<String, ForwardAction> routeForwards = new HashMap<>();
+
+    /**
+     * Connects to origin servers for requests routed DIRECT, or null if there are none
+     */
+    private DirectAction directAction;
+
+    /**
+     * Counters and histograms for requests handled by this listener
+     */
+    public final Metrics metrics = new Metrics();
+
+    /**
+     * Responds to requests for {@link MetricsAction#PATH} made directly to this listener
+     */
+    public final MetricsAction metricsAction = new MetricsAction(metrics);
+
+    /**
+     * Limits the number of requests handled at the same time (MAX_ACTIVE_REQUESTS)
+     */
+    public final AdmissionController admission;
+
+    /**
+     * Limits the rate bytes are relayed (RATE_LIMIT, CLIENT_RATE_LIMIT and HOST_RATE_LIMIT)
+     */
+    public final Shaper shaper;
+
+    /**
+     * Enforces the deadlines of all connections (HEADER_TIMEOUT, FIRST_BYTE_TIMEOUT, TUNNEL_IDLE_TIMEOUT and
+     * MAX_CONNECTION_AGE), with a single thread
+     */
+    public final TimingWheel timeouts = new TimingWheel("Timeouts", TIMEOUT_TICK, 512);
+
+    /**
+     * Precision of the deadlines, in milliseconds
+     */
+    static final long TIMEOUT_TICK = 100;
 
     public ProxyListener(Configuration configuration) {
         config = configuration;
+        loaded = configuration;
+        settings = config.snapshot();
+        Log.setLevel(settings.debug ? Log.Level.DEBUG : Log.Level.INFO);
+        bufferTiers = BufferPool.tiers(config.BUF_SIZE.getValue(), config.MAX_BUF_SIZE.getValue(),
+                2 * config.MAX_ACTIVE_REQUESTS.getValue(), false);
+        buffers = bufferTiers[0];
+        tunnelBuffers = BufferPool.tiers(config.BUF_SIZE.getValue(), config.TUNNEL_BUF_SIZE.getValue(),
+                2 * config.MAX_ACTIVE_REQUESTS.getValue(), true);
+        admission = new AdmissionController(config.MAX_ACTIVE_REQUESTS.getValue(), config.MAX_QUEUED_REQUESTS.getValue(),
+                config.QUEUE_TIMEOUT.getValue(), metrics);
+        shaper = new Shaper(config.RATE_LIMIT.getValue(), config.CLIENT_RATE_LIMIT.getValue(),
+                config.HOST_RATE_LIMIT.getValue(), config.RATE_BURST.getValue(), metrics);
+        headerParser = new HeaderParser(buffers, config.MAX_HEADER_SIZE.getValue());
+        threads = new Threads(config.VIRTUAL_THREADS.getValue());
+        upstreamPool = config.UPSTREAM_KEEP_ALIVE.getValue() || config.UPSTREAM_AUTH.getValue() != ProxyAuthScheme.BASIC
+                ? new UpstreamPool(config.UPSTREAM_POOL_MAX_PER_HOST.getValue(), config.UPSTREAM_POOL_MAX_IDLE.getValue())
+                : null;
+        upstreams.add(new Upstream(new UpstreamResolver(config.UPSTREAM_PROXY_HOST.getValue(), config.UPSTREAM_PROXY_PORT.getValue(),
+                config.UPSTREAM_DNS_TTL.getValue(), config.UPSTREAM_CONNECT_DELAY.getValue())));
+        for (InetSocketAddress other : Utils.parseHostPorts(config.UPSTREAM_PROXIES.getValue())) {
+            upstreams.add(new Upstream(new UpstreamResolver(other.getHostString(), other.getPort(),
+                    config.UPSTREAM_DNS_TTL.getValue(), config.UPSTREAM_CONNECT_DELAY.getValue())));
+        }
+        forwardAction = new ForwardAction(upstreams, UpstreamSelector.create(config.UPSTREAM_BALANCE.getValue(), upstreams),
+                upstreamPool);
+        cacheAction = config.CACHE_SIZE.getValue() > 0
+                ? new CacheAction(new ResponseCache(config.CACHE_SIZE.getValue(), config.CACHE_MAX_ENTRY_SIZE.getValue(), metrics),
+                forwardAction, metrics)
+                : null;
+        router = new Router(Router.parse(config.ROUTES.getValue()), this::routeAction);
+    }
+
+    /**
+     * @return the action for requests matching a rule from ROUTES
+     */
+    private Action routeAction(Router.Rule rule) {
+        switch (rule.type) {
+            case CLOSE:
+                return new CloseAction();
+            case ECHO:
+                return new EchoAction();
+            case DIRECT:
+                if (directAction == null) {
+                    directAction = new DirectAction(
+                            new UpstreamPool(config.UPSTREAM_POOL_MAX_PER_HOST.getValue(), config.UPSTREAM_POOL_MAX_IDLE.getValue()),
+                            config.UPSTREAM_DNS_TTL.getValue(), config.UPSTREAM_CONNECT_DELAY.getValue());
+                }
+                return directAction;
+            default:
+                if (rule.argument == null) return cacheAction != null ? cacheAction : forwardAction;
+                return routeForwards.computeIfAbsent(rule.argument.toLowerCase(Locale.ROOT), hostPort -> {
+                    final InetSocketAddress address = Utils.parseHostPorts(hostPort).get(0);
+                    final List<Upstream> upstream = Collections.singletonList(new Upstream(new UpstreamResolver(
+                            address.getHostString(), address.getPort(),
+                            config.UPSTREAM_DNS_TTL.getValue(), config.UPSTREAM_CONNECT_DELAY.getValue())));
+                    return new ForwardAction(upstream, UpstreamSelector.create(config.UPSTREAM_BALANCE.getValue(), upstream),
+                            upstreamPool);
+                });
+        }
+    }
+
+    /**
+     * @return settings for a new request
+     */
+    public Snapshot settings() {
+        return settings;
+    }
+
+    /**
+     * Read the configuration file again, and use the settings that can be changed while running for new requests.
+     * If the file can't be read, or has invalid settings, the current settings are kept.
+     *
+     * @return true if the settings were reloaded
+     */
+    public boolean reload() {
+        reloadLock.lock();
+        try {
+            apply(loaded.reload());
+        } catch (IOException | RuntimeException e) {
+            Log.warn("Unable to reload {} - keeping current settings: {}", config.FILE_NAME, e.getMessage());
+            return false;
+        } finally {
+            reloadLock.unlock();
+        }
+        Log.info("Reloaded configuration from {}", config.FILE_NAME);
+        return true;
+    }
+
+    /**
+     * Use the settings of next (a reloaded configuration) for new requests
+     *
+     * @throws RuntimeException if next has invalid settings, in which case the current settings are kept
+     */
+    void apply(Configuration next) {
+        reloadLock.lock();
+        try {
+            final Snapshot snapshot = next.snapshot();
+            loaded = next;
+            settings = snapshot;
+            Log.setLevel(snapshot.debug ? Log.Level.DEBUG : Log.Level.INFO);
+            admission.setLimits(snapshot.maxActiveRequests, snapshot.maxQueuedRequests, snapshot.queueTimeout);
+        } finally {
+            reloadLock.unlock();
+        }
+    }
+
+    /**
+     * Start watching the configuration file for changes, if RELOAD is enabled
+     */
+    private void watchConfig() {
+        if (!config.RELOAD.getValue()) return;
+        try {
+            final ConfigWatcher watcher = new ConfigWatcher(Paths.get(config.FILE_NAME), this::reload);
+            final Thread thread = new Thread(watcher, "ConfigWatcher");
+            thread.setDaemon(true);
+            thread.start();
+            this.watcher = watcher;
+        } catch (IOException e) {
+            Log.warn("Unable to watch {} for changes: {}", config.FILE_NAME, e);
+        }
+    }
+
+    /**
+     * @param requestHeaders headers of a request from a client
+     * @return the action to handle the request with
+     */
+    public Action actionFor(List<String> requestHeaders) {
+        if (MetricsAction.isMetricsRequest(requestHeaders)) return metricsAction;
+        final Action routed = router.select(requestHeaders);
+        if (routed != null) return routed;
+        return cacheAction != null ? cacheAction : forwardAction;
     }
 
     private volatile ServerSocket incoming;
 
+    /**
+     * Channels being listened on (when ENGINE is THREADS), one for each acceptor
+     */
+    private volatile List<ServerSocketChannel> channels = Collections.emptyList();
+
     @Override
     public void run() {
+        watchConfig();
+        if (config.ENGINE.getValue() == Engine.NIO && config.UPSTREAM_AUTH.getValue() != ProxyAuthScheme.BASIC) {
+            Log.warn("ENGINE=NIO does not support UPSTREAM_AUTH={} - using THREADS", config.UPSTREAM_AUTH.getValue());
+        } else if (config.ENGINE.getValue() == Engine.NIO && shaper.isEnabled()) {
+            Log.warn("ENGINE=NIO does not support rate limits - using THREADS");
+        } else if (config.ENGINE.getValue() == Engine.NIO && !router.isEmpty()) {
+            // Rules can deny access (CLOSE), so they mustn't be ignored
+            Log.warn("ENGINE=NIO does not support ROUTES - using THREADS");
+        } else if (config.ENGINE.getValue() == Engine.NIO && config.UPSTREAM_KEEP_ALIVE.getValue()) {
+            Log.warn("ENGINE=NIO does not support UPSTREAM_KEEP_ALIVE - using THREADS");
+        } else if (config.ENGINE.getValue() == Engine.NIO) {
+            runNio();
+            return;
+        }
 
-        try (
-                ServerSocket incoming = new ServerSocket(
-                        config.LISTEN_PORT.getValue(),
-                        config.LISTEN_BACKLOG.getValue(),
-                        InetAddress.getByName(config.LISTEN_ADDRESS.getValue())
-                )
-        ) {
+        /* Connections are accepted from channels (in blocking mode), so that each accepted socket also has a
+           channel, which is used for relaying tunnels */
+        final List<ServerSocketChannel> channels = new ArrayList<>();
+        try {
+            final int acceptors = acceptorCount();
+            channels.add(openChannel(config.LISTEN_PORT.getValue(), acceptors > 1));
+            final ServerSocket incoming = channels.get(0).socket();
+            // Others listen on the same port (which may have been chosen when the first was bound), with the kernel
+            // spreading new connections between them
+            for (int i = 1; i < acceptors; i++) channels.add(openChannel(incoming.getLocalPort(), true));
+            this.channels = channels;
             this.incoming = incoming;
-            System.out.println("Listening " + incoming);
+            Log.info("Listening {} acceptors={}", incoming, acceptors);
 
+            for (int i = 1; i < acceptors; i++) {
+                final ServerSocket other = channels.get(i).socket();
+                final Thread acceptor = new Thread(() -> accept(other), "Acceptor-" + i);
+                acceptor.setDaemon(true);
+                acceptor.start();
+            }
+            accept(incoming);
+        } catch (IOException e) {
+            Log.error("Stopped listening", e);
+        } finally {
+            for (ServerSocketChannel channel : channels) closeQuietly(channel);
+        }
+    }
+
+    /**
+     * Accept connections until the socket is closed
+     */
+    private void accept(ServerSocket incoming) {
+        try {
             //noinspection InfiniteLoopStatement (CTRL+C to stop)
             while (true) {
                 Socket sock = incoming.accept();
+                metrics.accepted.increment();
 
-                ProxyRequest proxyRequest = new ProxyRequest(sock, this, THREADS);
-                synchronized (activeRequests) {
-                    activeRequests.add(proxyRequest);
-                    activeRequests.notifyAll();
-                    proxyRequest.start();
-                    while (activeRequests.size() >= config.MAX_ACTIVE_REQUESTS.getValue()) {
-                        System.out.println("Active request limit reached - waiting for a request to finish");
-                        activeRequests.wait();
-                    }
-                }
+                ProxyRequest proxyRequest = new ProxyRequest(sock, this);
+                admission.submit(proxyRequest::start, () -> admission.sendOverloaded(sock));
             }
-
-        } catch (IOException | InterruptedException e) {
-            e.printStackTrace();
+        } catch (IOException e) {
+            Log.error("Stopped listening {}", incoming, e);
         }
     }
 
-    @Override
-    public void finished(ProxyRequest obj, boolean succeeded) {
-        synchronized (activeRequests) {
-            activeRequests.remove(obj);
+    /**
+     * @return number of listening sockets to accept connections with, from ACCEPTORS, or 1 if SO_REUSEPORT is not
+     * supported
+     */
+    private int acceptorCount() throws IOException {
+        final int acceptors = config.ACCEPTORS.getValue() == 0
+                ? Runtime.getRuntime().availableProcessors() : config.ACCEPTORS.getValue();
+        if (acceptors > 1) {
+            try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+                if (!probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    Log.warn("SO_REUSEPORT is not supported - using one acceptor instead of {}", acceptors);
+                    return 1;
+                }
+            }
+        }
+        return acceptors;
+    }
 
-            System.out.println("Finished " + obj + " success=" + succeeded + "\n" +
-                    "Active requests:" + activeRequests.size() + "\n" +
-                    "Active threads:" + THREADS.activeCount()
+    /**
+     * @param reusePort allow other sockets to listen on the same port (SO_REUSEPORT)
+     * @return a channel bound to the configured listen address and the port
+     */
+    private ServerSocketChannel openChannel(int port, boolean reusePort) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            if (reusePort) channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            settings.clientSocket.apply(channel.socket());
+            channel.bind(
+                    new InetSocketAddress(InetAddress.getByName(config.LISTEN_ADDRESS.getValue()), port),
+                    config.LISTEN_BACKLOG.getValue()
             );
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
 
-            if (config.DEBUG.getValue()) {
-                THREADS.list();
-            }
+    private static void closeQuietly(ServerSocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.warn("Error closing {}", channel, e);
+        }
+    }
 
-            activeRequests.notifyAll();
+    /**
+     * Listen using a non-blocking channel, with connections handled by {@link NioEngine}
+     */
+    private void runNio() {
+        try (ServerSocketChannel channel = openChannel(config.LISTEN_PORT.getValue(), false)) {
+            this.incoming = channel.socket();
+            Log.info("Listening {}", this.incoming);
+            new NioEngine(this, channel).run();
+        } catch (IOException e) {
+            Log.error("Stopped listening", e);
+        }
+    }
+
+    @Override
+    public void finished(ProxyRequest obj, boolean succeeded) {
+        admission.finished();
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            Log.debug("Finished {} success={} active requests={} active threads={}", obj, succeeded,
+                    admission.getActive(), threads.activeCount());
+            // Listed by the log writer, rather than by the thread handling the request
+            Log.debug("{}", (Supplier<String>) threads::list);
+            if (upstreams.size() > 1) Log.debug("Upstream proxies: {}", upstreams);
         }
     }
 
@@ -114,6 +461,16 @@ public class ProxyListener implements Runnable, StatusListener<ProxyRequest>, Cl
     @Override
     public void close() throws IOException {
         if (incoming != null) incoming.close();
+        for (ServerSocketChannel channel : channels) channel.close();
+        admission.close();
+        timeouts.close();
+        if (watcher != null) watcher.close();
+        if (upstreamPool != null) upstreamPool.close();
+        for (Upstream upstream : upstreams) upstream.close();
+        if (directAction != null) directAction.close();
+        for (ForwardAction forward : routeForwards.values()) {
+            for (Upstream upstream : forward.getUpstreams()) upstream.close();
+        }
     }
 
     public Integer getLocalPort() {
@@ -20,28 +20,44 @@
 
 package proxyauth;
 
-import proxyauth.actions.ForwardAction;
+import proxyauth.conf.Snapshot;
+import proxyauth.http.Framing;
+import proxyauth.http.HttpHeaders;
+import proxyauth.http.HttpInput;
+import proxyauth.timeouts.Deadlines;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.InetAddress;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static proxyauth.Utils.ascii;
 
-import static proxyauth.Utils.ASCII;
 
 /**
- * Handles a single request
+ * Handles a connection from a client, which may be used for a series of requests
  *
  * @author Zeckie
  */
-public class ProxyRequest extends Thread {
+public class ProxyRequest implements Runnable {
+    private final String name;
     public final Socket incomingSocket;
     public final ProxyListener parent;
 
+    /**
+     * Buffered input from the client. Keeps any bytes read past the end of the headers, and allows checking
+     * whether the client has sent another request, or closed the connection.
+     */
+    public HttpInput clientIn;
+
+    /**
+     * Set by the action when the client connection can be used for another request
+     */
+    public boolean keepAlive;
+
     /**
      * http headers received, including the request line
      * Note that for CONNECT requests (e.g. for https connections), this will contain the
@@ -56,6 +72,17 @@ public class ProxyRequest extends Thread {
      */
     public List<String> responseHeaders;
 
+    /**
+     * Settings for this connection, from when it was accepted (later changes to the configuration only apply to
+     * new connections)
+     */
+    public final Snapshot settings;
+
+    /**
+     * Time limits for this connection, which close it when they pass. Set when the connection starts being handled.
+     */
+    public Deadlines deadlines;
+
     /**
      * Timestamp when this request started (when the incoming connection was accepted)
      */
@@ -66,55 +93,106 @@ public class ProxyRequest extends Thread {
      */
     private static final AtomicLong THREAD_COUNTER = new AtomicLong();
 
-    public ProxyRequest(Socket sock, ProxyListener proxyListener, ThreadGroup threads) {
-        super(threads, "ProxyRequest-" + THREAD_COUNTER.incrementAndGet());
+    public ProxyRequest(Socket sock, ProxyListener proxyListener) {
+        this.name = "ProxyRequest-" + THREAD_COUNTER.incrementAndGet();
         this.incomingSocket = sock;
         this.parent = proxyListener;
+        this.settings = proxyListener.settings();
+    }
+
+    /**
+     * Start a thread to handle this request
+     */
+    public void start() {
+        parent.threads.start(name, this);
+    }
+
+    @Override
+    public String toString() {
+        return name;
     }
 
     @Override
     public void run() {
         boolean success = false;
-        try (incomingSocket) {
-            System.out.println("Accepted connection from: " + incomingSocket.getInetAddress() + " port " + incomingSocket.getPort());
-            incomingSocket.setSoTimeout(parent.config.SOCKET_TIMEOUT.getValue());
-            requestHeaders = processHeaders(incomingSocket.getInputStream());
-
-            success = new ForwardAction(
-                    InetAddress.getByName(parent.config.UPSTREAM_PROXY_HOST.getValue()),
-                    parent.config.UPSTREAM_PROXY_PORT.getValue(),
-                    parent.config.USERNAME.getValue(), parent.config.PASSWORD.getValue()
-            ).action(this);
+        final Deadlines deadlines = new Deadlines(parent.timeouts, name, incomingSocket, settings.maxConnectionAge,
+                parent.metrics.timedOut);
+        this.deadlines = deadlines;
+        try (incomingSocket; deadlines) {
+            Log.debug("Accepted connection from: {} port {}", incomingSocket.getInetAddress(), incomingSocket.getPort());
+            incomingSocket.setSoTimeout(settings.socketTimeout);
+            settings.clientSocket.apply(incomingSocket);
+            clientIn = new HttpInput(incomingSocket.getInputStream(), settings.bufSize);
+            requestHeaders = readRequest(false);
+
+            do {
+                keepAlive = false;
+                responseHeaders = null;
+                final String malformed = Framing.checkRequest(requestHeaders);
+                if (malformed != null) {
+                    sendBadRequest(malformed);
+                    break;
+                }
+                success = parent.actionFor(requestHeaders).action(this);
+            } while (success && keepAlive && (requestHeaders = readRequest(true)) != null);
 
         } catch (IOException e) {
-            e.printStackTrace();
+            // Unless closed by a deadline, which has already been logged
+            if (deadlines.getExpired() == null) {
+                parent.metrics.error(e);
+                Log.warn("{} failed", this, e);
+            }
         } finally {
             parent.finished(this, success);
         }
     }
 
-    public List<String> processHeaders(InputStream inputStream) throws IOException {
-        final int bufferSize = parent.config.BUF_SIZE.getValue();
-        byte[] buf = new byte[bufferSize];
-        int bytes_read = 0;
-
-        // read http request headers (ends with 2x CRLF)
-        final byte[] end_headers = {'\r', '\n', '\r', '\n'};
-        while (bytes_read < 4 || !Arrays.equals(buf, bytes_read - 4, bytes_read, end_headers, 0, 4)) {
-            int byte_read = inputStream.read();
-            if (byte_read == -1) throw new IOException("End of stream reached before http request headers read");
-            if (bytes_read == bufferSize)
-                throw new IOException("Buffer full before http request headers read");
-            buf[bytes_read++] = (byte) byte_read;
-        }
+    /**
+     * Respond with 400 (Bad Request) and close the connection, rather than forwarding a request whose end is
+     * ambiguous
+     */
+    private void sendBadRequest(String reason) throws IOException {
+        Log.warn("{} Rejected request from {}: {}", this, incomingSocket.getInetAddress(), reason);
+        final String body = reason + "\r\n";
+        final OutputStream os = incomingSocket.getOutputStream();
+        os.write(ascii("HTTP/1.1 400 Bad Request\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Length: " + body.length() + "\r\n"
+                + "Connection: close\r\n\r\n" + body));
+        os.flush();
+        incomingSocket.shutdownOutput();
+    }
+
+    /**
+     * Read the headers of a request from the client, within HEADER_TIMEOUT
+     *
+     * @param nullAtEnd return null if the client closes the connection before sending another request
+     */
+    private HttpHeaders readRequest(boolean nullAtEnd) throws IOException {
+        deadlines.start(Deadlines.Phase.HEADERS, settings.headerTimeout);
+        final HttpHeaders headers = processHeaders(clientIn, nullAtEnd);
+        deadlines.end();
+        return headers;
+    }
+
+    public HttpHeaders processHeaders(HttpInput input) throws IOException {
+        return processHeaders(input, false);
+    }
+
+    /**
+     * Read http headers, up to and including the blank line
+     *
+     * @param nullAtEnd return null if the stream ends before the first byte, instead of throwing an exception.
+     *                  Used where the other side may close the connection between messages.
+     * @return the headers, including the request / status line
+     */
+    public HttpHeaders processHeaders(HttpInput input, boolean nullAtEnd) throws IOException {
+        final HttpHeaders headers = parent.headerParser.parse(input, nullAtEnd);
 
-        if (parent.config.DEBUG.getValue()) {
-            System.out.println("--- Headers ---");
-            System.out.write(buf, 0, bytes_read);
-            System.out.println("--- End: Headers ---");
-            System.out.flush();
+        if (headers != null) {
+            Log.debug("--- Headers ---{}{}--- End: Headers ---", System.lineSeparator(), (Supplier<String>) headers::text);
         }
 
-        return Arrays.asList(new String(buf, 0, bytes_read, ASCII).split("\r\n"));
+        return headers;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,146 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Locale;
+
+/**
+ * Options for TCP connections (to clients, or to the upstream proxy), parsed from a list such as
+ * {@code TCP_NODELAY=Yes,SO_KEEPALIVE=Yes,SO_RCVBUF=262144}. Options that aren't listed are left as the operating
+ * system's defaults. Immutable.
+ *
+ * @author Zeckie
+ */
+public final class SocketSettings {
+    /**
+     * Leaves every option as the default
+     */
+    public static final SocketSettings DEFAULT = new SocketSettings(null, null, 0, 0);
+
+    /**
+     * Disable Nagle's algorithm (TCP_NODELAY), or null for the default
+     */
+    public final Boolean tcpNoDelay;
+
+    /**
+     * Send TCP keep-alive probes on idle connections (SO_KEEPALIVE), or null for the default
+     */
+    public final Boolean keepAlive;
+
+    /**
+     * Socket receive buffer size (SO_RCVBUF) in bytes, or 0 for the default
+     */
+    public final int receiveBuffer;
+
+    /**
+     * Socket send buffer size (SO_SNDBUF) in bytes, or 0 for the default
+     */
+    public final int sendBuffer;
+
+    public SocketSettings(Boolean tcpNoDelay, Boolean keepAlive, int receiveBuffer, int sendBuffer) {
+        this.tcpNoDelay = tcpNoDelay;
+        this.keepAlive = keepAlive;
+        this.receiveBuffer = receiveBuffer;
+        this.sendBuffer = sendBuffer;
+    }
+
+    /**
+     * @param list comma separated NAME=value, where NAME is TCP_NODELAY or SO_KEEPALIVE (with Yes or No), or
+     *             SO_RCVBUF or SO_SNDBUF (with a number of bytes)
+     * @throws IllegalArgumentException if the list is not valid
+     */
+    public static SocketSettings parse(String list) {
+        Boolean tcpNoDelay = null;
+        Boolean keepAlive = null;
+        int receiveBuffer = 0;
+        int sendBuffer = 0;
+        if (list == null) return DEFAULT;
+        for (String entry : list.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+            final int equals = entry.indexOf('=');
+            if (equals < 1) throw new IllegalArgumentException("Expected NAME=value, but got " + entry);
+            final String name = entry.substring(0, equals).trim().toUpperCase(Locale.ROOT);
+            final String value = entry.substring(equals + 1).trim();
+            switch (name) {
+                case "TCP_NODELAY":
+                    tcpNoDelay = parseYesNo(name, value);
+                    break;
+                case "SO_KEEPALIVE":
+                    keepAlive = parseYesNo(name, value);
+                    break;
+                case "SO_RCVBUF":
+                    receiveBuffer = parseSize(name, value);
+                    break;
+                case "SO_SNDBUF":
+                    sendBuffer = parseSize(name, value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown socket option: " + name);
+            }
+        }
+        return new SocketSettings(tcpNoDelay, keepAlive, receiveBuffer, sendBuffer);
+    }
+
+    private static boolean parseYesNo(String name, String value) {
+        if (value.equalsIgnoreCase("yes") || value.equalsIgnoreCase("true")) return true;
+        if (value.equalsIgnoreCase("no") || value.equalsIgnoreCase("false")) return false;
+        throw new IllegalArgumentException(name + " should be Yes or No, but got " + value);
+    }
+
+    private static int parseSize(String name, String value) {
+        final int size;
+        try {
+            size = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " should be a number of bytes, but got " + value);
+        }
+        if (size < 1) throw new IllegalArgumentException(name + " should be positive, but got " + value);
+        return size;
+    }
+
+    /**
+     * Set the options on a socket. The buffer sizes should be set before connecting, as they affect the TCP window
+     * scale agreed when connecting.
+     */
+    public void apply(Socket socket) throws SocketException {
+        if (tcpNoDelay != null) socket.setTcpNoDelay(tcpNoDelay);
+        if (keepAlive != null) socket.setKeepAlive(keepAlive);
+        if (receiveBuffer > 0) socket.setReceiveBufferSize(receiveBuffer);
+        if (sendBuffer > 0) socket.setSendBufferSize(sendBuffer);
+    }
+
+    /**
+     * Set the receive buffer size on a listening socket, before it is bound, so accepted connections start with it
+     */
+    public void apply(ServerSocket socket) throws SocketException {
+        if (receiveBuffer > 0) socket.setReceiveBufferSize(receiveBuffer);
+    }
+
+    @Override
+    public String toString() {
+        return "SocketSettings{tcpNoDelay=" + tcpNoDelay + ", keepAlive=" + keepAlive + ", receiveBuffer=" + receiveBuffer
+                + ", sendBuffer=" + sendBuffer + "}";
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Starts and keeps track of the threads used to handle requests. Replaces the use of a ThreadGroup,
+ * which does not work with virtual threads.
+ * <p>
+ * Note: this class has a separate implementation for Java 21 or later (in src/main/java21, included in the
+ * multi-release jar) which supports virtual threads. Any changes should be made to both.
+ *
+ * @author Zeckie
+ */
+public class Threads {
+    private final Set<Thread> live = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param virtual use virtual threads - not supported by this version (for Java versions prior to 21)
+     */
+    public Threads(boolean virtual) {
+        if (virtual) {
+            Log.warn("Virtual threads require Java 21 or later - using platform threads");
+        }
+    }
+
+    /**
+     * @return true if this uses virtual threads
+     */
+    public boolean isVirtual() {
+        return false;
+    }
+
+    /**
+     * Start a new thread, which is tracked until it finishes
+     *
+     * @param name name of the thread
+     * @param task what the thread should do
+     * @return the started thread
+     */
+    public Thread start(String name, Runnable task) {
+        Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } finally {
+                live.remove(Thread.currentThread());
+            }
+        }, name);
+        live.add(thread);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * @return number of threads started by this that have not yet finished
+     */
+    public int activeCount() {
+        return live.size();
+    }
+
+    /**
+     * @return description of the threads that have not yet finished, one per line
+     */
+    public String list() {
+        StringBuilder sb = new StringBuilder().append(this).append(" active=").append(live.size());
+        for (Thread thread : live) {
+            sb.append(System.lineSeparator()).append("    ").append(thread);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth;
+
+import proxyauth.shaping.Shaper;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Relays an established tunnel (eg. https through CONNECT) in both directions, using a single thread.
+ * <p>
+ * Once the tunnel is established the bytes are opaque (usually TLS), so they are moved channel to channel
+ * using direct buffers, which avoids the copying between heap and native memory that the socket streams do.
+ * Each direction is shut down separately when its source reaches end of stream (half-close). Each direction's
+ * buffer starts small, and grows while reads fill it (see {@link AdaptiveBuffer}), so idle or interactive tunnels
+ * don't hold large buffers.
+ *
+ * @author Zeckie
+ */
+public class TunnelRelay {
+    private final SocketChannel client;
+    private final SocketChannel upstream;
+    private final BufferPool[] buffers;
+    private final int idleTimeout;
+    private final String name;
+    private Shaper.Throttle upThrottle;
+    private Shaper.Throttle downThrottle;
+
+    private long bytesUp = 0;
+    private long bytesDown = 0;
+    private IOException error;
+
+    /**
+     * @param name        name used when logging
+     * @param client      connection to the client (in blocking or non-blocking mode)
+     * @param upstream    connection to the upstream proxy, after the tunnel has been established
+     * @param buffers     pools of (direct) buffers, smallest first
+     * @param idleTimeout milliseconds without any bytes transferred before giving up, or 0 for no timeout
+     */
+    public TunnelRelay(String name, SocketChannel client, SocketChannel upstream, BufferPool[] buffers, int idleTimeout) {
+        this.name = name;
+        this.client = client;
+        this.upstream = upstream;
+        this.buffers = buffers;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Limit the rate bytes are relayed. While a direction is over its limit, reading from its source is paused.
+     *
+     * @param up   limits for client to upstream, or null for none
+     * @param down limits for upstream to client, or null for none
+     */
+    public void setThrottles(Shaper.Throttle up, Shaper.Throttle down) {
+        this.upThrottle = up;
+        this.downThrottle = down;
+    }
+
+    /**
+     * Relay bytes until both directions have finished. On error, both connections are closed.
+     *
+     * @return true if both directions reached end of stream without errors
+     */
+    public boolean run() {
+        Direction up = new Direction(client, upstream, new AdaptiveBuffer(buffers), upThrottle);
+        Direction down = new Direction(upstream, client, new AdaptiveBuffer(buffers), downThrottle);
+        try (Selector selector = Selector.open()) {
+            client.configureBlocking(false);
+            upstream.configureBlocking(false);
+            SelectionKey clientKey = client.register(selector, 0);
+            SelectionKey upstreamKey = upstream.register(selector, 0);
+
+            long lastActivity = System.currentTimeMillis();
+            while (!(up.done && down.done)) {
+                // Try both directions (non-blocking), then wait for whatever couldn't be done
+                long transferred = up.pump() + down.pump();
+                long now = System.currentTimeMillis();
+                if (transferred > 0) {
+                    lastActivity = now;
+                    continue;
+                }
+                if (up.done && down.done) break;
+                final long paused = Math.min(up.pausedMillis(), down.pausedMillis());
+                if (paused == Long.MAX_VALUE && idleTimeout > 0 && now - lastActivity >= idleTimeout)
+                    throw new SocketTimeoutException("Tunnel idle for " + (now - lastActivity) + "ms");
+
+                clientKey.interestOps(up.readOps() | down.writeOps());
+                upstreamKey.interestOps(down.readOps() | up.writeOps());
+                // Being throttled isn't idle, so the idle timeout starts again afterwards
+                if (paused != Long.MAX_VALUE) lastActivity = now;
+                long wait = idleTimeout > 0 ? idleTimeout - (now - lastActivity) : 0;
+                if (paused != Long.MAX_VALUE) wait = wait == 0 ? paused : Math.min(wait, paused);
+                if (up.shrinkIfIdle() | down.shrinkIfIdle()) {
+                    // Wake up to check again, so that a tunnel that goes quiet gives back its large buffers
+                    final long check = AdaptiveBuffer.IDLE_NANOS / 1_000_000;
+                    wait = wait == 0 ? check : Math.min(wait, check);
+                }
+                selector.select(wait);
+                selector.selectedKeys().clear();
+            }
+            Log.debug("{} Tunnel finished. Bytes up={} down={}", name, bytesUp, bytesDown);
+            return true;
+        } catch (IOException e) {
+            /* Fairly common - e.g. when either side closes the connection with TCP reset.
+               Close both connections so the other side finds out. */
+            error = e;
+            Log.debug("{} Tunnel {} -> closed. Bytes up={} down={}", name, e, bytesUp, bytesDown);
+            closeQuietly(client);
+            closeQuietly(upstream);
+            return false;
+        } finally {
+            up.buffer.release();
+            down.buffer.release();
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.warn("Error closing {}", channel, e);
+        }
+    }
+
+    public long getBytesUp() {
+        return bytesUp;
+    }
+
+    public long getBytesDown() {
+        return bytesDown;
+    }
+
+    /**
+     * @return the exception that closed the tunnel, or null if it finished normally
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    /**
+     * One direction of the tunnel
+     */
+    private final class Direction {
+        final SocketChannel source;
+        final SocketChannel destination;
+
+        /**
+         * Bytes read but not yet written (in "write" mode, i.e. position is the number of bytes waiting)
+         */
+        final AdaptiveBuffer buffer;
+        ByteBuffer buf;
+        boolean eof = false;
+        boolean done = false;
+        final Shaper.Throttle throttle;
+
+        /**
+         * Reading is paused until this time (System.nanoTime), if paused is set
+         */
+        long resumeAt;
+        boolean paused = false;
+
+        Direction(SocketChannel source, SocketChannel destination, AdaptiveBuffer buffer, Shaper.Throttle throttle) {
+            this.source = source;
+            this.destination = destination;
+            this.buffer = buffer;
+            this.buf = buffer.get();
+            this.throttle = throttle;
+        }
+
+        int readOps() {
+            return !eof && !paused && buf.hasRemaining() ? SelectionKey.OP_READ : 0;
+        }
+
+        /**
+         * Give back a large buffer if there have been no reads for a while
+         *
+         * @return true if the buffer is (still) larger than the smallest size
+         */
+        boolean shrinkIfIdle() {
+            buffer.idle(System.nanoTime());
+            if (buffer.resize()) buf = buffer.get();
+            return buffer.isGrown();
+        }
+
+        /**
+         * @return milliseconds until reading can resume, or Long.MAX_VALUE if not paused
+         */
+        long pausedMillis() {
+            if (!paused) return Long.MAX_VALUE;
+            return Math.max(1, (resumeAt - System.nanoTime() + 999_999) / 1_000_000);
+        }
+
+        int writeOps() {
+            return !done && buf.position() > 0 ? SelectionKey.OP_WRITE : 0;
+        }
+
+        /**
+         * Read and write as much as possible without blocking
+         *
+         * @return number of bytes moved (read or written)
+         */
+        long pump() throws IOException {
+            if (done) return 0;
+            long moved = 0;
+            if (paused && resumeAt - System.nanoTime() <= 0) paused = false;
+            if (!eof && !paused && buf.hasRemaining()) {
+                int read = source.read(buf);
+                if (read == -1) {
+                    eof = true;
+                } else {
+                    moved += read;
+                    // Only counts as filled if most of it was this read, not bytes waiting for a slow destination
+                    buffer.recordRead(read, !buf.hasRemaining() && read > buf.capacity() / 2);
+                    if (throttle != null && read > 0) {
+                        resumeAt = throttle.reserve(read);
+                        paused = resumeAt - System.nanoTime() > 0;
+                    }
+                }
+            }
+            if (buf.position() > 0) {
+                buf.flip();
+                int written = destination.write(buf);
+                buf.compact();
+                if (buffer.resize()) buf = buffer.get();
+                moved += written;
+                if (source == client) bytesUp += written;
+                else bytesDown += written;
+            }
+            if (eof && buf.position() == 0) {
+                destination.shutdownOutput();
+                done = true;
+                moved++; // Count as progress, so the other direction is pumped again before waiting
+            }
+            return moved;
+        }
+    }
+}
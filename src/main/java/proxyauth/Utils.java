@@ -20,9 +20,13 @@
 
 package proxyauth;
 
+import proxyauth.http.HttpHeaders;
 
+import java.net.InetSocketAddress;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author Zeckie
@@ -36,4 +40,51 @@ public class Utils {
     public static byte[] ascii(String in) {
         return in.getBytes(ASCII);
     }
-}
\ No newline at end of file
+
+    /**
+     * Find the value of a http header
+     *
+     * @param headers http headers (the first line, containing the request / response line, is skipped)
+     * @param name    name of the header, case insensitive
+     * @return the value of the first header with that name, or null if not found
+     */
+    public static String getHeader(List<String> headers, String name) {
+        if (headers instanceof HttpHeaders) return ((HttpHeaders) headers).value(name);
+        for (int i = 1; i < headers.size(); i++) {
+            String header = headers.get(i);
+            if (header.length() > name.length() && header.charAt(name.length()) == ':'
+                    && header.regionMatches(true, 0, name, 0, name.length())) {
+                return header.substring(name.length() + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parse a list of host:port pairs
+     *
+     * @param list host:port pairs, separated by commas. May be blank.
+     * @return unresolved addresses
+     * @throws IllegalArgumentException if an entry is not valid
+     */
+    public static List<InetSocketAddress> parseHostPorts(String list) {
+        final List<InetSocketAddress> result = new ArrayList<>();
+        if (list == null) return result;
+        for (String entry : list.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+            final int colon = entry.lastIndexOf(':');
+            if (colon < 1) throw new IllegalArgumentException("Expected host:port, but got " + entry);
+            final int port;
+            try {
+                port = Integer.parseInt(entry.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid port in " + entry);
+            }
+            String host = entry.substring(0, colon);
+            if (host.startsWith("[") && host.endsWith("]")) host = host.substring(1, host.length() - 1);
+            result.add(InetSocketAddress.createUnresolved(host, port));
+        }
+        return result;
+    }
+}
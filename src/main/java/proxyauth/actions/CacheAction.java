@@ -0,0 +1,192 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.actions;
+
+import proxyauth.Log;
+import proxyauth.PassThrough;
+import proxyauth.ProxyRequest;
+import proxyauth.conf.Snapshot;
+import proxyauth.http.Framing;
+import proxyauth.metrics.Metrics;
+import proxyauth.shaping.Shaper;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Answers plain http GET requests from a {@link ResponseCache} when it has a fresh response, otherwise forwards
+ * them (revalidating a stale response if possible), storing the response as it is relayed to the client.
+ * Identical requests that arrive while a response is being fetched share it, instead of also being forwarded.
+ * Other requests are just forwarded. Responses sent without forwarding are rate limited and counted in the
+ * metrics the same way as forwarded ones.
+ *
+ * @author Zeckie
+ */
+public class CacheAction implements Action {
+    private final ResponseCache cache;
+    private final ForwardAction forward;
+    private final Metrics metrics;
+
+    public CacheAction(ResponseCache cache, ForwardAction forward, Metrics metrics) {
+        this.cache = cache;
+        this.forward = forward;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public boolean action(ProxyRequest proxyRequest) throws IOException {
+        final List<String> headers = proxyRequest.requestHeaders;
+        final String key = ResponseCache.key(headers);
+        if (key == null) return forward.action(proxyRequest);
+        if (!ResponseCache.canCache(headers)) {
+            if (ResponseCache.isUnsafe(Framing.method(headers.get(0)))) cache.remove(key);
+            return forward.action(proxyRequest);
+        }
+
+        final long start = System.nanoTime();
+        final long now = System.currentTimeMillis();
+        final ResponseCache.Entry entry = cache.get(key, headers);
+        if (entry != null && ResponseCache.isFresh(entry, headers, now)) {
+            metrics.cacheHits.increment();
+            serve(proxyRequest, entry, now, start);
+            return true;
+        }
+        final boolean canShare = ResponseCache.canShare(headers);
+        final SharedResponse.Reader reader = canShare ? cache.follow(key) : null;
+        if (reader != null && follow(proxyRequest, reader, start)) {
+            metrics.cacheCoalesced.increment();
+            return true;
+        }
+
+        metrics.cacheMisses.increment();
+        // Only revalidate if the client isn't doing so itself, as it may not have the stored response
+        final ResponseCache.Entry stale = entry != null && entry.hasValidator() && !ResponseCache.isConditional(headers)
+                ? entry : null;
+        final SharedResponse shared = canShare
+                ? cache.lead(key, headers, proxyRequest.settings.socketTimeout) : null;
+        final ResponseCache.Fill fill = cache.fill(key, headers, stale, shared);
+        try {
+            return new ForwardRequest(proxyRequest, forward, fill).go();
+        } finally {
+            fill.close();
+        }
+    }
+
+    /**
+     * Send the response to an identical request that is being forwarded
+     *
+     * @return false if that response can't be used (nothing has been sent to the client)
+     */
+    private boolean follow(ProxyRequest proxyRequest, SharedResponse.Reader reader, long start) throws IOException {
+        try {
+            final List<String> responseHeaders = reader.awaitHeaders();
+            if (responseHeaders == null) return false;
+            final List<String> vary = ResponseCache.varyValues(proxyRequest.requestHeaders, responseHeaders);
+            if (vary != null && !vary.equals(ResponseCache.varyValues(reader.shared().requestHeaders, responseHeaders))) {
+                return false;
+            }
+
+            final Snapshot settings = proxyRequest.settings;
+            final boolean keepAlive = !settings.connectionClose && Framing.isKeepAlive(proxyRequest.requestHeaders);
+            List<String> headers = ResponseCache.withoutHopByHop(responseHeaders);
+            if (!keepAlive) headers = ForwardAction.processKeepAlive(headers);
+            proxyRequest.responseHeaders = headers;
+
+            final BufferedOutputStream os = new BufferedOutputStream(proxyRequest.incomingSocket.getOutputStream(),
+                    settings.bufSize);
+            PassThrough.writeHeaders(os, headers);
+            final Shaper.Throttle throttle = ForwardRequest.throttle(proxyRequest, false);
+            long sent = 0;
+            final ByteBuffer lease = proxyRequest.parent.buffers.lease();
+            try {
+                final byte[] buf = lease.array();
+                int read;
+                while ((read = reader.read(buf)) != -1) {
+                    if (throttle != null) throttle.acquire(read);
+                    os.write(buf, 0, read);
+                    sent += read;
+                    if (read < buf.length) os.flush();
+                }
+            } finally {
+                proxyRequest.parent.buffers.release(lease);
+            }
+            os.flush();
+            finish(proxyRequest, keepAlive);
+            recordFinished(sent, start);
+            Log.debug("{} Shared response to an identical request", proxyRequest);
+            return true;
+        } finally {
+            reader.leave();
+        }
+    }
+
+    /**
+     * After sending a response, keep the client connection open for another request, or close it
+     */
+    private static void finish(ProxyRequest proxyRequest, boolean keepAlive) throws IOException {
+        if (keepAlive) {
+            proxyRequest.keepAlive = true;
+        } else {
+            proxyRequest.incomingSocket.shutdownOutput();
+        }
+    }
+
+    /**
+     * Send a stored response to the client
+     */
+    private void serve(ProxyRequest proxyRequest, ResponseCache.Entry entry, long now, long start) throws IOException {
+        final Snapshot settings = proxyRequest.settings;
+        final boolean keepAlive = !settings.connectionClose && Framing.isKeepAlive(proxyRequest.requestHeaders);
+        List<String> headers = entry.responseHeaders(now);
+        if (!keepAlive) headers = ForwardAction.processKeepAlive(headers);
+        proxyRequest.responseHeaders = headers;
+
+        final BufferedOutputStream os = new BufferedOutputStream(proxyRequest.incomingSocket.getOutputStream(),
+                settings.bufSize);
+        PassThrough.writeHeaders(os, headers);
+        final byte[] body = entry.getBody();
+        final Shaper.Throttle throttle = ForwardRequest.throttle(proxyRequest, false);
+        for (int off = 0; off < body.length; ) {
+            final int len = Math.min(settings.bufSize, body.length - off);
+            if (throttle != null) throttle.acquire(len);
+            os.write(body, off, len);
+            off += len;
+        }
+        os.flush();
+        finish(proxyRequest, keepAlive);
+        recordFinished(body.length, start);
+        Log.debug("{} Served from cache", proxyRequest);
+    }
+
+    /**
+     * Count a response sent without forwarding, like {@link ForwardRequest} does for forwarded ones
+     *
+     * @param bytesDown bytes of body sent to the client
+     * @param start     when handling the request started (System.nanoTime)
+     */
+    private void recordFinished(long bytesDown, long start) {
+        metrics.requests.increment();
+        metrics.bytesDown.add(bytesDown);
+        metrics.requestTime.recordSince(start);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.actions;
+
+import proxyauth.SocketSettings;
+import proxyauth.conf.Snapshot;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Connects straight to origin servers, instead of going through the upstream proxy (eg. for hosts on the local
+ * network). Tunnels (CONNECT) are established to the target itself, and other requests are sent in origin-form,
+ * without Proxy-* headers. The addresses of each origin are cached, and connections to them kept alive in a pool
+ * separate from the upstream proxy's.
+ *
+ * @author Zeckie
+ */
+public class DirectAction extends ForwardAction implements Closeable {
+    /**
+     * Origins whose addresses are cached, beyond which idle ones are forgotten
+     */
+    static final int MAX_ORIGINS = 1000;
+
+    private final ConcurrentHashMap<InetSocketAddress, Upstream> origins = new ConcurrentHashMap<>();
+    private final long dnsTtl;
+    private final long connectDelay;
+
+    /**
+     * @param pool         keep-alive connections to origin servers
+     * @param dnsTtl       milliseconds to cache addresses of origin servers for
+     * @param connectDelay milliseconds to wait for a connection to one address, before also trying the next one
+     */
+    public DirectAction(UpstreamPool pool, long dnsTtl, long connectDelay) {
+        super(pool);
+        this.dnsTtl = dnsTtl;
+        this.connectDelay = connectDelay;
+    }
+
+    /**
+     * @return the origin server the request is for, or null if excluded (ie. connecting to it already failed)
+     */
+    @Override
+    public Upstream select(List<String> requestHeaders, Collection<Upstream> exclude) {
+        final InetSocketAddress target = targetEndpoint(requestHeaders);
+        if (target == null) return null;
+        Upstream origin = origins.get(target);
+        if (origin == null) {
+            if (origins.size() >= MAX_ORIGINS) forgetIdle();
+            origin = origins.computeIfAbsent(target, endpoint -> new Upstream(
+                    new UpstreamResolver(endpoint.getHostString(), endpoint.getPort(), dnsTtl, connectDelay, false)));
+        }
+        return exclude.contains(origin) ? null : origin;
+    }
+
+    @Override
+    public UpstreamConnection connect(List<String> requestHeaders, int timeout, SocketSettings options, boolean reuse)
+            throws IOException {
+        if (targetEndpoint(requestHeaders) == null) {
+            throw new IOException("No target host in request: " + requestHeaders.get(0));
+        }
+        return super.connect(requestHeaders, timeout, options, reuse);
+    }
+
+    private void forgetIdle() {
+        origins.values().removeIf(origin -> origin.getActive() == 0);
+    }
+
+    /**
+     * @param headers  HTTP request headers
+     * @param settings not used, as there is no proxy to authenticate to
+     * @return a copy of headers for sending to the origin server: in origin-form (eg. GET /path HTTP/1.1) with the
+     * Host header from the absolute URI, and without Proxy-* headers
+     */
+    @Override
+    public List<String> processAuthHeaders(List<String> headers, Snapshot settings) {
+        final List<String> result = new ArrayList<>(headers.size() + 1);
+        final String requestLine = headers.get(0);
+        final int start = requestLine.indexOf(' ') + 1;
+        final int end = requestLine.lastIndexOf(' ');
+        final int scheme = start > 0 && end > start ? requestLine.indexOf("://", start) : -1;
+        String authority = null;
+        if (scheme != -1 && scheme < end && !requestLine.startsWith("CONNECT ")) {
+            int path = scheme + 3;
+            while (path < end && "/?#".indexOf(requestLine.charAt(path)) == -1) path++;
+            authority = requestLine.substring(scheme + 3, path);
+            final String rest = requestLine.substring(path, end);
+            result.add(requestLine.substring(0, start) + (rest.startsWith("/") ? rest : "/" + rest) + requestLine.substring(end));
+        } else {
+            result.add(requestLine);
+        }
+        for (int i = 1; i < headers.size(); i++) {
+            final String header = headers.get(i);
+            if (header.regionMatches(true, 0, "proxy-", 0, 6)) continue;
+            // The Host header must match the authority of an absolute URI
+            if (authority != null && header.regionMatches(true, 0, "host:", 0, 5)) continue;
+            result.add(header);
+        }
+        if (authority != null) result.add(1, "Host: " + authority);
+        return result;
+    }
+
+    @Override
+    public boolean needsHandshake(UpstreamConnection connection, Snapshot settings) {
+        return false;
+    }
+
+    @Override
+    public boolean establishesTunnels() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (pool != null) pool.close();
+        for (Upstream origin : origins.values()) origin.close();
+        origins.clear();
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.actions;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Chooses the upstream proxy with the lowest average time to first byte, multiplied by the number of
+ * requests in progress plus one. Weighting by load means a slow proxy still gets some requests (and so
+ * its average is kept up to date) when the faster ones are busy. Proxies that haven't been measured yet
+ * are chosen first.
+ *
+ * @author Zeckie
+ */
+class FastestSelector implements UpstreamSelector {
+
+    @Override
+    public Upstream select(List<Upstream> candidates, String target) {
+        final int size = candidates.size();
+        final int start = size == 1 ? 0 : ThreadLocalRandom.current().nextInt(size);
+        Upstream best = null;
+        double bestScore = 0;
+        for (int i = 0; i < size; i++) {
+            Upstream upstream = candidates.get((start + i) % size);
+            double score = (double) upstream.getTtfbAverage() * (upstream.getActive() + 1);
+            if (best == null || score < bestScore) {
+                best = upstream;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+}
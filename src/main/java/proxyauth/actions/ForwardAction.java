@@ -20,10 +20,20 @@
 
 package proxyauth.actions;
 
+import proxyauth.Log;
 import proxyauth.ProxyRequest;
+import proxyauth.SocketSettings;
+import proxyauth.conf.Snapshot;
 
 import java.io.IOException;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static proxyauth.Utils.getHeader;
 
 /**
  * Forwards the request to another proxy server
@@ -32,16 +42,254 @@ import java.net.InetAddress;
  */
 public class ForwardAction implements Action {
 
-    final InetAddress host;
-    final int port;
-    final String username;
-    final String password;
+    /**
+     * Upstream proxies that requests can be sent to
+     */
+    final List<Upstream> upstreams;
+    final UpstreamSelector selector;
+
+    /**
+     * (Optional) keep-alive connections to the upstream proxy
+     */
+    final UpstreamPool pool;
+
+    public ForwardAction(List<Upstream> upstreams, UpstreamSelector selector) {
+        this(upstreams, selector, null);
+    }
+
+    /**
+     * Credentials for authenticating to the upstream proxy are not kept here, but in the {@link Snapshot} of
+     * settings each request uses, so that they can be changed while running
+     */
+    public ForwardAction(List<Upstream> upstreams, UpstreamSelector selector, UpstreamPool pool) {
+        this.upstreams = upstreams;
+        this.selector = selector;
+        this.pool = pool;
+    }
+
+    /**
+     * For subclasses that choose where to connect themselves (overriding {@link #select(List, Collection)})
+     */
+    protected ForwardAction(UpstreamPool pool) {
+        this(Collections.emptyList(), null, pool);
+    }
+
+    /**
+     * @return upstream proxies that requests can be sent to
+     */
+    public List<Upstream> getUpstreams() {
+        return upstreams;
+    }
+
+    /**
+     * @return true if connections to the upstream proxy can be kept open between requests
+     */
+    public boolean isPooled() {
+        return pool != null;
+    }
+
+    /**
+     * Choose an upstream proxy for a request. Upstream proxies that recently failed are avoided, unless they
+     * all have.
+     *
+     * @param requestHeaders headers of the request, used to find the target host
+     * @param exclude        upstream proxies not to choose (eg. already tried)
+     * @return the chosen upstream proxy, or null if all are excluded
+     */
+    public Upstream select(List<String> requestHeaders, Collection<Upstream> exclude) {
+        final long now = System.currentTimeMillis();
+        final List<Upstream> candidates = new ArrayList<>(upstreams.size());
+        for (Upstream upstream : upstreams) {
+            if (!exclude.contains(upstream) && upstream.isHealthy(now)) candidates.add(upstream);
+        }
+        if (candidates.isEmpty()) {
+            for (Upstream upstream : upstreams) {
+                if (!exclude.contains(upstream)) candidates.add(upstream);
+            }
+        }
+        if (candidates.isEmpty()) return null;
+        return candidates.size() == 1 ? candidates.get(0) : selector.select(candidates, targetHost(requestHeaders));
+    }
+
+    /**
+     * Get a connection to an upstream proxy. If connecting fails, the other upstream proxies are tried.
+     *
+     * @param requestHeaders headers of the request the connection is for
+     * @param timeout        connect timeout in milliseconds
+     * @param options        socket options for a new connection
+     * @param reuse          can an idle keep-alive connection be used
+     */
+    public UpstreamConnection connect(List<String> requestHeaders, int timeout, SocketSettings options, boolean reuse)
+            throws IOException {
+        final List<Upstream> tried = new ArrayList<>();
+        IOException failure = null;
+        Upstream upstream;
+        while ((upstream = select(requestHeaders, tried)) != null) {
+            UpstreamConnection connection = reuse && pool != null ? pool.checkout(upstream.getEndpoint()) : null;
+            if (connection == null) {
+                try {
+                    connection = new UpstreamConnection(upstream, upstream.resolver.connect(timeout, options));
+                } catch (IOException e) {
+                    upstream.recordFailure();
+                    Log.warn("Unable to connect to {}: {}", upstream, e);
+                    failure = e;
+                    tried.add(upstream);
+                    continue;
+                }
+            }
+            connection.setActive(true);
+            return connection;
+        }
+        throw failure;
+    }
+
+    /**
+     * Finished with a connection to the upstream proxy
+     *
+     * @param reusable the connection is at the end of a complete response, so can be used for another request
+     */
+    public void release(UpstreamConnection connection, boolean reusable) {
+        connection.setActive(false);
+        if (reusable && pool != null) {
+            pool.release(connection);
+        } else {
+            connection.close();
+        }
+    }
+
+    /**
+     * @param headers request headers
+     * @return host and port the request is for, from the request line, or the Host header
+     */
+    public static String targetHost(List<String> headers) {
+        final String requestLine = headers.get(0);
+        final int start = requestLine.indexOf(' ') + 1;
+        final int end = requestLine.indexOf(' ', start);
+        if (start > 0 && end > start) {
+            final String target = requestLine.substring(start, end);
+            if (requestLine.startsWith("CONNECT ")) return target;
+            final int scheme = target.indexOf("://");
+            if (scheme != -1) {
+                int hostEnd = scheme + 3;
+                while (hostEnd < target.length() && "/?#".indexOf(target.charAt(hostEnd)) == -1) hostEnd++;
+                return target.substring(scheme + 3, hostEnd);
+            }
+        }
+        final String host = getHeader(headers, "Host");
+        return host == null ? "" : host;
+    }
+
+    /**
+     * @param headers request headers
+     * @return host and port the request is for (unresolved), with the default port for the scheme if not given, or
+     * null if there isn't a valid one
+     */
+    public static InetSocketAddress targetEndpoint(List<String> headers) {
+        final String requestLine = headers.get(0);
+        final String target = targetHost(headers);
+        int port = requestLine.startsWith("CONNECT ")
+                || requestLine.regionMatches(true, requestLine.indexOf(' ') + 1, "https://", 0, 8) ? 443 : 80;
+        String host = target;
+        final int colon = target.lastIndexOf(':');
+        // A colon is only before a port if it's the only one, or after the ] of an IPv6 address
+        if (colon != -1 && (target.startsWith("[") ? target.indexOf(']') < colon : target.indexOf(':') == colon)) {
+            host = target.substring(0, colon);
+            try {
+                port = Integer.parseInt(target.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (port < 1 || port > 65535) return null;
+        }
+        if (host.startsWith("[") && host.endsWith("]")) host = host.substring(1, host.length() - 1);
+        return host.isEmpty() ? null : InetSocketAddress.createUnresolved(host, port);
+    }
+
+    /**
+     * @param headers  HTTP request headers
+     * @param settings settings for the request, with the credentials
+     * @return a copy of headers, with the configured proxy authorization (for connection-oriented authentication,
+     * the client's is just removed, as the connection is authenticated instead - see
+     * {@link #needsHandshake(UpstreamConnection, Snapshot)})
+     */
+    public List<String> processAuthHeaders(List<String> headers, Snapshot settings) {
+        headers = new ArrayList<String>(headers);
+        headers.removeIf(s -> s.regionMatches(true, 0, "proxy-authorization:", 0, 20));
+        if (settings.authorization != null) headers.add(settings.authorization);
+        return headers;
+    }
+
+    /**
+     * @return true if the connection needs to be authenticated before use (connection-oriented authentication, eg.
+     * NTLM), because it hasn't been, or was authenticated with different credentials
+     */
+    public boolean needsHandshake(UpstreamConnection connection, Snapshot settings) {
+        return settings.ntlm != null
+                && (connection.authenticatedWith == null || !connection.authenticatedWith.sameCredentials(settings.ntlm));
+    }
+
+    /**
+     * @return Proxy-Authorization header to start authenticating a connection (NTLM negotiate message)
+     */
+    public String startHandshake(Snapshot settings) {
+        return "Proxy-Authorization: " + settings.connectionScheme + " "
+                + Base64.getEncoder().encodeToString(settings.ntlm.negotiate());
+    }
+
+    /**
+     * @param responseHeaders response to {@link #startHandshake(Snapshot)}
+     * @return Proxy-Authorization header answering the challenge in the response, or null if there isn't a valid one
+     */
+    public String answerChallenge(List<String> responseHeaders, Snapshot settings) {
+        final String connectionScheme = settings.connectionScheme;
+        final String prefix = connectionScheme + " ";
+        for (int i = 1; i < responseHeaders.size(); i++) {
+            final String header = responseHeaders.get(i);
+            if (!header.regionMatches(true, 0, "Proxy-Authenticate:", 0, 19)) continue;
+            final String value = header.substring(19).trim();
+            if (!value.regionMatches(true, 0, prefix, 0, prefix.length())) continue;
+            try {
+                final byte[] challenge = Base64.getDecoder().decode(value.substring(prefix.length()).trim());
+                return "Proxy-Authorization: " + prefix + Base64.getEncoder().encodeToString(settings.ntlm.authenticate(challenge));
+            } catch (IllegalArgumentException e) {
+                Log.warn("Invalid {} challenge from upstream proxy: {}", connectionScheme, e.getMessage());
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if tunnels (CONNECT) are established by this proxy, so it responds to the client itself, instead of
+     * passing on the request
+     */
+    public boolean establishesTunnels() {
+        return false;
+    }
+
+    /**
+     * @param headers
+     * @return a copy of headers, modified to stop keep-alive
+     */
+    public static List<String> processKeepAlive(List<String> headers) {
+        headers = new ArrayList<String>(headers);
+        headers.removeIf(s -> s.toLowerCase().startsWith("connection:"));
+        headers.removeIf(s -> s.toLowerCase().startsWith("keep-alive:"));
+        headers.add("Connection: Close");
+        return headers;
+    }
 
-    public ForwardAction(InetAddress host, int port, String username, String password) {
-        this.host = host;
-        this.port = port;
-        this.username = username;
-        this.password = password;
+    /**
+     * @param headers
+     * @return a copy of headers, without the client's connection headers, so that the connection
+     * to the upstream proxy is kept alive (the default for HTTP/1.1)
+     */
+    public static List<String> processUpstreamKeepAlive(List<String> headers) {
+        headers = new ArrayList<String>(headers);
+        headers.removeIf(s -> s.toLowerCase().startsWith("connection:"));
+        headers.removeIf(s -> s.toLowerCase().startsWith("keep-alive:"));
+        headers.removeIf(s -> s.toLowerCase().startsWith("proxy-connection:"));
+        return headers;
     }
 
     @Override
@@ -20,21 +20,37 @@
 
 package proxyauth.actions;
 
+import proxyauth.CoalescingOutputStream;
+import proxyauth.FlushPolicy;
+import proxyauth.Log;
 import proxyauth.PassThrough;
 import proxyauth.ProxyRequest;
 import proxyauth.StatusListener;
+import proxyauth.TunnelRelay;
+import proxyauth.conf.Snapshot;
+import proxyauth.http.Framing;
+import proxyauth.http.HttpInput;
+import proxyauth.metrics.Metrics;
+import proxyauth.shaping.Shaper;
+import proxyauth.timeouts.Deadlines;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
 
-import static proxyauth.Utils.ASCII;
-import static proxyauth.Utils.ascii;
+import static proxyauth.Utils.getHeader;
 
 
 /**
@@ -43,22 +59,59 @@ import static proxyauth.Utils.ascii;
  * @author Zeckie
  */
 public class ForwardRequest implements StatusListener<PassThrough> {
-    static final Pattern PROXY_AUTH_ERROR = Pattern.compile("^HTTP/\\d.\\d 407 .*");
+    public static final Pattern PROXY_AUTH_ERROR = Pattern.compile("^HTTP/\\d.\\d 407 .*");
+    static final Pattern TUNNEL_ESTABLISHED = Pattern.compile("^HTTP/\\d.\\d 2\\d\\d( .*)?");
+    static final String TUNNEL_RESPONSE = "HTTP/1.1 200 Connection established";
 
     private final ForwardAction action;
     /**
      * The request being forwarded
      */
     private final ProxyRequest proxyRequest;
+    /**
+     * Settings for the request
+     */
+    private final Snapshot settings;
     /**
      * Connection to upstream proxy server
      */
     private Socket upstreamSocket;
     private volatile boolean anyErrors = false;
+    /**
+     * The client closed its side of the connection
+     */
+    private volatile boolean clientEof = false;
+    private boolean upstreamHalfClosed = false;
+    private boolean responseComplete = false;
+    /**
+     * Counted down when the request body has been sent upstream
+     */
+    private final CountDownLatch bodySent = new CountDownLatch(1);
+    /**
+     * When the request started being sent upstream (System.nanoTime)
+     */
+    private long requestSent;
+    /**
+     * When the request headers had been received (System.nanoTime)
+     */
+    private final long created = System.nanoTime();
+    private final Metrics metrics;
+    private final Lock lock = new ReentrantLock();
+    /**
+     * (Optional) stores the response in the cache
+     */
+    private final ResponseCache.Fill cacheFill;
 
     public ForwardRequest(ProxyRequest proxyRequest, ForwardAction forwardAction) {
+        this(proxyRequest, forwardAction, null);
+    }
+
+    public ForwardRequest(ProxyRequest proxyRequest, ForwardAction forwardAction, ResponseCache.Fill cacheFill) {
         this.proxyRequest = proxyRequest;
         this.action = forwardAction;
+        this.settings = proxyRequest.settings;
+        this.metrics = proxyRequest.parent.metrics;
+        this.cacheFill = cacheFill;
     }
 
     /**
@@ -66,10 +119,7 @@ public class ForwardRequest implements StatusListener<PassThrough> {
      * @return a copy of headers, with the configured proxy authorization
      */
     public List<String> processAuthHeaders(List<String> headers) {
-        headers = new ArrayList<String>(headers);
-        headers.removeIf(s -> s.toLowerCase().startsWith("proxy-authorization:"));
-        headers.add("Proxy-Authorization: Basic " + new String(Base64.getEncoder().encode(ascii(action.username + ":" + action.password)), ASCII));
-        return headers;
+        return action.processAuthHeaders(headers, settings);
     }
 
     /**
@@ -77,90 +127,556 @@ public class ForwardRequest implements StatusListener<PassThrough> {
      * @return a copy of headers, modified to stop keep-alive
      */
     public List<String> processKeepAlive(List<String> headers) {
-        headers = new ArrayList<String>(headers);
-        headers.removeIf(s -> s.toLowerCase().startsWith("connection:"));
-        headers.removeIf(s -> s.toLowerCase().startsWith("keep-alive:"));
-        headers.add("Connection: Close");
-        return headers;
+        return ForwardAction.processKeepAlive(headers);
+    }
+
+    /**
+     * @return true if the request is for a tunnel (eg. https)
+     */
+    static boolean isConnect(List<String> requestHeaders) {
+        return requestHeaders.get(0).startsWith("CONNECT ");
+    }
+
+    /**
+     * Can the client connection be used for another request after this one
+     */
+    boolean clientKeepAlive() {
+        return !settings.connectionClose && Framing.isKeepAlive(proxyRequest.requestHeaders);
+    }
+
+    /**
+     * Can this request be forwarded as a single framed exchange, instead of relaying both directions until
+     * the connection is closed. Needed to keep either the client or the upstream connection alive, or to
+     * store the response.
+     */
+    boolean canFrame() {
+        final List<String> headers = proxyRequest.requestHeaders;
+        if (isConnect(headers) || !headers.get(0).endsWith(" HTTP/1.1") || getHeader(headers, "Upgrade") != null
+                || Framing.requestBodyLength(headers) == Framing.UNTIL_CLOSE) {
+            return false;
+        }
+        return action.isPooled() || clientKeepAlive() || cacheFill != null;
+    }
+
+    /**
+     * @param up is this for uploading (client to upstream)
+     * @return limits on the rate bytes are relayed in one direction, or null if there are none
+     */
+    private Shaper.Throttle throttle(boolean up) {
+        return throttle(proxyRequest, up);
+    }
+
+    /**
+     * @param up is this for uploading (client to upstream)
+     * @return limits on the rate bytes are relayed in one direction for the request, or null if there are none
+     */
+    static Shaper.Throttle throttle(ProxyRequest proxyRequest, boolean up) {
+        final InetSocketAddress target = ForwardAction.targetEndpoint(proxyRequest.requestHeaders);
+        return proxyRequest.parent.shaper.throttle(proxyRequest.incomingSocket.getInetAddress(),
+                target == null ? null : target.getHostString(), up);
+    }
+
+    /**
+     * @return stream for relaying to a socket, which collects small writes, and sends them with the next
+     * write where possible
+     */
+    private CoalescingOutputStream coalescing(Socket socket) throws IOException {
+        return new CoalescingOutputStream(socket, settings.flushSize, metrics.relayWrites);
+    }
+
+    /**
+     * @param out stream being relayed to
+     * @return policy for when to flush it, within the configured latency budget
+     */
+    private FlushPolicy flushPolicy(CoalescingOutputStream out) {
+        return new FlushPolicy(out, settings.flushDelay, metrics.coalesced);
     }
 
     public boolean go() throws IOException {
-        PassThrough upload;
-        PassThrough download;
+        if (canFrame()) return goFramed();
 
-        try (Socket upstream = new Socket()) {
-            upstream.setSoTimeout(proxyRequest.parent.config.SOCKET_TIMEOUT.getValue());
-            upstream.connect(new InetSocketAddress(action.host, action.port), proxyRequest.parent.config.SOCKET_TIMEOUT.getValue());
+        PassThrough upload = null;
+        PassThrough download = null;
+        TunnelRelay tunnel = null;
+
+        try (UpstreamConnection connection = connect(false)) {
+            final Socket upstream = connection.socket;
+            upstream.setSoTimeout(settings.socketTimeout);
             this.upstreamSocket = upstream;
-            BufferedOutputStream outputStream = new BufferedOutputStream(upstream.getOutputStream(), proxyRequest.parent.config.BUF_SIZE.getValue());
+            final CoalescingOutputStream outputStream = coalescing(upstream);
 
-            if (proxyRequest.parent.config.DEBUG.getValue()) System.out.println("upstream socket = " + upstream);
+            Log.debug("upstream socket = {}", upstream);
 
             List<String> headers = processAuthHeaders(proxyRequest.requestHeaders);
-            if (proxyRequest.parent.config.CONNECTION_CLOSE.getValue()) {
+            if (settings.connectionClose) {
                 headers = processKeepAlive(headers);
             }
-            upload = new PassThrough(this, proxyRequest.incomingSocket.getInputStream(), outputStream, upstream,
-                    true, headers, proxyRequest.parent.config);
-            upload.start();
-
-            proxyRequest.responseHeaders = proxyRequest.processHeaders(upstream.getInputStream());
-
-            if (proxyRequest.parent.config.STOP_ON_PROXY_AUTH_ERROR.getValue()) {
-                final String line = proxyRequest.responseHeaders.get(0);
-                if (PROXY_AUTH_ERROR.matcher(line).matches()) {
-                    System.err.println("STOPPING due to proxy auth error: " + line);
-                    System.exit(5); //magic number 5 often = access denied
-                    /*
-                     * TODO: change to respond to all requests with error page,
-                     * instead of quitting
-                     */
-                }
+
+            final SocketChannel incomingChannel = proxyRequest.incomingSocket.getChannel();
+            final boolean canTunnel = isConnect(proxyRequest.requestHeaders) && incomingChannel != null;
+            headers = handshake(connection, headers, Framing.requestBodyLength(proxyRequest.requestHeaders) != 0);
+            requestSent = System.nanoTime();
+            if (headers == null) {
+                // Already sent, and the response has been read
+            } else if (isConnect(proxyRequest.requestHeaders) && action.establishesTunnels()) {
+                // Connected to the target itself, so the tunnel is already established
+                proxyRequest.responseHeaders = Collections.singletonList(TUNNEL_RESPONSE);
+                headers = null;
+            } else if (canTunnel) {
+                // Don't start relaying the client's bytes until the upstream proxy has responded
+                PassThrough.writeHeaders(outputStream, headers);
+                outputStream.flush();
+            } else {
+                upload = new PassThrough(this, proxyRequest.clientIn, outputStream, upstream,
+                        true, headers, settings, proxyRequest.parent.bufferTiers);
+                upload.setThrottle(throttle(true));
+                upload.setFlushPolicy(flushPolicy(outputStream));
+                upload.start(proxyRequest.parent.threads);
             }
 
+            final HttpInput upstreamIn = connection.getInput(settings.bufSize);
+            if (headers != null) proxyRequest.responseHeaders = readResponseHeaders(connection);
+
+            checkProxyAuthError(proxyRequest.responseHeaders.get(0));
+
             List<String> respHeaders = proxyRequest.responseHeaders;
-            if (proxyRequest.parent.config.CONNECTION_CLOSE.getValue()) {
+            if (settings.connectionClose) {
                 respHeaders = processKeepAlive(respHeaders);
             }
 
-            download = new PassThrough(
-                    this, upstream.getInputStream(),
-                    new BufferedOutputStream(
-                            proxyRequest.incomingSocket.getOutputStream(), proxyRequest.parent.config.BUF_SIZE.getValue()
-                    ),
-                    proxyRequest.incomingSocket, false, respHeaders, proxyRequest.parent.config
-            );
+            final CoalescingOutputStream clientOutputStream = coalescing(proxyRequest.incomingSocket);
 
+            if (canTunnel && TUNNEL_ESTABLISHED.matcher(proxyRequest.responseHeaders.get(0)).matches()) {
+                // Everything from here is opaque (eg. TLS), so relay channel to channel, after passing on
+                // anything already read past the headers
+                PassThrough.writeHeaders(clientOutputStream, respHeaders);
+                upstreamIn.drainTo(clientOutputStream);
+                clientOutputStream.flush();
+                proxyRequest.clientIn.drainTo(outputStream);
+                outputStream.flush();
+                tunnel = new TunnelRelay(proxyRequest.toString(), incomingChannel, upstream.getChannel(),
+                        proxyRequest.parent.tunnelBuffers, settings.tunnelIdleTimeout);
+                tunnel.setThrottles(throttle(true), throttle(false));
+                if (!tunnel.run()) {
+                    anyErrors = true;
+                    metrics.error(tunnel.getError());
+                }
+            } else {
+                if (upload == null) {
+                    // Tunnel was refused - relay whatever else is sent
+                    upload = new PassThrough(this, proxyRequest.clientIn, outputStream, upstream,
+                            true, null, settings, proxyRequest.parent.bufferTiers);
+                    upload.setThrottle(throttle(true));
+                    upload.setFlushPolicy(flushPolicy(outputStream));
+                    upload.start(proxyRequest.parent.threads);
+                }
 
-            download.start();
-            try {
-                // Wait for streams to be closed
-                upload.join();
-                download.join();
-            } catch (
-                    InterruptedException e) {
-                e.printStackTrace();
+                download = new PassThrough(
+                        this, upstreamIn, clientOutputStream,
+                        proxyRequest.incomingSocket, false, respHeaders, settings,
+                        proxyRequest.parent.bufferTiers
+                );
+                download.setThrottle(throttle(false));
+                download.setFlushPolicy(flushPolicy(clientOutputStream));
+                if (isConnect(proxyRequest.requestHeaders) && settings.tunnelIdleTimeout > 0) {
+                    // Only close the tunnel when neither direction has relayed anything for a while
+                    final PassThrough up = upload;
+                    final PassThrough down = download;
+                    upstream.setSoTimeout(0);
+                    proxyRequest.incomingSocket.setSoTimeout(0);
+                    proxyRequest.deadlines.startIdle(Deadlines.Phase.TUNNEL_IDLE, settings.tunnelIdleTimeout,
+                            () -> up.bytesTransferred.get() + down.bytesTransferred.get());
+                }
+
+                download.start(proxyRequest.parent.threads);
+                try {
+                    // Wait for streams to be closed
+                    upload.join();
+                    download.join();
+                } catch (
+                        InterruptedException e) {
+                    Log.warn("{} interrupted", proxyRequest, e);
+                }
             }
         }
-        synchronized (this) {
-            System.out.println(Thread.currentThread() + " Finished");
-            if (proxyRequest.parent.config.DEBUG.getValue())
-                System.out.println(
-                        "--Finished--\n"
-                                + " - any errors: " + anyErrors + "\n"
-                                + " - request: " + proxyRequest.requestHeaders.get(0) + "\n"
-                                + " - upload: " + upload.bytesTransferred.get() + "\n"
-                                + " - download: " + download.bytesTransferred.get() + "\n"
-                                + " - elapsed: " + (System.currentTimeMillis() - proxyRequest.started.getTime())
+        final long bytesUp = tunnel != null ? tunnel.getBytesUp() : upload.bytesTransferred.get();
+        final long bytesDown = tunnel != null ? tunnel.getBytesDown() : download.bytesTransferred.get();
+        recordFinished(bytesUp, bytesDown);
+        Log.debug("{} Finished", proxyRequest);
+        if (Log.isEnabled(Log.Level.DEBUG))
+            Log.debug("--Finished--\n - any errors: {}\n - request: {}\n - upload: {}\n - download: {}\n - elapsed: {}",
+                    anyErrors, proxyRequest.requestHeaders.get(0), bytesUp, bytesDown,
+                    System.currentTimeMillis() - proxyRequest.started.getTime());
+        return !anyErrors;
+
+    }
+
+    /**
+     * Forward a single request and response, using the framing of each message to find where it ends.
+     * The upstream connection may be a keep-alive one from the pool, and the client connection can be kept
+     * open for another request.
+     */
+    private boolean goFramed() throws IOException {
+        final int timeout = settings.socketTimeout;
+        final long requestLength = Framing.requestBodyLength(proxyRequest.requestHeaders);
+        final boolean clientKeepAlive = clientKeepAlive();
+
+        List<String> headers = processAuthHeaders(proxyRequest.requestHeaders);
+        if (action.isPooled()) {
+            headers = ForwardAction.processUpstreamKeepAlive(headers);
+        } else if (settings.connectionClose) {
+            headers = processKeepAlive(headers);
+        }
+        if (cacheFill != null) headers = cacheFill.addConditions(headers);
+
+        UpstreamConnection connection = connect(true);
+        boolean reusable = false;
+        Thread uploader = null;
+        try {
+            final PassThrough upload;
+            if (requestLength == 0) {
+                // No body, so the request can be retried if a reused connection has gone stale
+                upload = null;
+                try {
+                    uploader = exchangeHeaders(connection, headers, timeout, null, clientKeepAlive);
+                } catch (IOException e) {
+                    if (!connection.reused) throw e;
+                    // The upstream proxy may have closed the idle connection just as it was reused - retry once
+                    Log.info("{} Reused connection failed ({}) - retrying with new connection", proxyRequest, e);
+                    action.release(connection, false);
+                    connection = null; // already released, if connecting again fails
+                    connection = connect(false);
+                    uploader = exchangeHeaders(connection, headers, timeout, uploader, clientKeepAlive);
+                }
+            } else {
+                connection.socket.setSoTimeout(timeout);
+                headers = handshake(connection, headers, true);
+                setUpstreamSocket(connection.socket);
+                final CoalescingOutputStream upstreamOut = coalescing(connection.socket);
+                upload = new PassThrough(this, proxyRequest.clientIn, upstreamOut,
+                        null, true, headers, settings, proxyRequest.parent.bufferTiers);
+                upload.setBodyLength(requestLength);
+                upload.setThrottle(throttle(true));
+                upload.setFlushPolicy(flushPolicy(upstreamOut));
+                requestSent = System.nanoTime();
+                uploader = startUploader(upload, clientKeepAlive);
+                proxyRequest.responseHeaders = readResponseHeaders(connection);
+            }
+
+            final CoalescingOutputStream clientOutputStream = coalescing(proxyRequest.incomingSocket);
+            // Interim (1xx) responses are forwarded, and followed by another response
+            while (proxyRequest.responseHeaders != null && Framing.statusCode(proxyRequest.responseHeaders.get(0)) / 100 == 1) {
+                PassThrough.writeHeaders(clientOutputStream, proxyRequest.responseHeaders);
+                clientOutputStream.flush();
+                proxyRequest.responseHeaders = proxyRequest.processHeaders(connection.getInput(settings.bufSize), true);
+            }
+
+            long length = Framing.UNTIL_CLOSE;
+            PassThrough download = null;
+            if (proxyRequest.responseHeaders == null) {
+                // Upstream closed the connection after interim responses, so pass that on
+                proxyRequest.incomingSocket.shutdownOutput();
+            } else {
+                checkProxyAuthError(proxyRequest.responseHeaders.get(0));
+                length = Framing.responseBodyLength(Framing.method(proxyRequest.requestHeaders.get(0)), proxyRequest.responseHeaders);
+                List<String> respHeaders = proxyRequest.responseHeaders;
+                InputStream bodyIn = connection.getInput(settings.bufSize);
+                OutputStream bodyOut = clientOutputStream;
+                long bodyLength = length;
+                final ResponseCache.Entry revalidated = cacheFill == null ? null : cacheFill.notModified(respHeaders);
+                if (revalidated != null) {
+                    // The stored response is still valid, so send it instead of the 304 (which has no body)
+                    respHeaders = revalidated.responseHeaders(System.currentTimeMillis());
+                    bodyIn = new ByteArrayInputStream(revalidated.getBody());
+                    bodyLength = revalidated.getBody().length;
+                } else if (cacheFill != null) {
+                    bodyOut = cacheFill.capture(clientOutputStream, respHeaders, length);
+                }
+                if (settings.connectionClose) {
+                    respHeaders = processKeepAlive(respHeaders);
+                }
+                if (bodyOut != clientOutputStream) {
+                    // Keep the headers out of the copy of the body
+                    PassThrough.writeHeaders(clientOutputStream, respHeaders);
+                    respHeaders = null;
+                }
+
+                // Relay response in this thread
+                download = new PassThrough(
+                        this, bodyIn, bodyOut,
+                        length == Framing.UNTIL_CLOSE ? proxyRequest.incomingSocket : null, false, respHeaders, settings,
+                        proxyRequest.parent.bufferTiers
                 );
+                download.setBodyLength(bodyLength);
+                download.setThrottle(throttle(false));
+                download.setFlushPolicy(flushPolicy(clientOutputStream));
+                download.run();
+                if (cacheFill != null && download.getError() == null && !anyErrors) cacheFill.complete();
+            }
+
+            lock.lock();
+            try {
+                responseComplete = true;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                bodySent.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                anyErrors = true;
+            }
+
+            // Neither body can have been cut short, for either connection to be used again
+            final boolean framed = length != Framing.UNTIL_CLOSE && !anyErrors
+                    && (download == null || download.getError() == null)
+                    && (upload == null || upload.getError() == null);
+            // A 407 could mean the connection's authentication failed, so it isn't reused
+            reusable = framed && !upstreamHalfClosed && Framing.isKeepAlive(proxyRequest.responseHeaders)
+                    && Framing.statusCode(proxyRequest.responseHeaders.get(0)) != 407;
+
+            // Make the connection available before the client finds out the response is complete
+            action.release(connection, reusable);
+            connection = null;
+
+            if (framed && clientKeepAlive && !settings.connectionClose
+                    && Framing.isKeepAlive(proxyRequest.responseHeaders)) {
+                // Wait to find out whether the client sends another request
+                try {
+                    uploader.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                proxyRequest.keepAlive = !clientEof;
+            } else if (framed) {
+                proxyRequest.incomingSocket.shutdownOutput();
+            }
+
+            final long bytesUp = upload == null ? 0 : upload.bytesTransferred.get();
+            final long bytesDown = download == null ? 0 : download.bytesTransferred.get();
+            recordFinished(bytesUp, bytesDown);
+            Log.debug("{} Finished", proxyRequest);
+            if (Log.isEnabled(Log.Level.DEBUG))
+                Log.debug("--Finished--\n - any errors: {}\n - request: {}\n - upstream kept alive: {}\n"
+                                + " - client kept alive: {}\n - upload: {}\n - download: {}\n - elapsed: {}",
+                        anyErrors, proxyRequest.requestHeaders.get(0), reusable, proxyRequest.keepAlive,
+                        bytesUp, bytesDown, System.currentTimeMillis() - proxyRequest.started.getTime());
             return !anyErrors;
+        } finally {
+            if (connection != null) action.release(connection, false);
+        }
+    }
+
+    /**
+     * Send request headers (for a request without a body), authenticating the connection first if necessary,
+     * start the uploader thread (unless already started), and read the response headers
+     *
+     * @param uploader the uploader thread, or null if it hasn't been started yet
+     * @return the uploader thread
+     */
+    private Thread exchangeHeaders(UpstreamConnection connection, List<String> headers, int timeout, Thread uploader,
+                                   boolean clientKeepAlive) throws IOException {
+        connection.socket.setSoTimeout(timeout);
+        final List<String> toSend = handshake(connection, headers, false);
+        if (toSend != null) sendHeaders(connection, toSend, timeout);
+        else setUpstreamSocket(connection.socket);
+        if (uploader == null) uploader = startUploader(null, clientKeepAlive);
+        if (toSend != null) proxyRequest.responseHeaders = readResponseHeaders(connection);
+        return uploader;
+    }
+
+    /**
+     * Authenticate a connection, for connection-oriented authentication (NTLM). The request is sent (without its
+     * body) with a negotiate message, and the upstream proxy should respond 407 with a challenge, which is answered
+     * when the request is sent again.
+     *
+     * @param headers request headers to send upstream
+     * @param hasBody does the request have a body. If not, and the upstream proxy doesn't challenge, its response is
+     *                the response to the request.
+     * @return the headers to send, with the answer to the challenge, or null if the request has been sent and
+     * proxyRequest.responseHeaders set to the response
+     */
+    private List<String> handshake(UpstreamConnection connection, List<String> headers, boolean hasBody) throws IOException {
+        if (!action.needsHandshake(connection, settings)) return headers;
+
+        // The connection needs to stay open for the challenge to be answered
+        List<String> first = ForwardAction.processUpstreamKeepAlive(headers);
+        if (hasBody) {
+            first.removeIf(s -> s.regionMatches(true, 0, "content-length:", 0, 15)
+                    || s.regionMatches(true, 0, "transfer-encoding:", 0, 18));
+            first.add("Content-Length: 0");
+        }
+        first.add("Proxy-Connection: keep-alive");
+        first.add(action.startHandshake(settings));
+        sendHeaders(connection, first, settings.socketTimeout);
+        final List<String> response = readResponseHeaders(connection);
+        final String answer = Framing.statusCode(response.get(0)) == 407 ? action.answerChallenge(response, settings) : null;
+        if (answer == null && !hasBody) {
+            // Not challenged, so this is the response to the request
+            connection.authenticatedWith = Framing.statusCode(response.get(0)) != 407 ? settings.ntlm : null;
+            proxyRequest.responseHeaders = response;
+            return null;
+        }
+
+        // Discard the body of the response, so the connection can be used for the request
+        final long length = Framing.responseBodyLength(Framing.method(headers.get(0)), response);
+        if (length == Framing.UNTIL_CLOSE || !Framing.isKeepAlive(response)) {
+            throw new IOException("Upstream proxy closed the connection while authenticating: " + response.get(0));
         }
+        final PassThrough discard = new PassThrough(this, connection.getInput(settings.bufSize),
+                new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                    }
 
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                    }
+                }, null, false, null, settings, proxyRequest.parent.bufferTiers);
+        discard.setBodyLength(length);
+        discard.run();
+        if (discard.getError() != null) throw discard.getError();
+
+        if (answer == null) {
+            // Not challenged, so send the request as is
+            connection.authenticatedWith = Framing.statusCode(response.get(0)) != 407 ? settings.ntlm : null;
+            return headers;
+        }
+        connection.authenticatedWith = settings.ntlm;
+        final List<String> answered = new ArrayList<>(headers);
+        answered.add(answer);
+        return answered;
     }
 
+    /**
+     * Start a thread to send the request body (if any), then (if the client connection may be kept alive)
+     * wait for the client to either start another request, or close the connection.
+     */
+    private Thread startUploader(PassThrough upload, boolean clientKeepAlive) {
+        return proxyRequest.parent.threads.start(proxyRequest + "-up", () -> {
+            if (upload != null) upload.run();
+            bodySent.countDown();
+            if (clientKeepAlive && !anyErrors) awaitClient();
+        });
+    }
+
+    /**
+     * Wait for the next byte from the client, leaving it to be read as part of the next request.
+     * If the client closes its side of the connection before the response is complete, the upstream
+     * connection is half closed to match, as some servers wait for that before responding.
+     */
+    private void awaitClient() {
+        try {
+            if (proxyRequest.clientIn.peek() != -1) return;
+        } catch (IOException e) {
+            // Connection closed or timed out, so no more requests
+        }
+        lock.lock();
+        try {
+            clientEof = true;
+            if (!responseComplete && upstreamSocket != null) {
+                upstreamHalfClosed = true;
+                upstreamSocket.shutdownOutput();
+            }
+        } catch (IOException e) {
+            // Upstream already closed
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void setUpstreamSocket(Socket socket) throws IOException {
+        lock.lock();
+        try {
+            this.upstreamSocket = socket;
+            if (clientEof && !upstreamHalfClosed) {
+                upstreamHalfClosed = true;
+                socket.shutdownOutput();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Connect to an upstream proxy (within CONNECT_TIMEOUT), recording how long it took (unless an idle connection
+     * was reused). Idle connections authenticated with credentials that have since been reloaded are closed, as
+     * they would still act as the previous user.
+     */
+    private UpstreamConnection connect(boolean reuse) throws IOException {
+        final long start = System.nanoTime();
+        UpstreamConnection connection = action.connect(proxyRequest.requestHeaders, settings.connectTimeout,
+                settings.upstreamSocket, reuse);
+        while (connection.authenticatedWith != null && action.needsHandshake(connection, settings)) {
+            Log.debug("{} Closing connection authenticated with previous credentials", proxyRequest);
+            action.release(connection, false);
+            connection = action.connect(proxyRequest.requestHeaders, settings.connectTimeout,
+                    settings.upstreamSocket, reuse);
+        }
+        if (!connection.reused) metrics.connectTime.recordSince(start);
+        proxyRequest.deadlines.setUpstream(connection.socket);
+        return connection;
+    }
+
+    private void recordFinished(long bytesUp, long bytesDown) {
+        metrics.requests.increment();
+        metrics.bytesUp.add(bytesUp);
+        metrics.bytesDown.add(bytesDown);
+        metrics.requestTime.recordSince(created);
+    }
+
+    /**
+     * Send request headers (without a body) on the connection
+     */
+    private void sendHeaders(UpstreamConnection connection, List<String> headers, int timeout) throws IOException {
+        final Socket upstream = connection.socket;
+        upstream.setSoTimeout(timeout);
+        Log.debug("upstream = {}", connection);
+        BufferedOutputStream outputStream = new BufferedOutputStream(upstream.getOutputStream(), settings.bufSize);
+        requestSent = System.nanoTime();
+        PassThrough.writeHeaders(outputStream, headers);
+        outputStream.flush();
+        setUpstreamSocket(upstream);
+    }
+
+    /**
+     * Read the response headers, and record how long they took to arrive in the upstream's statistics
+     */
+    private List<String> readResponseHeaders(UpstreamConnection connection) throws IOException {
+        proxyRequest.deadlines.start(Deadlines.Phase.FIRST_BYTE, settings.firstByteTimeout);
+        final List<String> headers = proxyRequest.processHeaders(connection.getInput(settings.bufSize));
+        proxyRequest.deadlines.end();
+        final long ttfb = System.nanoTime() - requestSent;
+        connection.upstream.recordTtfb(ttfb);
+        metrics.firstByteTime.record(ttfb);
+        return headers;
+    }
+
+    private void checkProxyAuthError(String line) {
+        if (Framing.statusCode(line) == 407) metrics.proxyAuthErrors.increment();
+        if (settings.stopOnProxyAuthError) {
+            if (PROXY_AUTH_ERROR.matcher(line).matches()) {
+                Log.error("STOPPING due to proxy auth error: {}", line);
+                Log.flush(1000);
+                System.exit(5); //magic number 5 often = access denied
+                /*
+                 * TODO: change to respond to all requests with error page,
+                 * instead of quitting
+                 */
+            }
+        }
+    }
+
+    /**
+     * Called by the upload and download threads. Uses a lock instead of synchronized, so that virtual
+     * threads are not pinned while closing sockets.
+     */
     @Override
-    public synchronized void finished(PassThrough obj, boolean succeeded) {
-        if (!succeeded) {
+    public void finished(PassThrough obj, boolean succeeded) {
+        if (obj.getError() != null) metrics.error(obj.getError());
+        if (succeeded) return;
+        lock.lock();
+        try {
             this.anyErrors = true;
 
             // Close both sockets
@@ -168,14 +684,16 @@ public class ForwardRequest implements StatusListener<PassThrough> {
                 try {
                     upstreamSocket.close();
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    Log.warn("Error closing {}", upstreamSocket, e);
                 }
             }
             try {
                 proxyRequest.incomingSocket.close();
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.warn("Error closing {}", proxyRequest.incomingSocket, e);
             }
+        } finally {
+            lock.unlock();
         }
     }
 }
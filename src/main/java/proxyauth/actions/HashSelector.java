@@ -0,0 +1,76 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.actions;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Chooses an upstream proxy by consistent hashing of the target host, so that requests for a host keep going
+ * to the same proxy. Each proxy has many points on a hash ring, so if one is unavailable, only its hosts move
+ * (spread over the others).
+ *
+ * @author Zeckie
+ */
+class HashSelector implements UpstreamSelector {
+    static final int POINTS_PER_UPSTREAM = 100;
+
+    private final TreeMap<Integer, Upstream> ring = new TreeMap<>();
+
+    HashSelector(List<Upstream> upstreams) {
+        for (Upstream upstream : upstreams) {
+            for (int i = 0; i < POINTS_PER_UPSTREAM; i++) {
+                ring.putIfAbsent(hash(upstream.getEndpoint() + "#" + i), upstream);
+            }
+        }
+    }
+
+    @Override
+    public Upstream select(List<Upstream> candidates, String target) {
+        final int hash = hash(target.toLowerCase(Locale.ROOT));
+        // Walk around the ring from the target's position, to the first available upstream
+        for (Map.Entry<Integer, Upstream> entry : ring.tailMap(hash).entrySet()) {
+            if (candidates.contains(entry.getValue())) return entry.getValue();
+        }
+        for (Map.Entry<Integer, Upstream> entry : ring.headMap(hash).entrySet()) {
+            if (candidates.contains(entry.getValue())) return entry.getValue();
+        }
+        return candidates.get(0);
+    }
+
+    /**
+     * 32 bit FNV-1a hash, with extra mixing so that similar strings are spread around the ring
+     */
+    static int hash(String s) {
+        int h = 0x811c9dc5;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.actions;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Chooses the upstream proxy with the fewest requests in progress. Ties are broken by starting the search
+ * at a random position, so that an idle proxy doesn't get every request.
+ *
+ * @author Zeckie
+ */
+class LeastActiveSelector implements UpstreamSelector {
+
+    @Override
+    public Upstream select(List<Upstream> candidates, String target) {
+        final int size = candidates.size();
+        final int start = size == 1 ? 0 : ThreadLocalRandom.current().nextInt(size);
+        Upstream best = null;
+        for (int i = 0; i < size; i++) {
+            Upstream upstream = candidates.get((start + i) % size);
+            if (best == null || upstream.getActive() < best.getActive()) best = upstream;
+        }
+        return best;
+    }
+}
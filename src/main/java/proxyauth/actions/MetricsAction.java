@@ -0,0 +1,80 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.actions;
+
+import proxyauth.ProxyRequest;
+import proxyauth.metrics.Metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import static proxyauth.Utils.ascii;
+
+/**
+ * Responds to requests for /metrics made directly to the listener (rather than through it), with the listener's
+ * metrics in Prometheus text format.
+ *
+ * @author Zeckie
+ */
+public class MetricsAction implements Action {
+    public static final String PATH = "/metrics";
+
+    private final Metrics metrics;
+
+    public MetricsAction(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return true if the request is for the metrics (a GET for {@link #PATH}, not a request to be proxied)
+     */
+    public static boolean isMetricsRequest(List<String> requestHeaders) {
+        final String requestLine = requestHeaders.get(0);
+        if (!requestLine.startsWith("GET " + PATH)) return false;
+        final int end = 4 + PATH.length();
+        return requestLine.length() > end && (requestLine.charAt(end) == ' ' || requestLine.charAt(end) == '?');
+    }
+
+    /**
+     * @return complete http response containing the metrics
+     */
+    public static byte[] response(Metrics metrics) {
+        final byte[] body = ascii(metrics.toPrometheus());
+        final byte[] headers = ascii("HTTP/1.1 200 OK\r\n"
+                + "Content-Type: text/plain; version=0.0.4\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: close\r\n\r\n");
+        final byte[] response = new byte[headers.length + body.length];
+        System.arraycopy(headers, 0, response, 0, headers.length);
+        System.arraycopy(body, 0, response, headers.length, body.length);
+        return response;
+    }
+
+    @Override
+    public boolean action(ProxyRequest proxyRequest) throws IOException {
+        final OutputStream os = proxyRequest.incomingSocket.getOutputStream();
+        os.write(response(metrics));
+        os.flush();
+        proxyRequest.incomingSocket.shutdownOutput();
+        return true;
+    }
+}
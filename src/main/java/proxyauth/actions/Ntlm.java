@@ -0,0 +1,328 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.actions;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Builds NTLM messages (MS-NLMP), for authenticating to the upstream proxy with NTLMv2. NTLM authenticates a
+ * connection, rather than each request: the negotiate message is sent, the proxy responds with a challenge, and
+ * the response to that (the authenticate message) is sent with the next request on the same connection.
+ *
+ * @author Zeckie
+ */
+public class Ntlm {
+    static final int NEGOTIATE_UNICODE = 0x00000001;
+    static final int NEGOTIATE_OEM = 0x00000002;
+    static final int REQUEST_TARGET = 0x00000004;
+    static final int NEGOTIATE_NTLM = 0x00000200;
+    static final int NEGOTIATE_ALWAYS_SIGN = 0x00008000;
+    static final int NEGOTIATE_EXTENDED_SESSIONSECURITY = 0x00080000;
+    static final int NEGOTIATE_TARGET_INFO = 0x00800000;
+    static final int NEGOTIATE_128 = 0x20000000;
+    static final int NEGOTIATE_56 = 0x80000000;
+
+    private static final int FLAGS = NEGOTIATE_UNICODE | NEGOTIATE_OEM | REQUEST_TARGET | NEGOTIATE_NTLM
+            | NEGOTIATE_ALWAYS_SIGN | NEGOTIATE_EXTENDED_SESSIONSECURITY | NEGOTIATE_TARGET_INFO
+            | NEGOTIATE_128 | NEGOTIATE_56;
+
+    private static final byte[] SIGNATURE = {'N', 'T', 'L', 'M', 'S', 'S', 'P', 0};
+    private static final Charset UNICODE = StandardCharsets.UTF_16LE;
+    private static final Charset OEM = StandardCharsets.US_ASCII;
+
+    /**
+     * Id of the timestamp in the target info of a challenge
+     */
+    private static final int AV_TIMESTAMP = 7;
+
+    /**
+     * Milliseconds from 1601-01-01 (the start of NTLM time) to 1970-01-01
+     */
+    private static final long EPOCH_OFFSET = 11644473600000L;
+
+    private final String domain;
+    private final String user;
+    private final String workstation;
+    /**
+     * NTOWFv2 - the hash of the password, user and domain that the responses are calculated from
+     */
+    private final byte[] responseKey;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * @param username user name, optionally with the domain (DOMAIN\\user)
+     * @param password password
+     */
+    public Ntlm(String username, String password) {
+        this(username, password, hostName());
+    }
+
+    Ntlm(String username, String password, String workstation) {
+        final int slash = username.indexOf('\\');
+        this.domain = slash == -1 ? "" : username.substring(0, slash);
+        this.user = username.substring(slash + 1);
+        this.workstation = workstation;
+        this.responseKey = ntowfv2(password, user, domain);
+    }
+
+    private static String hostName() {
+        try {
+            final String name = InetAddress.getLocalHost().getHostName();
+            final int dot = name.indexOf('.');
+            return (dot == -1 ? name : name.substring(0, dot)).toUpperCase(Locale.ROOT);
+        } catch (UnknownHostException e) {
+            return "";
+        }
+    }
+
+    /**
+     * @return true if other authenticates as the same user, with the same password
+     */
+    public boolean sameCredentials(Ntlm other) {
+        return domain.equals(other.domain) && user.equals(other.user) && workstation.equals(other.workstation)
+                && Arrays.equals(responseKey, other.responseKey);
+    }
+
+    /**
+     * @return the negotiate (type 1) message
+     */
+    public byte[] negotiate() {
+        final byte[] message = new byte[32];
+        System.arraycopy(SIGNATURE, 0, message, 0, SIGNATURE.length);
+        writeInt(message, 8, 1);
+        writeInt(message, 12, FLAGS);
+        // Domain and workstation are left empty, as they are sent in the authenticate message
+        return message;
+    }
+
+    /**
+     * @param challenge the challenge (type 2) message from the upstream proxy
+     * @return the authenticate (type 3) message
+     * @throws IllegalArgumentException if the challenge is not valid
+     */
+    public byte[] authenticate(byte[] challenge) {
+        final byte[] clientChallenge = new byte[8];
+        random.nextBytes(clientChallenge);
+        return authenticate(challenge, clientChallenge, (System.currentTimeMillis() + EPOCH_OFFSET) * 10000);
+    }
+
+    /**
+     * @param timestamp current time, in 100 nanosecond units since 1601 (used if the challenge doesn't have one)
+     */
+    byte[] authenticate(byte[] challenge, byte[] clientChallenge, long timestamp) {
+        if (challenge.length < 32 || !Arrays.equals(Arrays.copyOf(challenge, 8), SIGNATURE) || readInt(challenge, 8) != 2) {
+            throw new IllegalArgumentException("Not an NTLM challenge message");
+        }
+        final int flags = readInt(challenge, 20) & FLAGS;
+        final byte[] serverChallenge = Arrays.copyOfRange(challenge, 24, 32);
+        final byte[] targetInfo = challenge.length >= 48 ? field(challenge, 40) : new byte[0];
+        final byte[] avTimestamp = avPair(targetInfo, AV_TIMESTAMP);
+        if (avTimestamp != null && avTimestamp.length == 8) timestamp = readLong(avTimestamp, 0);
+
+        final byte[] ntResponse = ntResponse(responseKey, serverChallenge, clientChallenge, timestamp, targetInfo);
+        final byte[] lmResponse = lmResponse(responseKey, serverChallenge, clientChallenge);
+
+        final Charset charset = (flags & NEGOTIATE_UNICODE) != 0 ? UNICODE : OEM;
+        final byte[][] fields = {lmResponse, ntResponse, domain.getBytes(charset), user.getBytes(charset),
+                workstation.getBytes(charset), new byte[0]};
+        final int headerLength = 64;
+        int length = headerLength;
+        for (byte[] field : fields) length += field.length;
+
+        final byte[] message = new byte[length];
+        System.arraycopy(SIGNATURE, 0, message, 0, SIGNATURE.length);
+        writeInt(message, 8, 3);
+        // Fields are in the order of their descriptors, which start at offset 12
+        int offset = headerLength;
+        for (int i = 0; i < fields.length; i++) {
+            final int descriptor = 12 + i * 8;
+            writeShort(message, descriptor, fields[i].length);
+            writeShort(message, descriptor + 2, fields[i].length);
+            writeInt(message, descriptor + 4, offset);
+            System.arraycopy(fields[i], 0, message, offset, fields[i].length);
+            offset += fields[i].length;
+        }
+        writeInt(message, 60, flags);
+        return message;
+    }
+
+    /**
+     * @return NTOWFv2 (MS-NLMP section 3.3.2)
+     */
+    static byte[] ntowfv2(String password, String user, String domain) {
+        return hmacMd5(md4(password.getBytes(UNICODE)), (user.toUpperCase(Locale.ROOT) + domain).getBytes(UNICODE));
+    }
+
+    /**
+     * @return NTLMv2 response: NTProofStr followed by the client's blob (temp)
+     */
+    static byte[] ntResponse(byte[] responseKey, byte[] serverChallenge, byte[] clientChallenge, long timestamp,
+                             byte[] targetInfo) {
+        final ByteArrayOutputStream temp = new ByteArrayOutputStream();
+        temp.write(1); // Responserversion
+        temp.write(1); // HiResponserversion
+        temp.write(new byte[6], 0, 6);
+        final byte[] time = new byte[8];
+        writeLong(time, 0, timestamp);
+        temp.write(time, 0, 8);
+        temp.write(clientChallenge, 0, 8);
+        temp.write(new byte[4], 0, 4);
+        temp.write(targetInfo, 0, targetInfo.length);
+        temp.write(new byte[4], 0, 4);
+        final byte[] blob = temp.toByteArray();
+
+        final byte[] proof = hmacMd5(responseKey, concat(serverChallenge, blob));
+        return concat(proof, blob);
+    }
+
+    /**
+     * @return LMv2 response
+     */
+    static byte[] lmResponse(byte[] responseKey, byte[] serverChallenge, byte[] clientChallenge) {
+        return concat(hmacMd5(responseKey, concat(serverChallenge, clientChallenge)), clientChallenge);
+    }
+
+    /**
+     * @return value of an attribute in target info, or null if not present
+     */
+    static byte[] avPair(byte[] targetInfo, int id) {
+        int offset = 0;
+        while (offset + 4 <= targetInfo.length) {
+            final int avId = readShort(targetInfo, offset);
+            final int length = readShort(targetInfo, offset + 2);
+            if (avId == 0 || offset + 4 + length > targetInfo.length) break;
+            if (avId == id) return Arrays.copyOfRange(targetInfo, offset + 4, offset + 4 + length);
+            offset += 4 + length;
+        }
+        return null;
+    }
+
+    /**
+     * @return contents of a field, given the offset of its descriptor (length, max length, offset)
+     */
+    private static byte[] field(byte[] message, int descriptor) {
+        final int length = readShort(message, descriptor);
+        final int offset = readInt(message, descriptor + 4);
+        if (offset < 0 || offset + length > message.length) throw new IllegalArgumentException("Invalid NTLM message");
+        return Arrays.copyOfRange(message, offset, offset + length);
+    }
+
+    static byte[] hmacMd5(byte[] key, byte[] data) {
+        try {
+            final Mac mac = Mac.getInstance("HmacMD5");
+            mac.init(new SecretKeySpec(key, "HmacMD5"));
+            return mac.doFinal(data);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacMD5 not available", e);
+        }
+    }
+
+    /**
+     * MD4 (RFC 1320), which the JDK doesn't provide
+     */
+    static byte[] md4(byte[] input) {
+        final int blocks = (input.length + 8) / 64 + 1;
+        final byte[] padded = Arrays.copyOf(input, blocks * 64);
+        padded[input.length] = (byte) 0x80;
+        writeLong(padded, padded.length - 8, (long) input.length * 8);
+
+        int a = 0x67452301, b = 0xefcdab89, c = 0x98badcfe, d = 0x10325476;
+        final int[] x = new int[16];
+        for (int block = 0; block < blocks; block++) {
+            for (int i = 0; i < 16; i++) x[i] = readInt(padded, block * 64 + i * 4);
+            final int aa = a, bb = b, cc = c, dd = d;
+
+            for (int i = 0; i < 16; i += 4) {
+                a = Integer.rotateLeft(a + ((b & c) | (~b & d)) + x[i], 3);
+                d = Integer.rotateLeft(d + ((a & b) | (~a & c)) + x[i + 1], 7);
+                c = Integer.rotateLeft(c + ((d & a) | (~d & b)) + x[i + 2], 11);
+                b = Integer.rotateLeft(b + ((c & d) | (~c & a)) + x[i + 3], 19);
+            }
+            for (int i = 0; i < 4; i++) {
+                a = Integer.rotateLeft(a + ((b & c) | (b & d) | (c & d)) + x[i] + 0x5a827999, 3);
+                d = Integer.rotateLeft(d + ((a & b) | (a & c) | (b & c)) + x[i + 4] + 0x5a827999, 5);
+                c = Integer.rotateLeft(c + ((d & a) | (d & b) | (a & b)) + x[i + 8] + 0x5a827999, 9);
+                b = Integer.rotateLeft(b + ((c & d) | (c & a) | (d & a)) + x[i + 12] + 0x5a827999, 13);
+            }
+            for (int i : new int[]{0, 2, 1, 3}) {
+                a = Integer.rotateLeft(a + (b ^ c ^ d) + x[i] + 0x6ed9eba1, 3);
+                d = Integer.rotateLeft(d + (a ^ b ^ c) + x[i + 8] + 0x6ed9eba1, 9);
+                c = Integer.rotateLeft(c + (d ^ a ^ b) + x[i + 4] + 0x6ed9eba1, 11);
+                b = Integer.rotateLeft(b + (c ^ d ^ a) + x[i + 12] + 0x6ed9eba1, 15);
+            }
+            a += aa;
+            b += bb;
+            c += cc;
+            d += dd;
+        }
+        final byte[] digest = new byte[16];
+        writeInt(digest, 0, a);
+        writeInt(digest, 4, b);
+        writeInt(digest, 8, c);
+        writeInt(digest, 12, d);
+        return digest;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        final byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    // NTLM messages are little endian
+
+    static int readShort(byte[] buf, int offset) {
+        return (buf[offset] & 0xff) | (buf[offset + 1] & 0xff) << 8;
+    }
+
+    static int readInt(byte[] buf, int offset) {
+        return readShort(buf, offset) | readShort(buf, offset + 2) << 16;
+    }
+
+    static long readLong(byte[] buf, int offset) {
+        return (readInt(buf, offset) & 0xffffffffL) | (long) readInt(buf, offset + 4) << 32;
+    }
+
+    static void writeShort(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) value;
+        buf[offset + 1] = (byte) (value >>> 8);
+    }
+
+    static void writeInt(byte[] buf, int offset, int value) {
+        writeShort(buf, offset, value);
+        writeShort(buf, offset + 2, value >>> 16);
+    }
+
+    static void writeLong(byte[] buf, int offset, long value) {
+        writeInt(buf, offset, (int) value);
+        writeInt(buf, offset + 4, (int) (value >>> 32));
+    }
+}
@@ -0,0 +1,652 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.actions;
+
+import proxyauth.http.Framing;
+import proxyauth.metrics.Metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static proxyauth.Utils.getHeader;
+
+/**
+ * Responses to plain http GET requests, kept in memory so that they can be served again without going to the
+ * upstream proxy (RFC 7234, as a shared cache). Uses Cache-Control, Expires and Date (or Last-Modified, as a
+ * heuristic) to decide how long a response is fresh for, and ETag / Last-Modified to revalidate it once stale.
+ * Responses that vary by request header (Vary) are only served to requests with the same values.
+ * <p>
+ * The total size of the stored responses is limited, with the least recently used being evicted first.
+ * <p>
+ * While a response is being fetched, identical requests can share it ({@link SharedResponse}), rather than
+ * also going to the upstream proxy.
+ *
+ * @author Zeckie
+ */
+public class ResponseCache {
+    /**
+     * Status codes of responses that can be stored (those cacheable by default, RFC 7231 section 6.1)
+     */
+    static final Set<Integer> STORABLE_STATUS = Set.of(200, 203, 300, 301, 404, 410);
+
+    /**
+     * Headers that apply to a single connection, so are not stored
+     */
+    private static final Set<String> HOP_BY_HOP = Set.of("connection", "keep-alive", "proxy-connection",
+            "proxy-authenticate", "age");
+
+    /**
+     * Headers that make a request conditional
+     */
+    private static final String[] CONDITIONS = {"If-None-Match", "If-Modified-Since", "If-Match",
+            "If-Unmodified-Since", "If-Range"};
+
+    /**
+     * Heuristic freshness (when there is only Last-Modified) is capped at a day
+     */
+    static final long MAX_HEURISTIC_LIFETIME = 24 * 60 * 60 * 1000L;
+
+    private final long maxBytes;
+    private final int maxEntrySize;
+    private final Metrics metrics;
+
+    /**
+     * Stored responses by request URI, least recently used first. Guarded by lock.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private final Lock lock = new ReentrantLock();
+
+    /**
+     * Responses being fetched, that other requests for the same URI can share
+     */
+    private final ConcurrentHashMap<String, SharedResponse> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxBytes     maximum total size of stored responses
+     * @param maxEntrySize maximum size of a single response (headers and body)
+     * @param metrics      updated with evictions and bytes stored
+     */
+    public ResponseCache(long maxBytes, int maxEntrySize, Metrics metrics) {
+        this.maxBytes = maxBytes;
+        this.maxEntrySize = maxEntrySize;
+        this.metrics = metrics;
+    }
+
+    /**
+     * A stored response
+     */
+    public static final class Entry {
+        /**
+         * Response headers, including the status line, without hop-by-hop headers
+         */
+        final List<String> headers;
+        final byte[] body;
+        /**
+         * Values of the request headers named by Vary, when the response was stored
+         */
+        final List<String> varyValues;
+        /**
+         * When the response was received (System.currentTimeMillis)
+         */
+        final long responseTime;
+        /**
+         * Age of the response when it was received, in milliseconds
+         */
+        final long initialAge;
+        /**
+         * How long the response is fresh for, in milliseconds
+         */
+        final long lifetime;
+        final int size;
+
+        Entry(List<String> responseHeaders, byte[] body, List<String> varyValues, long requestTime, long responseTime) {
+            final List<String> headers = new ArrayList<>(responseHeaders.size());
+            int size = body.length;
+            for (int i = 0; i < responseHeaders.size(); i++) {
+                final String header = responseHeaders.get(i);
+                if (i > 0 && HOP_BY_HOP.contains(name(header))) continue;
+                headers.add(header);
+                size += header.length() + 2;
+            }
+            this.headers = Collections.unmodifiableList(headers);
+            this.body = body;
+            this.varyValues = varyValues;
+            this.responseTime = responseTime;
+            this.size = size;
+
+            final long date = parseDate(getHeader(headers, "Date"));
+            final long apparentAge = date == -1 ? 0 : Math.max(0, responseTime - date);
+            final long ageValue = seconds(getHeader(responseHeaders, "Age"));
+            final long correctedAge = Math.max(0, ageValue) * 1000 + (responseTime - requestTime);
+            this.initialAge = Math.max(apparentAge, correctedAge);
+            this.lifetime = lifetime(headers, date == -1 ? responseTime : date);
+        }
+
+        /**
+         * @return age in milliseconds
+         */
+        long age(long now) {
+            return initialAge + now - responseTime;
+        }
+
+        boolean isFresh(long now) {
+            return age(now) < lifetime;
+        }
+
+        /**
+         * @return true if the response can be revalidated with a conditional request
+         */
+        boolean hasValidator() {
+            return getHeader(headers, "ETag") != null || getHeader(headers, "Last-Modified") != null;
+        }
+
+        /**
+         * @return the headers to send to a client, including the current age
+         */
+        public List<String> responseHeaders(long now) {
+            final List<String> result = new ArrayList<>(headers.size() + 1);
+            result.addAll(headers);
+            result.add("Age: " + age(now) / 1000);
+            return result;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * Update the stored headers with those from a 304 (Not Modified) response (RFC 7234 section 4.3.4)
+         *
+         * @return a new entry, with the same body
+         */
+        Entry refresh(List<String> notModified, long requestTime, long responseTime) {
+            final List<String> updated = new ArrayList<>(headers);
+            for (int i = 1; i < notModified.size(); i++) {
+                final String header = notModified.get(i);
+                final String name = name(header);
+                if (HOP_BY_HOP.contains(name) || "content-length".equals(name) || "transfer-encoding".equals(name))
+                    continue;
+                updated.removeIf(h -> name.equals(name(h)));
+                updated.add(header);
+            }
+            return new Entry(updated, body, varyValues, requestTime, responseTime);
+        }
+    }
+
+    /**
+     * @return lower case name of a header line
+     */
+    private static String name(String header) {
+        final int colon = header.indexOf(':');
+        return (colon == -1 ? header : header.substring(0, colon)).trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Freshness lifetime (RFC 7234 section 4.2.1), from s-maxage, max-age or Expires, otherwise 10% of the time
+     * since Last-Modified
+     *
+     * @param date when the response was generated
+     */
+    static long lifetime(List<String> headers, long date) {
+        if (directive(headers, "no-cache") != null) return 0;
+        String maxAge = directive(headers, "s-maxage");
+        if (maxAge == null) maxAge = directive(headers, "max-age");
+        if (maxAge != null) return Math.max(0, seconds(maxAge)) * 1000;
+        final String expires = getHeader(headers, "Expires");
+        if (expires != null) {
+            // An invalid date means already expired
+            final long time = parseDate(expires);
+            return time == -1 ? 0 : Math.max(0, time - date);
+        }
+        final long lastModified = parseDate(getHeader(headers, "Last-Modified"));
+        if (lastModified != -1 && lastModified < date) {
+            return Math.min(MAX_HEURISTIC_LIFETIME, (date - lastModified) / 10);
+        }
+        return 0;
+    }
+
+    /**
+     * @param headers request or response headers
+     * @return the value of a Cache-Control directive ("" if it has no value), or null if not present
+     */
+    static String directive(List<String> headers, String name) {
+        final String cacheControl = getHeader(headers, "Cache-Control");
+        if (cacheControl == null) return null;
+        for (String part : cacheControl.split(",")) {
+            final int equals = part.indexOf('=');
+            if (!(equals == -1 ? part : part.substring(0, equals)).trim().equalsIgnoreCase(name)) continue;
+            if (equals == -1) return "";
+            final String value = part.substring(equals + 1).trim();
+            return value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")
+                    ? value.substring(1, value.length() - 1) : value;
+        }
+        return null;
+    }
+
+    /**
+     * @return number of seconds, or -1 if missing or invalid
+     */
+    static long seconds(String value) {
+        if (value == null) return -1;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param value http date, eg. "Sun, 06 Nov 1994 08:49:37 GMT"
+     * @return milliseconds since the epoch, or -1 if missing or invalid
+     */
+    static long parseDate(String value) {
+        if (value == null) return -1;
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param requestHeaders request headers, including the request line
+     * @return the key for responses to the request (its URI), or null if the request isn't for a plain http URI
+     */
+    public static String key(List<String> requestHeaders) {
+        final String requestLine = requestHeaders.get(0);
+        final int start = requestLine.indexOf(' ') + 1;
+        final int end = requestLine.lastIndexOf(' ');
+        if (start == 0 || end <= start || !requestLine.regionMatches(true, start, "http://", 0, 7)) return null;
+        return requestLine.substring(start, end);
+    }
+
+    /**
+     * @return true if the request can be answered from the cache, or its response stored
+     */
+    public static boolean canCache(List<String> requestHeaders) {
+        final String requestLine = requestHeaders.get(0);
+        return requestLine.startsWith("GET ") && requestLine.endsWith(" HTTP/1.1")
+                && Framing.requestBodyLength(requestHeaders) == 0
+                && getHeader(requestHeaders, "Authorization") == null
+                && directive(requestHeaders, "no-store") == null;
+    }
+
+    /**
+     * @return true if the request can share the response to an identical one (it isn't conditional, or for a range)
+     */
+    public static boolean canShare(List<String> requestHeaders) {
+        return !isConditional(requestHeaders) && getHeader(requestHeaders, "Range") == null;
+    }
+
+    /**
+     * @param bodyLength length of the body, as from {@link Framing#responseBodyLength(String, List)}
+     * @return true if the response can be sent to other clients that made the same request at the same time
+     */
+    static boolean isShareable(List<String> responseHeaders, long bodyLength) {
+        if (bodyLength == Framing.UNTIL_CLOSE || Framing.statusCode(responseHeaders.get(0)) == 206) return false;
+        if (directive(responseHeaders, "no-store") != null || directive(responseHeaders, "private") != null)
+            return false;
+        final String vary = getHeader(responseHeaders, "Vary");
+        return vary == null || !vary.contains("*");
+    }
+
+    /**
+     * @return response headers without those that only apply to a single connection
+     */
+    static List<String> withoutHopByHop(List<String> responseHeaders) {
+        final List<String> headers = new ArrayList<>(responseHeaders.size());
+        for (int i = 0; i < responseHeaders.size(); i++) {
+            final String header = responseHeaders.get(i);
+            if (i == 0 || !HOP_BY_HOP.contains(name(header))) headers.add(header);
+        }
+        return headers;
+    }
+
+    /**
+     * @return true if the method may change the resource, so stored responses for it should be removed
+     * (RFC 7234 section 4.4)
+     */
+    public static boolean isUnsafe(String method) {
+        return !("GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method) || "TRACE".equals(method));
+    }
+
+    /**
+     * @return true if the client sent its own conditions (eg. If-None-Match)
+     */
+    public static boolean isConditional(List<String> requestHeaders) {
+        for (String name : CONDITIONS) {
+            if (getHeader(requestHeaders, name) != null) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the stored response can be sent for the request, without revalidating it
+     */
+    public static boolean isFresh(Entry entry, List<String> requestHeaders, long now) {
+        if (directive(requestHeaders, "no-cache") != null) return false;
+        final String pragma = getHeader(requestHeaders, "Pragma");
+        if (pragma != null && pragma.toLowerCase(Locale.ROOT).contains("no-cache")) return false;
+        final long maxAge = seconds(directive(requestHeaders, "max-age"));
+        if (maxAge != -1 && entry.age(now) > maxAge * 1000) return false;
+        return entry.isFresh(now);
+    }
+
+    /**
+     * @return true if the response can be stored (apart from its size and framing)
+     */
+    static boolean isStorable(List<String> requestHeaders, List<String> responseHeaders, long now) {
+        if (!STORABLE_STATUS.contains(Framing.statusCode(responseHeaders.get(0)))) return false;
+        if (directive(responseHeaders, "no-store") != null || directive(responseHeaders, "private") != null)
+            return false;
+        final String vary = getHeader(responseHeaders, "Vary");
+        if (vary != null && vary.contains("*")) return false;
+        // Worth keeping if it will be fresh for a while, or can be revalidated
+        return lifetime(responseHeaders, now) > 0 || getHeader(responseHeaders, "ETag") != null
+                || getHeader(responseHeaders, "Last-Modified") != null;
+    }
+
+    /**
+     * @return values of the request headers named in the response's Vary header, or null if there is none
+     */
+    static List<String> varyValues(List<String> requestHeaders, List<String> responseHeaders) {
+        final String vary = getHeader(responseHeaders, "Vary");
+        if (vary == null) return null;
+        final List<String> values = new ArrayList<>();
+        for (String name : vary.split(",")) {
+            name = name.trim();
+            if (!name.isEmpty()) values.add(name + ":" + getHeader(requestHeaders, name));
+        }
+        return values;
+    }
+
+    /**
+     * @return the stored response for the request, or null if there is none (or it varies by a request header
+     * that has a different value)
+     */
+    public Entry get(String key, List<String> requestHeaders) {
+        final Entry entry;
+        lock.lock();
+        try {
+            entry = entries.get(key);
+        } finally {
+            lock.unlock();
+        }
+        if (entry == null) return null;
+        return entry.varyValues == null || entry.varyValues.equals(varyValues(requestHeaders, entry.headers))
+                ? entry : null;
+    }
+
+    /**
+     * Store a response, evicting the least recently used until the total size is within the limit
+     */
+    void put(String key, Entry entry) {
+        if (entry.size > maxEntrySize) {
+            remove(key);
+            return;
+        }
+        lock.lock();
+        try {
+            final Entry old = entries.put(key, entry);
+            long change = entry.size - (old == null ? 0 : old.size);
+            bytes += change;
+            for (Iterator<Entry> it = entries.values().iterator(); bytes > maxBytes && it.hasNext(); ) {
+                final Entry eldest = it.next();
+                it.remove();
+                bytes -= eldest.size;
+                change -= eldest.size;
+                metrics.cacheEvictions.increment();
+            }
+            metrics.cacheBytes.add(change);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the stored response (if any) for a URI
+     */
+    public void remove(String key) {
+        lock.lock();
+        try {
+            final Entry old = entries.remove(key);
+            if (old != null) {
+                bytes -= old.size;
+                metrics.cacheBytes.add(-old.size);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of stored responses
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return total size of stored responses, in bytes
+     */
+    public long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Start storing the response to a request that is being forwarded
+     *
+     * @param stale  a stored response to revalidate, or null
+     * @param shared to pass the response on to other requests for the same URI, or null
+     */
+    public Fill fill(String key, List<String> requestHeaders, Entry stale, SharedResponse shared) {
+        return new Fill(key, requestHeaders, stale, shared);
+    }
+
+    /**
+     * Start fetching a response that other requests for the same URI can share
+     *
+     * @param timeout milliseconds followers wait for the response
+     * @return the new shared response, or null if one is already being fetched
+     */
+    public SharedResponse lead(String key, List<String> requestHeaders, long timeout) {
+        final SharedResponse shared = new SharedResponse(requestHeaders, maxEntrySize, timeout);
+        return inFlight.putIfAbsent(key, shared) == null ? shared : null;
+    }
+
+    /**
+     * @return a reader for the response already being fetched for the URI, or null if there is none (or it is too
+     * late to join)
+     */
+    public SharedResponse.Reader follow(String key) {
+        final SharedResponse shared = inFlight.get(key);
+        return shared == null ? null : shared.join();
+    }
+
+    /**
+     * Stores the response to a forwarded request, as it is relayed to the client. If a stale response is being
+     * revalidated, conditions are added to the request, and a 304 (Not Modified) response refreshes it.
+     */
+    public class Fill {
+        private final String key;
+        private final List<String> requestHeaders;
+        private final Entry stale;
+        private final SharedResponse shared;
+        private long requestTime = System.currentTimeMillis();
+        private List<String> responseHeaders;
+        private Capture capture;
+
+        Fill(String key, List<String> requestHeaders, Entry stale, SharedResponse shared) {
+            this.key = key;
+            this.requestHeaders = requestHeaders;
+            this.stale = stale;
+            this.shared = shared;
+        }
+
+        /**
+         * @param headers request headers about to be sent upstream
+         * @return a copy of headers with If-None-Match / If-Modified-Since added, if revalidating
+         */
+        public List<String> addConditions(List<String> headers) {
+            requestTime = System.currentTimeMillis();
+            if (stale == null) return headers;
+            headers = new ArrayList<>(headers);
+            final String etag = getHeader(stale.headers, "ETag");
+            if (etag != null) headers.add("If-None-Match: " + etag);
+            final String lastModified = getHeader(stale.headers, "Last-Modified");
+            if (lastModified != null) headers.add("If-Modified-Since: " + lastModified);
+            return headers;
+        }
+
+        /**
+         * @param responseHeaders response from the upstream proxy
+         * @return the refreshed stored response, if the response is 304 (Not Modified) to the conditions added
+         * by {@link #addConditions(List)}, otherwise null
+         */
+        public Entry notModified(List<String> responseHeaders) {
+            if (stale == null || Framing.statusCode(responseHeaders.get(0)) != 304) return null;
+            final Entry refreshed = stale.refresh(responseHeaders, requestTime, System.currentTimeMillis());
+            put(key, refreshed);
+            metrics.cacheRevalidated.increment();
+            if (shared != null) {
+                try {
+                    shared.start(refreshed.headers);
+                    shared.write(refreshed.body, 0, refreshed.body.length);
+                    shared.finish();
+                } catch (IOException e) {
+                    shared.close();
+                }
+            }
+            return refreshed;
+        }
+
+        /**
+         * @param out        where the response body is being written
+         * @param headers    response headers from the upstream proxy
+         * @param bodyLength length of the body, as from {@link Framing#responseBodyLength(String, List)}
+         * @return a stream that writes to out and keeps a copy of the body (and/or passes it on to requests sharing
+         * the response), or out if the response can't be stored or shared
+         */
+        public OutputStream capture(OutputStream out, List<String> headers, long bodyLength) {
+            final boolean store = bodyLength != Framing.UNTIL_CLOSE && bodyLength <= maxEntrySize
+                    && isStorable(requestHeaders, headers, System.currentTimeMillis());
+            if (!store) {
+                // Any stored response has been replaced by one that can't be stored
+                remove(key);
+            }
+            final boolean share = shared != null && isShareable(headers, bodyLength);
+            if (share) {
+                shared.start(headers);
+            } else if (shared != null) {
+                shared.notShared();
+            }
+            if (!store && !share) return out;
+            responseHeaders = headers;
+            capture = new Capture(out, bodyLength, store, share ? shared : null);
+            return capture;
+        }
+
+        /**
+         * The whole response has been relayed, so store it
+         */
+        public void complete() {
+            if (capture == null) return;
+            if (shared != null) shared.finish();
+            if (capture.body == null) return;
+            put(key, new Entry(responseHeaders, capture.body.toByteArray(), varyValues(requestHeaders, responseHeaders),
+                    requestTime, System.currentTimeMillis()));
+        }
+
+        /**
+         * Finished with the request (successfully or not), so other requests can no longer share the response
+         */
+        public void close() {
+            if (shared == null) return;
+            inFlight.remove(key, shared);
+            shared.close();
+        }
+    }
+
+    /**
+     * Passes on everything written, keeping a copy unless it gets larger than the maximum entry size, and
+     * (optionally) passing it to a shared response
+     */
+    private class Capture extends FilterOutputStream {
+        /**
+         * Copy of bytes written, or null if too large (or not being stored)
+         */
+        ByteArrayOutputStream body;
+        private final SharedResponse shared;
+
+        Capture(OutputStream out, long bodyLength, boolean store, SharedResponse shared) {
+            super(out);
+            body = store ? new ByteArrayOutputStream(bodyLength > 0 ? (int) bodyLength : 1024) : null;
+            this.shared = shared;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            out.write(b, off, len);
+            if (body != null) {
+                body.write(b, off, len);
+                checkSize();
+            }
+            if (shared != null) shared.write(b, off, len);
+        }
+
+        private void checkSize() {
+            if (body.size() > maxEntrySize) body = null;
+        }
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.actions;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A response being relayed from the upstream proxy, which other clients requesting the same URI at the same time
+ * can share, instead of each sending their own request (single flight). Followers that join late get the body from
+ * the start, as it is kept in a buffer.
+ * <p>
+ * The buffer is limited to maxBuffered bytes. Once the body is larger than that, no more followers can join, and
+ * bytes are discarded once every follower has read them. The leader waits briefly (up to {@link #MAX_LAG}) for slow
+ * followers to catch up, rather than buffering more, and then drops the ones still holding it up, so that one slow
+ * client doesn't hold up the leader and every other follower.
+ *
+ * @author Zeckie
+ */
+public class SharedResponse {
+    private enum State {WAITING, STREAMING, COMPLETE, FAILED, NOT_SHARED}
+
+    /**
+     * Default for the longest time (milliseconds) the leader waits for slow followers before dropping them
+     */
+    static final long MAX_LAG = 200;
+
+    private final int maxBuffered;
+    private final long timeout;
+    private final long maxLag;
+
+    /**
+     * Request headers of the leader, to check that followers would get the same response (Vary)
+     */
+    final List<String> requestHeaders;
+
+    private final Lock lock = new ReentrantLock();
+    /**
+     * Signalled when anything changes, for both the leader and followers
+     */
+    private final Condition changed = lock.newCondition();
+
+    private State state = State.WAITING;
+    private boolean joinable = true;
+    private List<String> headers;
+    private byte[] buf = new byte[8192];
+    /**
+     * Position within the body of buf[0]
+     */
+    private long base = 0;
+    /**
+     * Number of valid bytes in buf
+     */
+    private int count = 0;
+    private final List<Reader> readers = new ArrayList<>();
+
+    /**
+     * @param requestHeaders request headers of the leader
+     * @param maxBuffered    maximum number of bytes of the body to keep
+     * @param timeout        milliseconds followers wait for the leader, or 0 to wait indefinitely
+     */
+    public SharedResponse(List<String> requestHeaders, int maxBuffered, long timeout) {
+        this(requestHeaders, maxBuffered, timeout, MAX_LAG);
+    }
+
+    /**
+     * @param maxLag milliseconds the leader waits for slow followers to catch up, before dropping them
+     */
+    SharedResponse(List<String> requestHeaders, int maxBuffered, long timeout, long maxLag) {
+        this.requestHeaders = requestHeaders;
+        this.maxBuffered = maxBuffered;
+        this.timeout = timeout;
+        this.maxLag = maxLag;
+    }
+
+    /**
+     * Wait for a condition, up to a deadline
+     *
+     * @param deadline from {@link #deadline(long)}, or Long.MAX_VALUE to wait indefinitely
+     * @return false if timed out
+     */
+    private boolean await(long deadline) throws InterruptedException {
+        if (deadline == Long.MAX_VALUE) {
+            changed.await();
+            return true;
+        }
+        final long remaining = deadline - System.nanoTime();
+        return remaining > 0 && changed.await(remaining, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param millis time to wait, or 0 to wait indefinitely
+     */
+    private static long deadline(long millis) {
+        return millis <= 0 ? Long.MAX_VALUE : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Called by the leader when the response headers have been received, and the response can be shared
+     */
+    void start(List<String> headers) {
+        lock.lock();
+        try {
+            this.headers = headers;
+            state = State.STREAMING;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by the leader when the response can't be shared, so followers need to send their own request
+     */
+    void notShared() {
+        end(State.NOT_SHARED);
+    }
+
+    /**
+     * Called by the leader once the whole body has been written
+     */
+    void finish() {
+        end(State.COMPLETE);
+    }
+
+    /**
+     * Called by the leader when it has finished with the response (successfully or not). Followers still waiting get
+     * an error, unless the response was complete.
+     */
+    void close() {
+        lock.lock();
+        try {
+            if (state == State.WAITING) {
+                end(State.NOT_SHARED);
+            } else if (state == State.STREAMING) {
+                end(State.FAILED);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void end(State state) {
+        lock.lock();
+        try {
+            this.state = state;
+            joinable = false;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by the leader with more of the body
+     */
+    void write(byte[] b, int off, int len) throws IOException {
+        lock.lock();
+        try {
+            if (joinable && base + count + len > maxBuffered) {
+                // Late followers would miss the start of the body, so no more can join
+                joinable = false;
+            }
+            if (!joinable) {
+                discard();
+                final long deadline = deadline(maxLag);
+                while (count > 0 && count + len > maxBuffered) {
+                    if (!await(deadline)) {
+                        // Too slow - drop the followers holding up the rest, rather than buffering more
+                        final long needed = base + count + len - maxBuffered;
+                        readers.removeIf(reader -> {
+                            if (reader.position < needed) reader.dropped = true;
+                            return reader.dropped;
+                        });
+                    }
+                    discard();
+                }
+            }
+            if (count + len > buf.length) {
+                byte[] bigger = new byte[Math.max(count + len, Math.min(2 * buf.length, maxBuffered))];
+                System.arraycopy(buf, 0, bigger, 0, count);
+                buf = bigger;
+            }
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+            changed.signalAll();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for followers", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discard bytes that every follower has read (only once no more can join)
+     */
+    private void discard() {
+        long min = base + count;
+        for (Reader reader : readers) min = Math.min(min, reader.position);
+        final int drop = (int) (min - base);
+        if (drop > 0) {
+            System.arraycopy(buf, drop, buf, 0, count - drop);
+            count -= drop;
+            base = min;
+        }
+    }
+
+    /**
+     * @return a reader for a follower, starting at the beginning of the body, or null if it is too late to join
+     */
+    Reader join() {
+        lock.lock();
+        try {
+            if (!joinable) return null;
+            final Reader reader = new Reader();
+            readers.add(reader);
+            return reader;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A follower's position in the response
+     */
+    class Reader {
+        /**
+         * Position within the body of the next byte to read
+         */
+        private long position = 0;
+        private boolean dropped = false;
+
+        /**
+         * @return the response being followed
+         */
+        SharedResponse shared() {
+            return SharedResponse.this;
+        }
+
+        /**
+         * Wait for the leader to receive the response headers
+         *
+         * @return the response headers, or null if the response won't be shared (the follower has left)
+         */
+        List<String> awaitHeaders() throws IOException {
+            lock.lock();
+            try {
+                final long deadline = deadline(timeout);
+                while (state == State.WAITING) {
+                    if (!await(deadline)) throw new SocketTimeoutException("Timed out waiting for shared response");
+                }
+                if (state == State.NOT_SHARED) {
+                    leave();
+                    return null;
+                }
+                return headers;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                leave();
+                throw new IOException("Interrupted while waiting for shared response", e);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Read more of the body, waiting for the leader if necessary
+         *
+         * @return number of bytes read, or -1 at the end of the body
+         * @throws IOException if the leader failed, or this follower was too slow
+         */
+        int read(byte[] b) throws IOException {
+            lock.lock();
+            try {
+                final long deadline = deadline(timeout);
+                while (!dropped && position == base + count && state == State.STREAMING) {
+                    if (!await(deadline)) throw new SocketTimeoutException("Timed out waiting for shared response");
+                }
+                if (dropped) throw new IOException("Too slow to read shared response");
+                if (position < base + count) {
+                    final int offset = (int) (position - base);
+                    final int read = Math.min(b.length, count - offset);
+                    System.arraycopy(buf, offset, b, 0, read);
+                    position += read;
+                    // The leader may be waiting for this follower to catch up
+                    changed.signalAll();
+                    return read;
+                }
+                if (state == State.COMPLETE) return -1;
+                throw new IOException("Shared response failed");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading shared response", e);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Stop following, eg. when finished or when the response can't be used
+         */
+        void leave() {
+            lock.lock();
+            try {
+                readers.remove(this);
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.actions;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An upstream proxy server, with statistics used to choose between upstream proxies
+ *
+ * @author Zeckie
+ */
+public class Upstream implements Closeable {
+    /**
+     * Milliseconds to avoid an upstream proxy for after failing to connect to it (unless all have failed)
+     */
+    static final long FAILURE_BACKOFF = 10000;
+
+    /**
+     * Weight (in percent) given to each new time to first byte in the moving average
+     */
+    static final int EWMA_WEIGHT = 30;
+
+    final UpstreamResolver resolver;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Exponentially weighted moving average of time to first byte, in nanoseconds (0 until measured)
+     */
+    private final AtomicLong ttfbAverage = new AtomicLong();
+    private volatile long lastFailure;
+
+    public Upstream(UpstreamResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * @return host and port of the upstream proxy (unresolved)
+     */
+    public InetSocketAddress getEndpoint() {
+        return resolver.getEndpoint();
+    }
+
+    /**
+     * @return the address most likely to work
+     */
+    public InetSocketAddress getAddress() throws UnknownHostException {
+        return resolver.getAddress();
+    }
+
+    /**
+     * @return the address most likely to work, without resolving the host name, or null if it hasn't been resolved
+     * @see UpstreamResolver#getCachedAddress()
+     */
+    public InetSocketAddress getCachedAddress() {
+        return resolver.getCachedAddress();
+    }
+
+    /**
+     * A request has started using a connection to this upstream proxy
+     */
+    public void started() {
+        active.incrementAndGet();
+        requests.incrementAndGet();
+    }
+
+    /**
+     * A request has finished using a connection to this upstream proxy
+     */
+    public void finished() {
+        active.decrementAndGet();
+    }
+
+    /**
+     * @param nanos time from sending a request until the response headers were received
+     */
+    public void recordTtfb(long nanos) {
+        long previous;
+        long updated;
+        do {
+            previous = ttfbAverage.get();
+            updated = previous == 0 ? Math.max(1, nanos) : previous + (nanos - previous) * EWMA_WEIGHT / 100;
+        } while (!ttfbAverage.compareAndSet(previous, updated));
+    }
+
+    /**
+     * Failed to connect to this upstream proxy
+     */
+    public void recordFailure() {
+        failures.incrementAndGet();
+        lastFailure = System.currentTimeMillis();
+    }
+
+    /**
+     * @return true unless there was a recent failure to connect
+     */
+    public boolean isHealthy(long now) {
+        return now - lastFailure >= FAILURE_BACKOFF;
+    }
+
+    public int getActive() {
+        return active.get();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return average time to first byte in nanoseconds, or 0 if not yet measured
+     */
+    public long getTtfbAverage() {
+        return ttfbAverage.get();
+    }
+
+    @Override
+    public void close() {
+        resolver.close();
+    }
+
+    @Override
+    public String toString() {
+        return "Upstream[" + getEndpoint() + ", active=" + active + ", requests=" + requests + ", failures=" + failures
+                + ", ttfb=" + TimeUnit.NANOSECONDS.toMillis(ttfbAverage.get()) + "ms]";
+    }
+}
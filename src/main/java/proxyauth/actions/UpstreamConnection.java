@@ -0,0 +1,130 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.actions;
+
+import proxyauth.Log;
+import proxyauth.http.HttpInput;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A connection to an upstream proxy server, which may be kept in an {@link UpstreamPool} between requests
+ *
+ * @author Zeckie
+ */
+public class UpstreamConnection implements Closeable {
+    /**
+     * The upstream proxy this is a connection to
+     */
+    public final Upstream upstream;
+    public final Socket socket;
+
+    /**
+     * Has this connection been used for a previous request
+     */
+    public boolean reused = false;
+
+    /**
+     * Credentials this connection has been authenticated with, for connection-oriented authentication (NTLM), or
+     * null if it hasn't been
+     */
+    public Ntlm authenticatedWith = null;
+
+    /**
+     * When this connection was last returned to the pool
+     */
+    volatile long lastUsed = System.currentTimeMillis();
+
+    private HttpInput input;
+
+    /**
+     * Is this connection counted as in use by a request, in the upstream's statistics
+     */
+    private boolean active = false;
+
+    /**
+     * @param upstream the upstream proxy
+     * @param socket   connected socket, which has a channel so that it can be used for relaying a tunnel
+     */
+    UpstreamConnection(Upstream upstream, Socket socket) {
+        this.upstream = upstream;
+        this.socket = socket;
+    }
+
+    /**
+     * Buffered input from the upstream proxy. The same input is used for each request on the connection, so
+     * that no bytes are lost between responses.
+     *
+     * @param bufferSize size of buffer, if the input has not already been created
+     */
+    public HttpInput getInput(int bufferSize) throws IOException {
+        if (input == null) input = new HttpInput(socket.getInputStream(), bufferSize);
+        return input;
+    }
+
+    /**
+     * Check, without blocking, that the upstream proxy has not closed the connection (or sent anything
+     * unexpected). Must not be called while the connection is in use.
+     */
+    boolean isUsable() {
+        if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) return false;
+        if (input != null && input.buffered() > 0) return false;
+        SocketChannel channel = socket.getChannel();
+        try {
+            channel.configureBlocking(false);
+            try {
+                return channel.read(ByteBuffer.allocate(1)) == 0;
+            } finally {
+                channel.configureBlocking(true);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Update the upstream's count of connections in use
+     */
+    void setActive(boolean active) {
+        if (this.active == active) return;
+        this.active = active;
+        if (active) upstream.started(); else upstream.finished();
+    }
+
+    @Override
+    public void close() {
+        setActive(false);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.warn("Error closing {}", this, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "UpstreamConnection[" + socket + (reused ? ", reused" : "") + "]";
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.actions;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps idle connections to upstream proxy servers open, so they can be reused by later requests
+ * instead of opening a new connection each time.
+ *
+ * @author Zeckie
+ */
+public class UpstreamPool implements Closeable {
+    private final int maxPerHost;
+    private final long maxIdleTime;
+
+    /**
+     * Idle connections for each upstream proxy, most recently used first
+     */
+    private final ConcurrentHashMap<InetSocketAddress, Deque<UpstreamConnection>> idle = new ConcurrentHashMap<>();
+
+    /**
+     * Closes connections that have been idle too long, or that the upstream proxy has closed
+     */
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "UpstreamPool-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param maxPerHost  maximum number of idle connections to keep for each upstream proxy
+     * @param maxIdleTime milliseconds an idle connection is kept before being closed
+     */
+    public UpstreamPool(int maxPerHost, long maxIdleTime) {
+        this.maxPerHost = maxPerHost;
+        this.maxIdleTime = maxIdleTime;
+        long interval = Math.max(100, maxIdleTime / 4);
+        evictor.scheduleWithFixedDelay(this::evict, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param endpoint upstream proxy (see {@link UpstreamResolver#getEndpoint()})
+     * @return a validated idle connection, or null if there are none
+     */
+    public UpstreamConnection checkout(InetSocketAddress endpoint) {
+        Deque<UpstreamConnection> connections = idle.get(endpoint);
+        if (connections != null) {
+            UpstreamConnection connection;
+            while ((connection = connections.pollFirst()) != null) {
+                if (isFresh(connection, System.currentTimeMillis()) && connection.isUsable()) {
+                    connection.reused = true;
+                    return connection;
+                }
+                connection.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return a connection after a complete request / response, so it can be reused.
+     * The connection is closed instead if it is no longer open, or the pool is full.
+     */
+    public void release(UpstreamConnection connection) {
+        if (connection.socket.isClosed()) return;
+        connection.lastUsed = System.currentTimeMillis();
+        Deque<UpstreamConnection> connections = idle.computeIfAbsent(connection.upstream.getEndpoint(),
+                a -> new LinkedBlockingDeque<>(maxPerHost));
+        if (!connections.offerFirst(connection)) {
+            connection.close();
+        }
+    }
+
+    private boolean isFresh(UpstreamConnection connection, long now) {
+        return now - connection.lastUsed < maxIdleTime;
+    }
+
+    /**
+     * Close idle connections that have expired or been closed by the upstream proxy
+     */
+    void evict() {
+        long now = System.currentTimeMillis();
+        for (Deque<UpstreamConnection> connections : idle.values()) {
+            for (UpstreamConnection connection : connections) {
+                // Take the connection out while checking it, so it can't be checked out at the same time
+                if (!connections.remove(connection)) continue;
+                if (isFresh(connection, now) && connection.isUsable()) {
+                    if (!connections.offerLast(connection)) connection.close();
+                } else {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of idle connections to the upstream proxy
+     */
+    public int idleCount(InetSocketAddress address) {
+        Deque<UpstreamConnection> connections = idle.get(address);
+        return connections == null ? 0 : connections.size();
+    }
+
+    @Override
+    public void close() {
+        evictor.shutdownNow();
+        for (Deque<UpstreamConnection> connections : idle.values()) {
+            UpstreamConnection connection;
+            while ((connection = connections.pollFirst()) != null) {
+                connection.close();
+            }
+        }
+    }
+}
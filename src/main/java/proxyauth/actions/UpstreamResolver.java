@@ -0,0 +1,294 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.actions;
+
+import proxyauth.Log;
+import proxyauth.SocketSettings;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves the upstream proxy's host name, caching all of its addresses, and connects to whichever address
+ * answers first. Connection attempts are started one after another, a short delay apart, so that a dead
+ * address doesn't hold up every request (similar to "Happy Eyeballs", RFC 8305).
+ *
+ * @author Zeckie
+ */
+public class UpstreamResolver implements Closeable {
+    private final String host;
+    private final int port;
+    private final long ttl;
+    private final long attemptDelay;
+
+    /**
+     * Host and port of the upstream proxy (unresolved), which identifies it whichever address is used
+     */
+    private final InetSocketAddress endpoint;
+
+    /**
+     * Cached addresses, in the order to try them. Replaced (not modified) when refreshed.
+     */
+    private volatile List<InetAddress> addresses;
+    private volatile long resolved;
+
+    /**
+     * Re-resolves the host name before the cached addresses expire, or null if they are only resolved again
+     * when next needed
+     */
+    private final ScheduledExecutorService refresher;
+
+    /**
+     * @param host         host name or IP address of the upstream proxy
+     * @param port         port of the upstream proxy
+     * @param ttl          milliseconds to cache resolved addresses for
+     * @param attemptDelay milliseconds to wait for a connection attempt before also trying the next address
+     */
+    public UpstreamResolver(String host, int port, long ttl, long attemptDelay) {
+        this(host, port, ttl, attemptDelay, true);
+    }
+
+    /**
+     * @param refresh re-resolve the host name in the background before the cached addresses expire (using a thread
+     *                for each resolver, so not for large numbers of them)
+     */
+    public UpstreamResolver(String host, int port, long ttl, long attemptDelay, boolean refresh) {
+        this.host = host;
+        this.port = port;
+        this.ttl = ttl;
+        this.attemptDelay = attemptDelay;
+        this.endpoint = InetSocketAddress.createUnresolved(String.valueOf(host), port);
+        if (ttl > 0 && refresh) {
+            refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "UpstreamResolver-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // Half way through the ttl, so requests don't find the addresses expired and wait for them to be resolved
+            final long period = Math.max(1, ttl / 2);
+            refresher.scheduleWithFixedDelay(this::refresh, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            refresher = null;
+        }
+    }
+
+    /**
+     * @return host and port of the upstream proxy (unresolved)
+     */
+    public InetSocketAddress getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return addresses of the upstream proxy, resolving the host name if they are not cached (with background
+     * refresh, only the first time, as they are resolved again before they expire)
+     */
+    public List<InetAddress> getAddresses() throws UnknownHostException {
+        List<InetAddress> current = addresses;
+        if (current == null || refresher == null && System.currentTimeMillis() - resolved > ttl) {
+            current = resolve();
+        }
+        return current;
+    }
+
+    /**
+     * Never resolves the host name, so can be used where blocking isn't allowed (eg. selector threads)
+     *
+     * @return the address most likely to work, from the addresses last resolved, or null if they haven't been
+     */
+    public InetSocketAddress getCachedAddress() {
+        final List<InetAddress> current = addresses;
+        return current == null ? null : new InetSocketAddress(current.get(0), port);
+    }
+
+    /**
+     * @return the address most likely to work (the last one connected to, if still resolved)
+     */
+    public InetSocketAddress getAddress() throws UnknownHostException {
+        return new InetSocketAddress(getAddresses().get(0), port);
+    }
+
+    private List<InetAddress> resolve() throws UnknownHostException {
+        final List<InetAddress> current = interleave(InetAddress.getAllByName(host));
+        final List<InetAddress> previous = addresses;
+        if (previous != null && current.remove(previous.get(0))) {
+            // Keep preferring the address that was last used
+            current.add(0, previous.get(0));
+        }
+        addresses = current;
+        resolved = System.currentTimeMillis();
+        return current;
+    }
+
+    private void refresh() {
+        try {
+            resolve();
+        } catch (UnknownHostException e) {
+            // Keep using the addresses we have, until the name resolves again
+            Log.warn("Unable to refresh addresses of upstream proxy: {}", e);
+            resolved = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Order addresses alternating between IPv6 and IPv4, starting with the family of the first address, so
+     * that a whole family being unreachable doesn't delay the connection much.
+     */
+    static List<InetAddress> interleave(InetAddress[] all) {
+        final List<InetAddress> first = new ArrayList<>();
+        final List<InetAddress> second = new ArrayList<>();
+        for (InetAddress address : all) {
+            ((address instanceof Inet6Address) == (all[0] instanceof Inet6Address) ? first : second).add(address);
+        }
+        final List<InetAddress> result = new ArrayList<>(all.length);
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) result.add(first.get(i));
+            if (i < second.size()) result.add(second.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Move an address that was successfully connected to, to the front of the list
+     */
+    private void prefer(InetAddress address) {
+        final List<InetAddress> current = addresses;
+        if (current == null || current.get(0).equals(address) || !current.contains(address)) return;
+        final List<InetAddress> updated = new ArrayList<>(current);
+        updated.remove(address);
+        updated.add(0, address);
+        addresses = updated;
+    }
+
+    /**
+     * Connect to the upstream proxy. Attempts are started in order, each {@code attemptDelay} ms after the
+     * previous one (or immediately when the previous one fails), and the first to connect is used.
+     *
+     * @param timeout overall connect timeout in milliseconds, or 0 for no limit
+     * @return a connected socket, which has a channel (in blocking mode)
+     */
+    public Socket connect(int timeout) throws IOException {
+        return connect(timeout, SocketSettings.DEFAULT);
+    }
+
+    /**
+     * @param options socket options, set before connecting
+     * @see #connect(int)
+     */
+    public Socket connect(int timeout, SocketSettings options) throws IOException {
+        final List<InetAddress> candidates = getAddresses();
+        // 0 for no limit
+        final long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+        boolean timedOut = false;
+        final List<SocketChannel> pending = new ArrayList<>();
+        IOException lastFailure = null;
+        SocketChannel winner = null;
+        try (Selector selector = Selector.open()) {
+            int next = 0;
+            long nextAttempt = 0;
+            while (winner == null) {
+                long now = System.currentTimeMillis();
+                if (now >= deadline) {
+                    timedOut = true;
+                    break;
+                }
+                if (next < candidates.size() && (now >= nextAttempt || pending.isEmpty())) {
+                    final InetSocketAddress address = new InetSocketAddress(candidates.get(next++), port);
+                    final SocketChannel channel = SocketChannel.open();
+                    try {
+                        channel.configureBlocking(false);
+                        options.apply(channel.socket());
+                        if (channel.connect(address)) {
+                            winner = channel;
+                            break;
+                        }
+                        channel.register(selector, SelectionKey.OP_CONNECT, address);
+                        pending.add(channel);
+                    } catch (IOException e) {
+                        lastFailure = e;
+                        channel.close();
+                        continue;
+                    }
+                    nextAttempt = now + attemptDelay;
+                }
+                if (pending.isEmpty()) break; // all addresses failed
+
+                if (next < candidates.size()) {
+                    selector.select(Math.max(1, Math.min(deadline - now, nextAttempt - now)));
+                } else if (deadline == Long.MAX_VALUE) {
+                    // Nothing else to try, so wait for one of the attempts to finish
+                    selector.select();
+                } else {
+                    selector.select(Math.max(1, deadline - now));
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    final SocketChannel channel = (SocketChannel) key.channel();
+                    try {
+                        if (channel.finishConnect()) {
+                            winner = channel;
+                            break;
+                        }
+                    } catch (IOException e) {
+                        lastFailure = new ConnectException("Unable to connect to " + key.attachment() + ": " + e.getMessage());
+                        key.cancel();
+                        pending.remove(channel);
+                        channel.close();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } finally {
+            for (SocketChannel channel : pending) {
+                if (channel != winner) channel.close();
+            }
+        }
+
+        if (winner == null) {
+            if (!timedOut && lastFailure != null) throw lastFailure;
+            throw new SocketTimeoutException("Timed out connecting to " + host + ":" + port
+                    + " (tried " + candidates + ")");
+        }
+        // Selector is closed, so the channel is no longer registered and can be made blocking
+        winner.configureBlocking(true);
+        prefer(((InetSocketAddress) winner.getRemoteAddress()).getAddress());
+        return winner.socket();
+    }
+
+    @Override
+    public void close() {
+        if (refresher != null) refresher.shutdownNow();
+    }
+}
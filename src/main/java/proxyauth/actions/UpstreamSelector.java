@@ -0,0 +1,56 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.actions;
+
+import proxyauth.conf.Balance;
+
+import java.util.List;
+
+/**
+ * Chooses which upstream proxy a request is sent to
+ *
+ * @author Zeckie
+ */
+public interface UpstreamSelector {
+    /**
+     * @param candidates upstream proxies to choose from (not empty)
+     * @param target     host (and port) the request is for
+     * @return one of the candidates
+     */
+    Upstream select(List<Upstream> candidates, String target);
+
+    /**
+     * @param balance   how to choose
+     * @param upstreams all upstream proxies that may be chosen
+     */
+    static UpstreamSelector create(Balance balance, List<Upstream> upstreams) {
+        switch (balance) {
+            case LEAST_ACTIVE:
+                return new LeastActiveSelector();
+            case FASTEST:
+                return new FastestSelector();
+            case HASH:
+                return new HashSelector(upstreams);
+            default:
+                return new RoundRobinSelector();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.conf;
+
+import proxyauth.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * Watches a file (the configuration file) for changes, using a {@link WatchService} on its directory
+ *
+ * @author Zeckie
+ */
+public class ConfigWatcher implements Runnable, Closeable {
+    /**
+     * Milliseconds to wait after a change before reading the file, as editors often write it in several steps
+     */
+    static final long SETTLE_TIME = 200;
+
+    private final Path file;
+    private final Runnable onChange;
+    private final WatchService watchService;
+
+    /**
+     * @param file     file to watch
+     * @param onChange run (by the thread running this watcher) after the file is created or modified
+     */
+    public ConfigWatcher(Path file, Runnable onChange) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.onChange = onChange;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        try {
+            this.file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            watchService.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                if (!changed(watchService.take())) continue;
+                // Include any other changes made while waiting
+                Thread.sleep(SETTLE_TIME);
+                WatchKey more;
+                while ((more = watchService.poll()) != null) changed(more);
+                try {
+                    onChange.run();
+                } catch (RuntimeException e) {
+                    Log.error("Error applying changes to {}", file, e);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Log.debug("Stopped watching {}", file);
+        }
+    }
+
+    /**
+     * @return true if the events include changes to the file (or some events were lost)
+     */
+    private boolean changed(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
@@ -20,6 +20,11 @@
 
 package proxyauth.conf;
 
+import proxyauth.Log;
+import proxyauth.SocketSettings;
+import proxyauth.Utils;
+import proxyauth.routing.Router;
+
 import java.io.*;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
@@ -27,7 +32,9 @@ import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
 
 
 /**
@@ -40,11 +47,42 @@ public class Configuration {
     /* Tuning */
     public final Setting<Integer> BUF_SIZE = new Setting<>(1024, Converter.INTEGER,
             false, "Size of each buffer, in bytes.", null, 100, null);
+    public final Setting<Integer> MAX_BUF_SIZE = new Setting<>(65536, Converter.INTEGER,
+            false, "Largest size, in bytes, that a connection's buffers can grow to while relaying a large transfer. " +
+                    "They start at BUF_SIZE, grow while reads keep filling them, and shrink again when reads are small.",
+            null, 100, null);
+    public final Setting<Integer> TUNNEL_BUF_SIZE = new Setting<>(65536, Converter.INTEGER,
+            false, "Largest size of the buffers used for relaying tunnels (eg. https), in bytes. Like MAX_BUF_SIZE, " +
+                    "they start at BUF_SIZE, so idle tunnels use little memory.", null, 1024, null);
+    public final Setting<Integer> FLUSH_SIZE = new Setting<>(8192, Converter.INTEGER,
+            false, "Bytes relayed to a connection are collected until there are this many, then written together.",
+            null, 512, null);
+    public final Setting<Integer> FLUSH_DELAY = new Setting<>(0, Converter.INTEGER,
+            false, "Longest time, in microseconds, that fewer than FLUSH_SIZE bytes are held waiting for more to send " +
+                    "with them. 0 sends them as soon as no more are waiting to be relayed (lowest latency), while " +
+                    "eg. 200 sends fewer, fuller packets for data that arrives in bursts.", null, 0, 1000000);
+    public final Setting<Integer> MAX_HEADER_SIZE = new Setting<>(65536, Converter.INTEGER,
+            false, "Maximum size of the http headers of a request or response, in bytes.", null, 1024, null);
     public final Setting<Boolean> DEBUG = new Setting<>(true, Converter.YES_NO,
             false, "Print debug details?", null, null, null);
     public final Setting<Integer> SOCKET_TIMEOUT = new Setting<>(180000, Converter.INTEGER,
             false, "Timeout in milliseconds used when connecting, reading and writing to TCP sockets",
             null, 0, null);
+    public final Setting<Integer> HEADER_TIMEOUT = new Setting<>(30000, Converter.INTEGER,
+            false, "Time in milliseconds a client has to send the headers of a request (for the next request on a " +
+                    "kept-alive connection, this includes waiting for it to start). 0 for no limit.", null, 0, null);
+    public final Setting<Integer> CONNECT_TIMEOUT = new Setting<>(30000, Converter.INTEGER,
+            false, "Timeout in milliseconds for connecting to an upstream proxy (or origin server). 0 to use SOCKET_TIMEOUT.",
+            null, 0, null);
+    public final Setting<Integer> FIRST_BYTE_TIMEOUT = new Setting<>(180000, Converter.INTEGER,
+            false, "Time in milliseconds from sending a request upstream until the response headers have been received. " +
+                    "0 for no limit.", null, 0, null);
+    public final Setting<Integer> TUNNEL_IDLE_TIMEOUT = new Setting<>(180000, Converter.INTEGER,
+            false, "Time in milliseconds a tunnel (eg. https) can go without any bytes relayed in either direction, " +
+                    "before being closed. 0 for no limit.", null, 0, null);
+    public final Setting<Integer> MAX_CONNECTION_AGE = new Setting<>(0, Converter.INTEGER,
+            false, "Longest time in milliseconds a connection from a client can be kept open, however busy. " +
+                    "0 for no limit.", null, 0, null);
     public final Setting<Integer> LISTEN_BACKLOG = new Setting<>(50, Converter.INTEGER,
             false, "Number of incoming connections that can be queued. Setting this too low will result in connections being refused",
             null, 0, null);
@@ -53,9 +91,44 @@ public class Configuration {
             null, null, null);
     public final Setting<Integer> MAX_ACTIVE_REQUESTS = new Setting<>(20, Converter.INTEGER,
             false, "The number of concurrent requests that can be processed. Higher values will use more resources.", null, 1, null);
+    public final Setting<Integer> MAX_QUEUED_REQUESTS = new Setting<>(100, Converter.INTEGER, false,
+            "The number of connections that can wait for a request to finish, once MAX_ACTIVE_REQUESTS is reached. " +
+                    "Any more are immediately rejected with error 503 (Service Unavailable).", null, 0, null);
+    public final Setting<Integer> QUEUE_TIMEOUT = new Setting<>(10000, Converter.INTEGER, false,
+            "Time in milliseconds a connection can wait for a request to finish, before being rejected with error 503 " +
+                    "(Service Unavailable).", null, 0, null);
     public final Setting<Boolean> CONNECTION_CLOSE = new Setting<>(true, Converter.YES_NO, false,
             "Add headers to indicate the connection needs to be closed. Should be set to Yes to work around issue 23.",
             null, null, null);
+    public final Setting<Boolean> UPSTREAM_KEEP_ALIVE = new Setting<>(false, Converter.YES_NO, false,
+            "Keep connections to the upstream proxy open, to be reused by later requests (except CONNECT). " +
+                    "Avoids connecting for each request. When ENGINE is NIO, THREADS is used instead.",
+            null, null, null);
+    public final Setting<Integer> UPSTREAM_POOL_MAX_PER_HOST = new Setting<>(8, Converter.INTEGER, false,
+            "Maximum number of idle connections to keep open to the upstream proxy, when UPSTREAM_KEEP_ALIVE is enabled",
+            null, 1, null);
+    public final Setting<Integer> UPSTREAM_POOL_MAX_IDLE = new Setting<>(30000, Converter.INTEGER, false,
+            "Time in milliseconds an idle connection to the upstream proxy is kept open, when UPSTREAM_KEEP_ALIVE is enabled",
+            null, 100, null);
+    public final Setting<Integer> CACHE_SIZE = new Setting<>(0, Converter.INTEGER, false,
+            "Memory in bytes used to cache responses to plain http GET requests, so they can be reused without going " +
+                    "to the upstream proxy. 0 disables the cache. Not used when ENGINE is NIO.", null, 0, null);
+    public final Setting<Integer> CACHE_MAX_ENTRY_SIZE = new Setting<>(1048576, Converter.INTEGER, false,
+            "Largest response (in bytes) that will be cached, when CACHE_SIZE is not 0", null, 0, null);
+    public final Setting<Engine> ENGINE = new Setting<>(Engine.THREADS, Converter.forEnum(Engine.class), false,
+            "How connections are handled. THREADS uses dedicated threads for each connection. " +
+                    "NIO shares a small number of selector threads between all connections, which scales to more concurrent connections.",
+            null, null, null);
+    public final Setting<Boolean> VIRTUAL_THREADS = new Setting<>(false, Converter.YES_NO, false,
+            "Use virtual threads when ENGINE is THREADS. Requires Java 21 or later. " +
+                    "Allows many more concurrent requests, as virtual threads use much less memory.",
+            null, null, null);
+    public final Setting<Integer> NIO_LOOPS = new Setting<>(0, Converter.INTEGER, false,
+            "Number of selector threads used when ENGINE is NIO. 0 means one per processor core.", null, 0, null);
+    public final Setting<Integer> ACCEPTORS = new Setting<>(1, Converter.INTEGER, false,
+            "Number of sockets listening on LISTEN_PORT when ENGINE is THREADS, each with its own thread accepting connections " +
+                    "(using SO_REUSEPORT, so the operating system spreads new connections between them). 0 means one per processor core. " +
+                    "Only 1 is used if SO_REUSEPORT is not supported (eg. on Windows).", null, 0, null);
 
     /* Addresses */
     public final Setting<String> LISTEN_ADDRESS = new Setting<>("127.0.0.127", Converter.STRING,
@@ -78,6 +151,89 @@ public class Configuration {
             false, "Name or IP address of the upstream proxy server to send requests to", null, null, null);
     public final Setting<Integer> UPSTREAM_PROXY_PORT = new Setting<>(8080, Converter.INTEGER,
             false, "TCP Port of upstream proxy server to send requests to", null, 1, 65535);
+    public final Setting<String> UPSTREAM_PROXIES = new Setting<>("", Converter.STRING, false,
+            "Other upstream proxy servers to share requests with, as host:port separated by commas (eg. proxy2:8080,proxy3:8080). " +
+                    "Leave blank to only use UPSTREAM_PROXY_HOST.",
+            new Validator() {
+                @Override
+                public void validate(String val) {
+                    try {
+                        Utils.parseHostPorts(val);
+                    } catch (IllegalArgumentException e) {
+                        throw new InvalidSettingException(e.getMessage());
+                    }
+                }
+            }, null, null);
+    public final Setting<Balance> UPSTREAM_BALANCE = new Setting<>(Balance.ROUND_ROBIN, Converter.forEnum(Balance.class), false,
+            "How requests are shared between upstream proxy servers (when UPSTREAM_PROXIES is set). ROUND_ROBIN uses each in turn. " +
+                    "LEAST_ACTIVE uses the one with the fewest requests in progress. FASTEST uses the one with the lowest average " +
+                    "time to first byte (allowing for requests in progress). HASH sends all requests for a host to the same one.",
+            null, null, null);
+    public final Setting<String> ROUTES = new Setting<>("", Converter.STRING, false,
+            "Rules for handling requests differently depending on their target, separated by ';' " +
+                    "(eg. *.intranet=FORWARD intranetproxy:8080; 10.0.0.0/8=CLOSE). Each is [METHOD ]HOST[:PORT]=ACTION, " +
+                    "where HOST is a host name, *.domain for its subdomains, an IP address or CIDR range, or * for any host, " +
+                    "and ACTION is FORWARD (optionally followed by host:port of a different upstream proxy), DIRECT (connect to the " +
+                    "target without a proxy), CLOSE or ECHO. " +
+                    "The first matching rule is used, and other requests are forwarded. If there are any rules, connections " +
+                    "are handled by THREADS, even when ENGINE is NIO.",
+            new Validator() {
+                @Override
+                public void validate(String val) {
+                    try {
+                        Router.parse(val);
+                    } catch (IllegalArgumentException e) {
+                        throw new InvalidSettingException(e.getMessage());
+                    }
+                }
+            }, null, null);
+    public final Setting<Integer> UPSTREAM_DNS_TTL = new Setting<>(60000, Converter.INTEGER, false,
+            "Time in milliseconds to cache the addresses of the upstream proxy server for. They are refreshed in the background.",
+            null, 0, null);
+    public final Setting<Integer> UPSTREAM_CONNECT_DELAY = new Setting<>(250, Converter.INTEGER, false,
+            "Time in milliseconds to wait for a connection to one address of the upstream proxy server, before also trying the next one",
+            null, 10, null);
+    public final Setting<ProxyAuthScheme> UPSTREAM_AUTH = new Setting<>(ProxyAuthScheme.BASIC, Converter.forEnum(ProxyAuthScheme.class), false,
+            "How to authenticate to the upstream proxy server. BASIC sends the username and password with each request. " +
+                    "NTLM (or NEGOTIATE, for NTLM using the Negotiate scheme) authenticates each connection once, with " +
+                    "DOMAIN\\user as the username, and keeps connections open for reuse. Not supported when ENGINE is NIO.",
+            null, null, null);
+    public final Setting<Boolean> RELOAD = new Setting<>(true, Converter.YES_NO, false,
+            "Watch the configuration file for changes, and apply them without restarting. Only USERNAME, PASSWORD, " +
+                    "SOCKET_TIMEOUT, CONNECTION_CLOSE, STOP_ON_PROXY_AUTH_ERROR, DEBUG, MAX_ACTIVE_REQUESTS, " +
+                    "MAX_QUEUED_REQUESTS, QUEUE_TIMEOUT, FLUSH_SIZE, FLUSH_DELAY, the socket options and the other " +
+                    "timeouts can be changed this way - others (including BUF_SIZE, as the buffer pools are sized when " +
+                    "starting) need a restart. Settings removed from the file keep their current values, instead of " +
+                    "returning to the defaults. Requests already in progress keep the settings they started with.",
+            null, null, null);
+
+    private static final Validator SOCKET_OPTIONS = new Validator() {
+        @Override
+        public void validate(String val) {
+            try {
+                SocketSettings.parse(val);
+            } catch (IllegalArgumentException e) {
+                throw new InvalidSettingException(e.getMessage());
+            }
+        }
+    };
+    public final Setting<String> CLIENT_SOCKET_OPTIONS = new Setting<>("TCP_NODELAY=Yes", Converter.STRING, false,
+            "Options for connections from clients, separated by ',': TCP_NODELAY=Yes|No (send small writes immediately), " +
+                    "SO_KEEPALIVE=Yes|No (detect dead connections), SO_RCVBUF=bytes and SO_SNDBUF=bytes (socket buffer sizes). " +
+                    "Options not listed are left as the operating system's defaults.",
+            SOCKET_OPTIONS, null, null);
+    public final Setting<String> UPSTREAM_SOCKET_OPTIONS = new Setting<>("TCP_NODELAY=Yes,SO_KEEPALIVE=Yes", Converter.STRING, false,
+            "Options for connections to upstream proxies (and origin servers), in the same form as CLIENT_SOCKET_OPTIONS.",
+            SOCKET_OPTIONS, null, null);
+    public final Setting<Integer> RATE_LIMIT = new Setting<>(0, Converter.INTEGER, false,
+            "Maximum bytes per second relayed for all clients together, in each direction (uploads and downloads are " +
+                    "limited separately). 0 for no limit. Not supported when ENGINE is NIO.", null, 0, null);
+    public final Setting<Integer> CLIENT_RATE_LIMIT = new Setting<>(0, Converter.INTEGER, false,
+            "Maximum bytes per second relayed for each client IP address, in each direction. 0 for no limit.", null, 0, null);
+    public final Setting<Integer> HOST_RATE_LIMIT = new Setting<>(0, Converter.INTEGER, false,
+            "Maximum bytes per second relayed for each destination host, in each direction. 0 for no limit.", null, 0, null);
+    public final Setting<Integer> RATE_BURST = new Setting<>(65536, Converter.INTEGER, false,
+            "Bytes that can be relayed without waiting after being idle, even if faster than the rate limits.", null, 1024, null);
 
     /* Authentication - these 3 are handled slightly differently */
     public final Setting<String> USERNAME = new Setting<>(System.getenv("USERNAME"), Converter.STRING,
@@ -89,6 +245,13 @@ public class Configuration {
 
     public final String FILE_NAME = "proxyauth.properties";
 
+    /**
+     * Settings that can be changed while running (by {@link #reload()}), as they are read from a {@link Snapshot}
+     */
+    static final Set<String> RELOADABLE = Set.of("USERNAME", "PASSWORD", "SOCKET_TIMEOUT", "CONNECTION_CLOSE",
+            "STOP_ON_PROXY_AUTH_ERROR", "DEBUG", "MAX_ACTIVE_REQUESTS", "MAX_QUEUED_REQUESTS", "QUEUE_TIMEOUT", "SAVE_PASS",
+            "CLIENT_SOCKET_OPTIONS", "UPSTREAM_SOCKET_OPTIONS", "FLUSH_SIZE", "FLUSH_DELAY",
+            "HEADER_TIMEOUT", "CONNECT_TIMEOUT", "FIRST_BYTE_TIMEOUT", "TUNNEL_IDLE_TIMEOUT", "MAX_CONNECTION_AGE");
 
     /**
      * Intended for internal use only, such as loading configuration.
@@ -118,21 +281,91 @@ public class Configuration {
                 throw new FileNotFoundException("Configuration file " + FILE_NAME + " not found");
             }
         } else {
-            Properties props = new Properties();
-            props.load(new FileReader(FILE_NAME));
-            final Map<String, Setting<?>> allConfigFields = getAllConfigFields();
-            for (String key : props.stringPropertyNames()) {
-                try {
-                    if (allConfigFields.containsKey(key)) {
-                        allConfigFields.get(key).setString(props.getProperty(key));
-                    } else {
-                        System.err.println("Discarding unknown setting from properties file: " + key);
-                    }
-                } catch (Exception ex) {
-                    System.err.println("Unable to load " + key + ": " + ex);
+            load(read(), false);
+        }
+    }
+
+    /**
+     * @return settings from the configuration file
+     */
+    private Properties read() throws IOException {
+        Properties props = new Properties();
+        try (FileReader reader = new FileReader(FILE_NAME)) {
+            props.load(reader);
+        }
+        return props;
+    }
+
+    /**
+     * @param strict throw an exception if any setting is not valid (otherwise, it is reported and skipped)
+     */
+    void load(Properties props, boolean strict) throws InvalidSettingException {
+        final Map<String, Setting<?>> allConfigFields = getAllConfigFields();
+        for (String key : props.stringPropertyNames()) {
+            try {
+                if (allConfigFields.containsKey(key)) {
+                    allConfigFields.get(key).setString(props.getProperty(key));
+                } else {
+                    System.err.println("Discarding unknown setting from properties file: " + key);
                 }
+            } catch (Exception ex) {
+                if (strict) throw new InvalidSettingException("Unable to load " + key + ": " + ex.getMessage(), ex);
+                System.err.println("Unable to load " + key + ": " + ex);
+            }
+        }
+    }
+
+    /**
+     * @return the settings used while handling requests
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Read the configuration file again, for changing settings while running.
+     *
+     * @return a copy of this configuration, with the settings from the file (see {@link #reload(Properties)})
+     * @throws IOException              if the file can't be read
+     * @throws IllegalArgumentException if a setting is not valid
+     */
+    public Configuration reload() throws IOException {
+        return reload(read());
+    }
+
+    /**
+     * Settings that can't be changed while running (see {@link #RELOADABLE}) keep their current values, as do
+     * settings that are not in props (rather than returning to their defaults), such as a PASSWORD entered when
+     * starting instead of being saved.
+     *
+     * @return a copy of this configuration, with the settings from props
+     * @throws IllegalArgumentException if a setting is not valid
+     */
+    Configuration reload(Properties props) {
+        final Configuration next = new Configuration();
+        final Map<String, Setting<?>> current = getAllConfigFields();
+        final Map<String, Setting<?>> loaded = next.getAllConfigFields();
+        for (String key : current.keySet()) copy(current.get(key), loaded.get(key));
+        try {
+            next.load(props, true);
+        } catch (InvalidSettingException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+        for (String key : current.keySet()) {
+            final Object value = loaded.get(key).currentValue;
+            if (!RELOADABLE.contains(key) && !Objects.equals(current.get(key).currentValue, value)) {
+                Log.warn("{} changed in {} - restart to use the new value", key, FILE_NAME);
+                copy(current.get(key), loaded.get(key));
+            } else if (value == null && current.get(key).currentValue != null) {
+                throw new IllegalArgumentException("Setting " + key + " is not set");
             }
         }
+        return next;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <A> void copy(Setting<A> from, Setting<?> to) {
+        ((Setting<A>) to).currentValue = from.currentValue;
     }
 
     void save() throws IOException {
@@ -20,6 +20,7 @@
 
 package proxyauth.conf;
 
+import java.util.Arrays;
 import java.util.Set;
 
 /**
@@ -73,6 +74,23 @@ abstract class Converter<A> {
         }
     };
 
+    /**
+     * Converter for the constants of an enum, matched case-insensitively
+     */
+    static <E extends Enum<E>> Converter<E> forEnum(Class<E> type) {
+        return new Converter<>() {
+            @Override
+            E fromString(String val) throws InvalidSettingException {
+                for (E constant : type.getEnumConstants()) {
+                    if (constant.name().equalsIgnoreCase(val.trim())) {
+                        return constant;
+                    }
+                }
+                throw new InvalidSettingException("Value should be one of " + Arrays.toString(type.getEnumConstants()));
+            }
+        };
+    }
+
     private Converter() {
     }
 }
@@ -35,7 +35,7 @@ public class Setting<A> {
     final Comparable<A> max;
     final Validator validator;
     final boolean special;
-    protected A currentValue;
+    protected volatile A currentValue;
 
     /**
      * @param defaultValue (Optional) Value that is used unless overridden by user. If null, user will be prompted for a value.
@@ -0,0 +1,104 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.conf;
+
+import proxyauth.SocketSettings;
+import proxyauth.actions.Ntlm;
+
+import java.util.Base64;
+
+import static proxyauth.Utils.ASCII;
+import static proxyauth.Utils.ascii;
+
+/**
+ * The settings used while handling requests, read once from a {@link Configuration}. Immutable, so each request
+ * reads one reference and uses the same settings throughout, while a reloaded configuration can be swapped in
+ * for new requests. Also holds values derived from the settings, such as the Proxy-Authorization header.
+ *
+ * @author Zeckie
+ */
+public final class Snapshot {
+    public final int bufSize;
+    public final int flushSize;
+    public final int flushDelay;
+    public final int socketTimeout;
+    public final int headerTimeout;
+    public final int connectTimeout;
+    public final int firstByteTimeout;
+    public final int tunnelIdleTimeout;
+    public final int maxConnectionAge;
+    public final boolean connectionClose;
+    public final boolean stopOnProxyAuthError;
+    public final boolean debug;
+    public final int maxActiveRequests;
+    public final int maxQueuedRequests;
+    public final int queueTimeout;
+    public final SocketSettings clientSocket;
+    public final SocketSettings upstreamSocket;
+
+    /**
+     * Proxy-Authorization header for Basic authentication, or null if connections are authenticated instead
+     */
+    public final String authorization;
+
+    /**
+     * Scheme for connection-oriented authentication ("NTLM" or "Negotiate"), or null for Basic
+     */
+    public final String connectionScheme;
+
+    /**
+     * Credentials for connection-oriented authentication, or null for Basic
+     */
+    public final Ntlm ntlm;
+
+    Snapshot(Configuration config) {
+        bufSize = config.BUF_SIZE.getValue();
+        flushSize = config.FLUSH_SIZE.getValue();
+        flushDelay = config.FLUSH_DELAY.getValue();
+        socketTimeout = config.SOCKET_TIMEOUT.getValue();
+        headerTimeout = config.HEADER_TIMEOUT.getValue();
+        connectTimeout = config.CONNECT_TIMEOUT.getValue() > 0 ? config.CONNECT_TIMEOUT.getValue() : socketTimeout;
+        firstByteTimeout = config.FIRST_BYTE_TIMEOUT.getValue();
+        tunnelIdleTimeout = config.TUNNEL_IDLE_TIMEOUT.getValue();
+        maxConnectionAge = config.MAX_CONNECTION_AGE.getValue();
+        connectionClose = config.CONNECTION_CLOSE.getValue();
+        stopOnProxyAuthError = config.STOP_ON_PROXY_AUTH_ERROR.getValue();
+        debug = config.DEBUG.getValue();
+        maxActiveRequests = config.MAX_ACTIVE_REQUESTS.getValue();
+        maxQueuedRequests = config.MAX_QUEUED_REQUESTS.getValue();
+        queueTimeout = config.QUEUE_TIMEOUT.getValue();
+        clientSocket = SocketSettings.parse(config.CLIENT_SOCKET_OPTIONS.getValue());
+        upstreamSocket = SocketSettings.parse(config.UPSTREAM_SOCKET_OPTIONS.getValue());
+
+        final String username = config.USERNAME.getValue();
+        final String password = config.PASSWORD.getValue();
+        if (config.UPSTREAM_AUTH.getValue() == ProxyAuthScheme.BASIC) {
+            authorization = "Proxy-Authorization: Basic "
+                    + new String(Base64.getEncoder().encode(ascii(username + ":" + password)), ASCII);
+            connectionScheme = null;
+            ntlm = null;
+        } else {
+            authorization = null;
+            connectionScheme = config.UPSTREAM_AUTH.getValue() == ProxyAuthScheme.NTLM ? "NTLM" : "Negotiate";
+            ntlm = new Ntlm(username, password);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static proxyauth.Utils.getHeader;
+
+/**
+ * Works out where http messages end (RFC 7230 section 3.3.3), so that more than one request / response
+ * can be sent on a connection.
+ *
+ * @author Zeckie
+ */
+public class Framing {
+    /**
+     * Body continues until the connection is closed
+     */
+    public static final long UNTIL_CLOSE = -1;
+
+    /**
+     * Body uses chunked transfer coding, which marks its own end
+     */
+    public static final long CHUNKED = -2;
+
+    private Framing() {
+    }
+
+    /**
+     * Check that where a request ends is unambiguous. Otherwise ProxyAuth and the upstream proxy could disagree,
+     * and the rest of one request be taken as another (request smuggling), possibly on a connection later used
+     * for another client.
+     *
+     * @param headers request headers, including the request line
+     * @return why the request must be rejected with 400 (Bad Request), or null if it can be framed
+     */
+    public static String checkRequest(List<String> headers) {
+        final List<String> contentLength = values(headers, "Content-Length");
+        final List<String> transferEncoding = values(headers, "Transfer-Encoding");
+        if (!transferEncoding.isEmpty()) {
+            if (!contentLength.isEmpty()) return "Both Transfer-Encoding and Content-Length";
+            if (!isChunked(String.join(",", transferEncoding))) return "Final transfer coding is not chunked";
+        } else if (contentLength.size() > 1) {
+            return "Repeated Content-Length";
+        } else if (contentLength.size() == 1 && parseLength(contentLength.get(0)) < 0) {
+            return "Invalid Content-Length";
+        }
+        return null;
+    }
+
+    /**
+     * @param headers request headers, including the request line, accepted by {@link #checkRequest(List)}
+     * @return length of the request body, or {@link #CHUNKED}. Requests without Content-Length or
+     * Transfer-Encoding have no body.
+     */
+    public static long requestBodyLength(List<String> headers) {
+        final List<String> transferEncoding = values(headers, "Transfer-Encoding");
+        if (!transferEncoding.isEmpty()) {
+            // Anything other than chunked can't be framed, so the connection will need to be closed
+            return isChunked(String.join(",", transferEncoding)) ? CHUNKED : UNTIL_CLOSE;
+        }
+        return contentLength(headers, 0);
+    }
+
+    /**
+     * @param method  method of the request this is a response to (eg. GET)
+     * @param headers response headers, including the status line
+     * @return length of the response body, {@link #CHUNKED}, or {@link #UNTIL_CLOSE}
+     */
+    public static long responseBodyLength(String method, List<String> headers) {
+        final int status = statusCode(headers.get(0));
+        if ("HEAD".equals(method) || (status >= 100 && status < 200) || status == 204 || status == 304) {
+            return 0;
+        }
+        final List<String> transferEncoding = values(headers, "Transfer-Encoding");
+        if (!transferEncoding.isEmpty()) {
+            // Takes precedence over any Content-Length
+            return isChunked(String.join(",", transferEncoding)) ? CHUNKED : UNTIL_CLOSE;
+        }
+        return contentLength(headers, UNTIL_CLOSE);
+    }
+
+    /**
+     * @return true if the final transfer coding is chunked
+     */
+    static boolean isChunked(String transferEncoding) {
+        final String[] codings = transferEncoding.split(",");
+        return codings.length > 0 && codings[codings.length - 1].trim().equalsIgnoreCase("chunked");
+    }
+
+    /**
+     * @return the length, or {@link #UNTIL_CLOSE} if Content-Length is invalid or repeated with different values
+     */
+    private static long contentLength(List<String> headers, long missing) {
+        final List<String> contentLength = values(headers, "Content-Length");
+        if (contentLength.isEmpty()) return missing;
+        final long length = parseLength(contentLength.get(0));
+        for (String value : contentLength) {
+            if (parseLength(value) != length) return UNTIL_CLOSE;
+        }
+        return length < 0 ? UNTIL_CLOSE : length;
+    }
+
+    /**
+     * @return the length, or -1 if it is not just decimal digits (Long.parseLong would also accept a sign)
+     */
+    private static long parseLength(String value) {
+        if (value.isEmpty() || value.length() > 18) return -1;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c < '0' || c > '9') return -1;
+        }
+        return Long.parseLong(value);
+    }
+
+    /**
+     * @return the values of every header with the name (ignoring case), in order
+     */
+    private static List<String> values(List<String> headers, String name) {
+        final List<String> values = new ArrayList<>(1);
+        for (int i = 1; i < headers.size(); i++) {
+            final String header = headers.get(i);
+            if (header.length() > name.length() && header.charAt(name.length()) == ':'
+                    && header.regionMatches(true, 0, name, 0, name.length())) {
+                values.add(header.substring(name.length() + 1).trim());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @param statusLine eg. "HTTP/1.1 200 OK"
+     * @return the status code, or -1 if it can't be parsed
+     */
+    public static int statusCode(String statusLine) {
+        int start = statusLine.indexOf(' ') + 1;
+        if (start == 0 || statusLine.length() < start + 3) return -1;
+        try {
+            return Integer.parseInt(statusLine.substring(start, start + 3));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param requestLine eg. "GET http://example.com/ HTTP/1.1"
+     * @return the method, eg. "GET"
+     */
+    public static String method(String requestLine) {
+        int end = requestLine.indexOf(' ');
+        return end == -1 ? requestLine : requestLine.substring(0, end);
+    }
+
+    /**
+     * Does the sender of this message want to keep the connection open afterwards. HTTP/1.1 connections are
+     * persistent unless "close" is specified, while HTTP/1.0 connections need "keep-alive".
+     *
+     * @param headers request or response headers, including the first line
+     */
+    public static boolean isKeepAlive(List<String> headers) {
+        final String firstLine = headers.get(0);
+        final boolean http11 = firstLine.startsWith("HTTP/1.1 ") || firstLine.endsWith(" HTTP/1.1");
+        for (String name : new String[]{"Connection", "Proxy-Connection"}) {
+            String value = getHeader(headers, name);
+            if (value == null) continue;
+            value = value.toLowerCase(Locale.ROOT);
+            if (value.contains("close")) return false;
+            if (value.contains("keep-alive")) return true;
+        }
+        return http11;
+    }
+}
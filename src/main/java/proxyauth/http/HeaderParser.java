@@ -0,0 +1,182 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.http;
+
+import proxyauth.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads http headers from a {@link HttpInput}, scanning whole buffers at a time for the blank line that ends them.
+ * Headers that span more than one read are collected in segments leased from a {@link BufferPool}, up to a
+ * maximum size. Lines may end with CRLF or just LF.
+ *
+ * @author Zeckie
+ */
+public class HeaderParser {
+    private final BufferPool segments;
+    private final int maxSize;
+
+    /**
+     * @param segments pool of buffers to hold headers that span more than one read
+     * @param maxSize  maximum size of headers, in bytes
+     */
+    public HeaderParser(BufferPool segments, int maxSize) {
+        this.segments = segments;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Read headers, up to and including the blank line. Bytes after that are left in the input.
+     *
+     * @param nullAtEnd return null if the stream ends before the first byte, instead of throwing an exception
+     * @return the headers, or null
+     */
+    public HttpHeaders parse(HttpInput in, boolean nullAtEnd) throws IOException {
+        List<ByteBuffer> leased = null;
+        int total = 0;
+        final Scanner scanner = new Scanner();
+        try {
+            while (true) {
+                if (in.pos == in.limit && !in.fill()) {
+                    if (total == 0 && nullAtEnd) return null;
+                    throw new IOException("End of stream reached before http headers read");
+                }
+                final byte[] buf = in.buf;
+                if (total == 0) {
+                    // Ignore blank lines before the request / status line
+                    while (in.pos < in.limit && (buf[in.pos] == '\r' || buf[in.pos] == '\n')) in.pos++;
+                    if (in.pos == in.limit) continue;
+                }
+                final int end = scanner.scan(buf, in.pos, in.limit);
+                final boolean done = end != -1;
+                final int i = done ? end : in.limit;
+                final int count = i - in.pos;
+                if (total + count > maxSize)
+                    throw new IOException("Headers larger than maximum size (" + maxSize + " bytes)");
+
+                if (done && leased == null) {
+                    // Usual case - all headers in one read, so no need to copy to segments
+                    byte[] data = Arrays.copyOfRange(buf, in.pos, i);
+                    in.pos = i;
+                    return index(data);
+                }
+
+                if (leased == null) leased = new ArrayList<>();
+                int from = in.pos;
+                while (from < i) {
+                    ByteBuffer segment = leased.isEmpty() ? null : leased.get(leased.size() - 1);
+                    if (segment == null || !segment.hasRemaining()) {
+                        segment = segments.lease();
+                        leased.add(segment);
+                    }
+                    int n = Math.min(segment.remaining(), i - from);
+                    segment.put(buf, from, n);
+                    from += n;
+                }
+                total += count;
+                in.pos = i;
+
+                if (done) {
+                    byte[] data = new byte[total];
+                    int offset = 0;
+                    for (ByteBuffer segment : leased) {
+                        segment.flip();
+                        int n = segment.remaining();
+                        segment.get(data, offset, n);
+                        offset += n;
+                    }
+                    return index(data);
+                }
+            }
+        } finally {
+            if (leased != null) {
+                for (ByteBuffer segment : leased) segments.release(segment);
+            }
+        }
+    }
+
+    /**
+     * Finds the blank line that ends http headers, in bytes that may arrive in several pieces. Lines may end with
+     * CRLF or just LF. Keeps its state between pieces, so each byte is only looked at once.
+     */
+    public static final class Scanner {
+        /**
+         * true when the previous byte was a LF (ignoring CR), so another LF ends the headers
+         */
+        private boolean lineStart = false;
+
+        /**
+         * Look at the next piece of the headers
+         *
+         * @return offset just after the blank line, or -1 if it isn't in buf between from and limit
+         */
+        public int scan(byte[] buf, int from, int limit) {
+            for (int i = from; i < limit; i++) {
+                byte b = buf[i];
+                if (b == '\n') {
+                    if (lineStart) return i + 1;
+                    lineStart = true;
+                } else if (b != '\r') {
+                    lineStart = false;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Find the lines (excluding the final blank line) and the colon in each
+     *
+     * @param data headers, starting with the request / status line and ending with the blank line
+     */
+    public static HttpHeaders index(byte[] data) {
+        int lineCount = 0;
+        for (byte b : data) {
+            if (b == '\n') lineCount++;
+        }
+        lineCount--; // blank line at end
+        final int[] starts = new int[lineCount];
+        final int[] ends = new int[lineCount];
+        final int[] colons = new int[lineCount];
+        int line = 0;
+        int start = 0;
+        int colon = -1;
+        for (int i = 0; line < lineCount; i++) {
+            byte b = data[i];
+            if (b == ':' && colon == -1) {
+                colon = i;
+            } else if (b == '\n') {
+                starts[line] = start;
+                ends[line] = i > start && data[i - 1] == '\r' ? i - 1 : i;
+                colons[line] = colon;
+                line++;
+                start = i + 1;
+                colon = -1;
+            }
+        }
+        return new HttpHeaders(data, starts, ends, colons, lineCount);
+    }
+}
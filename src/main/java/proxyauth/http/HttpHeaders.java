@@ -0,0 +1,136 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+import static proxyauth.Utils.ASCII;
+
+/**
+ * Http headers as received, including the request / status line. Lines are slices of the raw bytes, and are
+ * only converted to Strings when needed.
+ *
+ * @author Zeckie
+ */
+public class HttpHeaders extends AbstractList<String> implements RandomAccess {
+    private final byte[] data;
+    private final int[] starts;
+    private final int[] ends;
+    /**
+     * Position of the ':' in each line, or -1
+     */
+    private final int[] colons;
+    private final String[] lines;
+
+    HttpHeaders(byte[] data, int[] starts, int[] ends, int[] colons, int count) {
+        this.data = data;
+        this.starts = starts;
+        this.ends = ends;
+        this.colons = colons;
+        this.lines = new String[count];
+    }
+
+    @Override
+    public String get(int index) {
+        String line = lines[index];
+        if (line == null) {
+            line = new String(data, starts[index], ends[index] - starts[index], ASCII);
+            lines[index] = line;
+        }
+        return line;
+    }
+
+    @Override
+    public int size() {
+        return lines.length;
+    }
+
+    /**
+     * Find the value of a header, without converting every line to a String
+     *
+     * @param name name of the header, case insensitive
+     * @return the value of the first header with that name (trimmed), or null if not found
+     */
+    public String value(String name) {
+        final int length = name.length();
+        for (int i = 1; i < lines.length; i++) {
+            if (colons[i] - starts[i] == length && nameMatches(starts[i], name)) {
+                int start = colons[i] + 1;
+                int end = ends[i];
+                while (start < end && isSpace(data[start])) start++;
+                while (end > start && isSpace(data[end - 1])) end--;
+                return new String(data, start, end - start, ASCII);
+            }
+        }
+        return null;
+    }
+
+    private boolean nameMatches(int offset, String name) {
+        for (int i = 0; i < name.length(); i++) {
+            int a = data[offset + i];
+            int b = name.charAt(i);
+            if (a != b && toLower(a) != toLower(b)) return false;
+        }
+        return true;
+    }
+
+    private static int toLower(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    /**
+     * Write the headers as received (with CRLF line endings), followed by a blank line
+     */
+    public void writeTo(OutputStream os) throws IOException {
+        for (int i = 0; i < lines.length; i++) {
+            os.write(data, starts[i], ends[i] - starts[i]);
+            os.write('\r');
+            os.write('\n');
+        }
+        os.write('\r');
+        os.write('\n');
+    }
+
+    /**
+     * @return the headers as text, each followed by a line separator (for logging)
+     */
+    public String text() {
+        StringBuilder sb = new StringBuilder(data.length);
+        for (String line : this) {
+            sb.append(line).append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return number of bytes in the headers, as received
+     */
+    public int byteLength() {
+        return data.length;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Buffered input from a connection. Headers are parsed directly from the buffer, and any bytes read past the
+ * end of the headers (eg. the start of a body) are kept, to be returned by the next read.
+ *
+ * @author Zeckie
+ */
+public class HttpInput extends InputStream {
+    private final InputStream in;
+    final byte[] buf;
+    /**
+     * Next byte to be returned from buf
+     */
+    int pos = 0;
+    /**
+     * End of the valid bytes in buf
+     */
+    int limit = 0;
+
+    /**
+     * @param in         stream to read from
+     * @param bufferSize size of buffer
+     */
+    public HttpInput(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buf = new byte[bufferSize];
+    }
+
+    /**
+     * Read more bytes into the buffer. Must only be called when the buffer is empty.
+     *
+     * @return false at end of stream
+     */
+    boolean fill() throws IOException {
+        pos = 0;
+        limit = 0;
+        int read = in.read(buf, 0, buf.length);
+        if (read == -1) return false;
+        limit = read;
+        return true;
+    }
+
+    /**
+     * @return number of bytes read from the connection, but not yet returned
+     */
+    public int buffered() {
+        return limit - pos;
+    }
+
+    /**
+     * Wait for the next byte, without consuming it
+     *
+     * @return the next byte, or -1 at end of stream
+     */
+    public int peek() throws IOException {
+        if (pos == limit && !fill()) return -1;
+        return buf[pos] & 0xff;
+    }
+
+    /**
+     * Write out any buffered bytes, eg. before relaying the rest of the connection some other way
+     */
+    public void drainTo(OutputStream os) throws IOException {
+        if (pos < limit) {
+            os.write(buf, pos, limit - pos);
+            pos = limit;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == limit && !fill()) return -1;
+        return buf[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (pos == limit) {
+            // Large reads bypass the buffer
+            if (len >= buf.length) return in.read(b, off, len);
+            if (!fill()) return -1;
+        }
+        int count = Math.min(len, limit - pos);
+        System.arraycopy(buf, pos, b, off, count);
+        pos += count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return limit - pos + in.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.metrics;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear histogram of durations, using a fixed amount of memory and no locks. Each power of 2 (in
+ * microseconds) is split into {@link #SUB_BUCKETS} equal buckets, so values are recorded to within 25%, from 1 microsecond
+ * up to about 2 hours. Longer durations are counted in the last bucket.
+ *
+ * @author Zeckie
+ */
+public class Histogram {
+    static final int SUB_BITS = 2;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    /**
+     * Highest power of 2 (in microseconds) with its own buckets
+     */
+    static final int MAX_EXPONENT = 32;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sumNanos = new LongAdder();
+
+    /**
+     * Record a duration
+     */
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(index(TimeUnit.NANOSECONDS.toMicros(nanos)));
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * Record the time since start
+     *
+     * @param start from System.nanoTime()
+     */
+    public void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    /**
+     * @param micros duration in microseconds
+     * @return bucket for the duration. Bucket i holds durations greater than {@link #upperBound}(i - 1) and
+     * less than or equal to upperBound(i).
+     */
+    static int index(long micros) {
+        final long value = micros - 1;
+        if (value < SUB_BUCKETS) return (int) Math.max(value, 0);
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int index = (exponent - SUB_BITS + 1) * SUB_BUCKETS + (int) (value >>> (exponent - SUB_BITS)) - SUB_BUCKETS;
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    /**
+     * @return largest duration (in microseconds) counted in bucket i
+     */
+    static long upperBound(int i) {
+        final int next = i + 1;
+        if (next < SUB_BUCKETS) return next;
+        final int exponent = next / SUB_BUCKETS + SUB_BITS - 1;
+        return (long) (SUB_BUCKETS + next % SUB_BUCKETS) << (exponent - SUB_BITS);
+    }
+
+    /**
+     * @return number of durations recorded
+     */
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) count += counts.get(i);
+        return count;
+    }
+
+    /**
+     * Append the histogram in Prometheus text format, with durations in seconds
+     *
+     * @param name metric name, ending in "_seconds"
+     */
+    void appendTo(StringBuilder sb, String name, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" histogram\n");
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            cumulative += counts.get(i);
+            sb.append(name).append("_bucket{le=\"")
+                    .append(BigDecimal.valueOf(upperBound(i), 6).stripTrailingZeros().toPlainString())
+                    .append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += counts.get(BUCKETS - 1);
+        sb.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        sb.append(name).append("_sum ").append(BigDecimal.valueOf(sumNanos.sum(), 9).stripTrailingZeros().toPlainString()).append('\n');
+        sb.append(name).append("_count ").append(cumulative).append('\n');
+    }
+}
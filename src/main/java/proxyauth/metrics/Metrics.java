@@ -0,0 +1,209 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms describing the requests handled by a listener. Recorded without locks, so they can be
+ * updated on every request. Available in Prometheus text format from {@link proxyauth.actions.MetricsAction}.
+ *
+ * @author Zeckie
+ */
+public class Metrics {
+    /**
+     * Connections accepted from clients
+     */
+    public final LongAdder accepted = new LongAdder();
+
+    /**
+     * Connections being handled (admitted and not yet finished)
+     */
+    public final LongAdder active = new LongAdder();
+
+    /**
+     * Connections waiting to be handled, because MAX_ACTIVE_REQUESTS was reached
+     */
+    public final LongAdder gateWaiting = new LongAdder();
+
+    /**
+     * Connections that had to wait, because MAX_ACTIVE_REQUESTS was reached
+     */
+    public final LongAdder gateWaits = new LongAdder();
+
+    /**
+     * Connections rejected with 503, because they couldn't be handled in time
+     */
+    public final LongAdder rejected = new LongAdder();
+
+    /**
+     * Requests forwarded (including each request on a kept alive connection)
+     */
+    public final LongAdder requests = new LongAdder();
+    public final LongAdder bytesUp = new LongAdder();
+    public final LongAdder bytesDown = new LongAdder();
+
+    /**
+     * Responses from the upstream proxy with status 407 (proxy authentication required)
+     */
+    public final LongAdder proxyAuthErrors = new LongAdder();
+
+    /**
+     * Requests answered from the response cache, without going to the upstream proxy
+     */
+    public final LongAdder cacheHits = new LongAdder();
+
+    /**
+     * Cacheable requests forwarded to the upstream proxy, as there was no fresh stored response
+     */
+    public final LongAdder cacheMisses = new LongAdder();
+
+    /**
+     * Stale stored responses that the upstream proxy confirmed were still valid (304 Not Modified)
+     */
+    public final LongAdder cacheRevalidated = new LongAdder();
+
+    /**
+     * Requests answered with the response to an identical request that was already being forwarded
+     */
+    public final LongAdder cacheCoalesced = new LongAdder();
+
+    /**
+     * Stored responses removed to make room for others
+     */
+    public final LongAdder cacheEvictions = new LongAdder();
+
+    /**
+     * Total size of the stored responses
+     */
+    public final LongAdder cacheBytes = new LongAdder();
+
+    /**
+     * Times a relay waited before sending, to stay within RATE_LIMIT, CLIENT_RATE_LIMIT or HOST_RATE_LIMIT
+     */
+    public final LongAdder throttled = new LongAdder();
+
+    /**
+     * Connections closed because a deadline passed (HEADER_TIMEOUT, FIRST_BYTE_TIMEOUT, TUNNEL_IDLE_TIMEOUT or
+     * MAX_CONNECTION_AGE)
+     */
+    public final LongAdder timedOut = new LongAdder();
+
+    /**
+     * Writes to sockets while relaying requests and responses (see {@link proxyauth.CoalescingOutputStream}).
+     * Divided by requests, this is the number of writes (and at least as many TCP segments) each request takes.
+     */
+    public final LongAdder relayWrites = new LongAdder();
+
+    /**
+     * Times relayed bytes were held to be sent with more, instead of being flushed straight away
+     */
+    public final LongAdder coalesced = new LongAdder();
+
+    /**
+     * Time to open a new connection to the upstream proxy (not counting reused connections)
+     */
+    public final Histogram connectTime = new Histogram();
+
+    /**
+     * Time from sending the request to the upstream proxy until the response headers were received
+     */
+    public final Histogram firstByteTime = new Histogram();
+
+    /**
+     * Time from receiving the request headers until the response was complete
+     */
+    public final Histogram requestTime = new Histogram();
+
+    /**
+     * Errors, by exception class
+     */
+    private final ConcurrentHashMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+    public void error(Throwable e) {
+        final String type = e.getClass().getSimpleName();
+        LongAdder count = errors.get(type);
+        if (count == null) count = errors.computeIfAbsent(type, t -> new LongAdder());
+        count.increment();
+    }
+
+    /**
+     * @return number of errors of the given exception class (simple name)
+     */
+    public long errorCount(String type) {
+        final LongAdder count = errors.get(type);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * @return all the metrics, in Prometheus text format
+     */
+    public String toPrometheus() {
+        final StringBuilder sb = new StringBuilder(16384);
+        counter(sb, "proxyauth_connections_accepted_total", "Connections accepted from clients", accepted);
+        gauge(sb, "proxyauth_connections_active", "Connections being handled", active);
+        gauge(sb, "proxyauth_connections_waiting", "Connections waiting to be handled, due to MAX_ACTIVE_REQUESTS", gateWaiting);
+        counter(sb, "proxyauth_connection_limit_reached_total", "Connections that had to wait, due to MAX_ACTIVE_REQUESTS", gateWaits);
+        counter(sb, "proxyauth_connections_rejected_total", "Connections rejected with 503 (Service Unavailable), as they could not be handled in time", rejected);
+        counter(sb, "proxyauth_requests_total", "Requests forwarded to the upstream proxy", requests);
+        counter(sb, "proxyauth_bytes_up_total", "Bytes sent from clients to the upstream proxy, after headers", bytesUp);
+        counter(sb, "proxyauth_bytes_down_total", "Bytes sent from the upstream proxy to clients, after headers", bytesDown);
+        counter(sb, "proxyauth_proxy_auth_errors_total", "Responses with status 407 (proxy authentication required)", proxyAuthErrors);
+        counter(sb, "proxyauth_cache_hits_total", "Requests answered from the response cache", cacheHits);
+        counter(sb, "proxyauth_cache_misses_total", "Cacheable requests forwarded, as there was no fresh stored response", cacheMisses);
+        counter(sb, "proxyauth_cache_revalidated_total", "Stale stored responses revalidated by the upstream proxy", cacheRevalidated);
+        counter(sb, "proxyauth_cache_coalesced_total", "Requests answered with the response to an identical request already being forwarded", cacheCoalesced);
+        counter(sb, "proxyauth_cache_evictions_total", "Stored responses evicted to make room for others", cacheEvictions);
+        gauge(sb, "proxyauth_cache_bytes", "Total size of the stored responses", cacheBytes);
+        counter(sb, "proxyauth_throttled_total", "Times relaying waited, to stay within the rate limits", throttled);
+        counter(sb, "proxyauth_timed_out_total", "Connections closed because a deadline passed", timedOut);
+        counter(sb, "proxyauth_relay_writes_total", "Writes to sockets while relaying requests and responses", relayWrites);
+        counter(sb, "proxyauth_relay_coalesced_total", "Times relayed bytes were held to be sent with more, instead of flushed", coalesced);
+        connectTime.appendTo(sb, "proxyauth_upstream_connect_seconds", "Time to connect to the upstream proxy");
+        firstByteTime.appendTo(sb, "proxyauth_upstream_first_byte_seconds", "Time from sending a request until the response headers are received");
+        requestTime.appendTo(sb, "proxyauth_request_seconds", "Time from receiving request headers until the response is complete");
+
+        sb.append("# HELP proxyauth_errors_total Errors, by exception type\n");
+        sb.append("# TYPE proxyauth_errors_total counter\n");
+        for (Map.Entry<String, LongAdder> error : new TreeMap<>(errors).entrySet()) {
+            sb.append("proxyauth_errors_total{type=\"").append(error.getKey()).append("\"} ")
+                    .append(error.getValue().sum()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, LongAdder value) {
+        append(sb, name, help, "counter", value);
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, LongAdder value) {
+        append(sb, name, help, "gauge", value);
+    }
+
+    private static void append(StringBuilder sb, String name, String help, String type, LongAdder value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        sb.append(name).append(' ').append(value.sum()).append('\n');
+    }
+}
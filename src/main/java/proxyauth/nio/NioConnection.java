@@ -0,0 +1,464 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.nio;
+
+import proxyauth.Log;
+import proxyauth.actions.ForwardAction;
+import proxyauth.actions.ForwardRequest;
+import proxyauth.actions.MetricsAction;
+import proxyauth.actions.Upstream;
+import proxyauth.conf.Snapshot;
+import proxyauth.http.Framing;
+import proxyauth.http.HeaderParser;
+import proxyauth.timeouts.Deadlines;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static proxyauth.Utils.ascii;
+
+/**
+ * A single client connection handled by a {@link SelectorLoop}, along with its connection to the upstream proxy.
+ * Follows the same steps as {@link ForwardRequest}, but as a state machine driven by selector events instead of
+ * by blocking threads.
+ *
+ * @author Zeckie
+ */
+class NioConnection {
+    private static final AtomicLong COUNTER = new AtomicLong();
+
+    private final String name = "NioConnection-" + COUNTER.incrementAndGet();
+    private final NioEngine engine;
+    /**
+     * Settings for the connection, which it keeps if the configuration is reloaded
+     */
+    private final Snapshot settings;
+    private final Selector selector;
+    private final SocketChannel client;
+    private SocketChannel upstream;
+    /**
+     * The upstream proxy chosen for this connection
+     */
+    private Upstream upstreamProxy;
+    /**
+     * When the connection to the upstream proxy was established (System.nanoTime), for measuring time to first byte
+     */
+    private long upstreamConnected;
+    /**
+     * When connecting to the upstream proxy started (System.nanoTime)
+     */
+    private long upstreamConnecting;
+    /**
+     * When the request headers were received (System.nanoTime)
+     */
+    private long requestReceived;
+    /**
+     * When connecting to the upstream proxy started (System.currentTimeMillis), for CONNECT_TIMEOUT
+     */
+    private long connectStarted;
+    /**
+     * When bytes were last written to the upstream proxy (System.currentTimeMillis), for FIRST_BYTE_TIMEOUT
+     */
+    private long upstreamWritten;
+    /**
+     * Is the request CONNECT, so that once established, TUNNEL_IDLE_TIMEOUT applies
+     */
+    private boolean tunnel = false;
+    private SelectionKey clientKey;
+    private SelectionKey upstreamKey;
+    private boolean connected = false;
+    private boolean closed = false;
+
+    /**
+     * Client to upstream proxy
+     */
+    private final Direction up;
+
+    /**
+     * Upstream proxy to client
+     */
+    private final Direction down;
+
+    private final long started = System.currentTimeMillis();
+    private long lastActivity = started;
+
+    NioConnection(NioEngine engine, Selector selector, SocketChannel client) {
+        this.engine = engine;
+        this.settings = engine.listener.settings();
+        this.selector = selector;
+        this.client = client;
+        this.up = new Direction(true);
+        this.down = new Direction(false);
+    }
+
+    /**
+     * Register the client channel with the selector, and start reading the request headers
+     */
+    void start() {
+        try {
+            Log.debug("Accepted connection from: {} ({})", client.getRemoteAddress(), name);
+            client.configureBlocking(false);
+            settings.clientSocket.apply(client.socket());
+            clientKey = client.register(selector, SelectionKey.OP_READ, this);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Process a selector event for either of this connection's channels
+     */
+    void handle(SelectionKey key) throws IOException {
+        if (closed) return;
+        lastActivity = System.currentTimeMillis();
+        if (key == upstreamKey && key.isConnectable()) {
+            try {
+                connected = upstream.finishConnect();
+            } catch (IOException e) {
+                upstreamProxy.recordFailure();
+                throw e;
+            }
+            if (connected) connected();
+        }
+        if (key.isReadable()) {
+            if (key == clientKey) up.read(); else down.read();
+        }
+        // Always try to write (not just when writable), to avoid waiting for another select
+        if (connected) up.write();
+        down.write();
+
+        if (up.done && down.done) {
+            close(true);
+        } else if (!closed) {
+            updateInterest();
+        }
+    }
+
+    private void updateInterest() {
+        clientKey.interestOps((up.wantsRead() ? SelectionKey.OP_READ : 0) | (down.wantsWrite() ? SelectionKey.OP_WRITE : 0));
+        if (upstreamKey != null) {
+            if (!connected) {
+                upstreamKey.interestOps(SelectionKey.OP_CONNECT);
+            } else {
+                upstreamKey.interestOps((down.wantsRead() ? SelectionKey.OP_READ : 0) | (up.wantsWrite() ? SelectionKey.OP_WRITE : 0));
+            }
+        }
+    }
+
+    /**
+     * Start connecting to upstream proxy, once the request headers have been received
+     */
+    private void connectUpstream() throws IOException {
+        upstreamProxy = engine.action.select(up.headers, Collections.emptyList());
+        upstreamProxy.started();
+        // Resolving could block the selector thread, so only the addresses already resolved are used
+        final InetSocketAddress address = upstreamProxy.getCachedAddress();
+        if (address == null) throw new UnknownHostException("Upstream proxy " + upstreamProxy + " has not been resolved");
+        upstream = SocketChannel.open();
+        upstream.configureBlocking(false);
+        settings.upstreamSocket.apply(upstream.socket());
+        upstreamConnecting = System.nanoTime();
+        connectStarted = System.currentTimeMillis();
+        connected = upstream.connect(address);
+        upstreamKey = upstream.register(selector, connected ? 0 : SelectionKey.OP_CONNECT, this);
+        if (connected) connected();
+    }
+
+    private void connected() {
+        upstreamConnected = System.nanoTime();
+        upstreamWritten = System.currentTimeMillis();
+        engine.metrics.connectTime.record(upstreamConnected - upstreamConnecting);
+        Log.debug("upstream channel = {}", upstream);
+    }
+
+    /**
+     * Send a response from the proxy itself (instead of connecting upstream), then close the connection
+     */
+    private void respond(byte[] response) {
+        up.eof = true;
+        up.done = true;
+        down.headers = Collections.emptyList();
+        down.pendingHeaders = ByteBuffer.wrap(response);
+        down.eof = true;
+    }
+
+    /**
+     * Close connections that have passed the time limit for what they are doing (as {@link Deadlines} does for
+     * the THREADS engine), or have not had any activity within the socket timeout. Called about once a second,
+     * so limits are only that precise.
+     */
+    void checkTimeout(long now) {
+        final Deadlines.Phase phase = expiredPhase(now);
+        if (phase != null) {
+            engine.metrics.timedOut.increment();
+            Log.info("{} timed out ({}) - closing connection", name, phase);
+            close(false);
+            return;
+        }
+        int timeout = settings.socketTimeout;
+        if (timeout > 0 && now - lastActivity > timeout) {
+            fail(new SocketException("Timed out after " + (now - lastActivity) + "ms without activity"));
+        }
+    }
+
+    /**
+     * @return the phase whose time limit has passed, or null if none has
+     */
+    private Deadlines.Phase expiredPhase(long now) {
+        if (passed(settings.maxConnectionAge, started, now)) return Deadlines.Phase.LIFETIME;
+        if (up.headers == null) return passed(settings.headerTimeout, started, now) ? Deadlines.Phase.HEADERS : null;
+        // Answered by the proxy itself
+        if (upstream == null) return null;
+        if (!connected) return passed(settings.connectTimeout, connectStarted, now) ? Deadlines.Phase.CONNECT : null;
+        if (down.headers == null) {
+            return passed(settings.firstByteTimeout, upstreamWritten, now) ? Deadlines.Phase.FIRST_BYTE : null;
+        }
+        return tunnel && passed(settings.tunnelIdleTimeout, lastActivity, now) ? Deadlines.Phase.TUNNEL_IDLE : null;
+    }
+
+    /**
+     * @param limit milliseconds, or 0 for no limit
+     */
+    private static boolean passed(int limit, long since, long now) {
+        return limit > 0 && now - since > limit;
+    }
+
+    void fail(Exception e) {
+        if (closed) return;
+        engine.metrics.error(e);
+        Log.debug("{} {} -> closed. Bytes up={} down={}", name, e, up.bytesTransferred, down.bytesTransferred, e);
+        close(false);
+    }
+
+    void close(boolean succeeded) {
+        if (closed) return;
+        closed = true;
+        closeQuietly(client);
+        if (upstream != null) closeQuietly(upstream);
+        if (upstreamProxy != null) {
+            upstreamProxy.finished();
+            engine.metrics.requests.increment();
+            engine.metrics.requestTime.recordSince(requestReceived);
+        }
+        engine.metrics.bytesUp.add(up.bytesTransferred);
+        engine.metrics.bytesDown.add(down.bytesTransferred);
+        engine.release(up.buf);
+        engine.release(down.buf);
+        if (Log.isEnabled(Log.Level.DEBUG) && up.headers != null)
+            Log.debug("--Finished--\n - request: {}\n - upload: {}\n - download: {}\n - elapsed: {}",
+                    up.headers.get(0), up.bytesTransferred, down.bytesTransferred, System.currentTimeMillis() - started);
+        engine.finished(this, succeeded);
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.warn("Error closing {}", channel, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * Bytes flowing one way through the connection: http headers (which get modified), followed by
+     * everything else, which is copied unchanged.
+     */
+    private final class Direction {
+        final boolean isUp;
+
+        /**
+         * Bytes read from the source, waiting to be written to the destination (in "write" mode, i.e. position is
+         * the number of bytes waiting)
+         */
+        ByteBuffer buf = engine.buffers.lease();
+
+        /**
+         * Modified headers waiting to be written to the destination, before anything in buf
+         */
+        ByteBuffer pendingHeaders;
+
+        /**
+         * http headers received, including the request / response line. Null until all have been received.
+         */
+        List<String> headers;
+
+        /**
+         * Finds the end of the headers, continuing from where the last read stopped
+         */
+        final HeaderParser.Scanner scanner = new HeaderParser.Scanner();
+
+        /**
+         * Offset in buf of the request / status line, after any blank lines before it
+         */
+        int headerStart = 0;
+
+        /**
+         * Bytes of buf already given to the scanner
+         */
+        int scanned = 0;
+
+        boolean eof = false;
+        boolean done = false;
+        long bytesTransferred = 0;
+
+        Direction(boolean isUp) {
+            this.isUp = isUp;
+        }
+
+        SocketChannel source() {
+            return isUp ? client : upstream;
+        }
+
+        SocketChannel destination() {
+            return isUp ? upstream : client;
+        }
+
+        boolean wantsRead() {
+            return !eof && buf.hasRemaining();
+        }
+
+        boolean wantsWrite() {
+            return !done && (pendingHeaders != null || (headers != null && buf.position() > 0));
+        }
+
+        void read() throws IOException {
+            if (!wantsRead()) return;
+            int read = source().read(buf);
+            if (read == -1) {
+                eof = true;
+                if (headers == null)
+                    throw new IOException("End of stream reached before http " + (isUp ? "request" : "response") + " headers read");
+            } else if (headers == null) {
+                processHeaders();
+            } else {
+                bytesTransferred += read;
+            }
+        }
+
+        /**
+         * Once all headers have been received, modify them as ForwardRequest does
+         */
+        private void processHeaders() throws IOException {
+            byte[] array = buf.array();
+            final int limit = buf.position();
+            if (headerStart == scanned) {
+                // Ignore blank lines before the request / status line, as HeaderParser does
+                while (scanned < limit && (array[scanned] == '\r' || array[scanned] == '\n')) scanned++;
+                headerStart = scanned;
+            }
+            final int end = scanned < limit ? scanner.scan(array, scanned, limit) : -1;
+            scanned = limit;
+            if (end == -1) {
+                if (!buf.hasRemaining()) {
+                    final ByteBuffer larger = engine.grow(buf);
+                    if (larger == null)
+                        throw new IOException("Http " + (isUp ? "request" : "response") + " headers larger than MAX_HEADER_SIZE");
+                    buf = larger;
+                }
+                return;
+            }
+
+            headers = HeaderParser.index(Arrays.copyOfRange(array, headerStart, end));
+            Log.debug("--- Headers ---\n{}\n--- End: Headers ---", (Supplier<String>) () -> String.join("\n", headers));
+
+            List<String> modified;
+            if (isUp) {
+                requestReceived = System.nanoTime();
+                tunnel = "CONNECT".equals(Framing.method(headers.get(0)));
+                if (MetricsAction.isMetricsRequest(headers)) {
+                    respond(MetricsAction.response(engine.metrics));
+                    return;
+                }
+                modified = engine.action.processAuthHeaders(headers, settings);
+            } else {
+                modified = headers;
+                final long ttfb = System.nanoTime() - upstreamConnected;
+                upstreamProxy.recordTtfb(ttfb);
+                engine.metrics.firstByteTime.record(ttfb);
+                final String line = headers.get(0);
+                final boolean proxyAuthError = ForwardRequest.PROXY_AUTH_ERROR.matcher(line).matches();
+                if (proxyAuthError) engine.metrics.proxyAuthErrors.increment();
+                if (proxyAuthError && settings.stopOnProxyAuthError) {
+                    Log.error("STOPPING due to proxy auth error: {}", line);
+                    Log.flush(1000);
+                    System.exit(5); //magic number 5 often = access denied
+                }
+            }
+            if (settings.connectionClose) {
+                modified = ForwardAction.processKeepAlive(modified);
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (String header : modified) {
+                out.write(ascii(header + "\r\n"));
+            }
+            out.write(ascii("\r\n"));
+            pendingHeaders = ByteBuffer.wrap(out.toByteArray());
+
+            // Keep anything after the headers (eg. start of body)
+            buf.flip();
+            buf.position(end);
+            buf.compact();
+            bytesTransferred += buf.position();
+
+            if (isUp) connectUpstream();
+        }
+
+        void write() throws IOException {
+            if (done) return;
+            int written = 0;
+            if (pendingHeaders != null) {
+                written += destination().write(pendingHeaders);
+                if (isUp && written > 0) upstreamWritten = System.currentTimeMillis();
+                if (pendingHeaders.hasRemaining()) return;
+                pendingHeaders = null;
+            }
+            if (headers == null) return;
+            if (buf.position() > 0) {
+                buf.flip();
+                written += destination().write(buf);
+                buf.compact();
+            }
+            if (isUp && written > 0) upstreamWritten = System.currentTimeMillis();
+            if (eof && buf.position() == 0) {
+                destination().shutdownOutput();
+                done = true;
+                Log.debug("{}{} Finished. Bytes={}", name, isUp ? "-up" : "-down", bytesTransferred);
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.nio;
+
+import proxyauth.AdmissionController;
+import proxyauth.BufferPool;
+import proxyauth.Log;
+import proxyauth.ProxyListener;
+import proxyauth.actions.ForwardAction;
+import proxyauth.actions.Upstream;
+import proxyauth.conf.Configuration;
+import proxyauth.metrics.Metrics;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Accepts connections and spreads them across a fixed number of {@link SelectorLoop}s,
+ * so that no thread is dedicated to a single connection.
+ *
+ * @author Zeckie
+ */
+public class NioEngine implements Runnable {
+    final ProxyListener listener;
+    final Configuration config;
+    final ForwardAction action;
+    final BufferPool buffers;
+
+    /**
+     * Pools of larger buffers, for http headers that don't fit in one from buffers
+     */
+    private final BufferPool[] bufferTiers;
+    private final int maxHeaderSize;
+    final Metrics metrics;
+    private final ServerSocketChannel incoming;
+    private final SelectorLoop[] loops;
+
+    /**
+     * Limits the number of connections that are being handled at the same time
+     */
+    private final AdmissionController admission;
+
+    /**
+     * Selector loop to give the next connection to
+     */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param listener the listener this engine handles connections for
+     * @param incoming bound channel to accept connections from
+     */
+    public NioEngine(ProxyListener listener, ServerSocketChannel incoming) throws IOException {
+        this.listener = listener;
+        this.config = listener.config;
+        this.buffers = listener.buffers;
+        this.bufferTiers = listener.bufferTiers;
+        this.maxHeaderSize = config.MAX_HEADER_SIZE.getValue();
+        this.metrics = listener.metrics;
+        this.incoming = incoming;
+        this.action = listener.forwardAction;
+        this.admission = listener.admission;
+
+        int count = config.NIO_LOOPS.getValue();
+        if (count == 0) count = Runtime.getRuntime().availableProcessors();
+        loops = new SelectorLoop[count];
+        for (int i = 0; i < count; i++) {
+            loops[i] = new SelectorLoop(this, i + 1);
+        }
+    }
+
+    /**
+     * Accept connections until the listening channel is closed
+     */
+    @Override
+    public void run() {
+        // Connections use the cached addresses, as the selector threads mustn't wait for them to be resolved
+        for (Upstream upstream : action.getUpstreams()) {
+            try {
+                upstream.getAddress();
+            } catch (UnknownHostException e) {
+                Log.warn("Unable to resolve {}: {}", upstream, e);
+            }
+        }
+        for (SelectorLoop loop : loops) loop.start();
+        try {
+            //noinspection InfiniteLoopStatement (stops when channel is closed)
+            while (true) {
+                final SocketChannel sock = incoming.accept();
+                metrics.accepted.increment();
+                admission.submit(
+                        () -> loops[Math.floorMod(next.getAndIncrement(), loops.length)].register(sock),
+                        () -> admission.sendOverloaded(sock.socket()));
+            }
+        } catch (ClosedChannelException e) {
+            Log.info("Stopped listening {}", incoming);
+        } catch (IOException e) {
+            Log.error("Stopped listening", e);
+        } finally {
+            for (SelectorLoop loop : loops) loop.shutdown();
+        }
+    }
+
+    /**
+     * Move the contents of a full buffer to a larger one (from the next pool that has larger buffers), so that http
+     * headers can be up to MAX_HEADER_SIZE, as with the THREADS engine
+     *
+     * @param buf the full buffer, which is released
+     * @return the larger buffer, ready for more to be read into it, or null if buf is already MAX_HEADER_SIZE
+     */
+    ByteBuffer grow(ByteBuffer buf) {
+        if (buf.capacity() >= maxHeaderSize) return null;
+        ByteBuffer larger = null;
+        for (BufferPool pool : bufferTiers) {
+            if (pool.getBufferSize() > buf.capacity() && pool.getBufferSize() <= maxHeaderSize) {
+                larger = pool.lease();
+                break;
+            }
+        }
+        if (larger == null) larger = ByteBuffer.allocate(maxHeaderSize);
+        buf.flip();
+        larger.put(buf);
+        release(buf);
+        return larger;
+    }
+
+    /**
+     * Return a buffer to the pool it was leased from (if any)
+     */
+    void release(ByteBuffer buf) {
+        for (BufferPool pool : bufferTiers) {
+            if (pool.getBufferSize() == buf.capacity()) {
+                pool.release(buf);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Called by the selector loops when a connection has been closed
+     */
+    void finished(NioConnection connection, boolean succeeded) {
+        admission.finished();
+        Log.debug("Finished {} success={} active requests={}", connection, succeeded, admission.getActive());
+    }
+}
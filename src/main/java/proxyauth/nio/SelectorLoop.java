@@ -0,0 +1,137 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.nio;
+
+import proxyauth.Log;
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A thread that services many connections, using a single selector
+ *
+ * @author Zeckie
+ */
+class SelectorLoop extends Thread {
+    /**
+     * How often (in milliseconds) connections are checked for timeouts
+     */
+    private static final long TIMEOUT_CHECK_INTERVAL = 1000;
+
+    private final NioEngine engine;
+    private final Selector selector;
+
+    /**
+     * Accepted connections waiting to be registered with the selector
+     */
+    private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    SelectorLoop(NioEngine engine, int number) throws IOException {
+        super("SelectorLoop-" + number);
+        this.engine = engine;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Hand a newly accepted connection to this loop. Can be called from any thread.
+     */
+    void register(SocketChannel channel) {
+        pending.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Stop the loop, closing all connections it is handling
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long nextTimeoutCheck = System.currentTimeMillis() + TIMEOUT_CHECK_INTERVAL;
+        try {
+            while (running) {
+                selector.select(TIMEOUT_CHECK_INTERVAL);
+
+                SocketChannel channel;
+                while ((channel = pending.poll()) != null) {
+                    new NioConnection(engine, selector, channel).start();
+                }
+
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        connection.handle(key);
+                    } catch (IOException | CancelledKeyException e) {
+                        connection.fail(e);
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now >= nextTimeoutCheck) {
+                    nextTimeoutCheck = now + TIMEOUT_CHECK_INTERVAL;
+                    for (NioConnection connection : connections()) {
+                        connection.checkTimeout(now);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.error("{} stopped", this, e);
+        } finally {
+            for (NioConnection connection : connections()) {
+                connection.close(false);
+            }
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                new NioConnection(engine, selector, channel).close(false);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Log.warn("Error closing selector", e);
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the (distinct) connections registered with the selector
+     */
+    private Iterable<NioConnection> connections() {
+        Set<NioConnection> connections = new LinkedHashSet<>();
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() != null) connections.add((NioConnection) key.attachment());
+        }
+        return connections;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.routing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CIDR ranges, stored as a binary radix tree of their prefix bits (separately for IPv4 and IPv6), so that looking up
+ * an address takes at most 32 (or 128) steps however many ranges there are, and finds every range containing it.
+ *
+ * @author Zeckie
+ */
+final class AddressTrie<T> {
+    private static final class Node<T> {
+        @SuppressWarnings("unchecked")
+        final Node<T>[] children = (Node<T>[]) new Node<?>[2];
+        final List<T> values = new ArrayList<>(1);
+    }
+
+    private final Node<T> ipv4 = new Node<>();
+    private final Node<T> ipv6 = new Node<>();
+
+    /**
+     * @param address    address (4 or 16 bytes)
+     * @param prefixBits number of leading bits of the address in the range
+     */
+    void add(byte[] address, int prefixBits, T value) {
+        Node<T> node = root(address);
+        for (int i = 0; i < prefixBits; i++) {
+            final int bit = bit(address, i);
+            if (node.children[bit] == null) node.children[bit] = new Node<>();
+            node = node.children[bit];
+        }
+        node.values.add(value);
+    }
+
+    /**
+     * @param result values of the ranges containing the address are added to this, widest range first
+     */
+    void find(byte[] address, List<List<T>> result) {
+        Node<T> node = root(address);
+        final int bits = address.length * 8;
+        for (int i = 0; node != null; i++) {
+            if (!node.values.isEmpty()) result.add(node.values);
+            if (i == bits) break;
+            node = node.children[bit(address, i)];
+        }
+    }
+
+    private Node<T> root(byte[] address) {
+        return address.length == 4 ? ipv4 : ipv6;
+    }
+
+    private static int bit(byte[] address, int index) {
+        return (address[index >> 3] >> (7 - (index & 7))) & 1;
+    }
+}
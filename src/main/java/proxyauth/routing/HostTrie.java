@@ -0,0 +1,86 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.routing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Host name patterns, stored as a trie of their labels in reverse order (eg. www.example.com as com, example, www),
+ * so that looking up a host costs the same however many patterns there are, and finds every pattern it matches
+ * in one pass: "www.example.com" matches "*.com", "*.example.com" and "www.example.com".
+ *
+ * @author Zeckie
+ */
+final class HostTrie<T> {
+    private static final class Node<T> {
+        final Map<String, Node<T>> children = new HashMap<>();
+
+        /**
+         * Values for exactly this host
+         */
+        final List<T> exact = new ArrayList<>(1);
+
+        /**
+         * Values for subdomains of this host (*.host)
+         */
+        final List<T> subdomains = new ArrayList<>(1);
+    }
+
+    private final Node<T> root = new Node<>();
+
+    /**
+     * @param pattern host name, or *. followed by a domain for any of its subdomains
+     */
+    void add(String pattern, T value) {
+        final boolean wildcard = pattern.startsWith("*.");
+        final String[] labels = labels(wildcard ? pattern.substring(2) : pattern);
+        Node<T> node = root;
+        for (int i = labels.length - 1; i >= 0; i--) {
+            node = node.children.computeIfAbsent(labels[i], k -> new Node<>());
+        }
+        (wildcard ? node.subdomains : node.exact).add(value);
+    }
+
+    /**
+     * @param host   host name
+     * @param result values of the patterns the host matches are added to this, least specific first
+     */
+    void find(String host, List<List<T>> result) {
+        final String[] labels = labels(host);
+        Node<T> node = root;
+        for (int i = labels.length - 1; i >= 0; i--) {
+            node = node.children.get(labels[i]);
+            if (node == null) return;
+            if (i > 0 && !node.subdomains.isEmpty()) result.add(node.subdomains);
+        }
+        if (!node.exact.isEmpty()) result.add(node.exact);
+    }
+
+    private static String[] labels(String host) {
+        host = host.toLowerCase(Locale.ROOT);
+        if (host.endsWith(".")) host = host.substring(0, host.length() - 1);
+        return host.split("\\.");
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.routing;
+
+import proxyauth.Utils;
+import proxyauth.actions.Action;
+import proxyauth.actions.ForwardAction;
+import proxyauth.conf.RouteType;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Chooses the action for a request, from rules matching its method and target (host and port). Rules are compiled
+ * into a {@link HostTrie} of host name patterns and an {@link AddressTrie} of address ranges, so choosing costs
+ * about the same with thousands of rules as with a few. The first matching rule (in the order given) is used.
+ * <p>
+ * Each rule is <code>[METHOD ]HOST[:PORT]=ACTION[ ARGUMENT]</code>, where HOST is a host name, *.domain (any
+ * subdomain of domain), an IP address or CIDR range (eg. 10.0.0.0/8, or [fd00::/8] for IPv6), or * (any host).
+ * Address ranges only match requests that have an IP address as their target, as host names are not resolved.
+ *
+ * @author Zeckie
+ */
+public final class Router {
+    private static final Pattern IPV4 = Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}");
+    private static final Pattern IPV6 = Pattern.compile("[0-9A-Fa-f:.]*:[0-9A-Fa-f:.]*");
+    private static final Pattern HOST = Pattern.compile("(\\*\\.)?[A-Za-z0-9_-]+(\\.[A-Za-z0-9_-]+)*\\.?");
+    private static final Pattern METHOD = Pattern.compile("[A-Z]+");
+
+    /**
+     * A single rule, parsed from the configuration
+     */
+    public static final class Rule {
+        /**
+         * Position in the configuration - the first matching rule is used
+         */
+        final int index;
+        final String text;
+
+        /**
+         * Method to match, or null for any
+         */
+        final String method;
+
+        /**
+         * Port to match, or -1 for any
+         */
+        final int port;
+
+        /**
+         * Host name pattern to match, or null for an address range or any host
+         */
+        final String host;
+        final byte[] address;
+        final int prefixBits;
+
+        public final RouteType type;
+
+        /**
+         * Argument for the action (eg. upstream proxy host:port for FORWARD), or null
+         */
+        public final String argument;
+
+        private Rule(int index, String text, String method, int port, String host, byte[] address, int prefixBits,
+                     RouteType type, String argument) {
+            this.index = index;
+            this.text = text;
+            this.method = method;
+            this.port = port;
+            this.host = host;
+            this.address = address;
+            this.prefixBits = prefixBits;
+            this.type = type;
+            this.argument = argument;
+        }
+
+        boolean matches(String method, int port) {
+            return (this.method == null || this.method.equals(method)) && (this.port == -1 || this.port == port);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    private final HostTrie<Rule> hosts = new HostTrie<>();
+    private final AddressTrie<Rule> addresses = new AddressTrie<>();
+    private final List<Rule> anyHost = new ArrayList<>();
+    private final Action[] actions;
+
+    /**
+     * @param rules     rules, from {@link #parse(String)}
+     * @param actionFor creates the action for each rule
+     */
+    public Router(List<Rule> rules, Function<Rule, Action> actionFor) {
+        actions = new Action[rules.size()];
+        for (Rule rule : rules) {
+            actions[rule.index] = actionFor.apply(rule);
+            if (rule.host != null) {
+                hosts.add(rule.host, rule);
+            } else if (rule.address != null) {
+                addresses.add(rule.address, rule.prefixBits, rule);
+            } else {
+                anyHost.add(rule);
+            }
+        }
+    }
+
+    /**
+     * @return true if there are no rules, so every request gets the default action
+     */
+    public boolean isEmpty() {
+        return actions.length == 0;
+    }
+
+    /**
+     * @param requestHeaders headers of a request from a client
+     * @return the action of the first rule the request matches, or null if none
+     */
+    public Action select(List<String> requestHeaders) {
+        if (isEmpty()) return null;
+        final Rule rule = match(requestHeaders);
+        return rule == null ? null : actions[rule.index];
+    }
+
+    /**
+     * @return the first rule matching the request (either an absolute-URI request, or CONNECT host:port), or null
+     */
+    Rule match(List<String> requestHeaders) {
+        final String requestLine = requestHeaders.get(0);
+        final int space = requestLine.indexOf(' ');
+        final String method = space == -1 ? requestLine : requestLine.substring(0, space);
+        final InetSocketAddress target = ForwardAction.targetEndpoint(requestHeaders);
+        if (target == null) return null;
+        return match(method, target.getHostString(), target.getPort());
+    }
+
+    /**
+     * @return the first rule matching the method, host and port, or null
+     */
+    Rule match(String method, String host, int port) {
+        final List<List<Rule>> candidates = new ArrayList<>();
+        if (!anyHost.isEmpty()) candidates.add(anyHost);
+        final byte[] address = literalAddress(host);
+        if (address != null) {
+            addresses.find(address, candidates);
+        } else if (!host.isEmpty()) {
+            hosts.find(host, candidates);
+        }
+
+        // Each list is in order, so only the first match in each can be the first overall
+        Rule first = null;
+        for (List<Rule> rules : candidates) {
+            for (Rule rule : rules) {
+                if (first != null && rule.index > first.index) break;
+                if (rule.matches(method, port)) {
+                    first = rule;
+                    break;
+                }
+            }
+        }
+        return first;
+    }
+
+    /**
+     * @param rules rules separated by ';'
+     * @return the rules, in order
+     * @throws IllegalArgumentException if a rule is not valid
+     */
+    public static List<Rule> parse(String rules) {
+        if (rules == null || rules.trim().isEmpty()) return Collections.emptyList();
+        final List<Rule> result = new ArrayList<>();
+        for (String text : rules.split(";")) {
+            text = text.trim();
+            if (text.isEmpty()) continue;
+            try {
+                result.add(parseRule(result.size(), text));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid route '" + text + "': " + e.getMessage());
+            }
+        }
+        return result;
+    }
+
+    private static Rule parseRule(int index, String text) {
+        final int equals = text.indexOf('=');
+        if (equals == -1) throw new IllegalArgumentException("expected [METHOD ]HOST[:PORT]=ACTION");
+
+        // Match
+        final String[] match = text.substring(0, equals).trim().split("\\s+");
+        if (match.length > 2 || match[0].isEmpty()) throw new IllegalArgumentException("expected [METHOD ]HOST[:PORT]");
+        final String method = match.length == 2 ? match[0] : null;
+        if (method != null && !METHOD.matcher(method).matches()) throw new IllegalArgumentException("invalid method " + method);
+        String target = match[match.length - 1];
+        int port = -1;
+        final int close = target.startsWith("[") ? target.indexOf(']') : -1;
+        final int colon = target.lastIndexOf(':');
+        if (target.startsWith("[") && close == -1) throw new IllegalArgumentException("missing ]");
+        if (close != -1 ? colon > close : colon != -1 && target.indexOf(':') == colon) {
+            try {
+                port = Integer.parseInt(target.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid port " + target.substring(colon + 1));
+            }
+            if (port < 1 || port > 65535) throw new IllegalArgumentException("invalid port " + port);
+            target = target.substring(0, colon);
+        }
+        if (close != -1) {
+            if (!target.endsWith("]")) throw new IllegalArgumentException("unexpected characters after ]");
+            target = target.substring(1, target.length() - 1);
+        }
+
+        String host = null;
+        byte[] address = null;
+        int prefixBits = 0;
+        final int slash = target.indexOf('/');
+        if (slash != -1 || IPV4.matcher(target).matches() || literalAddress(target) != null) {
+            address = literalAddress(slash == -1 ? target : target.substring(0, slash));
+            if (address == null) throw new IllegalArgumentException("invalid address " + target);
+            prefixBits = address.length * 8;
+            if (slash != -1) {
+                try {
+                    prefixBits = Integer.parseInt(target.substring(slash + 1));
+                } catch (NumberFormatException e) {
+                    prefixBits = -1;
+                }
+                if (prefixBits < 0 || prefixBits > address.length * 8) {
+                    throw new IllegalArgumentException("invalid prefix length in " + target);
+                }
+            }
+        } else if (!"*".equals(target)) {
+            if (!HOST.matcher(target).matches()) throw new IllegalArgumentException("invalid host " + target);
+            host = target;
+        }
+
+        // Action
+        final String[] action = text.substring(equals + 1).trim().split("\\s+");
+        final RouteType type;
+        try {
+            type = RouteType.valueOf(action[0].toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("action should be one of " + Arrays.toString(RouteType.values()));
+        }
+        String argument = action.length > 1 ? action[1] : null;
+        if (action.length > 2 || (argument != null && type != RouteType.FORWARD)) {
+            throw new IllegalArgumentException("unexpected argument for " + type);
+        }
+        if (argument != null && Utils.parseHostPorts(argument).size() != 1) {
+            throw new IllegalArgumentException("expected upstream proxy as host:port");
+        }
+        return new Rule(index, text, method, port, host, address, prefixBits, type, argument);
+    }
+
+    /**
+     * @return the address, if host is an IP address (without looking up names), otherwise null
+     */
+    private static byte[] literalAddress(String host) {
+        if (IPV4.matcher(host).matches()) {
+            final String[] parts = host.split("\\.");
+            final byte[] address = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                final int octet = Integer.parseInt(parts[i]);
+                if (octet > 255) return null;
+                address[i] = (byte) octet;
+            }
+            return address;
+        }
+        if (!IPV6.matcher(host).matches()) return null;
+        try {
+            // Only parsed (not looked up), as it contains a colon
+            return InetAddress.getByName(host).getAddress();
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.shaping;
+
+import proxyauth.metrics.Metrics;
+
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Limits the rate bytes are relayed at: overall, for each client (by IP address) and for each destination host.
+ * Uploads and downloads are limited separately. A limit of 0 means no limit.
+ *
+ * @author Zeckie
+ */
+public class Shaper {
+    /**
+     * Number of clients (or hosts) to keep buckets for, before forgetting idle ones
+     */
+    static final int MAX_BUCKETS = 10000;
+
+    private final int clientRate;
+    private final int hostRate;
+    private final int burst;
+    private final Metrics metrics;
+
+    /**
+     * Overall limit, for uploads and downloads, or null if there isn't one
+     */
+    private final TokenBucket[] global;
+    private final ConcurrentHashMap<InetAddress, TokenBucket[]> clients = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, TokenBucket[]> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * @param globalRate bytes per second for all connections together (in each direction)
+     * @param clientRate bytes per second for each client IP address
+     * @param hostRate   bytes per second for each destination host
+     * @param burst      bytes that can be sent without waiting, after being idle
+     * @param metrics    where to count transfers that had to wait
+     */
+    public Shaper(int globalRate, int clientRate, int hostRate, int burst, Metrics metrics) {
+        this.clientRate = clientRate;
+        this.hostRate = hostRate;
+        this.burst = burst;
+        this.metrics = metrics;
+        this.global = globalRate > 0 ? buckets(globalRate) : null;
+    }
+
+    private TokenBucket[] buckets(int rate) {
+        return new TokenBucket[]{new TokenBucket(rate, burst), new TokenBucket(rate, burst)};
+    }
+
+    /**
+     * @return true if there are any limits
+     */
+    public boolean isEnabled() {
+        return global != null || clientRate > 0 || hostRate > 0;
+    }
+
+    /**
+     * @param client address of the client
+     * @param host   destination host, or null if not known
+     * @param up     is this for uploading (client to server)
+     * @return the limits for one direction of a connection, or null if there are none
+     */
+    public Throttle throttle(InetAddress client, String host, boolean up) {
+        if (!isEnabled()) return null;
+        final int direction = up ? 0 : 1;
+        final TokenBucket[] buckets = new TokenBucket[3];
+        int count = 0;
+        if (clientRate > 0 && client != null) buckets[count++] = bucketsFor(clients, client, clientRate)[direction];
+        if (hostRate > 0 && host != null) {
+            buckets[count++] = bucketsFor(hosts, host.toLowerCase(Locale.ROOT), hostRate)[direction];
+        }
+        if (global != null) buckets[count++] = global[direction];
+        if (count == 0) return null;
+        final TokenBucket[] used = new TokenBucket[count];
+        System.arraycopy(buckets, 0, used, 0, count);
+        return new Throttle(used, metrics);
+    }
+
+    private <K> TokenBucket[] bucketsFor(ConcurrentHashMap<K, TokenBucket[]> map, K key, int rate) {
+        TokenBucket[] buckets = map.get(key);
+        if (buckets == null) {
+            if (map.size() >= MAX_BUCKETS) forgetIdle(map);
+            buckets = map.computeIfAbsent(key, k -> buckets(rate));
+        }
+        return buckets;
+    }
+
+    /**
+     * Remove buckets that are full, as a new bucket would be the same
+     */
+    private static void forgetIdle(Map<?, TokenBucket[]> map) {
+        final long now = System.nanoTime();
+        map.values().removeIf(buckets -> buckets[0].isIdle(now) && buckets[1].isIdle(now));
+    }
+
+    /**
+     * @return number of clients and hosts with buckets
+     */
+    int size() {
+        return clients.size() + hosts.size();
+    }
+
+    /**
+     * The limits that apply to one direction of a connection
+     */
+    public static final class Throttle {
+        private final TokenBucket[] buckets;
+        private final Metrics metrics;
+
+        Throttle(TokenBucket[] buckets, Metrics metrics) {
+            this.buckets = buckets;
+            this.metrics = metrics;
+        }
+
+        /**
+         * Reserve bytes from every bucket (without waiting)
+         *
+         * @return time (System.nanoTime) when the bytes may be sent
+         */
+        public long reserve(int bytes) {
+            final long now = System.nanoTime();
+            long allowed = now;
+            for (TokenBucket bucket : buckets) {
+                final long time = bucket.reserve(bytes, now);
+                if (time - allowed > 0) allowed = time;
+            }
+            if (allowed != now && metrics != null) metrics.throttled.increment();
+            return allowed;
+        }
+
+        /**
+         * Wait until bytes may be sent
+         *
+         * @throws InterruptedIOException if interrupted while waiting
+         */
+        public void acquire(int bytes) throws InterruptedIOException {
+            final long allowed = reserve(bytes);
+            long remaining;
+            while ((remaining = allowed - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted()) throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+}
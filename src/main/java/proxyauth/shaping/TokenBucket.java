@@ -0,0 +1,91 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.shaping;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate bytes are sent at, allowing a burst after being idle. Lock-free: the state is a single time (the
+ * "theoretical arrival time" of the generic cell rate algorithm) that each reservation moves forward with one CAS,
+ * so refilling costs nothing.
+ * <p>
+ * Reservations always succeed, and return when the bytes may be sent. As callers reserve a buffer at a time, and
+ * reservations are served in the order they are made, a small request waits for at most one buffer from each
+ * transfer in progress, rather than for them to finish.
+ *
+ * @author Zeckie
+ */
+public final class TokenBucket {
+    static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final long rate;
+
+    /**
+     * How far ahead of the current time reservations can be before callers have to wait (nanoseconds)
+     */
+    private final long tolerance;
+
+    /**
+     * Time (System.nanoTime) when all reserved bytes will have been sent at the rate
+     */
+    private final AtomicLong reservedUntil;
+
+    /**
+     * @param rate  bytes per second
+     * @param burst bytes that can be sent without waiting, after being idle
+     */
+    public TokenBucket(long rate, long burst) {
+        if (rate <= 0) throw new IllegalArgumentException("Rate must be positive: " + rate);
+        this.rate = rate;
+        this.tolerance = burst * NANOS_PER_SECOND / rate;
+        this.reservedUntil = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * @param bytes number of bytes to send
+     * @param now   current time (System.nanoTime)
+     * @return time (System.nanoTime) when the bytes may be sent, which is now if there is no need to wait
+     */
+    public long reserve(int bytes, long now) {
+        final long cost = bytes * NANOS_PER_SECOND / rate;
+        while (true) {
+            final long current = reservedUntil.get();
+            // Unused time in the past isn't saved up, beyond the tolerance
+            final long next = (current - now < 0 ? now : current) + cost;
+            if (reservedUntil.compareAndSet(current, next)) {
+                final long allowed = next - tolerance;
+                return allowed - now > 0 ? allowed : now;
+            }
+        }
+    }
+
+    /**
+     * @return true if nothing has been reserved beyond the given time, so the bucket is full
+     */
+    public boolean isIdle(long now) {
+        return reservedUntil.get() - now <= 0;
+    }
+
+    @Override
+    public String toString() {
+        return "TokenBucket{rate=" + rate + "}";
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.timeouts;
+
+import proxyauth.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Deadlines for a client connection: one for the phase it is in (eg. reading request headers), and one for its
+ * whole lifetime. The nearer of them is kept scheduled on a shared {@link TimingWheel}, and when it passes, the
+ * client socket and the upstream socket (if any) are closed, so the threads blocked on them fail, instead of
+ * waiting for SOCKET_TIMEOUT on each read.
+ *
+ * @author Zeckie
+ */
+public final class Deadlines implements Closeable {
+
+    /**
+     * Phases of handling a connection that have a time limit
+     */
+    public enum Phase {
+        HEADERS("reading request headers"),
+        CONNECT("connecting upstream"),
+        FIRST_BYTE("waiting for the response"),
+        TUNNEL_IDLE("tunnel idle"),
+        LIFETIME("connection lifetime exceeded");
+
+        private final String description;
+
+        Phase(String description) {
+            this.description = description;
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+
+    private final TimingWheel wheel;
+    private final String name;
+    private final Socket client;
+    private final LongAdder expiredCounter;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /* Guarded by lock */
+    private final long lifetimeDeadline;
+    private Socket upstream;
+    private Phase phase;
+    private long phaseDeadline = Long.MAX_VALUE;
+    private long idleNanos;
+    private LongSupplier activity;
+    private long lastActivity;
+    private TimingWheel.Timeout timeout;
+
+    /**
+     * Incremented each time the timeout is replaced, so that one already running for an earlier deadline does nothing
+     */
+    private long generation = 0;
+    private boolean closed = false;
+    private volatile Phase expired;
+
+    /**
+     * @param wheel          schedules the deadlines
+     * @param name           connection name, for logging
+     * @param client         socket from the client
+     * @param lifetimeMillis longest time the connection can be open, or 0 for no limit
+     * @param expiredCounter (optional) counter to add each connection closed by a deadline to
+     */
+    public Deadlines(TimingWheel wheel, String name, Socket client, int lifetimeMillis, LongAdder expiredCounter) {
+        this.wheel = wheel;
+        this.name = name;
+        this.client = client;
+        this.expiredCounter = expiredCounter;
+        this.lifetimeDeadline = lifetimeMillis > 0 ? System.nanoTime() + lifetimeMillis * 1_000_000L : Long.MAX_VALUE;
+        lock.lock();
+        try {
+            schedule();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Start a phase, replacing the previous one
+     *
+     * @param phase  the phase
+     * @param millis time limit for the phase, or 0 for none
+     */
+    public void start(Phase phase, int millis) {
+        lock.lock();
+        try {
+            this.phase = phase;
+            this.activity = null;
+            phaseDeadline = millis > 0 ? System.nanoTime() + millis * 1_000_000L : Long.MAX_VALUE;
+            schedule();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Start a phase that only ends once there has been no activity for the time limit. Activity is only checked
+     * when the limit passes (instead of each time there is some), and if there has been any, the limit starts again.
+     *
+     * @param phase    the phase
+     * @param millis   time limit without activity, or 0 for none
+     * @param activity a count that changes when there is activity (eg. bytes transferred)
+     */
+    public void startIdle(Phase phase, int millis, LongSupplier activity) {
+        lock.lock();
+        try {
+            this.phase = phase;
+            this.activity = millis > 0 ? activity : null;
+            idleNanos = millis * 1_000_000L;
+            lastActivity = activity.getAsLong();
+            phaseDeadline = millis > 0 ? System.nanoTime() + idleNanos : Long.MAX_VALUE;
+            schedule();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * End the current phase, leaving only the lifetime deadline
+     */
+    public void end() {
+        lock.lock();
+        try {
+            phase = null;
+            activity = null;
+            phaseDeadline = Long.MAX_VALUE;
+            schedule();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param upstream socket to the upstream proxy (or origin server) to close as well, if a deadline passes
+     */
+    public void setUpstream(Socket upstream) {
+        lock.lock();
+        try {
+            this.upstream = upstream;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the phase that ran out of time, or null if none has
+     */
+    public Phase getExpired() {
+        return expired;
+    }
+
+    /**
+     * Replace the timeout with one for the nearest deadline. Called with lock held.
+     */
+    private void schedule() {
+        if (timeout != null) timeout.cancel();
+        timeout = null;
+        final long gen = ++generation;
+        final long deadline = Math.min(phaseDeadline, lifetimeDeadline);
+        if (closed || deadline == Long.MAX_VALUE) return;
+        timeout = wheel.schedule(deadline, () -> expire(gen));
+    }
+
+    private void expire(long gen) {
+        final Phase phase;
+        final Socket upstream;
+        lock.lock();
+        try {
+            if (gen != generation || closed) return;
+            final long now = System.nanoTime();
+            if (activity != null && lifetimeDeadline - now > 0) {
+                final long current = activity.getAsLong();
+                if (current != lastActivity) {
+                    lastActivity = current;
+                    phaseDeadline = now + idleNanos;
+                    schedule();
+                    return;
+                }
+            }
+            phase = lifetimeDeadline - now <= 0 ? Phase.LIFETIME : this.phase;
+            upstream = this.upstream;
+            expired = phase;
+            closed = true;
+            timeout = null;
+        } finally {
+            lock.unlock();
+        }
+        Log.info("{} timed out ({}) - closing connection", name, phase);
+        if (expiredCounter != null) expiredCounter.increment();
+        // Upstream first, so that once the client sees the connection close, everything has been closed
+        if (upstream != null) closeQuietly(upstream);
+        closeQuietly(client);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.warn("Error closing {}", socket, e);
+        }
+    }
+
+    /**
+     * Finished with the connection, so cancel the deadlines
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            if (timeout != null) timeout.cancel();
+            timeout = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
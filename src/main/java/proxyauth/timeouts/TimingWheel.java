@@ -0,0 +1,196 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.timeouts;
+
+import proxyauth.Log;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs tasks at (approximately) their deadlines, using a hashed timing wheel: a ring of slots, each holding a linked
+ * list of the timeouts due in ticks that map to it. Scheduling and cancelling are O(1), and a single thread
+ * advances one slot per tick, so there can be a timeout for every connection without a thread (or a heap
+ * operation) for each. Deadlines are rounded up to the next tick, and timeouts further away than one turn of
+ * the wheel stay in their slot until the turn they are due.
+ * <p>
+ * Tasks run on the wheel's thread, so should be quick (eg. closing sockets).
+ *
+ * @author Zeckie
+ */
+public final class TimingWheel implements Closeable {
+    private final long tickNanos;
+    private final Timeout[] slots;
+    private final int mask;
+    private final long startTime = System.nanoTime();
+
+    /**
+     * Next tick to be processed. Guarded by lock.
+     */
+    private long tick = 0;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    /**
+     * @param name       name of the thread
+     * @param tickMillis time between ticks (the precision of deadlines)
+     * @param slots      number of slots, rounded up to a power of 2
+     */
+    public TimingWheel(String name, long tickMillis, int slots) {
+        if (tickMillis < 1) throw new IllegalArgumentException("tickMillis must be at least 1");
+        if (slots < 1 || slots > 1 << 20) throw new IllegalArgumentException("slots must be between 1 and 2^20");
+        this.tickNanos = tickMillis * 1_000_000L;
+        int size = 1;
+        while (size < slots) size <<= 1;
+        this.slots = new Timeout[size];
+        this.mask = size - 1;
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Run a task at a deadline
+     *
+     * @param deadline when to run it (System.nanoTime). If already passed, it runs at the next tick.
+     * @param task     what to run
+     * @return the timeout, which can be cancelled
+     */
+    public Timeout schedule(long deadline, Runnable task) {
+        final Timeout timeout = new Timeout(task);
+        final long due = deadline - startTime <= 0 ? 0 : (deadline - startTime + tickNanos - 1) / tickNanos;
+        lock.lock();
+        try {
+            timeout.tick = Math.max(due, tick);
+            timeout.slot = (int) (timeout.tick & mask);
+            timeout.next = slots[timeout.slot];
+            if (timeout.next != null) timeout.next.prev = timeout;
+            slots[timeout.slot] = timeout;
+            timeout.scheduled = true;
+        } finally {
+            lock.unlock();
+        }
+        return timeout;
+    }
+
+    private void run() {
+        final List<Timeout> expired = new ArrayList<>();
+        while (!closed) {
+            final long wait;
+            lock.lock();
+            try {
+                wait = startTime + tick * tickNanos - System.nanoTime();
+                if (wait <= 0) {
+                    final long current = tick++;
+                    for (Timeout timeout = slots[(int) (current & mask)]; timeout != null; timeout = timeout.next) {
+                        // Later turns of the wheel stay where they are
+                        if (timeout.tick <= current) expired.add(timeout);
+                    }
+                    for (Timeout timeout : expired) timeout.unlink();
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            for (Timeout timeout : expired) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    Log.warn("{} task failed", thread.getName(), e);
+                }
+            }
+            expired.clear();
+        }
+    }
+
+    /**
+     * @return number of timeouts waiting (for testing)
+     */
+    int size() {
+        lock.lock();
+        try {
+            int size = 0;
+            for (Timeout head : slots) {
+                for (Timeout timeout = head; timeout != null; timeout = timeout.next) size++;
+            }
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop the thread. Timeouts waiting are not run.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * A task scheduled to run at a deadline. Guarded by the wheel's lock.
+     */
+    public final class Timeout {
+        private final Runnable task;
+        private long tick;
+        private int slot;
+        private Timeout prev;
+        private Timeout next;
+        private boolean scheduled;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        private void unlink() {
+            if (prev != null) prev.next = next;
+            else slots[slot] = next;
+            if (next != null) next.prev = prev;
+            prev = null;
+            next = null;
+            scheduled = false;
+        }
+
+        /**
+         * Stop the task from running, if it hasn't already started
+         *
+         * @return true if cancelled, false if it has already run (or is running), or was already cancelled
+         */
+        public boolean cancel() {
+            lock.lock();
+            try {
+                if (!scheduled) return false;
+                unlink();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
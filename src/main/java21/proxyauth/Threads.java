@@ -0,0 +1,92 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Starts and keeps track of the threads used to handle requests, optionally using virtual threads.
+ * <p>
+ * Note: this is the implementation for Java 21 or later, included in the multi-release jar. The
+ * implementation for earlier versions is in src/main/java. Any changes should be made to both.
+ *
+ * @author Zeckie
+ */
+public class Threads {
+    private final Set<Thread> live = ConcurrentHashMap.newKeySet();
+    private final boolean virtual;
+
+    /**
+     * @param virtual use virtual threads
+     */
+    public Threads(boolean virtual) {
+        this.virtual = virtual;
+    }
+
+    /**
+     * @return true if this uses virtual threads
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Start a new thread, which is tracked until it finishes
+     *
+     * @param name name of the thread
+     * @param task what the thread should do
+     * @return the started thread
+     */
+    public Thread start(String name, Runnable task) {
+        // Builders are not thread safe, so create a new one each time
+        Thread.Builder builder = virtual ? Thread.ofVirtual() : Thread.ofPlatform();
+        Thread thread = builder.name(name).unstarted(() -> {
+            try {
+                task.run();
+            } finally {
+                live.remove(Thread.currentThread());
+            }
+        });
+        live.add(thread);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * @return number of threads started by this that have not yet finished
+     */
+    public int activeCount() {
+        return live.size();
+    }
+
+    /**
+     * @return description of the threads that have not yet finished, one per line
+     */
+    public String list() {
+        StringBuilder sb = new StringBuilder().append(this).append(" active=").append(live.size())
+                .append(virtual ? " (virtual)" : "");
+        for (Thread thread : live) {
+            sb.append(System.lineSeparator()).append("    ").append(thread);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author Zeckie
+ */
+public class TestAdaptiveBuffer {
+
+    @Test
+    public void testGrowAndShrink() {
+        final BufferPool[] pools = BufferPool.tiers(1024, 16384, 4, false);
+        final AdaptiveBuffer buffer = new AdaptiveBuffer(pools);
+        Assertions.assertEquals(1024, buffer.get().capacity());
+
+        // Reads that fill it
+        for (int i = 0; i < AdaptiveBuffer.GROW_AFTER; i++) buffer.recordRead(1024, true);
+        Assertions.assertTrue(buffer.resize());
+        Assertions.assertEquals(4096, buffer.get().capacity());
+        for (int i = 0; i < AdaptiveBuffer.GROW_AFTER; i++) buffer.recordRead(4096, true);
+        buffer.resize();
+        Assertions.assertEquals(16384, buffer.get().capacity());
+        // Already the largest
+        for (int i = 0; i < AdaptiveBuffer.GROW_AFTER; i++) buffer.recordRead(16384, true);
+        Assertions.assertFalse(buffer.resize());
+
+        // Small reads
+        for (int i = 0; i < AdaptiveBuffer.SHRINK_AFTER - 1; i++) buffer.recordRead(100, false);
+        Assertions.assertFalse(buffer.resize());
+        buffer.recordRead(100, false);
+        Assertions.assertTrue(buffer.resize());
+        Assertions.assertEquals(4096, buffer.get().capacity());
+        // Buffers that are no longer used go back to their pool
+        Assertions.assertEquals(1, pools[2].getFreeCount());
+
+        buffer.release();
+        Assertions.assertEquals(1, pools[1].getFreeCount());
+    }
+
+    @Test
+    public void testOnlyResizedWhenEmpty() {
+        final AdaptiveBuffer buffer = new AdaptiveBuffer(BufferPool.tiers(1024, 4096, 4, true));
+        final ByteBuffer first = buffer.get();
+        first.put(new byte[10]);
+        buffer.recordRead(1024, true);
+        buffer.recordRead(1024, true);
+        Assertions.assertFalse(buffer.resize());
+        Assertions.assertSame(first, buffer.get());
+        first.clear();
+        Assertions.assertTrue(buffer.resize());
+        Assertions.assertTrue(buffer.get().isDirect());
+        Assertions.assertTrue(buffer.isGrown());
+    }
+
+    @Test
+    public void testIdle() {
+        final AdaptiveBuffer buffer = new AdaptiveBuffer(BufferPool.tiers(1024, 65536, 4, false));
+        for (int i = 0; i < 2 * AdaptiveBuffer.GROW_AFTER; i++) {
+            buffer.recordRead(buffer.get().capacity(), true);
+            buffer.resize();
+        }
+        Assertions.assertEquals(16384, buffer.get().capacity());
+        buffer.idle(System.nanoTime());
+        Assertions.assertFalse(buffer.resize());
+        buffer.idle(System.nanoTime() + AdaptiveBuffer.IDLE_NANOS);
+        Assertions.assertTrue(buffer.resize());
+        Assertions.assertEquals(1024, buffer.get().capacity());
+        Assertions.assertFalse(buffer.isGrown());
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import proxyauth.metrics.Metrics;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Zeckie
+ */
+public class TestAdmissionController {
+
+    @Test
+    public void testQueue() {
+        Metrics metrics = new Metrics();
+        AtomicInteger admitted = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        try (AdmissionController admission = new AdmissionController(2, 1, 60000, metrics)) {
+            for (int i = 0; i < 4; i++) {
+                admission.submit(admitted::incrementAndGet, rejected::incrementAndGet);
+            }
+            // 2 admitted, 1 queued, 1 rejected as the queue is full
+            Assertions.assertEquals(2, admitted.get());
+            Assertions.assertEquals(1, rejected.get());
+            Assertions.assertEquals(2, admission.getActive());
+            Assertions.assertEquals(1, admission.getQueued());
+            Assertions.assertEquals(1, metrics.gateWaiting.sum());
+            Assertions.assertEquals(1, metrics.rejected.sum());
+
+            admission.finished();
+            Assertions.assertEquals(3, admitted.get());
+            Assertions.assertEquals(2, admission.getActive());
+            Assertions.assertEquals(0, admission.getQueued());
+            Assertions.assertEquals(0, metrics.gateWaiting.sum());
+            Assertions.assertEquals(2, metrics.active.sum());
+
+            admission.finished();
+            admission.finished();
+            Assertions.assertEquals(0, admission.getActive());
+            admission.submit(admitted::incrementAndGet, rejected::incrementAndGet);
+            Assertions.assertEquals(4, admitted.get());
+        }
+    }
+
+    @Test
+    public void testTimeout() throws InterruptedException {
+        Metrics metrics = new Metrics();
+        CountDownLatch rejected = new CountDownLatch(1);
+        AtomicInteger admitted = new AtomicInteger();
+        try (AdmissionController admission = new AdmissionController(1, 10, 50, metrics)) {
+            admission.submit(admitted::incrementAndGet, () -> Assertions.fail("should be admitted"));
+            admission.submit(admitted::incrementAndGet, rejected::countDown);
+            Assertions.assertTrue(rejected.await(5, TimeUnit.SECONDS), "waiter should be rejected after timeout");
+            Assertions.assertEquals(0, admission.getQueued());
+
+            // Finishing afterwards must not admit the expired waiter
+            admission.finished();
+            Assertions.assertEquals(1, admitted.get());
+            Assertions.assertEquals(0, admission.getActive());
+            Assertions.assertEquals(1, metrics.rejected.sum());
+        }
+    }
+
+    @Test
+    public void testClose() {
+        AtomicInteger rejected = new AtomicInteger();
+        AdmissionController admission = new AdmissionController(1, 10, 60000, new Metrics());
+        admission.submit(() -> { }, rejected::incrementAndGet);
+        admission.submit(() -> { }, rejected::incrementAndGet);
+        admission.submit(() -> { }, rejected::incrementAndGet);
+        admission.close();
+        Assertions.assertEquals(2, rejected.get());
+        Assertions.assertEquals(0, admission.getQueued());
+    }
+
+    @Test
+    public void testAdmitFails() {
+        try (AdmissionController admission = new AdmissionController(1, 10, 60000, new Metrics())) {
+            admission.submit(() -> {
+                throw new IllegalStateException("test");
+            }, () -> Assertions.fail("should be admitted"));
+            Assertions.assertEquals(0, admission.getActive());
+        }
+    }
+
+    @Test
+    public void testSendOverloaded() throws Exception {
+        try (AdmissionController admission = new AdmissionController(1, 1, 1000, new Metrics());
+             ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort())) {
+            // Returns straight away; the response is sent by another thread
+            admission.sendOverloaded(server.accept());
+            client.setSoTimeout(5000);
+            final InputStream is = client.getInputStream();
+            final byte[] buf = new byte[1024];
+            int len = 0;
+            int read;
+            while ((read = is.read(buf, len, buf.length - len)) > 0) len += read;
+            Assertions.assertTrue(new String(buf, 0, len, StandardCharsets.US_ASCII)
+                    .startsWith("HTTP/1.1 503 Service Unavailable\r\n"));
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author Zeckie
+ */
+public class TestBufferPool {
+
+    @Test
+    public void testReuse() {
+        BufferPool pool = new BufferPool(100, 1, false);
+        ByteBuffer first = pool.lease();
+        Assertions.assertEquals(100, first.capacity());
+        first.put((byte) 1);
+        pool.release(first);
+        Assertions.assertEquals(1, pool.getFreeCount());
+
+        ByteBuffer second = pool.lease();
+        Assertions.assertSame(first, second);
+        Assertions.assertEquals(0, second.position());
+        Assertions.assertEquals(0, pool.getFreeCount());
+    }
+
+    @Test
+    public void testBounded() {
+        BufferPool pool = new BufferPool(100, 1, false);
+        ByteBuffer first = pool.lease();
+        ByteBuffer second = pool.lease();
+        Assertions.assertNotSame(first, second);
+        pool.release(first);
+        pool.release(second);
+        Assertions.assertEquals(1, pool.getFreeCount());
+
+        // Buffers of the wrong size are not pooled
+        pool.release(ByteBuffer.allocate(50));
+        Assertions.assertEquals(1, pool.getFreeCount());
+    }
+
+    @Test
+    public void testTiers() {
+        BufferPool[] tiers = BufferPool.tiers(1024, 65536, 64, false);
+        Assertions.assertEquals(4, tiers.length);
+        Assertions.assertEquals(1024, tiers[0].getBufferSize());
+        Assertions.assertEquals(4096, tiers[1].getBufferSize());
+        Assertions.assertEquals(65536, tiers[3].getBufferSize());
+
+        // The largest is limited to max
+        tiers = BufferPool.tiers(1024, 20000, 64, false);
+        Assertions.assertEquals(20000, tiers[tiers.length - 1].getBufferSize());
+
+        Assertions.assertEquals(1, BufferPool.tiers(1024, 1024, 64, false).length);
+    }
+}
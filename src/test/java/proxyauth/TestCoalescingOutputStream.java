@@ -0,0 +1,168 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Zeckie
+ */
+public class TestCoalescingOutputStream {
+
+    @Test
+    public void testCoalesce() throws Exception {
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        final LongAdder total = new LongAdder();
+        final CoalescingOutputStream out = new CoalescingOutputStream(sink, null, 100, total);
+        out.write(new byte[40], 0, 40);
+        out.write('x');
+        out.write(new byte[59], 0, 59);
+        Assertions.assertEquals(100, out.buffered());
+        Assertions.assertEquals(0, sink.size());
+
+        // Doesn't fit, so the buffer is written first
+        out.write(new byte[10], 0, 10);
+        Assertions.assertEquals(100, sink.size());
+        Assertions.assertEquals(10, out.buffered());
+
+        // Larger than the buffer - written straight through after the buffered bytes
+        out.write(new byte[500], 0, 500);
+        Assertions.assertEquals(610, sink.size());
+        Assertions.assertEquals(0, out.buffered());
+        Assertions.assertEquals(3, out.getWrites());
+
+        out.write(new byte[5], 0, 5);
+        out.flush();
+        Assertions.assertEquals(615, sink.size());
+        Assertions.assertEquals(4, out.getWrites());
+        Assertions.assertEquals(4, total.sum());
+
+        // Nothing to write
+        out.flush();
+        Assertions.assertEquals(4, out.getWrites());
+    }
+
+    @Test
+    public void testGathering() throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            try (SocketChannel client = SocketChannel.open(server.getLocalAddress());
+                 SocketChannel accepted = server.accept()) {
+                final Socket socket = accepted.socket();
+                final CoalescingOutputStream out = new CoalescingOutputStream(socket, 64, null);
+                final byte[] headers = "HTTP/1.1 200 OK\r\n\r\n".getBytes(Utils.ASCII);
+                final byte[] body = new byte[1000];
+                Arrays.fill(body, (byte) 'b');
+
+                // Headers and the start of the body in one write
+                out.write(headers, 0, headers.length);
+                out.write(body, 0, body.length);
+                Assertions.assertEquals(1, out.getWrites());
+                Assertions.assertEquals(0, out.buffered());
+                out.flush();
+                Assertions.assertEquals(1, out.getWrites());
+
+                final byte[] received = new byte[headers.length + body.length];
+                new DataInputStream(client.socket().getInputStream()).readFully(received);
+                Assertions.assertArrayEquals(headers, Arrays.copyOf(received, headers.length));
+                Assertions.assertArrayEquals(body, Arrays.copyOfRange(received, headers.length, received.length));
+            }
+        }
+    }
+
+    @Test
+    public void testFlushPolicy() throws Exception {
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        final CoalescingOutputStream out = new CoalescingOutputStream(sink, null, 100, null);
+        final LongAdder total = new LongAdder();
+
+        // Nothing buffered, so nothing to do
+        final FlushPolicy policy = new FlushPolicy(out, 0, total);
+        policy.beforeRead(unavailable(), out);
+        Assertions.assertEquals(0, out.getWrites());
+
+        // More input waiting, so it is sent with that
+        out.write(new byte[10], 0, 10);
+        policy.beforeRead(new ByteArrayInputStream(new byte[1]), out);
+        Assertions.assertEquals(10, out.buffered());
+        Assertions.assertEquals(1, policy.getCoalesced());
+        Assertions.assertEquals(1, total.sum());
+
+        // No more waiting
+        policy.beforeRead(new ByteArrayInputStream(new byte[0]), out);
+        Assertions.assertEquals(0, out.buffered());
+        Assertions.assertEquals(10, sink.size());
+    }
+
+    @Test
+    public void testFlushDelay() throws Exception {
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        final CoalescingOutputStream out = new CoalescingOutputStream(sink, null, 100, null);
+        final FlushPolicy policy = new FlushPolicy(out, 20000, null);
+
+        // Waits for input that doesn't arrive, then flushes
+        out.write(new byte[10], 0, 10);
+        final long start = System.nanoTime();
+        policy.beforeRead(unavailable(), out);
+        Assertions.assertTrue(System.nanoTime() - start >= 20_000_000);
+        Assertions.assertEquals(10, sink.size());
+
+        // Input arrives while waiting
+        out.write(new byte[10], 0, 10);
+        final long arrives = System.nanoTime() + 500_000;
+        policy.beforeRead(new InputStream() {
+            @Override
+            public int read() {
+                return -1;
+            }
+
+            @Override
+            public int available() {
+                return System.nanoTime() - arrives >= 0 ? 1 : 0;
+            }
+        }, out);
+        Assertions.assertEquals(10, out.buffered());
+        Assertions.assertEquals(1, policy.getCoalesced());
+
+        // Held long enough, so flushed even though more input is waiting
+        Thread.sleep(25);
+        policy.beforeRead(new ByteArrayInputStream(new byte[1]), out);
+        Assertions.assertEquals(0, out.buffered());
+        Assertions.assertEquals(20, sink.size());
+    }
+
+    private static InputStream unavailable() {
+        return new ByteArrayInputStream(new byte[0]);
+    }
+}
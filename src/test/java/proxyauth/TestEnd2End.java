@@ -23,18 +23,26 @@ package proxyauth;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.Timeout;
+import proxyauth.conf.Balance;
 import proxyauth.conf.Configuration;
+import proxyauth.conf.Engine;
+import proxyauth.conf.ProxyAuthScheme;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Tests multiple components, through use of mock proxy server
@@ -44,42 +52,103 @@ public class TestEnd2End {
 
     public static final Charset ASCII = StandardCharsets.US_ASCII;
 
-    public void doE2ETest(boolean close, final String request, final String expectedRequest, final String response, final String expectedResponse) throws IOException, InterruptedException {
-        /* Use mostly default configuration, override values important to test */
-        Configuration dummy = new Configuration();
-        dummy.UPSTREAM_PROXY_HOST.setValue("127.0.1.1");
-        dummy.LISTEN_ADDRESS.setValue("127.0.1.2");
-        dummy.LISTEN_PORT.setValue(0); // Ephemeral port
-        dummy.USERNAME.setValue("foo");
-        dummy.PASSWORD.setValue("bar");
-        dummy.CONNECTION_CLOSE.setValue(close);
-
-        List<Closeable> toClose = new ArrayList<>();
-        try {
-            // Start mock proxy listening
-            ServerSocket serverSocket = new ServerSocket(
-                    0, 1,
-                    InetAddress.getByName(dummy.UPSTREAM_PROXY_HOST.getValue())
-            );
-            dummy.UPSTREAM_PROXY_PORT.setValue(serverSocket.getLocalPort());
-            toClose.add(serverSocket);
+    /**
+     * ProxyAuth, with mostly default configuration, in front of a mock upstream proxy. Closing it closes what the
+     * test added, then the listener and the mock proxy.
+     */
+    static final class Fixture implements Closeable {
+        final Configuration config = new Configuration();
+        /**
+         * Mock upstream proxy, which UPSTREAM_PROXY_PORT is set to (unless changed by the customiser)
+         */
+        final ServerSocket upstream;
+        final ProxyListener listener;
+        private final List<Closeable> toClose = new ArrayList<>();
+
+        /**
+         * Start ProxyAuth, and wait until it is listening
+         *
+         * @param customise changes the configuration, after the defaults for tests have been set
+         */
+        Fixture(Consumer<Configuration> customise) throws IOException, InterruptedException {
+            config.UPSTREAM_PROXY_HOST.setValue("127.0.1.1");
+            config.LISTEN_ADDRESS.setValue("127.0.1.2");
+            config.LISTEN_PORT.setValue(0); // Ephemeral port
+            config.USERNAME.setValue("foo");
+            config.PASSWORD.setValue("bar");
+            upstream = new ServerSocket(0, 1, InetAddress.getByName(config.UPSTREAM_PROXY_HOST.getValue()));
+            ProxyListener started = null;
+            try {
+                config.UPSTREAM_PROXY_PORT.setValue(upstream.getLocalPort());
+                customise.accept(config);
+                started = new ProxyListener(config);
+                new Thread(started).start();
+                while (started.getLocalPort() == null) Thread.sleep(100);
+            } catch (InterruptedException | RuntimeException e) {
+                if (started != null) started.close();
+                upstream.close();
+                throw e;
+            }
+            listener = started;
+        }
+
+        /**
+         * Close when the test finishes
+         */
+        <T extends Closeable> T add(T closeable) {
+            toClose.add(closeable);
+            return closeable;
+        }
 
+        /**
+         * @return new connection from a client to ProxyAuth
+         */
+        Socket connect() throws IOException {
+            return new Socket(config.LISTEN_ADDRESS.getValue(), listener.getLocalPort());
+        }
 
-            // Start ProxyListener
-            ProxyListener listener = new ProxyListener(dummy);
-            toClose.add(listener);
-            Thread proxyThread = new Thread(listener);
-            proxyThread.start();
+        /**
+         * Send a request through ProxyAuth, and (if upstreamResponse isn't null) respond from the mock proxy
+         *
+         * @return the request received by the mock proxy, followed by the response received by the client
+         */
+        String[] exchange(String request, String upstreamResponse) throws IOException {
+            try (Socket clientSocket = connect()) {
+                clientSocket.getOutputStream().write(request.getBytes(ASCII));
+                String upstreamRequest = null;
+                if (upstreamResponse != null) {
+                    try (Socket accepted = upstream.accept()) {
+                        upstreamRequest = readHeaders(accepted.getInputStream());
+                        accepted.getOutputStream().write(upstreamResponse.getBytes(ASCII));
+                    }
+                }
+                return new String[]{upstreamRequest, new String(clientSocket.getInputStream().readAllBytes(), ASCII)};
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Closeable c : toClose) {
+                c.close();
+            }
+            listener.close();
+            upstream.close();
+        }
+    }
 
-            while (listener.getLocalPort() == null) Thread.sleep(100);
+    public void doE2ETest(boolean close, final String request, final String expectedRequest, final String response, final String expectedResponse) throws IOException, InterruptedException {
+        doE2ETest(Engine.THREADS, close, request, expectedRequest, response, expectedResponse);
+    }
 
+    public void doE2ETest(Engine engine, boolean close, final String request, final String expectedRequest, final String response, final String expectedResponse) throws IOException, InterruptedException {
+        /* Use mostly default configuration, override values important to test */
+        try (Fixture proxy = new Fixture(config -> {
+            config.ENGINE.setValue(engine);
+            config.CONNECTION_CLOSE.setValue(close);
+        })) {
             // Connect to ProxyListener
-            Socket clientSocket = new Socket(
-                    dummy.LISTEN_ADDRESS.getValue(), listener.getLocalPort()
-            );
-            toClose.add(clientSocket);
+            Socket clientSocket = proxy.add(proxy.connect());
             final OutputStream clientOutputStream = clientSocket.getOutputStream();
-            toClose.add(clientOutputStream);
 
             // Sent request to ProxyListener
             // TODO: multiple threads to handle blocking, timeouts etc
@@ -88,8 +157,7 @@ public class TestEnd2End {
             clientSocket.shutdownOutput();
 
             // Accept connection using mock proxy
-            final Socket acceptedSocket = serverSocket.accept();
-            toClose.add(acceptedSocket);
+            final Socket acceptedSocket = proxy.add(proxy.upstream.accept());
             String received = new String(acceptedSocket.getInputStream().readAllBytes(), ASCII);
             Assertions.assertEquals(expectedRequest, received);
 
@@ -102,12 +170,6 @@ public class TestEnd2End {
             // Verify response
             received = new String(clientSocket.getInputStream().readAllBytes(), ASCII);
             Assertions.assertEquals(expectedResponse, received);
-            
-        } finally {
-            System.err.println("Cleanup");
-            for (Closeable c : toClose) {
-                c.close();
-            }
         }
     }
 
@@ -140,4 +202,701 @@ public class TestEnd2End {
         );
     }
 
+    @Timeout(10000L)
+    @Test
+    public void withCloseNio() throws IOException, InterruptedException {
+        doE2ETest(
+                Engine.NIO,
+                true,
+                "FOO http://bar/ HTTP/1.1\r\nBaz: 1\r\n\r\nbody",
+                "FOO http://bar/ HTTP/1.1\r\n" +
+                        "Baz: 1\r\n" +
+                        "Proxy-Authorization: Basic Zm9vOmJhcg==\r\n" +
+                        "Connection: Close\r\n\r\nbody",
+                "HTTP/1.1 123 Foo\r\nBar\r\n\r\nresponse",
+                "HTTP/1.1 123 Foo\r\nBar\r\nConnection: Close\r\n\r\nresponse"
+        );
+    }
+
+    @Timeout(10000L)
+    @Test
+    public void withoutCloseNio() throws IOException, InterruptedException {
+        doE2ETest(
+                Engine.NIO,
+                false,
+                "FOO http://bar/ HTTP/1.1\r\nBaz: 1\r\n\r\n",
+                "FOO http://bar/ HTTP/1.1\r\n" +
+                        "Baz: 1\r\n" +
+                        "Proxy-Authorization: Basic Zm9vOmJhcg==\r\n\r\n",
+                "HTTP/1.1 123 Foo\r\nBar\r\n\r\n",
+                "HTTP/1.1 123 Foo\r\nBar\r\n\r\n"
+        );
+    }
+
+    /**
+     * Headers larger than BUF_SIZE (up to MAX_HEADER_SIZE) are accepted by the NIO engine too
+     */
+    @Timeout(10000L)
+    @Test
+    public void largeHeadersNio() throws IOException, InterruptedException {
+        final char[] value = new char[5000];
+        Arrays.fill(value, 'x');
+        final String cookie = "Cookie: " + new String(value) + "\r\n";
+        doE2ETest(
+                Engine.NIO,
+                false,
+                "FOO http://bar/ HTTP/1.1\r\n" + cookie + "\r\n",
+                "FOO http://bar/ HTTP/1.1\r\n" + cookie +
+                        "Proxy-Authorization: Basic Zm9vOmJhcg==\r\n\r\n",
+                "HTTP/1.1 123 Foo\r\n" + cookie + "\r\n",
+                "HTTP/1.1 123 Foo\r\n" + cookie + "\r\n"
+        );
+    }
+
+    /**
+     * Lines ending with just LF are accepted by the NIO engine too, as by HeaderParser
+     */
+    @Timeout(10000L)
+    @Test
+    public void bareLineFeedsNio() throws IOException, InterruptedException {
+        doE2ETest(
+                Engine.NIO,
+                false,
+                "\r\nFOO http://bar/ HTTP/1.1\nBaz: 1\n\n",
+                "FOO http://bar/ HTTP/1.1\r\n" +
+                        "Baz: 1\r\n" +
+                        "Proxy-Authorization: Basic Zm9vOmJhcg==\r\n\r\n",
+                "HTTP/1.1 123 Foo\nBar\n\n",
+                "HTTP/1.1 123 Foo\r\nBar\r\n\r\n"
+        );
+    }
+
+    /**
+     * Read http headers (up to and including the blank line)
+     */
+    static String readHeaders(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (!sb.toString().endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b == -1) throw new IOException("End of stream reached before headers read: " + sb);
+            sb.append((char) b);
+        }
+        return sb.toString();
+    }
+
+    static String readBytes(InputStream in, int count) throws IOException {
+        byte[] buf = new byte[count];
+        int read = in.readNBytes(buf, 0, count);
+        return new String(buf, 0, read, ASCII);
+    }
+
+    /**
+     * Establish a tunnel through ProxyAuth and the mock proxy, then send data in both directions, closing
+     * each direction separately.
+     */
+    public void doConnectTest(Engine engine) throws IOException, InterruptedException {
+        try (Fixture proxy = new Fixture(config -> {
+            config.ENGINE.setValue(engine);
+            config.CONNECTION_CLOSE.setValue(false);
+        })) {
+            Socket clientSocket = proxy.add(proxy.connect());
+            OutputStream clientOut = clientSocket.getOutputStream();
+            InputStream clientIn = clientSocket.getInputStream();
+            clientOut.write("CONNECT bar:443 HTTP/1.1\r\n\r\n".getBytes(ASCII));
+            clientOut.flush();
+
+            final Socket acceptedSocket = proxy.add(proxy.upstream.accept());
+            OutputStream upstreamOut = acceptedSocket.getOutputStream();
+            InputStream upstreamIn = acceptedSocket.getInputStream();
+            Assertions.assertEquals(
+                    "CONNECT bar:443 HTTP/1.1\r\nProxy-Authorization: Basic Zm9vOmJhcg==\r\n\r\n",
+                    readHeaders(upstreamIn)
+            );
+            upstreamOut.write("HTTP/1.1 200 Connection established\r\n\r\n".getBytes(ASCII));
+            upstreamOut.flush();
+            Assertions.assertEquals("HTTP/1.1 200 Connection established\r\n\r\n", readHeaders(clientIn));
+
+            // Tunnel established - send in both directions
+            clientOut.write("hello".getBytes(ASCII));
+            clientOut.flush();
+            Assertions.assertEquals("hello", readBytes(upstreamIn, 5));
+            upstreamOut.write("world".getBytes(ASCII));
+            upstreamOut.flush();
+            Assertions.assertEquals("world", readBytes(clientIn, 5));
+
+            // Client finishes sending first, but can still receive
+            clientSocket.shutdownOutput();
+            Assertions.assertEquals(-1, upstreamIn.read());
+            upstreamOut.write("bye".getBytes(ASCII));
+            upstreamOut.flush();
+            acceptedSocket.shutdownOutput();
+            Assertions.assertEquals("bye", new String(clientIn.readAllBytes(), ASCII));
+        }
+    }
+
+    @Timeout(10000L)
+    @Test
+    public void connectTunnel() throws IOException, InterruptedException {
+        doConnectTest(Engine.THREADS);
+    }
+
+    @Timeout(10000L)
+    @Test
+    public void connectTunnelNio() throws IOException, InterruptedException {
+        doConnectTest(Engine.NIO);
+    }
+
+    @Timeout(10000L)
+    @Test
+    public void upstreamKeepAlive() throws IOException, InterruptedException {
+        doUpstreamKeepAliveTest(Engine.THREADS);
+    }
+
+    /**
+     * The NIO engine doesn't pool upstream connections, so THREADS is used instead of ignoring UPSTREAM_KEEP_ALIVE
+     */
+    @Timeout(10000L)
+    @Test
+    public void upstreamKeepAliveNio() throws IOException, InterruptedException {
+        doUpstreamKeepAliveTest(Engine.NIO);
+    }
+
+    public void doUpstreamKeepAliveTest(Engine engine) throws IOException, InterruptedException {
+        try (Fixture proxy = new Fixture(config -> {
+            config.ENGINE.setValue(engine);
+            config.UPSTREAM_KEEP_ALIVE.setValue(true);
+        })) {
+            final String expected = "HTTP/1.1 200 OK\r\nContent-Length: 5\r\nConnection: Close\r\n\r\nhello";
+            Socket upstream = null;
+            for (int i = 0; i < 2; i++) {
+                // Both requests should use the same upstream connection
+                try (Socket clientSocket = proxy.connect()) {
+                    clientSocket.getOutputStream().write("GET http://bar/ HTTP/1.1\r\nConnection: keep-alive\r\n\r\n".getBytes(ASCII));
+                    if (upstream == null) {
+                        upstream = proxy.add(proxy.upstream.accept());
+                    }
+                    Assertions.assertEquals(
+                            "GET http://bar/ HTTP/1.1\r\nProxy-Authorization: Basic Zm9vOmJhcg==\r\n\r\n",
+                            readHeaders(upstream.getInputStream())
+                    );
+                    upstream.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello".getBytes(ASCII));
+                    Assertions.assertEquals(expected, new String(clientSocket.getInputStream().readAllBytes(), ASCII));
+                }
+            }
+
+            // Once the upstream proxy closes the idle connection, a new one is used. Whether the pool notices the
+            // close first, or the request fails on the old connection and is retried, it must reach the new one.
+            final ProxyListener listener = proxy.listener;
+            while (listener.upstreamPool.idleCount(listener.upstreams.get(0).getEndpoint()) == 0)
+                Thread.sleep(10);
+            upstream.close();
+            try (Socket clientSocket = proxy.connect()) {
+                clientSocket.getOutputStream().write("GET http://bar/ HTTP/1.1\r\n\r\n".getBytes(ASCII));
+                upstream = proxy.add(proxy.upstream.accept());
+                readHeaders(upstream.getInputStream());
+                upstream.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello".getBytes(ASCII));
+                Assertions.assertEquals(expected, new String(clientSocket.getInputStream().readAllBytes(), ASCII));
+            }
+        }
+    }
+
+    /**
+     * Requests matching a route are handled by its action, instead of being forwarded
+     */
+    @Timeout(10000L)
+    @Test
+    public void routes() throws IOException, InterruptedException {
+        doRoutesTest(Engine.THREADS);
+    }
+
+    /**
+     * The NIO engine doesn't support ROUTES, so THREADS is used instead of ignoring them
+     */
+    @Timeout(10000L)
+    @Test
+    public void routesNio() throws IOException, InterruptedException {
+        doRoutesTest(Engine.NIO);
+    }
+
+    public void doRoutesTest(Engine engine) throws IOException, InterruptedException {
+        try (Fixture proxy = new Fixture(config -> {
+            config.ENGINE.setValue(engine);
+            config.ROUTES.setValue("*.intranet=ECHO; CONNECT *:25=CLOSE");
+        })) {
+            try (Socket clientSocket = proxy.connect()) {
+                clientSocket.getOutputStream().write("GET http://wiki.intranet/ HTTP/1.1\r\n\r\n".getBytes(ASCII));
+                final String response = new String(clientSocket.getInputStream().readAllBytes(), ASCII);
+                Assertions.assertTrue(response.startsWith("HTTP/1.1 200 Echoing your request\r\n"), response);
+            }
+            try (Socket clientSocket = proxy.connect()) {
+                clientSocket.getOutputStream().write("CONNECT mail.example.com:25 HTTP/1.1\r\n\r\n".getBytes(ASCII));
+                Assertions.assertEquals(-1, clientSocket.getInputStream().read());
+            }
+        }
+    }
+
+    /**
+     * A client that doesn't finish sending the request headers within HEADER_TIMEOUT is disconnected, instead of
+     * holding a thread until SOCKET_TIMEOUT
+     */
+    @Timeout(10000L)
+    @Test
+    public void headerTimeout() throws IOException, InterruptedException {
+        doHeaderTimeoutTest(Engine.THREADS);
+    }
+
+    /**
+     * The NIO engine enforces HEADER_TIMEOUT too (checked about once a second)
+     */
+    @Timeout(10000L)
+    @Test
+    public void headerTimeoutNio() throws IOException, InterruptedException {
+        doHeaderTimeoutTest(Engine.NIO);
+    }
+
+    public void doHeaderTimeoutTest(Engine engine) throws IOException, InterruptedException {
+        try (Fixture proxy = new Fixture(config -> {
+            config.ENGINE.setValue(engine);
+            config.HEADER_TIMEOUT.setValue(300);
+        })) {
+            try (Socket clientSocket = proxy.connect()) {
+                final long start = System.nanoTime();
+                final OutputStream out = clientSocket.getOutputStream();
+                out.write("GET http://example.com/ HTTP/1.1\r\n".getBytes(ASCII));
+                out.flush();
+                Thread.sleep(100);
+                out.write("Host: exa".getBytes(ASCII));
+                out.flush();
+                Assertions.assertEquals(-1, clientSocket.getInputStream().read());
+                Assertions.assertTrue(System.nanoTime() - start >= 300_000_000L);
+            }
+            while (proxy.listener.metrics.timedOut.sum() == 0) Thread.sleep(10);
+        }
+    }
+
+    /**
+     * With the NIO engine, an upstream proxy that doesn't start responding within FIRST_BYTE_TIMEOUT is
+     * disconnected, and so is the client
+     */
+    @Timeout(10000L)
+    @Test
+    public void firstByteTimeoutNio() throws IOException, InterruptedException {
+        try (Fixture proxy = new Fixture(config -> {
+            config.ENGINE.setValue(Engine.NIO);
+            config.FIRST_BYTE_TIMEOUT.setValue(300);
+        })) {
+            try (Socket clientSocket = proxy.connect()) {
+                clientSocket.getOutputStream().write("GET http://example.com/ HTTP/1.1\r\n\r\n".getBytes(ASCII));
+                try (Socket upstream = proxy.upstream.accept()) {
+                    Assertions.assertEquals(-1, clientSocket.getInputStream().read());
+                    final String request = new String(upstream.getInputStream().readAllBytes(), ASCII);
+                    Assertions.assertTrue(request.startsWith("GET http://example.com/ HTTP/1.1\r\n"), request);
+                }
+            }
+            Assertions.assertEquals(1, proxy.listener.metrics.timedOut.sum());
+        }
+    }
+
+    /**
+     * Requests routed DIRECT go to the origin server in origin-form, and tunnels are established by the proxy
+     */
+    @Timeout(10000L)
+    @Test
+    public void direct() throws IOException, InterruptedException {
+        try (Fixture proxy = new Fixture(config -> config.ROUTES.setValue("127.0.1.1=DIRECT"))) {
+            // Shares the mock proxy's address, so is reached directly (and nothing accepts on the mock proxy)
+            ServerSocket origin = proxy.add(new ServerSocket(0, 1, InetAddress.getByName("127.0.1.1")));
+            final String authority = "127.0.1.1:" + origin.getLocalPort();
+
+            try (Socket clientSocket = proxy.connect()) {
+                clientSocket.getOutputStream().write(("GET http://" + authority + "/page HTTP/1.1\r\n" +
+                        "Proxy-Connection: keep-alive\r\n\r\n").getBytes(ASCII));
+                try (Socket server = origin.accept()) {
+                    Assertions.assertEquals("GET /page HTTP/1.1\r\nHost: " + authority + "\r\n\r\n",
+                            readHeaders(server.getInputStream()));
+                    server.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes(ASCII));
+                    Assertions.assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 2\r\nConnection: Close\r\n\r\nok",
+                            new String(clientSocket.getInputStream().readAllBytes(), ASCII));
+                }
+            }
+
+            try (Socket clientSocket = proxy.connect()) {
+                clientSocket.getOutputStream().write(("CONNECT " + authority + " HTTP/1.1\r\n\r\n").getBytes(ASCII));
+                try (Socket server = origin.accept()) {
+                    Assertions.assertEquals("HTTP/1.1 200 Connection established\r\nConnection: Close\r\n\r\n", readHeaders(clientSocket.getInputStream()));
+                    clientSocket.getOutputStream().write("ping".getBytes(ASCII));
+                    Assertions.assertEquals("ping", readBytes(server.getInputStream(), 4));
+                    server.getOutputStream().write("pong".getBytes(ASCII));
+                    Assertions.assertEquals("pong", readBytes(clientSocket.getInputStream(), 4));
+                }
+            }
+        }
+    }
+
+    /**
+     * Connections to several acceptors (sharing the port with SO_REUSEPORT) are all handled
+     */
+    @Timeout(10000L)
+    @Test
+    public void multipleAcceptors() throws IOException, InterruptedException {
+        try (Fixture proxy = new Fixture(config -> config.ACCEPTORS.setValue(4))) {
+            final int count = 8;
+            for (int i = 0; i < count; i++) {
+                try (Socket clientSocket = proxy.connect()) {
+                    clientSocket.getOutputStream().write(("GET http://bar/" + i + " HTTP/1.1\r\n\r\n").getBytes(ASCII));
+                    clientSocket.shutdownOutput();
+                    try (Socket upstream = proxy.upstream.accept()) {
+                        Assertions.assertEquals(
+                                "GET http://bar/" + i + " HTTP/1.1\r\nProxy-Authorization: Basic Zm9vOmJhcg==\r\n" +
+                                        "Connection: Close\r\n\r\n",
+                                readHeaders(upstream.getInputStream())
+                        );
+                        upstream.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes(ASCII));
+                        upstream.shutdownOutput();
+                        Assertions.assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 2\r\nConnection: Close\r\n\r\nok",
+                                new String(clientSocket.getInputStream().readAllBytes(), ASCII));
+                    }
+                }
+            }
+            Assertions.assertEquals(count, proxy.listener.metrics.accepted.sum());
+        }
+    }
+
+    /**
+     * NTLM authenticates the upstream connection with the first request, and the connection is then reused without
+     * authenticating again, until the credentials are reloaded
+     */
+    @Timeout(10000L)
+    @Test
+    public void ntlm() throws IOException, InterruptedException {
+        try (Fixture proxy = new Fixture(config -> {
+            config.USERNAME.setValue("DOMAIN\\user");
+            config.UPSTREAM_AUTH.setValue(ProxyAuthScheme.NTLM);
+        })) {
+            final String expected = "HTTP/1.1 200 OK\r\nContent-Length: 5\r\nConnection: Close\r\n\r\nhello";
+            try (Socket clientSocket = proxy.connect()) {
+                clientSocket.getOutputStream().write("GET http://bar/ HTTP/1.1\r\n\r\n".getBytes(ASCII));
+                Socket upstream = proxy.add(proxy.upstream.accept());
+
+                // Negotiate message
+                String headers = readHeaders(upstream.getInputStream());
+                Assertions.assertTrue(headers.startsWith("GET http://bar/ HTTP/1.1\r\n"), headers);
+                Assertions.assertTrue(headers.contains("\r\nProxy-Authorization: NTLM TlRMTVNTUAAB"), headers);
+                upstream.getOutputStream().write(("HTTP/1.1 407 Proxy Authentication Required\r\n" +
+                        "Proxy-Authenticate: NTLM TlRMTVNTUAACAAAAAAAAAAAAAAABAAAAAQIDBAUGBwg=\r\n" +
+                        "Content-Length: 4\r\n\r\ndeny").getBytes(ASCII));
+
+                // Authenticate message, for the user in the domain
+                headers = readHeaders(upstream.getInputStream());
+                final String prefix = "\r\nProxy-Authorization: NTLM ";
+                final int start = headers.indexOf(prefix);
+                Assertions.assertTrue(start > 0, headers);
+                final byte[] message = Base64.getDecoder().decode(
+                        headers.substring(start + prefix.length(), headers.indexOf('\r', start + 2)));
+                Assertions.assertEquals(3, message[8]);
+                Assertions.assertTrue(new String(message, StandardCharsets.UTF_16LE).contains("DOMAINuser"));
+                upstream.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello".getBytes(ASCII));
+                Assertions.assertEquals(expected, new String(clientSocket.getInputStream().readAllBytes(), ASCII));
+
+                // The authenticated connection is reused, without authenticating again
+                try (Socket clientSocket2 = proxy.connect()) {
+                    clientSocket2.getOutputStream().write("GET http://bar/2 HTTP/1.1\r\n\r\n".getBytes(ASCII));
+                    Assertions.assertEquals("GET http://bar/2 HTTP/1.1\r\n\r\n", readHeaders(upstream.getInputStream()));
+                    upstream.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello".getBytes(ASCII));
+                    Assertions.assertEquals(expected, new String(clientSocket2.getInputStream().readAllBytes(), ASCII));
+                }
+
+                // After the password is changed, the connection authenticated with the old one isn't reused
+                proxy.config.PASSWORD.setValue("changed");
+                proxy.listener.apply(proxy.config);
+                try (Socket clientSocket3 = proxy.connect()) {
+                    clientSocket3.getOutputStream().write("GET http://bar/3 HTTP/1.1\r\n\r\n".getBytes(ASCII));
+                    Assertions.assertEquals(-1, upstream.getInputStream().read());
+                    try (Socket upstream2 = proxy.upstream.accept()) {
+                        headers = readHeaders(upstream2.getInputStream());
+                        Assertions.assertTrue(headers.startsWith("GET http://bar/3 HTTP/1.1\r\n"), headers);
+                        Assertions.assertTrue(headers.contains("\r\nProxy-Authorization: NTLM TlRMTVNTUAAB"), headers);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Send two pipelined requests on one client connection. The first has a body, and gets a chunked response.
+     */
+    @Timeout(10000L)
+    @Test
+    public void clientKeepAlive() throws IOException, InterruptedException {
+        try (Fixture proxy = new Fixture(config -> config.CONNECTION_CLOSE.setValue(false))) {
+            Socket clientSocket = proxy.add(proxy.connect());
+            InputStream clientIn = clientSocket.getInputStream();
+            clientSocket.getOutputStream().write((
+                    "POST http://bar/ HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc"
+                            + "GET http://bar/x HTTP/1.1\r\n\r\n").getBytes(ASCII));
+
+            final String chunked = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                    + "5;ext=1\r\nhello\r\n0\r\nTrailer: 1\r\n\r\n";
+            Socket upstream = proxy.add(proxy.upstream.accept());
+            Assertions.assertEquals(
+                    "POST http://bar/ HTTP/1.1\r\nContent-Length: 3\r\nProxy-Authorization: Basic Zm9vOmJhcg==\r\n\r\n",
+                    readHeaders(upstream.getInputStream())
+            );
+            Assertions.assertEquals("abc", readBytes(upstream.getInputStream(), 3));
+            upstream.getOutputStream().write(chunked.getBytes(ASCII));
+            final String responseHeaders = readHeaders(clientIn);
+            Assertions.assertEquals(chunked, responseHeaders + readBytes(clientIn, chunked.length() - responseHeaders.length()));
+
+            upstream = proxy.add(proxy.upstream.accept());
+            Assertions.assertEquals(
+                    "GET http://bar/x HTTP/1.1\r\nProxy-Authorization: Basic Zm9vOmJhcg==\r\n\r\n",
+                    readHeaders(upstream.getInputStream())
+            );
+            upstream.getOutputStream().write("HTTP/1.1 304 Not Modified\r\n\r\n".getBytes(ASCII));
+            Assertions.assertEquals("HTTP/1.1 304 Not Modified\r\n\r\n", readHeaders(clientIn));
+
+            // Client closes the connection between requests
+            clientSocket.shutdownOutput();
+            Assertions.assertEquals(-1, clientIn.read());
+        }
+    }
+
+    /**
+     * Requests whose end is ambiguous are rejected with 400, rather than forwarded on a connection that carries
+     * other requests
+     */
+    @Timeout(10000L)
+    @Test
+    public void ambiguousFraming() throws IOException, InterruptedException {
+        try (Fixture proxy = new Fixture(config -> config.CONNECTION_CLOSE.setValue(false))) {
+            for (String request : new String[]{
+                    "POST http://bar/ HTTP/1.1\r\nContent-Length: 4\r\nTransfer-Encoding: chunked\r\n\r\n0\r\n\r\n",
+                    "POST http://bar/ HTTP/1.1\r\nContent-Length: 3\r\nContent-Length: 0\r\n\r\nabc",
+                    "POST http://bar/ HTTP/1.1\r\nContent-Length: +3\r\n\r\nabc"}) {
+                final String[] result = proxy.exchange(request, null);
+                Assertions.assertTrue(result[1].startsWith("HTTP/1.1 400 Bad Request\r\n"), result[1]);
+            }
+        }
+    }
+
+    /**
+     * Share requests (plain and CONNECT) between several mock upstream proxies, one of which is not listening
+     */
+    @Timeout(20000L)
+    @Test
+    public void balanceAcrossUpstreams() throws IOException, InterruptedException {
+        final InetAddress upstreamAddress = InetAddress.getByName("127.0.1.1");
+        final int deadPort;
+        try (ServerSocket dead = new ServerSocket(0, 1, upstreamAddress)) {
+            deadPort = dead.getLocalPort();
+        }
+        try (ServerSocket second = new ServerSocket(0, 1, upstreamAddress);
+             ServerSocket third = new ServerSocket(0, 1, upstreamAddress);
+             Fixture proxy = new Fixture(config -> {
+                 config.UPSTREAM_BALANCE.setValue(Balance.ROUND_ROBIN);
+                 config.UPSTREAM_PROXIES.setValue("127.0.1.1:" + second.getLocalPort() + ", 127.0.1.1:" + deadPort
+                         + ",127.0.1.1:" + third.getLocalPort());
+             })) {
+            final ServerSocket[] servers = {proxy.upstream, second, third};
+            for (ServerSocket server : servers) {
+                server.setSoTimeout(50);
+            }
+            final ProxyListener listener = proxy.listener;
+            Assertions.assertEquals(4, listener.upstreams.size());
+
+            // Every request is served, with the dead upstream only tried once
+            final int[] served = new int[servers.length];
+            for (int i = 0; i < 6; i++) {
+                final String request = i % 2 == 0 ? "GET http://bar/ HTTP/1.1\r\n\r\n" : "CONNECT bar:443 HTTP/1.1\r\n\r\n";
+                try (Socket clientSocket = proxy.connect()) {
+                    clientSocket.getOutputStream().write(request.getBytes(ASCII));
+                    try (Socket upstream = acceptAny(servers, served)) {
+                        Assertions.assertTrue(readHeaders(upstream.getInputStream()).startsWith(request.split("\r\n")[0]));
+                        upstream.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n".getBytes(ASCII));
+                    }
+                    Assertions.assertTrue(readHeaders(clientSocket.getInputStream()).startsWith("HTTP/1.1 200 OK"));
+                }
+            }
+            for (int count : served) {
+                Assertions.assertTrue(count > 0, "Each live upstream used");
+            }
+            Assertions.assertEquals(1, listener.upstreams.get(2).getFailures());
+            Assertions.assertEquals(0, listener.upstreams.get(2).getRequests());
+        }
+    }
+
+    public void doMetricsTest(Engine engine) throws IOException, InterruptedException {
+        try (Fixture proxy = new Fixture(config -> {
+            config.ENGINE.setValue(engine);
+            config.STOP_ON_PROXY_AUTH_ERROR.setValue(false);
+        })) {
+            // A request that the upstream proxy rejects
+            try (Socket clientSocket = proxy.connect()) {
+                clientSocket.getOutputStream().write("GET http://bar/ HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes(ASCII));
+                try (Socket upstream = proxy.upstream.accept()) {
+                    readHeaders(upstream.getInputStream());
+                    upstream.getOutputStream().write("HTTP/1.1 407 Proxy Authentication Required\r\nContent-Length: 3\r\n\r\nabc".getBytes(ASCII));
+                }
+                Assertions.assertTrue(new String(clientSocket.getInputStream().readAllBytes(), ASCII).endsWith("abc"));
+            }
+
+            // Requested directly from the listener, rather than proxied
+            String metrics = null;
+            for (int attempt = 0; attempt < 50; attempt++) {
+                try (Socket clientSocket = proxy.connect()) {
+                    clientSocket.getOutputStream().write("GET /metrics HTTP/1.1\r\nHost: proxy\r\n\r\n".getBytes(ASCII));
+                    metrics = new String(clientSocket.getInputStream().readAllBytes(), ASCII);
+                }
+                // The first request is counted once its connection has been closed
+                if (metrics.contains("\nproxyauth_requests_total 1\n")) break;
+                Thread.sleep(100);
+            }
+            Assertions.assertTrue(metrics.startsWith("HTTP/1.1 200 OK\r\n"), metrics);
+            Assertions.assertTrue(metrics.contains("\nproxyauth_requests_total 1\n"), metrics);
+            Assertions.assertTrue(metrics.contains("\nproxyauth_proxy_auth_errors_total 1\n"), metrics);
+            Assertions.assertTrue(metrics.contains("\nproxyauth_bytes_down_total 3\n"), metrics);
+            Assertions.assertTrue(metrics.contains("\nproxyauth_upstream_connect_seconds_count 1\n"), metrics);
+            Assertions.assertTrue(metrics.contains("\nproxyauth_upstream_first_byte_seconds_count 1\n"), metrics);
+            Assertions.assertTrue(metrics.contains("\nproxyauth_request_seconds_count 1\n"), metrics);
+            Assertions.assertTrue(proxy.listener.metrics.accepted.sum() >= 2);
+        }
+    }
+
+    @Timeout(10000L)
+    @Test
+    public void metrics() throws IOException, InterruptedException {
+        doMetricsTest(Engine.THREADS);
+    }
+
+    @Timeout(10000L)
+    @Test
+    public void metricsNio() throws IOException, InterruptedException {
+        doMetricsTest(Engine.NIO);
+    }
+
+    /**
+     * Responses are cached, so a second request isn't sent to the mock proxy, and stale responses are revalidated
+     */
+    @Timeout(10000L)
+    @Test
+    public void responseCache() throws IOException, InterruptedException {
+        try (Fixture proxy = new Fixture(config -> config.CACHE_SIZE.setValue(100000))) {
+            final ProxyListener listener = proxy.listener;
+            final String request = "GET http://bar/fresh HTTP/1.1\r\n\r\n";
+            String[] result = proxy.exchange(request,
+                    "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nContent-Length: 5\r\n\r\nhello");
+            Assertions.assertEquals("HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nContent-Length: 5\r\n"
+                    + "Connection: Close\r\n\r\nhello", result[1]);
+
+            // From the cache, without connecting upstream
+            result = proxy.exchange(request, null);
+            Assertions.assertTrue(result[1].startsWith("HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nContent-Length: 5\r\nAge: 0\r\n"), result[1]);
+            Assertions.assertTrue(result[1].endsWith("\r\n\r\nhello"), result[1]);
+            // Counted like a forwarded response (which may finish recording after the client has read it)
+            for (int i = 0; i < 50 && listener.metrics.requests.sum() < 2; i++) Thread.sleep(100);
+            Assertions.assertEquals(2, listener.metrics.requests.sum());
+            Assertions.assertEquals(10, listener.metrics.bytesDown.sum());
+
+            // Must be revalidated each time
+            final String revalidate = "GET http://bar/etag HTTP/1.1\r\n\r\n";
+            result = proxy.exchange(revalidate,
+                    "HTTP/1.1 200 OK\r\nCache-Control: no-cache\r\nETag: \"v1\"\r\nContent-Length: 5\r\n\r\nworld");
+            Assertions.assertTrue(result[1].endsWith("\r\n\r\nworld"), result[1]);
+            result = proxy.exchange(revalidate, "HTTP/1.1 304 Not Modified\r\nETag: \"v1\"\r\n\r\n");
+            Assertions.assertTrue(result[0].contains("\r\nIf-None-Match: \"v1\"\r\n"), result[0]);
+            Assertions.assertTrue(result[1].startsWith("HTTP/1.1 200 OK\r\n"), result[1]);
+            Assertions.assertTrue(result[1].endsWith("\r\n\r\nworld"), result[1]);
+
+            // Changing the resource removes the stored response
+            proxy.exchange("POST http://bar/fresh HTTP/1.1\r\nContent-Length: 0\r\n\r\n",
+                    "HTTP/1.1 204 No Content\r\n\r\n");
+            result = proxy.exchange(request, "HTTP/1.1 200 OK\r\nContent-Length: 3\r\n\r\nnew");
+            Assertions.assertTrue(result[1].endsWith("\r\n\r\nnew"), result[1]);
+
+            Assertions.assertEquals(1, listener.metrics.cacheHits.sum());
+            Assertions.assertEquals(4, listener.metrics.cacheMisses.sum());
+            Assertions.assertEquals(1, listener.metrics.cacheRevalidated.sum());
+        }
+    }
+
+    /**
+     * A second identical request, made while the first is in progress, gets the same response without another
+     * request to the mock proxy
+     */
+    @Timeout(10000L)
+    @Test
+    public void coalescing() throws IOException, InterruptedException {
+        try (Fixture proxy = new Fixture(config -> config.CACHE_SIZE.setValue(100000))) {
+            final byte[] request = "GET http://bar/big HTTP/1.1\r\n\r\n".getBytes(ASCII);
+            Socket first = proxy.add(proxy.connect());
+            first.getOutputStream().write(request);
+            Socket upstream = proxy.add(proxy.upstream.accept());
+            readHeaders(upstream.getInputStream());
+            final String headers = "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nContent-Length: 10\r\n\r\n";
+            upstream.getOutputStream().write((headers + "01234").getBytes(ASCII));
+            readHeaders(first.getInputStream());
+            Assertions.assertEquals("01234", readBytes(first.getInputStream(), 5));
+
+            // Joins part way through the body - once it has what was received so far, it is following
+            Socket second = proxy.add(proxy.connect());
+            second.getOutputStream().write(request);
+            final String secondHeaders = readHeaders(second.getInputStream());
+            Assertions.assertTrue(secondHeaders.startsWith("HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nContent-Length: 10\r\n"), secondHeaders);
+            Assertions.assertEquals("01234", readBytes(second.getInputStream(), 5));
+            upstream.getOutputStream().write("56789".getBytes(ASCII));
+
+            Assertions.assertEquals("56789", new String(first.getInputStream().readAllBytes(), ASCII));
+            Assertions.assertEquals("56789", new String(second.getInputStream().readAllBytes(), ASCII));
+            // Counted once the follower has finished, which may be after its client has read the response
+            final ProxyListener listener = proxy.listener;
+            for (int i = 0; i < 50 && listener.metrics.cacheCoalesced.sum() == 0; i++) Thread.sleep(100);
+            Assertions.assertEquals(1, listener.metrics.cacheCoalesced.sum());
+            Assertions.assertEquals(1, listener.metrics.cacheMisses.sum());
+        }
+    }
+
+    /**
+     * Downloads are slowed to CLIENT_RATE_LIMIT, once the burst has been used
+     */
+    @Timeout(10000L)
+    @Test
+    public void rateLimit() throws IOException, InterruptedException {
+        try (Fixture proxy = new Fixture(config -> {
+            config.CLIENT_RATE_LIMIT.setValue(100000);
+            config.RATE_BURST.setValue(1024);
+        })) {
+            final StringBuilder body = new StringBuilder();
+            while (body.length() < 40000) body.append("0123456789");
+            final long started = System.nanoTime();
+            String[] result = proxy.exchange("GET http://bar/big HTTP/1.1\r\n\r\n",
+                    "HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body);
+            final long elapsed = (System.nanoTime() - started) / 1_000_000;
+
+            Assertions.assertTrue(result[1].endsWith("\r\n\r\n" + body), result[1]);
+            // 39 KB over the burst, at 100 KB/s
+            Assertions.assertTrue(elapsed >= 300, "Took " + elapsed + "ms");
+            Assertions.assertTrue(proxy.listener.metrics.throttled.sum() > 0);
+        }
+    }
+
+    /**
+     * Accept a connection on whichever server gets one first
+     *
+     * @param counts incremented for the server that accepted
+     */
+    static Socket acceptAny(ServerSocket[] servers, int[] counts) throws IOException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            for (int i = 0; i < servers.length; i++) {
+                try {
+                    Socket socket = servers[i].accept();
+                    counts[i]++;
+                    return socket;
+                } catch (SocketTimeoutException e) {
+                    // try the next server
+                }
+            }
+        }
+        throw new SocketTimeoutException("No connection to any server");
+    }
 }
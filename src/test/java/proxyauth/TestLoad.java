@@ -0,0 +1,386 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import proxyauth.conf.Configuration;
+import proxyauth.conf.Engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static proxyauth.TestEnd2End.ASCII;
+
+/**
+ * Load test: many concurrent clients sending a mix of plain http (with varying body sizes, with and without
+ * keep-alive) and CONNECT requests through an in-process {@link ProxyListener} to a mock upstream proxy, then
+ * reporting throughput, latency percentiles, peak thread count and heap use.
+ * <p>
+ * Only runs when the "loadtest" system property is "true" (eg. using "gradlew loadTest"). Configured with these
+ * system properties:
+ * <ul>
+ *     <li>loadtest.clients - number of concurrent clients (default 50)</li>
+ *     <li>loadtest.seconds - how long to run (default 10)</li>
+ *     <li>loadtest.engine - THREADS or NIO (default THREADS)</li>
+ *     <li>loadtest.maxActive - MAX_ACTIVE_REQUESTS (default 100)</li>
+ *     <li>loadtest.bodySizes - comma separated sizes of request and response bodies (default 0,1024,65536,1048576)</li>
+ *     <li>loadtest.connectPercent - percentage of connections that are CONNECT tunnels (default 20)</li>
+ *     <li>loadtest.keepAlivePercent - percentage of plain http connections that are kept alive for several requests
+ *     (default 50)</li>
+ *     <li>loadtest.connectionClose - CONNECTION_CLOSE (Yes or No), which stops connections being kept alive
+ *     (default Yes, as in the default configuration)</li>
+ * </ul>
+ *
+ * @author Zeckie
+ */
+@Tag("load")
+@EnabledIfSystemProperty(named = "loadtest", matches = "true")
+public class TestLoad {
+    private static final int REQUESTS_PER_CONNECTION = 10;
+
+    private final int clients = Integer.getInteger("loadtest.clients", 50);
+    private final int seconds = Integer.getInteger("loadtest.seconds", 10);
+    private final Engine engine = Engine.valueOf(System.getProperty("loadtest.engine", "THREADS").toUpperCase(Locale.ROOT));
+    private final int maxActive = Integer.getInteger("loadtest.maxActive", 100);
+    private final int[] bodySizes = Arrays.stream(System.getProperty("loadtest.bodySizes", "0,1024,65536,1048576").split(","))
+            .mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+    private final int connectPercent = Integer.getInteger("loadtest.connectPercent", 20);
+    private final int keepAlivePercent = Integer.getInteger("loadtest.keepAlivePercent", 50);
+    private final String connectionClose = System.getProperty("loadtest.connectionClose");
+
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private volatile long peakHeap = 0;
+
+    @Test
+    public void load() throws Exception {
+        Configuration config = new Configuration();
+        config.DEBUG.setValue(false);
+        config.ENGINE.setValue(engine);
+        config.MAX_ACTIVE_REQUESTS.setValue(maxActive);
+        if (connectionClose != null) config.CONNECTION_CLOSE.setValue(
+                connectionClose.equalsIgnoreCase("yes") || Boolean.parseBoolean(connectionClose));
+        config.UPSTREAM_PROXY_HOST.setValue("127.0.1.1");
+        config.LISTEN_ADDRESS.setValue("127.0.1.2");
+        config.LISTEN_PORT.setValue(0); // Ephemeral port
+        config.USERNAME.setValue("foo");
+        config.PASSWORD.setValue("bar");
+
+        try (ServerSocket upstream = new ServerSocket(0, 1000, InetAddress.getByName(config.UPSTREAM_PROXY_HOST.getValue()))) {
+            config.UPSTREAM_PROXY_PORT.setValue(upstream.getLocalPort());
+            daemon("TestLoad-upstream", () -> serveUpstream(upstream));
+
+            try (ProxyListener listener = new ProxyListener(config)) {
+                Log.setLevel(Log.Level.WARN); // per-connection logging would dominate
+                daemon("TestLoad-listener", listener);
+                while (listener.getLocalPort() == null) Thread.sleep(10);
+
+                final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+                final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+                threads.resetPeakThreadCount();
+                final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+                daemon("TestLoad-heap", () -> {
+                    while (System.nanoTime() < deadline) {
+                        peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+                        sleep(50);
+                    }
+                });
+
+                final long start = System.nanoTime();
+                final List<Client> running = new ArrayList<>();
+                for (int i = 0; i < clients; i++) {
+                    Client client = new Client(config.LISTEN_ADDRESS.getValue(), listener.getLocalPort(), deadline, i);
+                    running.add(client);
+                    client.start();
+                }
+                for (Client client : running) client.join();
+                final double elapsed = (System.nanoTime() - start) / 1e9;
+
+                report(running, elapsed, threads.getPeakThreadCount());
+                Assertions.assertEquals(0, errors.get(), "errors");
+            }
+        }
+    }
+
+    private void report(List<Client> finished, double elapsed, int peakThreads) {
+        int count = 0;
+        for (Client client : finished) count += client.count;
+        final long[] latencies = new long[count];
+        int i = 0;
+        for (Client client : finished) {
+            System.arraycopy(client.latencies, 0, latencies, i, client.count);
+            i += client.count;
+        }
+        Arrays.sort(latencies);
+        Assertions.assertTrue(count > 0, "requests completed");
+
+        System.out.printf(Locale.ROOT, "--- Load test: %d clients, %s engine, %.1fs ---%n", clients, engine, elapsed);
+        System.out.printf(Locale.ROOT, "requests: %d (%.1f/s), errors: %d%n", count, count / elapsed, errors.get());
+        System.out.printf(Locale.ROOT, "throughput: %.2f MB/s%n", bytes.get() / elapsed / 1e6);
+        System.out.printf(Locale.ROOT, "latency ms: p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f%n",
+                percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+                percentile(latencies, 99.9), latencies[count - 1] / 1e6);
+        System.out.printf(Locale.ROOT, "peak threads: %d, peak heap used: %.1f MB%n", peakThreads, peakHeap / 1e6);
+    }
+
+    /**
+     * @return percentile of sorted latencies, in milliseconds
+     */
+    private static double percentile(long[] sorted, double percentile) {
+        final int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    /**
+     * A client that keeps making requests until the deadline, recording the latency of each
+     */
+    private class Client extends Thread {
+        final String host;
+        final int port;
+        final long deadline;
+        final Random random;
+        long[] latencies = new long[1024];
+        int count = 0;
+
+        Client(String host, int port, long deadline, int id) {
+            super("TestLoad-client-" + id);
+            this.host = host;
+            this.port = port;
+            this.deadline = deadline;
+            this.random = new Random(id);
+        }
+
+        @Override
+        public void run() {
+            while (System.nanoTime() < deadline) {
+                try (Socket socket = new Socket(host, port)) {
+                    socket.setSoTimeout(30000);
+                    final InputStream in = new BufferedInputStream(socket.getInputStream());
+                    final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                    if (random.nextInt(100) < connectPercent) {
+                        tunnel(in, out);
+                    } else {
+                        final int requests = random.nextInt(100) < keepAlivePercent ? REQUESTS_PER_CONNECTION : 1;
+                        boolean open = true;
+                        for (int i = 1; open && i <= requests && System.nanoTime() < deadline; i++) {
+                            open = exchange(in, out, i == requests);
+                        }
+                    }
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                    System.err.println(getName() + " " + e);
+                }
+            }
+        }
+
+        private int bodySize() {
+            return bodySizes[random.nextInt(bodySizes.length)];
+        }
+
+        /**
+         * Send a request with a body, and read a response with a body of another size
+         *
+         * @return the connection can be used for another request
+         */
+        private boolean exchange(InputStream in, OutputStream out, boolean close) throws IOException {
+            final int up = bodySize();
+            final int down = bodySize();
+            final long start = System.nanoTime();
+            out.write(("POST http://load.test/ HTTP/1.1\r\nHost: load.test\r\nContent-Length: " + up + "\r\n"
+                    + "X-Response-Size: " + down + "\r\n" + (close ? "Connection: close\r\n" : "") + "\r\n").getBytes(ASCII));
+            writeBody(out, up);
+            out.flush();
+            final String headers = readHeaders(in);
+            if (headers == null || !headers.startsWith("HTTP/1.1 200 ")) throw new IOException("Unexpected response: " + headers);
+            skip(in, contentLength(headers));
+            record(start, up + down);
+            return !close && !isClose(headers);
+        }
+
+        /**
+         * Establish a tunnel, then send bytes that the mock upstream echoes back
+         */
+        private void tunnel(InputStream in, OutputStream out) throws IOException {
+            final int size = bodySize();
+            final long start = System.nanoTime();
+            out.write("CONNECT load.test:443 HTTP/1.1\r\nHost: load.test:443\r\n\r\n".getBytes(ASCII));
+            out.flush();
+            final String headers = readHeaders(in);
+            if (headers == null || !headers.startsWith("HTTP/1.1 200 ")) throw new IOException("Unexpected response: " + headers);
+            final Thread writer = new Thread(() -> {
+                try {
+                    writeBody(out, size);
+                    out.flush();
+                } catch (IOException e) {
+                    // reported by the reader not receiving everything
+                }
+            }, getName() + "-tunnel");
+            writer.start();
+            skip(in, size);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            record(start, 2L * size);
+        }
+
+        private void record(long start, long transferred) {
+            if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+            latencies[count++] = System.nanoTime() - start;
+            bytes.addAndGet(transferred);
+        }
+    }
+
+    private static final byte[] CHUNK = new byte[65536];
+
+    private static void writeBody(OutputStream out, long size) throws IOException {
+        while (size > 0) {
+            final int length = (int) Math.min(size, CHUNK.length);
+            out.write(CHUNK, 0, length);
+            size -= length;
+        }
+    }
+
+    private static void skip(InputStream in, long size) throws IOException {
+        final byte[] buf = new byte[8192];
+        while (size > 0) {
+            final int read = in.read(buf, 0, (int) Math.min(size, buf.length));
+            if (read == -1) throw new IOException("End of stream with " + size + " bytes remaining");
+            size -= read;
+        }
+    }
+
+    /**
+     * @return http headers (up to and including the blank line), or null if the stream ends first
+     */
+    static String readHeaders(InputStream in) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            sb.append((char) b);
+            final int length = sb.length();
+            if (b == '\n' && length >= 4 && sb.charAt(length - 2) == '\r' && sb.charAt(length - 3) == '\n') {
+                return sb.toString();
+            }
+        }
+        if (sb.length() == 0) return null;
+        throw new IOException("End of stream reached before headers read: " + sb);
+    }
+
+    /**
+     * @return the headers include "Connection: close"
+     */
+    private static boolean isClose(String headers) {
+        return headers.toLowerCase(Locale.ROOT).contains("\r\nconnection: close\r\n");
+    }
+
+    private static long contentLength(String headers) {
+        return headerValue(headers, "Content-Length", 0);
+    }
+
+    private static long headerValue(String headers, String name, long defaultValue) {
+        for (String line : headers.split("\r\n")) {
+            if (line.regionMatches(true, 0, name + ":", 0, name.length() + 1)) {
+                return Long.parseLong(line.substring(name.length() + 1).trim());
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Mock upstream proxy: each connection is handled by its own thread. Plain requests are answered with a body
+     * of the size asked for in X-Response-Size. Tunnels echo everything back.
+     */
+    private static void serveUpstream(ServerSocket server) {
+        try {
+            //noinspection InfiniteLoopStatement (until the socket is closed)
+            while (true) {
+                final Socket socket = server.accept();
+                daemon("TestLoad-upstream-connection", () -> {
+                    try (Socket s = socket) {
+                        final InputStream in = new BufferedInputStream(s.getInputStream());
+                        final OutputStream out = new BufferedOutputStream(s.getOutputStream());
+                        String headers;
+                        while ((headers = readHeaders(in)) != null) {
+                            if (headers.startsWith("CONNECT ")) {
+                                out.write("HTTP/1.1 200 Connection established\r\n\r\n".getBytes(ASCII));
+                                out.flush();
+                                final byte[] buf = new byte[8192];
+                                int read;
+                                while ((read = in.read(buf)) != -1) {
+                                    out.write(buf, 0, read);
+                                    if (in.available() == 0) out.flush();
+                                }
+                                break;
+                            }
+                            skip(in, contentLength(headers));
+                            final long size = headerValue(headers, "X-Response-Size", 0);
+                            final boolean close = isClose(headers);
+                            out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + size + "\r\n"
+                                    + (close ? "Connection: close\r\n" : "") + "\r\n").getBytes(ASCII));
+                            writeBody(out, size);
+                            out.flush();
+                            if (close) break;
+                        }
+                    } catch (IOException e) {
+                        // client went away
+                    }
+                });
+            }
+        } catch (IOException e) {
+            // closed at the end of the test
+        }
+    }
+
+    private static void daemon(String name, Runnable task) {
+        final Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * @author Zeckie
+ */
+public class TestLog {
+    private final PrintStream originalOut = System.out;
+    private final PrintStream originalErr = System.err;
+
+    @AfterEach
+    public void restore() {
+        Log.flush(1000);
+        System.setOut(originalOut);
+        System.setErr(originalErr);
+        Log.setLevel(Log.Level.INFO);
+    }
+
+    private static ByteArrayOutputStream capture(boolean err) {
+        Log.flush(1000);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream stream = new PrintStream(bytes, true);
+        if (err) System.setErr(stream); else System.setOut(stream);
+        return bytes;
+    }
+
+    @Test
+    public void testFormat() {
+        Log.setLevel(Log.Level.DEBUG);
+        ByteArrayOutputStream out = capture(false);
+        ByteArrayOutputStream err = capture(true);
+        Log.info("a={} b={} c={}", 1, (Supplier<String>) () -> "two", "three");
+        Log.debug("not enough {} {}", "args");
+        Log.warn("failed: {}", "x", new IllegalStateException("boom"));
+        Log.flush(1000);
+
+        String written = out.toString();
+        Assertions.assertTrue(written.contains(" INFO [" + Thread.currentThread().getName() + "] a=1 b=two c=three"), written);
+        Assertions.assertTrue(written.contains(" DEBUG [" + Thread.currentThread().getName() + "] not enough args {}"), written);
+        String warnings = err.toString();
+        Assertions.assertTrue(warnings.contains("WARN [" + Thread.currentThread().getName() + "] failed: x"), warnings);
+        Assertions.assertTrue(warnings.contains("java.lang.IllegalStateException: boom"), warnings);
+        Assertions.assertTrue(warnings.contains("at proxyauth.TestLog.testFormat"), warnings);
+    }
+
+    @Test
+    public void testLevel() {
+        Log.setLevel(Log.Level.WARN);
+        Assertions.assertFalse(Log.isEnabled(Log.Level.INFO));
+        Assertions.assertTrue(Log.isEnabled(Log.Level.ERROR));
+        ByteArrayOutputStream out = capture(false);
+        AtomicBoolean evaluated = new AtomicBoolean();
+        Log.debug("hidden {}", (Supplier<String>) () -> {
+            evaluated.set(true);
+            return "value";
+        });
+        Log.info("hidden");
+        Log.flush(1000);
+        Assertions.assertFalse(evaluated.get());
+        Assertions.assertFalse(out.toString().contains("hidden"), out.toString());
+    }
+
+    /**
+     * Records are dropped (not blocked) while the writer is stuck
+     */
+    @Test
+    public void testDropped() throws InterruptedException {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch unblock = new CountDownLatch(1);
+        Log.flush(1000);
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                writing.countDown();
+                try {
+                    unblock.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }));
+
+        final long droppedBefore = Log.getDropped();
+        Log.info("blocks the writer");
+        Assertions.assertTrue(writing.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < Log.CAPACITY + 10; i++) {
+            Log.info("record {}", i);
+        }
+        Assertions.assertTrue(Log.getDropped() - droppedBefore >= 10, "dropped=" + (Log.getDropped() - droppedBefore));
+
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+        unblock.countDown();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import proxyauth.conf.Configuration;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @author Zeckie
+ */
+public class TestPassThrough {
+
+    /**
+     * A body cut short by a timeout (not a SocketException) is still a failure
+     */
+    @Test
+    public void testTimeoutFails() {
+        final InputStream in = new InputStream() {
+            private int sent = 0;
+
+            @Override
+            public int read() throws SocketTimeoutException {
+                if (sent == 10) throw new SocketTimeoutException("Read timed out");
+                sent++;
+                return 'x';
+            }
+        };
+        final AtomicReference<Boolean> result = new AtomicReference<>();
+        final PassThrough passThrough = new PassThrough((source, succeeded) -> result.set(succeeded), in,
+                new ByteArrayOutputStream(), null, false, null, new Configuration().snapshot(),
+                BufferPool.tiers(1024, 1024, 2, false));
+        passThrough.setBodyLength(100);
+        passThrough.run();
+        Assertions.assertEquals(Boolean.FALSE, result.get());
+        Assertions.assertTrue(passThrough.getError() instanceof SocketTimeoutException);
+        Assertions.assertEquals(10, passThrough.bytesTransferred.get());
+    }
+
+    @Test
+    public void testChunkSize() {
+        Assertions.assertEquals(0x1aF, PassThrough.chunkSize("1aF"));
+        Assertions.assertEquals(0, PassThrough.chunkSize("0"));
+        Assertions.assertEquals(-1, PassThrough.chunkSize("-5"));
+        Assertions.assertEquals(-1, PassThrough.chunkSize("+5"));
+        Assertions.assertEquals(-1, PassThrough.chunkSize("0x5"));
+        Assertions.assertEquals(-1, PassThrough.chunkSize(""));
+        Assertions.assertEquals(-1, PassThrough.chunkSize("fffffffffffffffff"));
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * @author Zeckie
+ */
+public class TestSocketSettings {
+
+    @Test
+    public void testParse() {
+        final SocketSettings settings = SocketSettings.parse(" tcp_nodelay=Yes, SO_KEEPALIVE=no,SO_RCVBUF=262144 ");
+        Assertions.assertEquals(Boolean.TRUE, settings.tcpNoDelay);
+        Assertions.assertEquals(Boolean.FALSE, settings.keepAlive);
+        Assertions.assertEquals(262144, settings.receiveBuffer);
+        Assertions.assertEquals(0, settings.sendBuffer);
+
+        final SocketSettings empty = SocketSettings.parse("");
+        Assertions.assertNull(empty.tcpNoDelay);
+        Assertions.assertNull(empty.keepAlive);
+    }
+
+    @Test
+    public void testInvalid() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> SocketSettings.parse("TCP_NODELAY"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> SocketSettings.parse("TCP_NODELAY=maybe"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> SocketSettings.parse("SO_SNDBUF=0"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> SocketSettings.parse("SO_LINGER=5"));
+    }
+
+    @Test
+    public void testApply() throws IOException {
+        try (Socket socket = new Socket()) {
+            SocketSettings.parse("TCP_NODELAY=Yes,SO_KEEPALIVE=Yes").apply(socket);
+            Assertions.assertTrue(socket.getTcpNoDelay());
+            Assertions.assertTrue(socket.getKeepAlive());
+            SocketSettings.parse("TCP_NODELAY=No").apply(socket);
+            Assertions.assertFalse(socket.getTcpNoDelay());
+            // Not listed, so unchanged
+            Assertions.assertTrue(socket.getKeepAlive());
+        }
+    }
+}
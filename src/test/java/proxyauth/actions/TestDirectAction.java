@@ -0,0 +1,73 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.actions;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import proxyauth.conf.Configuration;
+import proxyauth.conf.Snapshot;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author Zeckie
+ */
+public class TestDirectAction {
+
+    @Test
+    public void testOriginForm() {
+        final DirectAction action = new DirectAction(null, 0, 100);
+        final Snapshot settings = new Configuration().snapshot();
+        Assertions.assertEquals(
+                Arrays.asList("GET /path?q=1 HTTP/1.1", "Host: example.com:8080", "Accept: */*"),
+                action.processAuthHeaders(Arrays.asList("GET http://example.com:8080/path?q=1 HTTP/1.1", "Host: other",
+                        "Proxy-Authorization: Basic Zm9vOmJhcg==", "Accept: */*", "Proxy-Connection: keep-alive"), settings));
+        Assertions.assertEquals(
+                Arrays.asList("GET /?q HTTP/1.1", "Host: example.com"),
+                action.processAuthHeaders(Collections.singletonList("GET http://example.com?q HTTP/1.1"), settings));
+        // Already in origin-form
+        Assertions.assertEquals(
+                Arrays.asList("GET / HTTP/1.1", "Host: example.com"),
+                action.processAuthHeaders(Arrays.asList("GET / HTTP/1.1", "Host: example.com", "Proxy-Connection: close"), settings));
+        Assertions.assertEquals(
+                Collections.singletonList("CONNECT example.com:443 HTTP/1.1"),
+                action.processAuthHeaders(Collections.singletonList("CONNECT example.com:443 HTTP/1.1"), settings));
+    }
+
+    @Test
+    public void testSelect() {
+        final DirectAction action = new DirectAction(null, 60000, 100);
+        final List<String> request = Collections.singletonList("GET http://example.com/ HTTP/1.1");
+        final Upstream origin = action.select(request, Collections.emptyList());
+        Assertions.assertEquals("example.com", origin.getEndpoint().getHostString());
+        Assertions.assertEquals(80, origin.getEndpoint().getPort());
+        // Cached for later requests to the same origin
+        Assertions.assertSame(origin, action.select(Collections.singletonList("POST http://EXAMPLE.com:80/x HTTP/1.1"),
+                Collections.emptyList()));
+        Assertions.assertEquals(443, action.select(Collections.singletonList("CONNECT example.com:443 HTTP/1.1"),
+                Collections.emptyList()).getEndpoint().getPort());
+        // Not chosen again once connecting to it has failed
+        Assertions.assertNull(action.select(request, Collections.singletonList(origin)));
+        action.close();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.actions;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Uses the test vectors from RFC 1320 and MS-NLMP section 4.2.4
+ *
+ * @author Zeckie
+ */
+public class TestNtlm {
+    private static final byte[] SERVER_CHALLENGE = hex("0123456789abcdef");
+    private static final byte[] CLIENT_CHALLENGE = hex("aaaaaaaaaaaaaaaa");
+    /**
+     * NetBIOS domain "Domain" and computer "Server"
+     */
+    private static final byte[] TARGET_INFO = hex("02000c0044006f006d00610069006e00"
+            + "01000c00530065007200760065007200" + "00000000");
+
+    static byte[] hex(String hex) {
+        final byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    @Test
+    public void testMd4() {
+        Assertions.assertArrayEquals(hex("31d6cfe0d16ae931b73c59d7e0c089c0"), Ntlm.md4(new byte[0]));
+        Assertions.assertArrayEquals(hex("a448017aaf21d8525fc10ae87aa6729d"), Ntlm.md4("abc".getBytes(StandardCharsets.US_ASCII)));
+        Assertions.assertArrayEquals(hex("e33b4ddc9c38f2199c3e7b164fcc0536"), Ntlm.md4(
+                "12345678901234567890123456789012345678901234567890123456789012345678901234567890".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    public void testNtlmV2() {
+        final byte[] responseKey = Ntlm.ntowfv2("Password", "User", "Domain");
+        Assertions.assertArrayEquals(hex("0c868a403bfd7a93a3001ef22ef02e3f"), responseKey);
+        Assertions.assertArrayEquals(hex("86c35097ac9cec102554764a57cccc19aaaaaaaaaaaaaaaa"),
+                Ntlm.lmResponse(responseKey, SERVER_CHALLENGE, CLIENT_CHALLENGE));
+        final byte[] ntResponse = Ntlm.ntResponse(responseKey, SERVER_CHALLENGE, CLIENT_CHALLENGE, 0, TARGET_INFO);
+        Assertions.assertArrayEquals(hex("68cd0ab851e51c96aabc927bebef6a1c"), Arrays.copyOf(ntResponse, 16));
+    }
+
+    @Test
+    public void testMessages() {
+        final Ntlm ntlm = new Ntlm("Domain\\User", "Password", "COMPUTER");
+        final byte[] negotiate = ntlm.negotiate();
+        Assertions.assertEquals("NTLMSSP", new String(negotiate, 0, 7, StandardCharsets.US_ASCII));
+        Assertions.assertEquals(1, Ntlm.readInt(negotiate, 8));
+
+        final byte[] challenge = new byte[48 + TARGET_INFO.length];
+        System.arraycopy(negotiate, 0, challenge, 0, 8);
+        Ntlm.writeInt(challenge, 8, 2);
+        Ntlm.writeInt(challenge, 20, Ntlm.NEGOTIATE_UNICODE | Ntlm.NEGOTIATE_NTLM | Ntlm.NEGOTIATE_TARGET_INFO);
+        System.arraycopy(SERVER_CHALLENGE, 0, challenge, 24, 8);
+        Ntlm.writeShort(challenge, 40, TARGET_INFO.length);
+        Ntlm.writeShort(challenge, 42, TARGET_INFO.length);
+        Ntlm.writeInt(challenge, 44, 48);
+        System.arraycopy(TARGET_INFO, 0, challenge, 48, TARGET_INFO.length);
+
+        final byte[] authenticate = ntlm.authenticate(challenge, CLIENT_CHALLENGE, 0);
+        Assertions.assertEquals(3, Ntlm.readInt(authenticate, 8));
+        Assertions.assertEquals("User", field(authenticate, 36));
+        Assertions.assertEquals("Domain", field(authenticate, 28));
+        Assertions.assertEquals("COMPUTER", field(authenticate, 44));
+        final int ntOffset = Ntlm.readInt(authenticate, 24);
+        Assertions.assertArrayEquals(hex("68cd0ab851e51c96aabc927bebef6a1c"),
+                Arrays.copyOfRange(authenticate, ntOffset, ntOffset + 16));
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ntlm.authenticate(negotiate));
+    }
+
+    @Test
+    public void testSameCredentials() {
+        final Ntlm ntlm = new Ntlm("Domain\\User", "Password", "COMPUTER");
+        Assertions.assertTrue(ntlm.sameCredentials(new Ntlm("Domain\\User", "Password", "COMPUTER")));
+        Assertions.assertFalse(ntlm.sameCredentials(new Ntlm("Domain\\User", "Changed", "COMPUTER")));
+        Assertions.assertFalse(ntlm.sameCredentials(new Ntlm("Domain\\Other", "Password", "COMPUTER")));
+        Assertions.assertFalse(ntlm.sameCredentials(new Ntlm("User", "Password", "COMPUTER")));
+    }
+
+    private static String field(byte[] message, int descriptor) {
+        final int offset = Ntlm.readInt(message, descriptor + 4);
+        return new String(message, offset, Ntlm.readShort(message, descriptor), StandardCharsets.UTF_16LE);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.actions;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import proxyauth.http.Framing;
+import proxyauth.metrics.Metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static proxyauth.Utils.ascii;
+import static proxyauth.Utils.getHeader;
+
+/**
+ * @author Zeckie
+ */
+public class TestResponseCache {
+    private static final List<String> GET = Arrays.asList("GET http://foo/a HTTP/1.1", "Host: foo");
+    private static final String FIFTY = "01234567890123456789012345678901234567890123456789";
+
+    /**
+     * Store a response, as CacheAction / ForwardRequest would
+     */
+    private static void store(ResponseCache cache, List<String> request, String body, String... headers) throws IOException {
+        final List<String> response = Arrays.asList(headers);
+        final ResponseCache.Fill fill = cache.fill(ResponseCache.key(request), request, null, null);
+        fill.addConditions(request);
+        final ByteArrayOutputStream client = new ByteArrayOutputStream();
+        final OutputStream out = fill.capture(client, response, body.length());
+        out.write(ascii(body));
+        fill.complete();
+        Assertions.assertEquals(body, client.toString("US-ASCII"));
+    }
+
+    @Test
+    public void testKey() {
+        Assertions.assertEquals("http://foo/a", ResponseCache.key(GET));
+        Assertions.assertNull(ResponseCache.key(Arrays.asList("CONNECT foo:443 HTTP/1.1")));
+        Assertions.assertNull(ResponseCache.key(Arrays.asList("GET /metrics HTTP/1.1")));
+        Assertions.assertTrue(ResponseCache.canCache(GET));
+        Assertions.assertFalse(ResponseCache.canCache(Arrays.asList("GET http://foo/a HTTP/1.0")));
+        Assertions.assertFalse(ResponseCache.canCache(Arrays.asList("GET http://foo/a HTTP/1.1", "Authorization: x")));
+        Assertions.assertFalse(ResponseCache.canCache(Arrays.asList("GET http://foo/a HTTP/1.1", "Cache-Control: no-store")));
+        Assertions.assertFalse(ResponseCache.canCache(Arrays.asList("POST http://foo/a HTTP/1.1", "Content-Length: 1")));
+        Assertions.assertTrue(ResponseCache.isUnsafe("POST"));
+        Assertions.assertFalse(ResponseCache.isUnsafe("HEAD"));
+    }
+
+    @Test
+    public void testLifetime() {
+        final long date = ResponseCache.parseDate("Sun, 06 Nov 1994 08:49:37 GMT");
+        Assertions.assertEquals(784111777000L, date);
+        Assertions.assertEquals(-1, ResponseCache.parseDate("yesterday"));
+        Assertions.assertEquals(60000, ResponseCache.lifetime(Arrays.asList("HTTP/1.1 200 OK", "Cache-Control: public, max-age=60"), date));
+        Assertions.assertEquals(10000, ResponseCache.lifetime(Arrays.asList("HTTP/1.1 200 OK", "Cache-Control: max-age=60, s-maxage=10"), date));
+        Assertions.assertEquals(0, ResponseCache.lifetime(Arrays.asList("HTTP/1.1 200 OK", "Cache-Control: no-cache, max-age=60"), date));
+        Assertions.assertEquals(3600000, ResponseCache.lifetime(Arrays.asList("HTTP/1.1 200 OK", "Expires: Sun, 06 Nov 1994 09:49:37 GMT"), date));
+        Assertions.assertEquals(0, ResponseCache.lifetime(Arrays.asList("HTTP/1.1 200 OK", "Expires: 0"), date));
+        // Heuristic: 10% of the time since it was last modified
+        Assertions.assertEquals(360000, ResponseCache.lifetime(Arrays.asList("HTTP/1.1 200 OK", "Last-Modified: Sun, 06 Nov 1994 07:49:37 GMT"), date));
+        Assertions.assertEquals(0, ResponseCache.lifetime(Arrays.asList("HTTP/1.1 200 OK"), date));
+        Assertions.assertEquals("a b", ResponseCache.directive(Arrays.asList("HTTP/1.1 200 OK", "Cache-Control: private=\"a b\""), "private"));
+    }
+
+    @Test
+    public void testHit() throws IOException {
+        final Metrics metrics = new Metrics();
+        final ResponseCache cache = new ResponseCache(10000, 1000, metrics);
+        store(cache, GET, "hello", "HTTP/1.1 200 OK", "Cache-Control: max-age=60", "Content-Length: 5",
+                "Connection: keep-alive", "Age: 2");
+        final ResponseCache.Entry entry = cache.get("http://foo/a", GET);
+        Assertions.assertNotNull(entry);
+        Assertions.assertEquals("hello", new String(entry.getBody(), "US-ASCII"));
+        final long now = System.currentTimeMillis();
+        Assertions.assertTrue(ResponseCache.isFresh(entry, GET, now));
+        Assertions.assertFalse(ResponseCache.isFresh(entry, Arrays.asList("GET http://foo/a HTTP/1.1", "Cache-Control: no-cache"), now));
+        Assertions.assertFalse(ResponseCache.isFresh(entry, Arrays.asList("GET http://foo/a HTTP/1.1", "Pragma: no-cache"), now));
+        Assertions.assertFalse(ResponseCache.isFresh(entry, Arrays.asList("GET http://foo/a HTTP/1.1", "Cache-Control: max-age=1"), now));
+        Assertions.assertFalse(ResponseCache.isFresh(entry, GET, now + 60000));
+
+        // Connection headers aren't stored, and the age includes the Age received
+        final List<String> headers = entry.responseHeaders(now);
+        Assertions.assertNull(getHeader(headers, "Connection"));
+        Assertions.assertEquals("2", getHeader(headers, "Age"));
+        Assertions.assertEquals(entry.size, cache.getBytes());
+        Assertions.assertEquals(entry.size, metrics.cacheBytes.sum());
+    }
+
+    @Test
+    public void testNotStored() throws IOException {
+        final ResponseCache cache = new ResponseCache(10000, 10, new Metrics());
+        store(cache, GET, "hello", "HTTP/1.1 200 OK", "Cache-Control: no-store", "Content-Length: 5");
+        store(cache, GET, "hello", "HTTP/1.1 200 OK", "Cache-Control: private, max-age=60", "Content-Length: 5");
+        store(cache, GET, "hello", "HTTP/1.1 500 Error", "Cache-Control: max-age=60", "Content-Length: 5");
+        store(cache, GET, "hello", "HTTP/1.1 200 OK", "Content-Length: 5");
+        store(cache, GET, "hello", "HTTP/1.1 200 OK", "Vary: *", "ETag: \"1\"");
+        // Too large (including headers)
+        store(cache, GET, "hello", "HTTP/1.1 200 OK", "Cache-Control: max-age=60", "Content-Length: 5");
+        Assertions.assertEquals(0, cache.size());
+
+        // Until the connection is closed, so can't tell if it is complete
+        final ResponseCache.Fill fill = cache.fill("http://foo/a", GET, null, null);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assertions.assertSame(out, fill.capture(out, Arrays.asList("HTTP/1.1 200 OK", "ETag: \"1\""), Framing.UNTIL_CLOSE));
+    }
+
+    @Test
+    public void testVary() throws IOException {
+        final ResponseCache cache = new ResponseCache(10000, 1000, new Metrics());
+        final List<String> gzip = Arrays.asList("GET http://foo/a HTTP/1.1", "Accept-Encoding: gzip");
+        store(cache, gzip, "hello", "HTTP/1.1 200 OK", "Cache-Control: max-age=60", "Vary: Accept-Encoding");
+        Assertions.assertNotNull(cache.get("http://foo/a", gzip));
+        Assertions.assertNull(cache.get("http://foo/a", GET));
+        Assertions.assertNull(cache.get("http://foo/a", Arrays.asList("GET http://foo/a HTTP/1.1", "Accept-Encoding: br")));
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+        final Metrics metrics = new Metrics();
+        final ResponseCache cache = new ResponseCache(350, 1000, metrics);
+        for (String path : new String[]{"a", "b", "c"}) {
+            store(cache, Arrays.asList("GET http://foo/" + path + " HTTP/1.1"), FIFTY,
+                    "HTTP/1.1 200 OK", "Cache-Control: max-age=60", "Content-Length: 50");
+        }
+        // Use a, so that b is the least recently used
+        Assertions.assertNotNull(cache.get("http://foo/a", GET));
+        store(cache, Arrays.asList("GET http://foo/d HTTP/1.1"), FIFTY,
+                "HTTP/1.1 200 OK", "Cache-Control: max-age=60", "Content-Length: 50");
+        Assertions.assertEquals(1, metrics.cacheEvictions.sum());
+        Assertions.assertNull(cache.get("http://foo/b", GET));
+        Assertions.assertNotNull(cache.get("http://foo/a", GET));
+        Assertions.assertNotNull(cache.get("http://foo/c", GET));
+        Assertions.assertNotNull(cache.get("http://foo/d", GET));
+        Assertions.assertTrue(cache.getBytes() <= 350);
+        Assertions.assertEquals(cache.getBytes(), metrics.cacheBytes.sum());
+
+        cache.remove("http://foo/a");
+        Assertions.assertNull(cache.get("http://foo/a", GET));
+        Assertions.assertEquals(cache.getBytes(), metrics.cacheBytes.sum());
+    }
+
+    @Test
+    public void testRevalidate() throws IOException {
+        final Metrics metrics = new Metrics();
+        final ResponseCache cache = new ResponseCache(10000, 1000, metrics);
+        store(cache, GET, "hello", "HTTP/1.1 200 OK", "ETag: \"v1\"", "Cache-Control: no-cache", "Content-Length: 5");
+        final ResponseCache.Entry stale = cache.get("http://foo/a", GET);
+        Assertions.assertFalse(ResponseCache.isFresh(stale, GET, System.currentTimeMillis()));
+        Assertions.assertTrue(stale.hasValidator());
+
+        final ResponseCache.Fill fill = cache.fill("http://foo/a", GET, stale, null);
+        Assertions.assertEquals("\"v1\"", getHeader(fill.addConditions(GET), "If-None-Match"));
+        Assertions.assertNull(fill.notModified(Arrays.asList("HTTP/1.1 200 OK")));
+        final ResponseCache.Entry refreshed = fill.notModified(
+                Arrays.asList("HTTP/1.1 304 Not Modified", "ETag: \"v1\"", "Cache-Control: max-age=60"));
+        Assertions.assertNotNull(refreshed);
+        Assertions.assertEquals("hello", new String(refreshed.getBody(), "US-ASCII"));
+        Assertions.assertEquals("max-age=60", getHeader(refreshed.headers, "Cache-Control"));
+        Assertions.assertEquals("5", getHeader(refreshed.headers, "Content-Length"));
+        Assertions.assertTrue(ResponseCache.isFresh(cache.get("http://foo/a", GET), GET, System.currentTimeMillis()));
+        Assertions.assertEquals(1, metrics.cacheRevalidated.sum());
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.actions;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static proxyauth.Utils.ascii;
+
+/**
+ * @author Zeckie
+ */
+public class TestSharedResponse {
+    private static final List<String> REQUEST = Arrays.asList("GET http://foo/a HTTP/1.1");
+    private static final List<String> RESPONSE = Arrays.asList("HTTP/1.1 200 OK", "Content-Length: 10");
+
+    private static String readAll(SharedResponse.Reader reader) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[3];
+        int read;
+        while ((read = reader.read(buf)) != -1) out.write(buf, 0, read);
+        return out.toString("US-ASCII");
+    }
+
+    @Test
+    public void testLateJoiner() throws IOException {
+        final SharedResponse shared = new SharedResponse(REQUEST, 100, 1000);
+        final SharedResponse.Reader early = shared.join();
+        shared.start(RESPONSE);
+        shared.write(ascii("01234"), 0, 5);
+        // Joins after some of the body was written, but still gets all of it
+        final SharedResponse.Reader late = shared.join();
+        Assertions.assertEquals(RESPONSE, late.awaitHeaders());
+        shared.write(ascii("56789"), 0, 5);
+        shared.finish();
+        Assertions.assertEquals("0123456789", readAll(early));
+        Assertions.assertEquals("0123456789", readAll(late));
+        Assertions.assertNull(shared.join());
+    }
+
+    @Test
+    public void testBounded() throws IOException, InterruptedException {
+        final SharedResponse shared = new SharedResponse(REQUEST, 4, 5000);
+        final SharedResponse.Reader reader = shared.join();
+        shared.start(RESPONSE);
+        final StringBuilder received = new StringBuilder();
+        final Thread follower = new Thread(() -> {
+            try {
+                received.append(readAll(reader));
+            } catch (IOException e) {
+                received.append(e);
+            }
+        });
+        follower.start();
+        // More than the buffer holds, so the leader has to wait for the follower
+        for (int i = 0; i < 10; i++) shared.write(ascii(Integer.toString(i)), 0, 1);
+        Assertions.assertNull(shared.join(), "can't join once the start of the body has been discarded");
+        shared.finish();
+        follower.join();
+        Assertions.assertEquals("0123456789", received.toString());
+    }
+
+    @Test
+    public void testSlowFollowerDropped() throws IOException {
+        final SharedResponse shared = new SharedResponse(REQUEST, 4, 5000, 50);
+        final SharedResponse.Reader reader = shared.join();
+        shared.start(RESPONSE);
+        shared.write(ascii("0123"), 0, 4);
+        // The follower isn't reading, so is dropped after the lag limit (not the much longer timeout)
+        final long start = System.nanoTime();
+        shared.write(ascii("4567"), 0, 4);
+        Assertions.assertTrue(System.nanoTime() - start < 5_000_000_000L);
+        shared.finish();
+        Assertions.assertThrows(IOException.class, () -> readAll(reader));
+    }
+
+    /**
+     * Only the follower that is holding up the others is dropped
+     */
+    @Test
+    public void testOnlySlowFollowerDropped() throws IOException, InterruptedException {
+        final SharedResponse shared = new SharedResponse(REQUEST, 4, 5000, 50);
+        final SharedResponse.Reader slow = shared.join();
+        final SharedResponse.Reader fast = shared.join();
+        shared.start(RESPONSE);
+        final StringBuilder received = new StringBuilder();
+        final Thread follower = new Thread(() -> {
+            try {
+                received.append(readAll(fast));
+            } catch (IOException e) {
+                received.append(e);
+            }
+        });
+        follower.start();
+        for (int i = 0; i < 10; i++) shared.write(ascii(Integer.toString(i)), 0, 1);
+        shared.finish();
+        follower.join();
+        Assertions.assertEquals("0123456789", received.toString());
+        Assertions.assertThrows(IOException.class, () -> readAll(slow));
+    }
+
+    @Test
+    public void testLeaderFails() throws IOException {
+        final SharedResponse notShared = new SharedResponse(REQUEST, 100, 1000);
+        final SharedResponse.Reader waiting = notShared.join();
+        notShared.close();
+        Assertions.assertNull(waiting.awaitHeaders(), "follower should send its own request");
+
+        final SharedResponse failed = new SharedResponse(REQUEST, 100, 1000);
+        final SharedResponse.Reader reader = failed.join();
+        failed.start(RESPONSE);
+        failed.write(ascii("01234"), 0, 5);
+        failed.close();
+        Assertions.assertEquals(RESPONSE, reader.awaitHeaders());
+        Assertions.assertThrows(IOException.class, () -> readAll(reader));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.actions;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * @author Zeckie
+ */
+public class TestUpstreamResolver {
+
+    @Test
+    public void testInterleave() throws IOException {
+        InetAddress v4a = InetAddress.getByName("10.0.0.1");
+        InetAddress v4b = InetAddress.getByName("10.0.0.2");
+        InetAddress v4c = InetAddress.getByName("10.0.0.3");
+        InetAddress v6a = InetAddress.getByName("fd00::1");
+        Assertions.assertEquals(Arrays.asList(v4a, v6a, v4b, v4c),
+                UpstreamResolver.interleave(new InetAddress[]{v4a, v4b, v6a, v4c}));
+        Assertions.assertEquals(Arrays.asList(v6a, v4a, v4b),
+                UpstreamResolver.interleave(new InetAddress[]{v6a, v4a, v4b}));
+    }
+
+    @Timeout(10000L)
+    @Test
+    public void testConnect() throws IOException {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.1.1"));
+             UpstreamResolver resolver = new UpstreamResolver("127.0.1.1", server.getLocalPort(), 60000, 100)) {
+            Assertions.assertEquals(server.getLocalPort(), resolver.getAddress().getPort());
+            try (Socket socket = resolver.connect(5000)) {
+                Assertions.assertNotNull(socket.getChannel());
+                Assertions.assertTrue(socket.getChannel().isBlocking());
+                Assertions.assertEquals(server.getLocalSocketAddress(), socket.getRemoteSocketAddress());
+            }
+        }
+    }
+
+    /**
+     * A timeout of 0 means no limit, not giving up straight away
+     */
+    @Timeout(10000L)
+    @Test
+    public void testNoTimeout() throws IOException {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.1.1"));
+             UpstreamResolver resolver = new UpstreamResolver("127.0.1.1", server.getLocalPort(), 60000, 100, false)) {
+            Assertions.assertNull(resolver.getCachedAddress());
+            try (Socket socket = resolver.connect(0)) {
+                Assertions.assertEquals(server.getLocalSocketAddress(), socket.getRemoteSocketAddress());
+            }
+            Assertions.assertEquals(server.getLocalPort(), resolver.getCachedAddress().getPort());
+        }
+    }
+
+    @Timeout(10000L)
+    @Test
+    public void testRefused() throws IOException {
+        int port;
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.1.1"))) {
+            port = server.getLocalPort();
+        }
+        try (UpstreamResolver resolver = new UpstreamResolver("127.0.1.1", port, 60000, 100)) {
+            Assertions.assertThrows(ConnectException.class, () -> resolver.connect(5000));
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.actions;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import proxyauth.conf.Balance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author Zeckie
+ */
+public class TestUpstreamSelector {
+
+    private static List<Upstream> upstreams(int count) {
+        List<Upstream> upstreams = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            upstreams.add(new Upstream(new UpstreamResolver("proxy" + i, 8080, 0, 100)));
+        }
+        return upstreams;
+    }
+
+    @Test
+    public void testRoundRobin() {
+        List<Upstream> upstreams = upstreams(3);
+        UpstreamSelector selector = UpstreamSelector.create(Balance.ROUND_ROBIN, upstreams);
+        for (int i = 0; i < 6; i++) {
+            Assertions.assertSame(upstreams.get(i % 3), selector.select(upstreams, "foo"));
+        }
+    }
+
+    @Test
+    public void testLeastActive() {
+        List<Upstream> upstreams = upstreams(3);
+        UpstreamSelector selector = UpstreamSelector.create(Balance.LEAST_ACTIVE, upstreams);
+        upstreams.get(0).started();
+        upstreams.get(2).started();
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertSame(upstreams.get(1), selector.select(upstreams, "foo"));
+        }
+    }
+
+    @Test
+    public void testFastest() {
+        List<Upstream> upstreams = upstreams(3);
+        UpstreamSelector selector = UpstreamSelector.create(Balance.FASTEST, upstreams);
+        upstreams.get(0).recordTtfb(3_000_000);
+        upstreams.get(1).recordTtfb(1_000_000);
+        upstreams.get(2).recordTtfb(9_000_000);
+        Assertions.assertSame(upstreams.get(1), selector.select(upstreams, "foo"));
+
+        // Slow samples move the average
+        for (int i = 0; i < 10; i++) upstreams.get(1).recordTtfb(20_000_000);
+        Assertions.assertSame(upstreams.get(0), selector.select(upstreams, "foo"));
+
+        // Busy upstreams are weighted down
+        upstreams.get(0).started();
+        upstreams.get(0).started();
+        upstreams.get(0).started();
+        Assertions.assertSame(upstreams.get(2), selector.select(upstreams, "foo"));
+    }
+
+    @Test
+    public void testHash() {
+        List<Upstream> upstreams = upstreams(4);
+        UpstreamSelector selector = UpstreamSelector.create(Balance.HASH, upstreams);
+        List<String> hosts = new ArrayList<>();
+        for (int i = 0; i < 200; i++) hosts.add("host" + i + ".example.com:443");
+
+        List<Upstream> chosen = new ArrayList<>();
+        for (String host : hosts) {
+            Upstream upstream = selector.select(upstreams, host);
+            Assertions.assertSame(upstream, selector.select(upstreams, host.toUpperCase()), "Same host, same upstream");
+            chosen.add(upstream);
+        }
+        for (Upstream upstream : upstreams) {
+            Assertions.assertTrue(Collections.frequency(chosen, upstream) > 10, "Spread across upstreams");
+        }
+
+        // Without one upstream, only its hosts move
+        List<Upstream> remaining = new ArrayList<>(upstreams);
+        Upstream removed = remaining.remove(2);
+        for (int i = 0; i < hosts.size(); i++) {
+            Upstream upstream = selector.select(remaining, hosts.get(i));
+            if (chosen.get(i) != removed) Assertions.assertSame(chosen.get(i), upstream);
+        }
+    }
+
+    @Test
+    public void testTargetHost() {
+        Assertions.assertEquals("foo:443", ForwardAction.targetHost(Arrays.asList("CONNECT foo:443 HTTP/1.1")));
+        Assertions.assertEquals("foo:8080", ForwardAction.targetHost(Arrays.asList("GET http://foo:8080/bar?x HTTP/1.1")));
+        Assertions.assertEquals("foo", ForwardAction.targetHost(Arrays.asList("GET http://foo?x HTTP/1.1")));
+        Assertions.assertEquals("bar", ForwardAction.targetHost(Arrays.asList("GET / HTTP/1.1", "Host: bar")));
+    }
+}
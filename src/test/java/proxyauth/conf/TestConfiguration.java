@@ -24,6 +24,7 @@ package proxyauth.conf;
 import org.junit.jupiter.api.Test;
 
 import java.util.Map;
+import java.util.Properties;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertSame;
@@ -50,4 +51,37 @@ public class TestConfiguration {
         // This should not be a local address
         assertThrows(InvalidSettingException.class, () -> config.LISTEN_ADDRESS.setString("1.1.1.1"));
     }
+
+    @Test
+    public void testReload() {
+        config.USERNAME.setValue("foo");
+        config.PASSWORD.setValue("bar");
+        config.UPSTREAM_PROXY_HOST.setValue("upstream");
+        final Properties props = new Properties();
+        props.setProperty("PASSWORD", "changed");
+        props.setProperty("SOCKET_TIMEOUT", "1234");
+        // Needs a restart, so ignored
+        props.setProperty("UPSTREAM_PROXY_HOST", "other");
+        props.setProperty("BUF_SIZE", "4096");
+
+        final Configuration reloaded = config.reload(props);
+        assertEquals("foo", reloaded.USERNAME.getValue());
+        assertEquals("changed", reloaded.PASSWORD.getValue());
+        assertEquals(1234, (int) reloaded.SOCKET_TIMEOUT.getValue());
+        assertEquals("upstream", reloaded.UPSTREAM_PROXY_HOST.getValue());
+        assertEquals(1024, (int) reloaded.BUF_SIZE.getValue());
+        // The original is unchanged, for requests still using it
+        assertEquals("bar", config.PASSWORD.getValue());
+
+        final Snapshot settings = reloaded.snapshot();
+        assertEquals(1234, settings.socketTimeout);
+        assertEquals("Proxy-Authorization: Basic Zm9vOmNoYW5nZWQ=", settings.authorization);
+    }
+
+    @Test
+    public void testReloadInvalid() {
+        final Properties props = new Properties();
+        props.setProperty("SOCKET_TIMEOUT", "soon");
+        assertThrows(IllegalArgumentException.class, () -> config.reload(props));
+    }
 }
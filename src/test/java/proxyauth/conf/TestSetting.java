@@ -55,4 +55,13 @@ public class TestSetting {
         });
     }
 
+    @Test
+    public void testSettingEnum() {
+        Setting<Engine> setting = new Setting<>(Engine.THREADS, Converter.forEnum(Engine.class), false, "Test enum", null, null, null);
+        setting.setString("nio");
+        Assertions.assertEquals(Engine.NIO, setting.getValue());
+        Assertions.assertEquals("NIO", setting.toUserString());
+        assertThrows(InvalidSettingException.class, () -> setting.setString("Foo"));
+    }
+
 }
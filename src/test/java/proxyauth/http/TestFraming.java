@@ -0,0 +1,125 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.http;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Zeckie
+ */
+public class TestFraming {
+
+    private static List<String> headers(String... lines) {
+        return Arrays.asList(lines);
+    }
+
+    @Test
+    public void testRequestBodyLength() {
+        Assertions.assertEquals(0, Framing.requestBodyLength(headers("GET http://foo/ HTTP/1.1", "Host: foo")));
+        Assertions.assertEquals(12, Framing.requestBodyLength(headers("POST http://foo/ HTTP/1.1", "content-length: 12")));
+        Assertions.assertEquals(Framing.CHUNKED, Framing.requestBodyLength(headers("POST http://foo/ HTTP/1.1", "Transfer-Encoding: gzip, chunked", "Content-Length: 12")));
+        Assertions.assertEquals(Framing.UNTIL_CLOSE, Framing.requestBodyLength(headers("POST http://foo/ HTTP/1.1", "Content-Length: x")));
+    }
+
+    @Test
+    public void testCheckRequest() {
+        Assertions.assertNull(Framing.checkRequest(headers("GET http://foo/ HTTP/1.1", "Host: foo")));
+        Assertions.assertNull(Framing.checkRequest(headers("POST http://foo/ HTTP/1.1", "Content-Length: 12")));
+        Assertions.assertNull(Framing.checkRequest(headers("POST http://foo/ HTTP/1.1", "Transfer-Encoding: gzip, Chunked")));
+        Assertions.assertNull(Framing.checkRequest(headers("POST http://foo/ HTTP/1.1", "Transfer-Encoding: gzip", "Transfer-Encoding: chunked")));
+    }
+
+    @Test
+    public void testCheckRequestBothLengths() {
+        Assertions.assertNotNull(Framing.checkRequest(headers("POST http://foo/ HTTP/1.1", "Transfer-Encoding: chunked", "Content-Length: 12")));
+        Assertions.assertNotNull(Framing.checkRequest(headers("POST http://foo/ HTTP/1.1", "content-length: 12", "transfer-encoding: chunked")));
+    }
+
+    @Test
+    public void testCheckRequestRepeatedLength() {
+        Assertions.assertNotNull(Framing.checkRequest(headers("POST http://foo/ HTTP/1.1", "Content-Length: 12", "Content-Length: 5")));
+        Assertions.assertNotNull(Framing.checkRequest(headers("POST http://foo/ HTTP/1.1", "Content-Length: 5", "Content-Length: 5")));
+        Assertions.assertNotNull(Framing.checkRequest(headers("POST http://foo/ HTTP/1.1", "Content-Length: 5, 5")));
+    }
+
+    @Test
+    public void testCheckRequestInvalidLength() {
+        Assertions.assertNotNull(Framing.checkRequest(headers("POST http://foo/ HTTP/1.1", "Content-Length: x")));
+        Assertions.assertNotNull(Framing.checkRequest(headers("POST http://foo/ HTTP/1.1", "Content-Length: -5")));
+        Assertions.assertNotNull(Framing.checkRequest(headers("POST http://foo/ HTTP/1.1", "Content-Length: +5")));
+        Assertions.assertNotNull(Framing.checkRequest(headers("POST http://foo/ HTTP/1.1", "Content-Length:")));
+        Assertions.assertNotNull(Framing.checkRequest(headers("POST http://foo/ HTTP/1.1", "Content-Length: 99999999999999999999")));
+    }
+
+    @Test
+    public void testCheckRequestNotChunked() {
+        Assertions.assertNotNull(Framing.checkRequest(headers("POST http://foo/ HTTP/1.1", "Transfer-Encoding: gzip")));
+        Assertions.assertNotNull(Framing.checkRequest(headers("POST http://foo/ HTTP/1.1", "Transfer-Encoding: chunked, gzip")));
+        Assertions.assertNotNull(Framing.checkRequest(headers("POST http://foo/ HTTP/1.1", "Transfer-Encoding: xchunked")));
+    }
+
+    @Test
+    public void testIsChunked() {
+        Assertions.assertTrue(Framing.isChunked("chunked"));
+        Assertions.assertTrue(Framing.isChunked(" gzip , CHUNKED "));
+        Assertions.assertFalse(Framing.isChunked("xchunked"));
+        Assertions.assertFalse(Framing.isChunked("gzip, x-chunked"));
+        Assertions.assertFalse(Framing.isChunked("chunked, gzip"));
+        Assertions.assertFalse(Framing.isChunked(""));
+    }
+
+    @Test
+    public void testResponseBodyLength() {
+        Assertions.assertEquals(5, Framing.responseBodyLength("GET", headers("HTTP/1.1 200 OK", "Content-Length: 5")));
+        Assertions.assertEquals(0, Framing.responseBodyLength("HEAD", headers("HTTP/1.1 200 OK", "Content-Length: 5")));
+        Assertions.assertEquals(0, Framing.responseBodyLength("GET", headers("HTTP/1.1 204 No Content")));
+        Assertions.assertEquals(0, Framing.responseBodyLength("GET", headers("HTTP/1.1 304 Not Modified", "Content-Length: 5")));
+        Assertions.assertEquals(0, Framing.responseBodyLength("POST", headers("HTTP/1.1 100 Continue")));
+        Assertions.assertEquals(Framing.CHUNKED, Framing.responseBodyLength("GET", headers("HTTP/1.1 200 OK", "Transfer-Encoding: chunked")));
+        Assertions.assertEquals(Framing.UNTIL_CLOSE, Framing.responseBodyLength("GET", headers("HTTP/1.1 200 OK")));
+        Assertions.assertEquals(Framing.CHUNKED, Framing.responseBodyLength("GET", headers("HTTP/1.1 200 OK", "Content-Length: 5", "Transfer-Encoding: chunked")));
+        Assertions.assertEquals(Framing.UNTIL_CLOSE, Framing.responseBodyLength("GET", headers("HTTP/1.1 200 OK", "Transfer-Encoding: xchunked")));
+        Assertions.assertEquals(5, Framing.responseBodyLength("GET", headers("HTTP/1.1 200 OK", "Content-Length: 5", "Content-Length: 5")));
+        Assertions.assertEquals(Framing.UNTIL_CLOSE, Framing.responseBodyLength("GET", headers("HTTP/1.1 200 OK", "Content-Length: 5", "Content-Length: 6")));
+        Assertions.assertEquals(Framing.UNTIL_CLOSE, Framing.responseBodyLength("GET", headers("HTTP/1.1 200 OK", "Content-Length: +5")));
+    }
+
+    @Test
+    public void testKeepAlive() {
+        Assertions.assertTrue(Framing.isKeepAlive(headers("GET http://foo/ HTTP/1.1")));
+        Assertions.assertFalse(Framing.isKeepAlive(headers("GET http://foo/ HTTP/1.1", "Connection: Close")));
+        Assertions.assertFalse(Framing.isKeepAlive(headers("GET http://foo/ HTTP/1.0")));
+        Assertions.assertTrue(Framing.isKeepAlive(headers("GET http://foo/ HTTP/1.0", "Proxy-Connection: Keep-Alive")));
+        Assertions.assertTrue(Framing.isKeepAlive(headers("HTTP/1.1 200 OK")));
+        Assertions.assertFalse(Framing.isKeepAlive(headers("HTTP/1.0 200 OK")));
+    }
+
+    @Test
+    public void testParseLines() {
+        Assertions.assertEquals(404, Framing.statusCode("HTTP/1.1 404 Not Found"));
+        Assertions.assertEquals(-1, Framing.statusCode("garbage"));
+        Assertions.assertEquals("POST", Framing.method("POST http://foo/ HTTP/1.1"));
+    }
+}
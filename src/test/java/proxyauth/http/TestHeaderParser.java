@@ -0,0 +1,113 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.http;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import proxyauth.BufferPool;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static proxyauth.Utils.ASCII;
+
+/**
+ * @author Zeckie
+ */
+public class TestHeaderParser {
+
+    /**
+     * Stream that returns at most a few bytes per read, like a slow network connection
+     */
+    private static InputStream trickle(String content, int maxRead) {
+        return new ByteArrayInputStream(content.getBytes(ASCII)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, maxRead));
+            }
+        };
+    }
+
+    @Test
+    public void testParse() throws IOException {
+        HttpInput in = new HttpInput(trickle("GET http://foo:80/ HTTP/1.1\r\nHost: foo\r\nX-Thing:  a: b \r\n\r\nbody", 1000), 100);
+        HttpHeaders headers = new HeaderParser(new BufferPool(100, 1, false), 1000).parse(in, false);
+        Assertions.assertEquals(Arrays.asList("GET http://foo:80/ HTTP/1.1", "Host: foo", "X-Thing:  a: b "), headers);
+        Assertions.assertEquals("foo", headers.value("HOST"));
+        Assertions.assertEquals("a: b", headers.value("x-thing"));
+        Assertions.assertNull(headers.value("Hos"));
+
+        // Bytes after the headers are kept
+        Assertions.assertEquals("body", new String(in.readAllBytes(), ASCII));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        headers.writeTo(out);
+        Assertions.assertEquals("GET http://foo:80/ HTTP/1.1\r\nHost: foo\r\nX-Thing:  a: b \r\n\r\n", out.toString("US-ASCII"));
+    }
+
+    @Test
+    public void testSpanningReads() throws IOException {
+        final StringBuilder cookie = new StringBuilder("Cookie: ");
+        for (int i = 0; i < 300; i++) cookie.append("x");
+        final String message = "\r\nGET / HTTP/1.1\n" + cookie + "\nFoo: bar\n\nGET / HTTP/1.1\r\n\r\n";
+        BufferPool segments = new BufferPool(64, 10, false);
+        HeaderParser parser = new HeaderParser(segments, 1000);
+        HttpInput in = new HttpInput(trickle(message, 7), 16);
+
+        HttpHeaders headers = parser.parse(in, false);
+        Assertions.assertEquals(Arrays.asList("GET / HTTP/1.1", cookie.toString(), "Foo: bar"), headers);
+        Assertions.assertEquals("bar", headers.value("foo"));
+        // 334 bytes of headers, in 64 byte segments
+        Assertions.assertEquals(6, segments.getFreeCount(), "Segments returned to pool");
+
+        Assertions.assertEquals(1, parser.parse(in, false).size());
+        Assertions.assertNull(parser.parse(in, true));
+        Assertions.assertThrows(IOException.class, () -> parser.parse(in, false));
+    }
+
+    @Test
+    public void testMaxSize() {
+        HeaderParser parser = new HeaderParser(new BufferPool(64, 10, false), 100);
+        final StringBuilder message = new StringBuilder("GET / HTTP/1.1\r\n");
+        for (int i = 0; i < 10; i++) message.append("Foo: 0123456789\r\n");
+        message.append("\r\n");
+        HttpInput in = new HttpInput(trickle(message.toString(), 10), 16);
+        Assertions.assertThrows(IOException.class, () -> parser.parse(in, false));
+    }
+
+    @Test
+    public void testScanner() {
+        final byte[] data = "GET / HTTP/1.1\r\nHost: foo\n\r\nbody".getBytes(ASCII);
+        final int end = "GET / HTTP/1.1\r\nHost: foo\n\r\n".length();
+        // One byte at a time, as from a slow client
+        final HeaderParser.Scanner scanner = new HeaderParser.Scanner();
+        int found = -1;
+        for (int i = 0; i < data.length && found == -1; i++) {
+            found = scanner.scan(data, i, i + 1);
+        }
+        Assertions.assertEquals(end, found);
+        Assertions.assertEquals(end, new HeaderParser.Scanner().scan(data, 0, data.length));
+        Assertions.assertEquals(-1, new HeaderParser.Scanner().scan(data, 0, end - 1));
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.metrics;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Zeckie
+ */
+public class TestHistogram {
+
+    @Test
+    public void testBuckets() {
+        Assertions.assertEquals(0, Histogram.index(0));
+        Assertions.assertEquals(0, Histogram.index(1));
+        Assertions.assertEquals(1, Histogram.upperBound(0));
+        int previous = 0;
+        for (long micros = 1; micros < 100_000; micros++) {
+            final int index = Histogram.index(micros);
+            Assertions.assertTrue(index == previous || index == previous + 1, "micros=" + micros);
+            Assertions.assertTrue(micros <= Histogram.upperBound(index), "micros=" + micros);
+            if (index > 0) Assertions.assertTrue(micros > Histogram.upperBound(index - 1), "micros=" + micros);
+            previous = index;
+        }
+        // Within 25%
+        for (int i = Histogram.SUB_BUCKETS; i < Histogram.BUCKETS - 1; i++) {
+            final long lower = Histogram.upperBound(i - 1);
+            Assertions.assertTrue(Histogram.upperBound(i) - lower <= lower / 4 + 1, "bucket " + i);
+        }
+        Assertions.assertEquals(Histogram.BUCKETS - 1, Histogram.index(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testPrometheus() {
+        final Histogram histogram = new Histogram();
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(3));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+        histogram.record(TimeUnit.DAYS.toNanos(1));
+        Assertions.assertEquals(4, histogram.count());
+
+        final StringBuilder sb = new StringBuilder();
+        histogram.appendTo(sb, "test_seconds", "Test");
+        final String text = sb.toString();
+        Assertions.assertTrue(text.contains("# TYPE test_seconds histogram\n"), text);
+        Assertions.assertTrue(text.contains("test_seconds_bucket{le=\"0.000001\"} 0\n"), text);
+        Assertions.assertTrue(text.contains("test_seconds_bucket{le=\"0.000003\"} 1\n"), text);
+        Assertions.assertTrue(text.contains("test_seconds_bucket{le=\"0.001024\"} 3\n"), text);
+        Assertions.assertTrue(text.contains("test_seconds_bucket{le=\"+Inf\"} 4\n"), text);
+        Assertions.assertTrue(text.contains("test_seconds_sum 86400.002003\n"), text);
+        Assertions.assertTrue(text.contains("test_seconds_count 4\n"), text);
+    }
+}
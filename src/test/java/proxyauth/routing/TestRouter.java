@@ -0,0 +1,111 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.routing;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import proxyauth.conf.RouteType;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * @author Zeckie
+ */
+public class TestRouter {
+
+    private static Router router(String rules) {
+        return new Router(Router.parse(rules), rule -> null);
+    }
+
+    private static String match(Router router, String requestLine) {
+        final Router.Rule rule = router.match(Collections.singletonList(requestLine));
+        return rule == null ? null : rule.toString();
+    }
+
+    @Test
+    public void testHosts() {
+        final Router router = router("*.example.com=CLOSE; www.example.com=ECHO; example.com = FORWARD proxy2:8080");
+        Assertions.assertEquals("*.example.com=CLOSE", match(router, "GET http://foo.example.com/ HTTP/1.1"));
+        Assertions.assertEquals("*.example.com=CLOSE", match(router, "GET http://a.b.EXAMPLE.com./ HTTP/1.1"));
+        // The first matching rule is used, even if a later one is more specific
+        Assertions.assertEquals("*.example.com=CLOSE", match(router, "GET http://www.example.com/ HTTP/1.1"));
+        Assertions.assertEquals("example.com = FORWARD proxy2:8080", match(router, "GET http://example.com/ HTTP/1.1"));
+        Assertions.assertNull(match(router, "GET http://example.org/ HTTP/1.1"));
+        Assertions.assertNull(match(router, "GET http://notexample.com/ HTTP/1.1"));
+
+        final Router.Rule rule = Router.parse("example.com = FORWARD proxy2:8080").get(0);
+        Assertions.assertEquals(RouteType.FORWARD, rule.type);
+        Assertions.assertEquals("proxy2:8080", rule.argument);
+    }
+
+    @Test
+    public void testAddresses() {
+        final Router router = router("10.1.0.0/16=ECHO; 10.0.0.0/8=CLOSE; 192.168.1.1=ECHO; [fd00::/8]:443=CLOSE");
+        Assertions.assertEquals("10.1.0.0/16=ECHO", match(router, "GET http://10.1.2.3/ HTTP/1.1"));
+        Assertions.assertEquals("10.0.0.0/8=CLOSE", match(router, "GET http://10.2.2.3:8080/ HTTP/1.1"));
+        Assertions.assertEquals("192.168.1.1=ECHO", match(router, "CONNECT 192.168.1.1:443 HTTP/1.1"));
+        Assertions.assertNull(match(router, "CONNECT 192.168.1.2:443 HTTP/1.1"));
+        Assertions.assertEquals("[fd00::/8]:443=CLOSE", match(router, "CONNECT [fd12::1]:443 HTTP/1.1"));
+        Assertions.assertNull(match(router, "CONNECT [fd12::1]:80 HTTP/1.1"));
+        Assertions.assertNull(match(router, "CONNECT [fe80::1]:443 HTTP/1.1"));
+        // Host names are not resolved
+        Assertions.assertNull(match(router, "GET http://localhost/ HTTP/1.1"));
+    }
+
+    @Test
+    public void testPortsAndMethods() {
+        final Router router = router("CONNECT *.example.com:443=CLOSE; *.example.com:8080=ECHO; POST *=CLOSE; *:25=CLOSE");
+        Assertions.assertEquals("CONNECT *.example.com:443=CLOSE", match(router, "CONNECT www.example.com:443 HTTP/1.1"));
+        Assertions.assertNull(match(router, "GET https://www.example.com/ HTTP/1.1"));
+        Assertions.assertEquals("*.example.com:8080=ECHO", match(router, "GET http://www.example.com:8080/ HTTP/1.1"));
+        Assertions.assertEquals("POST *=CLOSE", match(router, "POST http://www.example.org/ HTTP/1.1"));
+        Assertions.assertEquals("*:25=CLOSE", match(router, "CONNECT 10.0.0.1:25 HTTP/1.1"));
+        Assertions.assertNull(match(router, "GET http://www.example.org/ HTTP/1.1"));
+
+        // Requests that aren't absolute-URI use the Host header
+        Assertions.assertEquals("*.example.com:8080=ECHO",
+                router.match(Arrays.asList("GET / HTTP/1.1", "Host: www.example.com:8080")).toString());
+    }
+
+    @Test
+    public void testManyRules() {
+        final StringBuilder rules = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            rules.append("host").append(i).append(".example.com=CLOSE;10.").append(i / 256).append('.').append(i % 256).append(".0/24=ECHO;");
+        }
+        rules.append("*=FORWARD");
+        final Router router = router(rules.toString());
+        Assertions.assertEquals("host4321.example.com=CLOSE", match(router, "GET http://host4321.example.com/ HTTP/1.1"));
+        Assertions.assertEquals("10.16.225.0/24=ECHO", match(router, "GET http://10.16.225.9/ HTTP/1.1"));
+        Assertions.assertEquals("*=FORWARD", match(router, "GET http://other.example.com/ HTTP/1.1"));
+    }
+
+    @Test
+    public void testInvalid() {
+        for (String rules : new String[]{"example.com", "example.com=FOO", "example.com:0=CLOSE", "10.0.0.0/33=CLOSE",
+                "999.0.0.1=CLOSE", "exa mple.com=CLOSE", "get example.com=CLOSE", "example.com=CLOSE now",
+                "example.com=FORWARD proxy2", "[fd00::=CLOSE"}) {
+            Assertions.assertThrows(IllegalArgumentException.class, () -> Router.parse(rules), rules);
+        }
+        Assertions.assertTrue(Router.parse(" ; ").isEmpty());
+    }
+}
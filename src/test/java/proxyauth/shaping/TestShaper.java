@@ -0,0 +1,79 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.shaping;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import proxyauth.metrics.Metrics;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * @author Zeckie
+ */
+public class TestShaper {
+
+    @Test
+    public void testDisabled() throws IOException {
+        final Shaper shaper = new Shaper(0, 0, 0, 1024, new Metrics());
+        Assertions.assertFalse(shaper.isEnabled());
+        Assertions.assertNull(shaper.throttle(InetAddress.getByName("127.0.0.1"), "example.com", true));
+    }
+
+    @Test
+    public void testPerClient() throws IOException {
+        final Metrics metrics = new Metrics();
+        final Shaper shaper = new Shaper(0, 1000, 0, 100, metrics);
+        final InetAddress client = InetAddress.getByName("127.0.0.1");
+        final Shaper.Throttle first = shaper.throttle(client, "example.com", false);
+        final long now = System.nanoTime();
+        Assertions.assertTrue(first.reserve(100) - now < 50_000_000);
+        // Another connection from the same client shares the limit
+        Assertions.assertTrue(shaper.throttle(client, null, false).reserve(100) - now >= 90_000_000);
+        Assertions.assertEquals(1, metrics.throttled.sum());
+        // Other directions and clients have their own
+        Assertions.assertTrue(shaper.throttle(client, null, true).reserve(100) - now < 50_000_000);
+        Assertions.assertTrue(shaper.throttle(InetAddress.getByName("127.0.0.2"), null, false).reserve(100) - now < 50_000_000);
+        Assertions.assertEquals(2, shaper.size());
+    }
+
+    @Test
+    public void testGlobalAndHost() throws IOException {
+        final Shaper shaper = new Shaper(1000, 0, 1000, 100, null);
+        final long now = System.nanoTime();
+        shaper.throttle(InetAddress.getByName("127.0.0.1"), "Example.com", true).reserve(100);
+        // Same host, with a different case, and the global limit is shared by all
+        Assertions.assertTrue(shaper.throttle(null, "example.COM", true).reserve(10) - now >= 9_000_000);
+        Assertions.assertTrue(shaper.throttle(null, "other.com", true).reserve(10) - now >= 19_000_000);
+        Assertions.assertEquals(2, shaper.size());
+    }
+
+    @Test
+    public void testAcquireWaits() throws IOException {
+        final Shaper shaper = new Shaper(100000, 0, 0, 1000, null);
+        final Shaper.Throttle throttle = shaper.throttle(null, null, true);
+        final long started = System.nanoTime();
+        throttle.acquire(1000);
+        throttle.acquire(5000);
+        Assertions.assertTrue(System.nanoTime() - started >= 45_000_000);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.shaping;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Zeckie
+ */
+public class TestTokenBucket {
+    private static final long MS = 1_000_000;
+
+    @Test
+    public void testBurstThenRate() {
+        // 1000 bytes per second, so each byte is 1ms
+        final long now = System.nanoTime() + 1000 * MS;
+        final TokenBucket bucket = new TokenBucket(1000, 100);
+        Assertions.assertEquals(now, bucket.reserve(60, now));
+        Assertions.assertEquals(now, bucket.reserve(40, now));
+        // Burst used up
+        Assertions.assertEquals(now + 50 * MS, bucket.reserve(50, now));
+        Assertions.assertEquals(now + 60 * MS, bucket.reserve(10, now));
+        Assertions.assertFalse(bucket.isIdle(now));
+        Assertions.assertTrue(bucket.isIdle(now + 160 * MS));
+    }
+
+    @Test
+    public void testRefill() {
+        final long now = System.nanoTime() + 1000 * MS;
+        final TokenBucket bucket = new TokenBucket(1000, 100);
+        Assertions.assertEquals(now + 100 * MS, bucket.reserve(200, now));
+        // 150ms later, 50 bytes have been refilled
+        final long later = now + 150 * MS;
+        Assertions.assertEquals(later, bucket.reserve(50, later));
+        Assertions.assertEquals(later + 10 * MS, bucket.reserve(10, later));
+        // Idle for a long time only refills up to the burst
+        final long much = later + 10_000 * MS;
+        Assertions.assertEquals(much, bucket.reserve(100, much));
+        Assertions.assertEquals(much + 1 * MS, bucket.reserve(1, much));
+    }
+
+    @Test
+    public void testConcurrentReservations() throws InterruptedException {
+        final long now = System.nanoTime() + 1000 * MS;
+        final TokenBucket bucket = new TokenBucket(1_000_000, 1);
+        final AtomicLong latest = new AtomicLong();
+        final Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 10000; j++) latest.accumulateAndGet(bucket.reserve(1, now), Math::max);
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) thread.join();
+        // Every byte (1us each) was counted once
+        Assertions.assertEquals(now + 39999 * 1000, latest.get());
+    }
+}
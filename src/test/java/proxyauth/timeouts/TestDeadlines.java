@@ -0,0 +1,112 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.timeouts;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Zeckie
+ */
+public class TestDeadlines {
+
+    @Test
+    public void testPhase() throws IOException, InterruptedException {
+        try (TimingWheel wheel = new TimingWheel("test", 10, 64);
+             ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(server.getInetAddress(), server.getLocalPort());
+             Socket accepted = server.accept();
+             Socket upstream = new Socket(server.getInetAddress(), server.getLocalPort())) {
+            final LongAdder expired = new LongAdder();
+            final Deadlines deadlines = new Deadlines(wheel, "test", accepted, 0, expired);
+            deadlines.setUpstream(upstream);
+
+            // Ended in time
+            deadlines.start(Deadlines.Phase.HEADERS, 50);
+            deadlines.end();
+            Thread.sleep(150);
+            Assertions.assertFalse(accepted.isClosed());
+
+            deadlines.start(Deadlines.Phase.FIRST_BYTE, 50);
+            Assertions.assertEquals(-1, client.getInputStream().read());
+            Assertions.assertTrue(accepted.isClosed());
+            Assertions.assertTrue(upstream.isClosed());
+            Assertions.assertEquals(Deadlines.Phase.FIRST_BYTE, deadlines.getExpired());
+            Assertions.assertEquals(1, expired.sum());
+        }
+    }
+
+    @Test
+    public void testLifetime() throws IOException {
+        try (TimingWheel wheel = new TimingWheel("test", 10, 64);
+             ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(server.getInetAddress(), server.getLocalPort());
+             Socket accepted = server.accept()) {
+            final Deadlines deadlines = new Deadlines(wheel, "test", accepted, 100, null);
+            // A longer phase doesn't extend the lifetime
+            deadlines.start(Deadlines.Phase.HEADERS, 60000);
+            Assertions.assertEquals(-1, client.getInputStream().read());
+            Assertions.assertEquals(Deadlines.Phase.LIFETIME, deadlines.getExpired());
+        }
+    }
+
+    @Test
+    public void testIdle() throws IOException, InterruptedException {
+        try (TimingWheel wheel = new TimingWheel("test", 10, 64);
+             ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(server.getInetAddress(), server.getLocalPort());
+             Socket accepted = server.accept()) {
+            final AtomicLong bytes = new AtomicLong();
+            final Deadlines deadlines = new Deadlines(wheel, "test", accepted, 0, null);
+            deadlines.startIdle(Deadlines.Phase.TUNNEL_IDLE, 100, bytes::get);
+            // Activity keeps it open
+            for (int i = 0; i < 5; i++) {
+                Thread.sleep(50);
+                bytes.addAndGet(10);
+            }
+            Assertions.assertFalse(accepted.isClosed());
+            Assertions.assertEquals(-1, client.getInputStream().read());
+            Assertions.assertEquals(Deadlines.Phase.TUNNEL_IDLE, deadlines.getExpired());
+        }
+    }
+
+    @Test
+    public void testClose() throws IOException, InterruptedException {
+        try (TimingWheel wheel = new TimingWheel("test", 10, 64);
+             ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(server.getInetAddress(), server.getLocalPort());
+             Socket accepted = server.accept()) {
+            final Deadlines deadlines = new Deadlines(wheel, "test", accepted, 50, null);
+            deadlines.close();
+            Thread.sleep(150);
+            Assertions.assertFalse(accepted.isClosed());
+            Assertions.assertNull(deadlines.getExpired());
+            Assertions.assertEquals(0, wheel.size());
+        }
+    }
+}
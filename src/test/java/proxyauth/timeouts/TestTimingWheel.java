@@ -0,0 +1,88 @@
+/*
+ * This file is part of ProxyAuth - https://github.com/Zeckie/ProxyAuth
+ * ProxyAuth is Copyright (c) 2021 Zeckie
+ *
+ * ProxyAuth is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * ProxyAuth is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ *  for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with ProxyAuth. If you have the source code, this is in a file called
+ * LICENSE. If you have the built jar file, the licence can be viewed by
+ * running "java -jar ProxyAuth-<version>.jar licence".
+ * Otherwise, see <https://www.gnu.org/licenses/>.
+ */
+
+package proxyauth.timeouts;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Zeckie
+ */
+public class TestTimingWheel {
+
+    @Test
+    public void testExpire() throws InterruptedException {
+        try (TimingWheel wheel = new TimingWheel("test", 10, 8)) {
+            final CountDownLatch ran = new CountDownLatch(1);
+            final long start = System.nanoTime();
+            wheel.schedule(start + 50_000_000L, ran::countDown);
+            Assertions.assertTrue(ran.await(5, TimeUnit.SECONDS));
+            Assertions.assertTrue(System.nanoTime() - start >= 50_000_000L);
+            Assertions.assertEquals(0, wheel.size());
+        }
+    }
+
+    @Test
+    public void testCancel() throws InterruptedException {
+        try (TimingWheel wheel = new TimingWheel("test", 10, 8)) {
+            final AtomicInteger ran = new AtomicInteger();
+            final TimingWheel.Timeout timeout = wheel.schedule(System.nanoTime() + 30_000_000L, ran::incrementAndGet);
+            Assertions.assertEquals(1, wheel.size());
+            Assertions.assertTrue(timeout.cancel());
+            Assertions.assertFalse(timeout.cancel());
+            Assertions.assertEquals(0, wheel.size());
+            Thread.sleep(100);
+            Assertions.assertEquals(0, ran.get());
+        }
+    }
+
+    /**
+     * Timeouts more than a turn of the wheel away wait for the turn they are due, even though they share a slot
+     * with sooner ones
+     */
+    @Test
+    public void testLaterTurns() throws InterruptedException {
+        try (TimingWheel wheel = new TimingWheel("test", 10, 4)) {
+            final CountDownLatch soon = new CountDownLatch(1);
+            final CountDownLatch later = new CountDownLatch(1);
+            final long start = System.nanoTime();
+            wheel.schedule(start + 20_000_000L, soon::countDown);
+            wheel.schedule(start + 20_000_000L + 3 * 40_000_000L, later::countDown);
+            Assertions.assertTrue(soon.await(5, TimeUnit.SECONDS));
+            Assertions.assertEquals(1, later.getCount());
+            Assertions.assertTrue(later.await(5, TimeUnit.SECONDS));
+            Assertions.assertTrue(System.nanoTime() - start >= 140_000_000L);
+        }
+    }
+
+    @Test
+    public void testAlreadyPassed() throws InterruptedException {
+        try (TimingWheel wheel = new TimingWheel("test", 10, 8)) {
+            final CountDownLatch ran = new CountDownLatch(1);
+            wheel.schedule(System.nanoTime() - 1_000_000_000L, ran::countDown);
+            Assertions.assertTrue(ran.await(5, TimeUnit.SECONDS));
+        }
+    }
+}